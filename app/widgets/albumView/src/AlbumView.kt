@@ -20,6 +20,8 @@ import sp.it.pl.audio.tagging.Metadata.Field.ALBUM
 import sp.it.pl.audio.tagging.MetadataGroup
 import sp.it.pl.audio.tagging.MetadataGroup.Companion.groupsOf
 import sp.it.pl.audio.tagging.MetadataGroup.Field.VALUE
+import sp.it.pl.image.ImageLoadScheduler
+import sp.it.pl.image.ImageLoadScheduler.Priority
 import sp.it.pl.image.ImageStandardLoader
 import sp.it.pl.layout.Widget
 import sp.it.pl.layout.controller.SimpleController
@@ -35,6 +37,7 @@ import sp.it.pl.ui.objects.grid.GridView
 import sp.it.pl.ui.objects.grid.GridView.CellGap
 import sp.it.pl.ui.objects.grid.GridView.CellSize
 import sp.it.pl.ui.objects.grid.ImageLoad
+import sp.it.pl.ui.objects.hierarchy.Item.CoverStrategy.Companion.VT_IMAGE
 import sp.it.pl.ui.objects.image.Cover.CoverSource.DIRECTORY
 import sp.it.pl.ui.objects.image.Thumbnail
 import sp.it.util.JavaLegacy
@@ -85,7 +88,6 @@ import sp.it.util.ui.image.FitFrom
 import sp.it.util.ui.image.FitFrom.OUTSIDE
 import sp.it.util.ui.image.ImageSize
 import sp.it.util.ui.image.Interrupts
-import sp.it.util.ui.image.Interrupts.interrupt
 import sp.it.util.ui.label
 import sp.it.util.ui.lay
 import sp.it.util.ui.maxSize
@@ -286,14 +288,13 @@ class AlbumView(widget: Widget): SimpleController(widget), SongReader {
       val name = items.getValueS("")
       var loadProgress: Double01 = 0.0
       var cover: ImageLoad = ImageLoad.NotStarted
-      @Volatile private var loadingThread: Thread? = null
-      @Volatile private var loadingPreInterrupted: Boolean = false
+      private var loadingTask: ImageLoadScheduler.Task<ImageLoad>? = null
 
       /** Dispose of this as to never be used again. */
       fun dispose() {
          failIfNotFxThread()
          cover = ImageLoad.DoneErr
-         loadingThread = null
+         loadingTask = null
       }
 
       /** Dispose of the cover as to be able to load it again. */
@@ -303,27 +304,24 @@ class AlbumView(widget: Widget): SimpleController(widget), SongReader {
       }
 
       fun computeCoverInterrupt() {
-         loadingPreInterrupted = true
-         interrupt(loadingThread)
+         loadingTask?.cancel()
       }
 
-      fun computeCover(size: ImageSize, fit: FitFrom): Fut<ImageLoad> {
+      fun computeCover(size: ImageSize, fit: FitFrom, priority: Priority): Fut<ImageLoad> {
          failIfNotFxThread()
 
          return when (val c = cover) {
             is ImageLoad.DoneErr -> fut(ImageLoad.DoneErr)
             is ImageLoad.DoneOk -> fut(ImageLoad.DoneErr)
             is ImageLoad.Loading -> c.loading
-            is ImageLoad.DoneInterrupted -> computeCoverAsync(c.fileOpt, size, fit)
-            is ImageLoad.NotStarted -> computeCoverAsync(None, size, fit)
+            is ImageLoad.DoneInterrupted -> computeCoverAsync(c.fileOpt, size, fit, priority)
+            is ImageLoad.NotStarted -> computeCoverAsync(None, size, fit, priority)
          }
       }
 
-      private fun computeCoverAsync(coverFile: Option<File?>, size: ImageSize, fit: FitFrom): Fut<ImageLoad> {
-         loadingPreInterrupted = false
-         return runVT {
-            loadingThread = Thread.currentThread()
-            if (loadingPreInterrupted) return@runVT ImageLoad.DoneInterrupted(coverFile)
+      private fun computeCoverAsync(coverFile: Option<File?>, size: ImageSize, fit: FitFrom, priority: Priority): Fut<ImageLoad> {
+         val task = VT_IMAGE.submit(coverFile.orNull() ?: items.grouped.firstOrNull()?.getFile(), priority) {
+            if (Interrupts.isInterrupted) return@submit ImageLoad.DoneInterrupted(coverFile)
             val f = coverFile.getOrSupply { computeCoverFile() }
             try {
                val i = f?.let { ImageStandardLoader(it, size, fit) }
@@ -333,9 +331,10 @@ class AlbumView(widget: Widget): SimpleController(widget), SongReader {
                if (Interrupts.isInterrupted) ImageLoad.DoneInterrupted(Some(f))
                else ImageLoad.DoneErr
             }
-         }.then(FX) {
-            Interrupts.dispose(loadingThread)
-            loadingThread = null
+         }
+         loadingTask = task
+         return task.result.then(FX) {
+            if (loadingTask===task) loadingTask = null
             cover = it
             it
          }.apply {
@@ -484,7 +483,7 @@ class AlbumView(widget: Widget): SimpleController(widget), SongReader {
             is ImageLoad.NotStarted, is ImageLoad.DoneInterrupted -> {
                thumb!!.loadImage(null)
                val i = index
-               item.computeCover(computeThumbSize(), thumb!!.fitFrom.value) ui { setCoverPost(item, i, it) }
+               item.computeCover(computeThumbSize(), thumb!!.fitFrom.value, computeLoadPriority()) ui { setCoverPost(item, i, it) }
             }
             is ImageLoad.Loading -> {
                thumb!!.loadImage(null)
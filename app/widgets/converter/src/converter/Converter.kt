@@ -3,6 +3,7 @@ package converter
 import io.github.oshai.kotlinlogging.KotlinLogging
 import java.io.File
 import java.nio.file.Files
+import java.util.IdentityHashMap
 import javafx.geometry.Insets
 import javafx.geometry.Pos
 import javafx.geometry.Pos.CENTER
@@ -25,8 +26,7 @@ import kotlinx.coroutines.invoke
 import sp.it.pl.audio.Song
 import sp.it.pl.audio.tagging.Metadata
 import sp.it.pl.audio.tagging.MetadataWriter
-import sp.it.pl.audio.tagging.read
-import sp.it.pl.audio.tagging.writeNoRefresh
+import sp.it.pl.audio.tagging.SongTagWriter
 import sp.it.pl.layout.Widget
 import sp.it.pl.layout.WidgetCompanion
 import sp.it.pl.layout.controller.SimpleController
@@ -190,17 +190,16 @@ class Converter(widget: Widget): SimpleController(widget), Opener, SongWriter {
                   if (songs.isNotEmpty()) {
                      failIf(data.values.any { it.size!=songs.size }) { "Data size mismatch" }
                      IO {
-                        for (i in songs.indices) {
-                           var j = i
-                           songs.get(i).writeNoRefresh { w: MetadataWriter ->
-                              data.forEach { field: String?, values: List<String?> ->
-                                 w.setFieldS(
-                                    Metadata.Field.valueOf(field!!), values.get(j)
-                                 )
-                              }
+                        val songIndexes = songs.withIndex().associateTo(IdentityHashMap()) { (i, song) -> song to i }
+                        val written = SongTagWriter().write(songs, { song: Song, w: MetadataWriter ->
+                           val j = songIndexes[song]!!
+                           data.forEach { field: String?, values: List<String?> ->
+                              w.setFieldS(
+                                 Metadata.Field.valueOf(field!!), values.get(j)
+                              )
                            }
-                        }
-                        APP.audio.refreshSongsWith(songs.map { it.read() }.filter { !it.isEmpty() }.toList())
+                        }, { false }, {})
+                        APP.audio.refreshSongsWith(written.written)
                      }
                   } else
                      Unit
@@ -68,7 +68,9 @@ import sp.it.util.Sort.ASCENDING
 import sp.it.util.Util.enumToHuman
 import sp.it.util.access.OrV.OrValue.Initial.Inherit
 import sp.it.util.access.fieldvalue.CachingFile
+import sp.it.util.access.fieldvalue.ColumnarSort.SortKey
 import sp.it.util.access.fieldvalue.FileField
+import sp.it.util.access.fieldvalue.ObjectFieldBase
 import sp.it.util.access.toggle
 import sp.it.util.access.v
 import sp.it.util.async.onlyIfMatches
@@ -104,7 +106,6 @@ import sp.it.util.functional.asIs
 import sp.it.util.functional.ifNotNull
 import sp.it.util.functional.let_
 import sp.it.util.functional.net
-import sp.it.util.functional.nullsLast
 import sp.it.util.functional.recurseBF
 import sp.it.util.functional.traverse
 import sp.it.util.inSort
@@ -131,6 +132,8 @@ import sp.it.util.text.keys
 import sp.it.util.text.nameUi
 import sp.it.util.text.pluralUnit
 import sp.it.util.text.resolved
+import sp.it.util.type.VType
+import sp.it.util.type.type
 import sp.it.util.ui.Resolution
 import sp.it.util.ui.Util.layHeaderTop
 import sp.it.util.ui.drag.contains
@@ -472,31 +475,28 @@ class DirViewer(widget: Widget): SimpleController(widget), ImagesDisplayFeature
       }
    }
 
-   private fun applySort() {
-      val itemsMaterialized = grid.itemsRaw.materialize()
-      runVT {
-         itemsMaterialized.sortedWith(buildSortComparator(itemsMaterialized))
-      } ui {
-         grid.itemsRaw setTo it
-      }
-   }
-
    @Suppress("MapGetWithNotNullAssertionOperator")
-   private fun buildSortComparator(items: List<Item>): Comparator<Item> {
-      return when (sortBy.value) {
+   private fun applySort() {
+      when (sortBy.value) {
          "PATH_LIBRARY" -> {
+            val items = grid.itemsRaw.materialize()
             val childByParent = items.associateWith { c -> filesMaterialized.find { p -> p.isAnyParentOrSelfOf(c.value) }!! }
             val pathByChild = items.associateWith { c -> c.value.path.substringAfter(childByParent[c]!!.path) }
-            compareBy<Item> { 0 }
-               .thenBy { it.valType }.inSort(sortFile.value.sort)
-               .thenBy { pathByChild[it]!! }
+            grid.itemsRawSortBy(
+               compareBy<Item> { 0 }
+                  .thenBy { it.valType }.inSort(sortFile.value.sort)
+                  .thenBy { pathByChild[it]!! }
+            )
          }
          else -> {
             val sortByValue = FileField.valueOf(sortBy.value)!!
-            compareBy<Item> { 0 }
-               .thenBy { it.valType }.inSort(sortFile.value.sort)
-               .thenBy(sortByValue.memoized().comparator { it.inSort(sort.value).nullsLast() }) { it.value }
-               .thenBy { it.value.path }
+            grid.itemsRawSortBy(
+               listOf(
+                  SortKey(ItemField.TYPE, sortFile.value.sort),
+                  SortKey(ItemField.FILE.flatMap(sortByValue), sort.value),
+                  SortKey(ItemField.FILE.flatMap(FileField.PATH), ASCENDING)
+               )
+            )
          }
       }
    }
@@ -671,4 +671,10 @@ class DirViewer(widget: Widget): SimpleController(widget), ImagesDisplayFeature
 
    }
 
-}
\ No newline at end of file
+}
+
+/** Fields of [Item], used for sorting, see [sp.it.pl.ui.objects.grid.GridView.itemsRawSortBy] */
+private sealed class ItemField<T>(name: String, type: VType<T>, extractor: (Item) -> T): ObjectFieldBase<Item, T>(type, extractor, name, name, { o, or -> o?.toString() ?: or }) {
+   object TYPE: ItemField<FileType>("Type", type(), { it.valType })
+   object FILE: ItemField<File>("File", type(), { it.value })
+}
@@ -233,8 +233,7 @@ class FileInfo(widget: Widget): SimpleController(widget), SongReader {
             .toHashSet() + data
          else -> setOf(data)
       }
-      items.writeNoRefresh { it.setCover(file) }
-      APP.audio.refreshSongs(items)
+      APP.audio.refreshSongsWith(items.writeNoRefresh { it.setCover(file) })
    }
 
    enum class Sort {
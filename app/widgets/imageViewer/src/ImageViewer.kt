@@ -5,6 +5,7 @@ import javafx.animation.Animation.INDEFINITE
 import javafx.beans.property.SimpleObjectProperty
 import javafx.geometry.Pos.CENTER_LEFT
 import javafx.geometry.Pos.CENTER_RIGHT
+import javafx.scene.image.Image
 import javafx.scene.input.KeyCode.END
 import javafx.scene.input.KeyCode.ENTER
 import javafx.scene.input.KeyCode.HOME
@@ -22,7 +23,11 @@ import javafx.scene.input.MouseEvent.MOUSE_ENTERED
 import javafx.scene.input.MouseEvent.MOUSE_EXITED
 import javafx.scene.input.MouseEvent.MOUSE_MOVED
 import javafx.util.Duration.ZERO
+import kotlin.math.abs
 import sp.it.pl.audio.Song
+import sp.it.pl.image.ImageLoadScheduler
+import sp.it.pl.image.ImageLoadScheduler.Priority
+import sp.it.pl.image.ImageStandardLoader
 import sp.it.pl.layout.Widget
 import sp.it.pl.layout.WidgetCompanion
 import sp.it.pl.layout.controller.SimpleController
@@ -39,6 +44,7 @@ import sp.it.pl.main.installDrag
 import sp.it.pl.main.isImage
 import sp.it.pl.main.toMetadata
 import sp.it.pl.ui.nodeinfo.SongInfo
+import sp.it.pl.ui.objects.hierarchy.Item.CoverStrategy.VT_IMAGE
 import sp.it.pl.ui.objects.icon.Icon
 import sp.it.pl.ui.objects.icon.onClickDelegateKeyTo
 import sp.it.pl.ui.objects.icon.onClickDelegateMouseTo
@@ -50,16 +56,23 @@ import sp.it.util.animation.Anim
 import sp.it.util.animation.Anim.Companion.anim
 import sp.it.util.async.executor.EventReducer
 import sp.it.util.async.executor.FxTimer.Companion.fxTimer
+import sp.it.util.async.runFX
 import sp.it.util.async.runVT
+import sp.it.util.collections.map.WeightedLruCache
 import sp.it.util.collections.setToOne
 import sp.it.util.conf.EditMode
+import sp.it.util.conf.between
 import sp.it.util.conf.c
 import sp.it.util.conf.cv
 import sp.it.util.conf.def
 import sp.it.util.file.FileType.FILE
 import sp.it.util.file.Util.getCommonRoot
 import sp.it.util.file.div
-import sp.it.util.file.getFilesR
+import sp.it.util.file.useFilesR
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.math.min
 import sp.it.util.reactive.onEventDown
 import sp.it.util.reactive.onEventUp
 import sp.it.util.reactive.sync
@@ -68,6 +81,8 @@ import sp.it.util.text.keys
 import sp.it.util.text.nameUi
 import sp.it.util.ui.Util.layAnchor
 import sp.it.util.ui.anchorPane
+import sp.it.util.ui.image.FitFrom
+import sp.it.util.ui.image.ImageSize
 import sp.it.util.ui.lay
 import sp.it.util.ui.layFullArea
 import sp.it.util.ui.minSize
@@ -76,6 +91,8 @@ import sp.it.util.ui.pseudoClassChanged
 import sp.it.util.ui.stackPane
 import sp.it.util.ui.styleclassToggle
 import sp.it.util.ui.x
+import sp.it.util.units.FileSize
+import sp.it.util.units.FileSize.Companion.Mi
 import sp.it.util.units.millis
 import sp.it.util.units.seconds
 import sp.it.util.units.version
@@ -89,7 +106,15 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
    private val navAnim: Anim
    private val folder = SimpleObjectProperty<File?>(null)
    private val images = mutableListOf<File>()
+   /** Last modified time of [images], read when the folder is read, so the fx thread does not wait for the file system */
+   private val imagesModified = HashMap<File, Long>()
    private val slideshow = fxTimer(ZERO, INDEFINITE) { visitNextImage() }
+   private val prefetched = WeightedLruCache<PrefetchKey, Prefetched>(0) { it.image.width.toLong()*it.image.height.toLong()*4 }
+   private val prefetches = HashMap<File, Prefetch>()
+   private var prefetchDirection = 1
+   @Volatile private var prefetchActive = -1
+   @Volatile private var readId = 0L
+   private var isReading = false
 
    val slideshowDur by cv(15.seconds).sync { slideshow.setTimeoutAndRestart(it) }
       .def(name = "Slideshow reload time", info = "Time between picture change.")
@@ -107,6 +132,10 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
       .def(name = "File search depth", info = "Depth to search for files in folders. 1 for current folder only.")
    var thumbsLimit by c(50)
       .def(name = "Max number of thumbnails", info = "Important for directories with lots of images.")
+   val prefetchCount by cv(2).between(0, 10).attach { prefetch() }
+      .def(name = "Prefetch images", info = "Number of images before and after the displayed image, that are decoded ahead at the size of the viewer, so navigation does not wait for decoding. During slideshow, images ahead are prefetched. 0 disables prefetching.")
+   val prefetchMemory by cv(FileSize(256*Mi)).sync { prefetched.maxWeight = it.inBytes() max 0L }
+      .def(name = "Prefetch memory", info = "Maximal memory of prefetched images. Least recently used images are released first.")
    private var activeImage by c(-1)
       .def(name = "Displayed image", editable = EditMode.APP)
 
@@ -204,6 +233,7 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
       )
 
       onClose += slideshow::stop
+      onClose += ::prefetchClear
       onClose += root.sync1IfInScene {
          if (!inputLocation.isBoundUnless(widget.id) && !inputLocationOf.isBoundUnless(widget.id) && !widget.isDeserialized)
             inputLocationOf.bind(APP.audio.playing)
@@ -227,26 +257,44 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
    }
 
    private fun readThumbnails() {
+      val id = ++readId
       images.clear()
+      imagesModified.clear()
+      prefetchClear()
+      isReading = true
       val source = folder.value
+      val depth = folderTreeDepth
+      val limit = thumbsLimit
+      val ai = activeImage
       runVT {
-         if (source==null) listOf()
-         else source.getFilesR(folderTreeDepth, FILE) { p, _ -> p.isImage() }.take(thumbsLimit)
-      } ui { files ->
-         val ai = activeImage
-         if (files.isEmpty()) {
-            setImage(-1)
-         } else {
-            files.forEachIndexed { i, f ->
-               insertThumbnail(f)
-               if (i==ai) setImage(ai)
+         if (source!=null) runTry {
+            // files are displayed as they are found, walk stops if folder changes
+            source.useFilesR(depth, FILE, predicate = { p, _ -> p.isImage() }) { files ->
+               files.takeWhile { id==readId }.take(limit).forEachIndexed { i, f ->
+                  val modified = f.lastModified()
+                  runFX {
+                     if (id==readId) {
+                        insertThumbnail(f, modified)
+                        if (i==ai) setImage(ai)
+                        else prefetch()
+                     }
+                  }
+               }
             }
          }
+      } ui {
+         // the walk may fail partway, so only inserted thumbnails count
+         if (id==readId) {
+            isReading = false
+            if (images.isEmpty()) setImage(-1)
+            else prefetch()
+         }
       }
    }
 
-   private fun insertThumbnail(f: File) {
+   private fun insertThumbnail(f: File, modified: Long) {
       images.add(f)
+      imagesModified[f] = modified
       // if this is first thumbnail display it immediately
       // but only if the displayed image is not one of the thumbnails - is not located
       // in folder.get() directory
@@ -267,21 +315,97 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
          // also unwanted, sometimes this would erase our deserialized index
          //  active_image = -1;
       } else {
-         mainImage.loadFile(images[i])
          activeImage = i
+         showImage(images[i])
+         prefetch()
+      }
+   }
+
+   private fun showImage(f: File) {
+      val size = mainImage.calculateImageLoadSize()
+      val fit = mainImage.fitFrom.value
+      val cached = prefetched[f.prefetchKey()]?.takeIf { it.matches(size, fit) }
+      val pending = prefetches[f]?.takeIf { it.matches(size, fit) }
+      when {
+         cached!=null -> mainImage.loadImage(cached.image, f)
+         pending!=null -> pending.task.result ui { img ->
+            if (images.getOrNull(activeImage)==f) {
+               if (img!=null) mainImage.loadImage(img, f)
+               else mainImage.loadFile(f)
+            }
+         }
+         else -> mainImage.loadFile(f)
+      }
+   }
+
+   /**
+    * Decodes images around the displayed image at the size of the viewer ahead of navigation, prefetched images
+    * closer to the displayed image and in the direction of the navigation first. Cancels prefetching of images that
+    * are no longer around the displayed image.
+    */
+   private fun prefetch() {
+      val ai = activeImage
+      val n = images.size
+      val count = if (ai !in images.indices) 0 else prefetchCount.value min (n - 1)
+      val ahead = count
+      val behind = if (slideshow.isRunning) count min 1 else count
+      val size = mainImage.calculateImageLoadSize()
+      val fit = mainImage.fitFrom.value
+      val window = LinkedHashMap<File, Int>()
+      fun add(i: Int) {
+         // the list wraps around only when complete, otherwise the neighbours would change as files are found
+         val index = if (isReading) i.takeIf { it in images.indices } else i.mod(n)
+         if (index!=null && index!=ai) window.putIfAbsent(images[index], index)
+      }
+      for (d in 1..(ahead max behind)) {
+         if (d<=ahead) add(ai + prefetchDirection*d)
+         if (d<=behind) add(ai - prefetchDirection*d)
+      }
+
+      prefetchActive = ai
+      val displayed = images.getOrNull(ai)
+      prefetches.entries.removeIf { (f, p) ->
+         (f!=displayed && (f !in window || !p.matches(size, fit))).also { if (it) p.task.cancel() }
+      }
+      window.forEach { (f, index) ->
+         val key = f.prefetchKey()
+         if (f !in prefetches && prefetched[key]?.matches(size, fit)!=true) {
+            val task = VT_IMAGE.submit(f, Priority { prefetchDistance(index, n) }) { ImageStandardLoader(f, size, fit) }
+            val p = Prefetch(size, fit, task)
+            prefetches[f] = p
+            task.result ui { img ->
+               if (prefetches[f]===p) {
+                  prefetches -= f
+                  if (img!=null) prefetched.put(key, Prefetched(size, fit, img))
+               }
+            }
+         }
       }
    }
 
-   fun visitLastImage() = visit { images.lastIndex }
+   /** @return distance of the image from the displayed image, used as loading priority, so nearest image loads first */
+   private fun prefetchDistance(index: Int, n: Int): Int {
+      val ai = prefetchActive
+      return if (ai<0) index else (index - ai).mod(n) min (ai - index).mod(n)
+   }
+
+   private fun prefetchClear() {
+      prefetches.values.forEach { it.task.cancel() }
+      prefetches.clear()
+      prefetched.clear()
+   }
+
+   fun visitLastImage() = visit(-1) { images.lastIndex }
 
-   fun visitNextImage() = visit { if (activeImage>=images.lastIndex) 0 else activeImage + 1 }
+   fun visitNextImage() = visit(+1) { if (activeImage>=images.lastIndex) 0 else activeImage + 1 }
 
-   fun visitPrevImage() = visit { if (activeImage<1) images.lastIndex else activeImage - 1 }
+   fun visitPrevImage() = visit(-1) { if (activeImage<1) images.lastIndex else activeImage - 1 }
 
-   fun visitFirstImage() = visit { 0 }
+   fun visitFirstImage() = visit(+1) { 0 }
 
-   private fun visit(block: () -> Int) {
+   private fun visit(direction: Int, block: () -> Int) {
       if (images.size==1) return
+      prefetchDirection = direction
       setImage(if (images.isEmpty()) -1 else block())
       if (slideshow.isRunning) slideshow.start()
    }
@@ -304,7 +428,26 @@ class ImageViewer(widget: Widget): SimpleController(widget) {
       itemPane?.isVisible = v
    }
 
+   /** Key of image decoded ahead, so image modified on disk is not displayed stale */
+   private data class PrefetchKey(val file: File, val lastModified: Long)
+
+   private fun File.prefetchKey() = PrefetchKey(this, imagesModified[this] ?: 0L)
+
+   /** Image decoded ahead, see [prefetch] */
+   private class Prefetched(val size: ImageSize, val fit: FitFrom, val image: Image) {
+      fun matches(size: ImageSize, fit: FitFrom) = matches(this.size, this.fit, size, fit)
+   }
+
+   /** Image being decoded ahead, see [prefetch] */
+   private class Prefetch(val size: ImageSize, val fit: FitFrom, val task: ImageLoadScheduler.Task<Image?>) {
+      fun matches(size: ImageSize, fit: FitFrom) = matches(this.size, this.fit, size, fit)
+   }
+
    companion object: WidgetCompanion {
+      /** @return true iff image loaded with the specified size and fit can be displayed instead of loading it again */
+      private fun matches(size1: ImageSize, fit1: FitFrom, size2: ImageSize, fit2: FitFrom) =
+         fit1==fit2 && abs(size1.width - size2.width)<=5.0 && abs(size1.height - size2.height)<=5.0
+
       override val name = "Image Viewer"
       override val description = "Displays images in a directory or song location. Looks for images in sub-folders."
       override val descriptionLong = """
@@ -96,10 +96,8 @@ class PlaylistView(widget: Widget): SimpleController(widget), PlaylistFeature {
 
       playlist.playingSong sync { outputPlaying.value = it } on onClose
       playlist.duration attach { table.items_info.updateText() } on onClose
-      APP.audio.onSongRefresh { ms ->
-         outputPlaying.value?.let { ms.ifHasK(it.uri) { outputPlaying.value = it.toPlaylist() } }
-         outputSelected.value?.let { ms.ifHasK(it.uri) { outputSelected.value = it.toPlaylist() } }
-      } on onClose
+      APP.audio.onSongRefresh({ outputPlaying.value }) { outputPlaying.value = it.toPlaylist() } on onClose
+      APP.audio.onSongRefresh({ outputSelected.value }) { outputSelected.value = it.toPlaylist() } on onClose
 
       playVisible sync { pv -> playlist.setTransformation(PlaylistTransformer(table, pv)) } on onClose
       onClose += { playlist.setTransformation(playlist.TransformerDefault()) }
@@ -181,27 +179,32 @@ class PlaylistView(widget: Widget): SimpleController(widget), PlaylistFeature {
    override fun focus() = table.requestFocus()
 
    private fun computeInitialPlaylist(id: UUID) = null
-      ?: PlaylistManager.playlists[id]
+      ?: PlaylistManager.restore(id)
       ?: findDanglingPlaylist()?.copyDangling()
-      ?: Playlist(id).also { PlaylistManager.playlists += it }
+      ?: Playlist(id).also { PlaylistManager.playlists += it; PlaylistManager.store.track(it) }
 
-   private fun findDanglingPlaylists(): List<Playlist> {
-      val open = APP.widgetManager.widgets.findAll(OPEN).mapNotNull { it.controller.asIf<PlaylistFeature>()?.playlist }
-      return PlaylistManager.playlists.filter { it !in open }
+   private fun findDanglingPlaylists(): List<UUID> {
+      val open = APP.widgetManager.widgets.findAll(OPEN).mapNotNull { it.controller.asIf<PlaylistFeature>()?.playlist?.id }.toSet()
+      return (PlaylistManager.playlists.map { it.id } + PlaylistManager.store.ids).filter { it !in open }
    }
 
    private fun findDanglingPlaylist(): Playlist? = findDanglingPlaylists().let {
-      it.find { it.id==PlaylistManager.active } ?: it.firstOrNull()
+      (it.find { it==PlaylistManager.active } ?: it.firstOrNull())?.let(PlaylistManager::restore)
    }
 
    private fun Playlist.copyDangling() = let { dp ->
       val wasActive = dp.id==PlaylistManager.active
+      val playing = PlaylistManager.store.indexOfPlaying(dp)
       PlaylistManager.playlists -= dp
       Playlist(id).apply {
          PlaylistManager.playlists += this
-         addPlaylistSongs(dp, 0)
-         updatePlayingItem(dp.indexOfPlaying())
+         PlaylistManager.store.track(this)
          if (wasActive) PlaylistManager.active = id
+         // the dangling playlist may still be being restored, its songs are only known once decoded
+         PlaylistManager.store.restored(dp.id) ui {
+            addPlaylistSongs(dp, 0)
+            updatePlayingItem(playing)
+         }
       }
    }
 
@@ -215,7 +218,7 @@ class PlaylistView(widget: Widget): SimpleController(widget), PlaylistFeature {
          return if (pv) table.items.materialize()
          else original.materialize().sortedWith(table.itemsComparator.value)
       }
-      override fun index(song: Song): NofX = NofX(table.playlist.indexOfFirst { it.same(song) }, table.playlist.size)
+      override fun index(song: Song): NofX = NofX(table.playlist.indexOfFirstSame(song), table.playlist.size)
    }
 
    companion object: WidgetCompanion {
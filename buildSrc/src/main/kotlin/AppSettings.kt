@@ -119,6 +119,9 @@ val appSetting = Setting.root {
       config("Search auto-cancel delay") {
          info = "Period of inactivity after which search is automatically deactivated."
       }
+      config("Source time limit") {
+         info = "Maximal time to search a single source. Slower sources stop searching and only results found within the limit are shown."
+      }
    }
    "Ui" {
       config("Skin") {
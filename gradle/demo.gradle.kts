@@ -15,5 +15,7 @@ sourceSets {
 
 dependencies {
    implementation("com.github.oshi", "oshi-demo", "6.6.6")
+   implementation("org.openjdk.jmh", "jmh-core", "1.37")
+   annotationProcessor("org.openjdk.jmh", "jmh-generator-annprocess", "1.37")
    implementation(project(":util"))
 }
\ No newline at end of file
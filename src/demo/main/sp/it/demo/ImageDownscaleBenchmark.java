@@ -0,0 +1,138 @@
+package sp.it.demo;
+
+import com.twelvemonkeys.image.ResampleOp;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sp.it.util.ui.image.FitFrom;
+import sp.it.util.ui.image.ImagePixelsKt;
+import sp.it.util.ui.image.ImageSize;
+
+/**
+ * Compares loading of a scaled down jpeg thumbnail through {@link BufferedImage}, Java2D resampling and
+ * {@link SwingFXUtils#toFXImage(BufferedImage, javafx.scene.image.WritableImage)} with the pixel pipeline
+ * {@link ImagePixelsKt#readImageScaled(ImageReader, int, ImageSize, FitFrom, boolean)}.
+ * Run with -prof gc to compare allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageDownscaleBenchmark {
+
+	@Param({"4000x3000"})
+	public String source;
+
+	@Param({"200", "600"})
+	public int size;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		try {
+			Platform.startup(() -> {});
+		} catch (IllegalStateException e) {
+			// already started
+		}
+
+		var dims = source.split("x");
+		var w = Integer.parseInt(dims[0]);
+		var h = Integer.parseInt(dims[1]);
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		var g = img.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, w, h, Color.BLUE));
+		g.fillRect(0, 0, w, h);
+		var random = new Random(0);
+		for (int i = 0; i<2000; i++) {
+			g.setColor(new Color(random.nextInt()));
+			g.fillOval(random.nextInt(w), random.nextInt(h), 5 + random.nextInt(200), 5 + random.nextInt(200));
+		}
+		g.dispose();
+
+		file = File.createTempFile("image-downscale-benchmark", ".jpg");
+		ImageIO.write(img, "jpg", file);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (file!=null) file.delete();
+	}
+
+	@Benchmark
+	public Image bufferedImageResampleToFx() throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+			var reader = reader(stream);
+			try {
+				var iW = reader.getWidth(0);
+				var iH = reader.getHeight(0);
+				var s = Math.min(iW, iH);
+				var ss = Math.max(1, s/size/2);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(ss, ss, 0, 0);
+				param.setSourceRegion(new Rectangle((iW - s)/2, (iH - s)/2, s, s));
+				var decoded = reader.read(0, param);
+				var scaled = new ResampleOp(size, size).filter(decoded, null);
+				decoded.flush();
+				var image = SwingFXUtils.toFXImage(scaled, null);
+				scaled.flush();
+				return image;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	@Benchmark
+	public Image pixelPipeline() throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+			var reader = reader(stream);
+			try {
+				return ImagePixelsKt.readImageScaled(reader, 0, new ImageSize(size, size), FitFrom.OUTSIDE, true);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private static ImageReader reader(ImageInputStream stream) {
+		var reader = ImageIO.getImageReaders(stream).next();
+		reader.setInput(stream, true, true);
+		return reader;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ImageDownscaleBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
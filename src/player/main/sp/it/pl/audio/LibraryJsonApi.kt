@@ -0,0 +1,162 @@
+package sp.it.pl.audio
+
+import com.sun.net.httpserver.HttpExchange
+import javafx.util.Duration
+import kotlin.text.Charsets.UTF_8
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.tagging.Metadata
+import sp.it.pl.audio.tagging.Metadata.Field
+import sp.it.pl.main.APP
+import sp.it.pl.main.AppHttp.Companion.queryParams
+import sp.it.pl.main.AppHttp.HttpException
+import sp.it.pl.main.AppHttp.StreamResponse
+import sp.it.util.Sort.ASCENDING
+import sp.it.util.Sort.DESCENDING
+import sp.it.util.access.fieldvalue.ColumnarFilter
+import sp.it.util.access.fieldvalue.ColumnarSort
+import sp.it.util.access.fieldvalue.ColumnarSort.SortKey
+import sp.it.util.access.fieldvalue.FieldColumns
+import sp.it.util.access.fieldvalue.FieldPredicate
+import sp.it.util.access.fieldvalue.FieldPredicates
+import sp.it.util.file.json.JsWriter
+import sp.it.util.functional.asIs
+import sp.it.util.functional.orNull
+import sp.it.util.text.decodeBase64
+import sp.it.util.text.encodeBase64
+
+/**
+ * Json http api of the song library, see [page] and [song].
+ *
+ * Songs are filtered and sorted by [ColumnarFilter] and [ColumnarSort] over [FieldColumns] of the library, which are
+ * cached for the current library version along with the last result, so subsequent pages do not extract the field
+ * values, filter or sort again.
+ * Responses are streamed as compact json, see [JsWriter] and [StreamResponse].
+ */
+class LibraryJsonApi {
+   @Volatile private var columns: Columns? = null
+   @Volatile private var result: Result? = null
+
+   /**
+    * Page of the library songs. Query parameters:
+    * - `fields`: comma separated [Field] names to include, default [FIELDS_DEFAULT]
+    * - `filter`: `<field>:<text>`, keeps only songs whose field value contains the text, ignoring case; may be repeated
+    * - `sort`: comma separated [Field] names, `-` prefix sorts descending
+    * - `limit`: maximal number of songs, default [LIMIT_DEFAULT], at most [LIMIT_MAX]
+    * - `cursor`: `next` of the previous page
+    *
+    * Responds with `{"version":1,"total":2,"next":"1.100","items":[{"id":"…","Title":"…"}]}`, where `next` is null
+    * for the last page and `id` is base64 encoded [Metadata.id], as used by `/audio/library/%songId`.
+    * Responds with 409 if the library changed since the cursor was created, because the result would be inconsistent.
+    */
+   @Blocking
+   fun page(e: HttpExchange): StreamResponse {
+      val query = e.queryParams()
+      val fields = query.fields()
+      val filters = query["filter"].orEmpty()
+      val sorts = query["sort"].orEmpty().flatMap { it.split(",") }.map { it.trim() }.filter { it.isNotEmpty() }
+      val limit = query["limit"]?.first()?.let { it.toIntOrNull() ?: throw HttpException(400, "Invalid limit=$it") }?.coerceIn(1, LIMIT_MAX) ?: LIMIT_DEFAULT
+      val cursor = query["cursor"]?.first()?.let { c ->
+         val (version, offset) = c.split(".").takeIf { it.size==2 } ?: throw HttpException(400, "Invalid cursor=$c")
+         (version.toLongOrNull() ?: throw HttpException(400, "Invalid cursor=$c")) to (offset.toIntOrNull()?.takeIf { it>=0 } ?: throw HttpException(400, "Invalid cursor=$c"))
+      }
+
+      val c = columns()
+      if (cursor!=null && cursor.first!=c.version) throw HttpException(409, "Library changed, request the first page again")
+      val indexes = indexes(c, filters, sorts)
+      val from = cursor?.second?.coerceAtMost(indexes.size) ?: 0
+      val to = minOf(indexes.size, from + limit)
+      val next = if (to<indexes.size) "${c.version}.$to" else null
+
+      return StreamResponse(CONTENT_TYPE) { o ->
+         JsWriter(o.bufferedWriter(UTF_8)).apply {
+            beginObject()
+            name("version").value(c.version)
+            name("total").value(indexes.size)
+            name("next").value(next)
+            name("items").beginArray()
+            for (i in from until to) writeSong(c.songs.items[indexes[i]], fields)
+            endArray()
+            endObject()
+            flush()
+         }
+      }
+   }
+
+   /**
+    * Library song with base64 encoded [Metadata.id] at the end of the request path. Supports `fields` query parameter,
+    * see [page]. Responds with 404 if the library does not contain such song.
+    */
+   @Blocking
+   fun song(e: HttpExchange): StreamResponse {
+      val id = e.requestURI.path.substringAfterLast("/").decodeBase64().orNull() ?: throw HttpException(400, "Invalid song id")
+      val song = APP.db.songsById[id] ?: throw HttpException(404, "Song not in library")
+      val fields = e.queryParams().fields()
+      return StreamResponse(CONTENT_TYPE) { o ->
+         JsWriter(o.bufferedWriter(UTF_8)).apply {
+            writeSong(song, fields)
+            flush()
+         }
+      }
+   }
+
+   private fun columns(): Columns {
+      val version = APP.db.changes.version
+      return columns?.takeIf { it.version==version } ?: Columns(version, FieldColumns(APP.db.songsById.toList())).also { columns = it }
+   }
+
+   private fun indexes(c: Columns, filters: List<String>, sorts: List<String>): IntArray {
+      result?.takeIf { it.columns===c && it.filters==filters && it.sorts==sorts }?.let { return it.indexes }
+
+      val predicates = filters.map { f ->
+         val field = f.substringBefore(":", "").toField()
+         val text = f.substringAfter(":")
+         FieldPredicate<Metadata, Any?>(field.asIs(), { field.asIs<Field<Any?>>().toS(it, "").contains(text, true) }, false, false)
+      }
+      val keys = sorts.map {
+         if (it.startsWith("-")) SortKey<Metadata>(it.substring(1).toField(), DESCENDING)
+         else SortKey<Metadata>(it.toField(), ASCENDING)
+      }
+      val filtered =
+         if (predicates.isEmpty()) IntArray(c.songs.size) { it }
+         else ColumnarFilter<Metadata>().filterNow(c.songs, FieldPredicates(predicates)) { false }!!.stream().toArray()
+      val sorted =
+         if (keys.isEmpty()) filtered
+         else ColumnarSort<Metadata>().sortNow(c.songs, filtered, keys) { false }!!
+      result = Result(c, filters, sorts, sorted)
+      return sorted
+   }
+
+   private fun Map<String, List<String>>.fields(): List<Field<*>> =
+      this["fields"]?.flatMap { it.split(",") }?.map { it.trim() }?.filter { it.isNotEmpty() }?.map { it.toField() } ?: FIELDS_DEFAULT
+
+   private fun String.toField(): Field<*> =
+      Field.valueOf(this) ?: Field.all.find { it.name().equals(this, true) } ?: throw HttpException(400, "Unknown field=$this")
+
+   private fun JsWriter.writeSong(m: Metadata, fields: List<Field<*>>) {
+      beginObject()
+      name("id").value(m.id.encodeBase64())
+      fields.forEach { f ->
+         name(f.name())
+         when (val v = f.getOf(m)) {
+            null -> value(null as String?)
+            is Number -> value(v)
+            is Boolean -> value(v)
+            is String -> value(v)
+            is Duration -> value(v.toMillis())
+            else -> value(f.asIs<Field<Any?>>().toS(v, ""))
+         }
+      }
+      endObject()
+   }
+
+   private class Columns(val version: Long, val songs: FieldColumns<Metadata>)
+
+   private class Result(val columns: Columns, val filters: List<String>, val sorts: List<String>, val indexes: IntArray)
+
+   companion object {
+      private const val CONTENT_TYPE = "application/json; charset=UTF-8"
+      private const val LIMIT_DEFAULT = 100
+      private const val LIMIT_MAX = 5000
+      private val FIELDS_DEFAULT = listOf<Field<*>>(Field.TITLE, Field.ARTIST, Field.ALBUM, Field.LENGTH)
+   }
+}
@@ -0,0 +1,107 @@
+package sp.it.pl.audio
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.net.URI
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.READ
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.playlist.PlaylistManager
+import sp.it.pl.audio.tagging.Metadata
+import sp.it.pl.audio.tagging.read
+import sp.it.pl.main.APP
+import sp.it.pl.ui.objects.image.Cover.CoverSource
+import sp.it.util.async.executor.FxTimer.Companion.fxTimer
+import sp.it.util.async.runVT
+import sp.it.util.dev.failIfNotFxThread
+import sp.it.util.functional.runTry
+import sp.it.util.units.FileSize
+import sp.it.util.units.FileSize.Companion.Ki
+import sp.it.util.units.millis
+
+/**
+ * Lookahead of the songs that will play next (see [sp.it.pl.audio.playlist.Playlist.getUpcoming]), so song
+ * transitions do not wait for storage. For each upcoming song it:
+ * - resolves metadata, from [sp.it.pl.plugin.impl.SongDb] if possible, see [get]
+ * - warms the cover, i.e., the [sp.it.pl.audio.tagging.ArtworkCache] for tag cover or the beginning of the cover file
+ * - reads the beginning of the song file into the OS page cache
+ *
+ * Prefetching runs on virtual thread shortly after [schedule] and is cancelled by next [schedule] or [cancel], e.g.,
+ * when the playing song, the playlist or the loop mode changes.
+ */
+class PlaybackPrefetcher {
+   private val metadata = ConcurrentHashMap<URI, Metadata>()
+   private val generation = AtomicLong(0)
+   private val scheduler = fxTimer(400.millis, 1) { prefetch() }
+
+   /** Number of upcoming songs to prefetch, 0 disables prefetching */
+   @Volatile var depth = 3
+   /** Number of bytes to read from the beginning of each upcoming file */
+   @Volatile var size = FileSize(256*Ki)
+
+   /** @return prefetched metadata of the song or null if none */
+   operator fun get(song: Song): Metadata? = metadata[song.uri]
+
+   /** Schedules prefetching of the upcoming songs, cancelling the current prefetching. */
+   fun schedule() {
+      failIfNotFxThread()
+      generation.incrementAndGet()
+      scheduler.start()
+   }
+
+   /** Cancels the current and the scheduled prefetching. */
+   fun cancel() {
+      failIfNotFxThread()
+      generation.incrementAndGet()
+      scheduler.stop()
+   }
+
+   private fun prefetch() {
+      val songs = if (depth<=0) listOf() else PlaylistManager.use({ it.getUpcoming(depth) }, listOf())
+      val uris = songs.mapTo(HashSet()) { it.uri }
+      metadata.keys.retainAll(uris)
+      if (songs.isEmpty()) return
+
+      val g = generation.get()
+      val bytes = size.inBytes()
+      runVT {
+         fun isCancelled() = generation.get()!=g
+         for (song in songs) {
+            if (isCancelled()) break
+            val m = metadata[song.uri] ?: APP.db.getSong(song) ?: song.read().takeUnless { it.isEmpty() } ?: continue
+            metadata[song.uri] = m
+            if (isCancelled()) break
+            val f = m.getFile()?.takeIf { it.isFile } ?: continue
+            APP.artworks.getCover(f, CoverSource.ANY).getFile()?.readAhead(bytes)
+            if (isCancelled()) break
+            f.readAhead(bytes)
+         }
+      }
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+
+      /** Reads the beginning of the file, so it is in the OS page cache */
+      @Blocking
+      private fun File.readAhead(bytes: Long) {
+         runTry {
+            FileChannel.open(toPath(), READ).use { ch ->
+               val buffer = ByteBuffer.allocate((64*Ki).toInt())
+               var read = 0L
+               while (read<bytes) {
+                  buffer.clear()
+                  val n = ch.read(buffer)
+                  if (n<0) break
+                  read += n
+               }
+            }
+         }.ifError {
+            logger.debug(it) { "Failed to read ahead file=$this" }
+         }
+      }
+   }
+}
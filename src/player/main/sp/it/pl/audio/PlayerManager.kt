@@ -2,7 +2,6 @@ package sp.it.pl.audio
 
 import io.github.oshai.kotlinlogging.KotlinLogging
 import java.io.File
-import java.net.URI
 import javafx.geometry.VPos
 import javafx.scene.media.MediaPlayer
 import javafx.scene.media.MediaPlayer.Status.PAUSED
@@ -24,13 +23,14 @@ import sp.it.pl.audio.playback.VlcPlayer.AudioDevice
 import sp.it.pl.audio.playback.VolumeProperty
 import sp.it.pl.audio.playlist.PlaylistManager
 import sp.it.pl.audio.playlist.PlaylistSong
+import sp.it.pl.audio.playlist.sequence.ShuffleWeighting
 import sp.it.pl.audio.tagging.Metadata
 import sp.it.pl.audio.tagging.Metadata.Field.DISCS_INFO
 import sp.it.pl.audio.tagging.Metadata.Field.TRACK_INFO
+import sp.it.pl.audio.tagging.PlayStats
 import sp.it.pl.audio.tagging.read
 import sp.it.pl.audio.tagging.readTask
 import sp.it.pl.audio.tagging.setOnDone
-import sp.it.pl.audio.tagging.write
 import sp.it.pl.audio.tagging.writeRating
 import sp.it.pl.layout.controller.io.Output
 import sp.it.pl.layout.controller.io.appWide
@@ -52,10 +52,8 @@ import sp.it.util.access.v
 import sp.it.util.action.IsAction
 import sp.it.util.async.executor.EventReducer
 import sp.it.util.async.executor.EventReducer.Companion.toLast
-import sp.it.util.async.executor.FxTimer.Companion.fxTimer
 import sp.it.util.async.runFX
 import sp.it.util.async.runIO
-import sp.it.util.collections.mapset.MapSet
 import sp.it.util.conf.ConfigurableBase
 import sp.it.util.conf.EditMode
 import sp.it.util.conf.GlobalSubConfigDelegator
@@ -84,8 +82,10 @@ import sp.it.util.dev.ThreadSafe
 import sp.it.util.dev.fail
 import sp.it.util.dev.failIfNotFxThread
 import sp.it.util.file.FileType.DIRECTORY
+import sp.it.util.file.div
 import sp.it.util.file.json.JsArray
 import sp.it.util.file.json.JsString
+import sp.it.util.file.json.JsWriter
 import sp.it.util.functional.Util.SAME
 import sp.it.util.functional.asIs
 import sp.it.util.functional.ifNotNull
@@ -116,7 +116,10 @@ import sp.it.util.ui.lay
 import sp.it.util.ui.setMinPrefMaxSize
 import sp.it.util.ui.stackPane
 import sp.it.util.ui.text
+import sp.it.util.units.FileSize
+import sp.it.util.units.FileSize.Companion.Ki
 import sp.it.util.units.millis
+import sp.it.util.units.minutes
 import sp.it.util.units.seconds
 import sp.it.util.units.toHMSMs
 import sp.it.util.units.uuid
@@ -127,8 +130,13 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
    val playing = Output<Metadata?>(uuid("876dcdc9-48de-47cd-ab1d-811eb5e95158"), "Playing", type(), null).appWide()
    val playlists = PlaylistManager
    val playingSong = CurrentItem()
+   /** Lookahead of the upcoming songs */
+   val prefetcher = PlaybackPrefetcher()
    val state = PlayerState.deserialize().apply {
-      playback.loopMode attach { PlaylistManager.playingItemSelector.setSelector(it.selector()) }
+      playback.loopMode attach {
+         PlaylistManager.playingItemSelector.setSelector(it.selector())
+         prefetcher.schedule()
+      }
       playback.status attach { APP.actionStream(PlaybackStatusChanged(it)) }
    }
    private val player = GeneralPlayer(state)
@@ -137,6 +145,12 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
       .noPersist().def(name = "Playback volume", info = "Playback volume")
    val loopMode by cv(state.playback.loopMode)
       .noPersist().def(name = "Playback loopMode", info = "Playback loopMode")
+   val prefetchDepth by cv(3).between(0, 20)
+      .def(name = "Prefetch depth", info = "Number of upcoming songs whose metadata, cover and beginning of the file are read ahead, so song transitions do not wait for storage. 0 disables prefetching.")
+   val prefetchSize by cv(FileSize(256*Ki))
+      .def(name = "Prefetch size", info = "Number of bytes read ahead from the beginning of each upcoming song file. Limits I/O caused by prefetching.")
+   val shuffleWeighting by cv(ShuffleWeighting.NONE)
+      .def(name = "Shuffle weighting", info = "Weighting of songs in random playback loop mode. Every song still plays once before any song repeats.")
    val status by cvro(state.playback.status)
       .noPersist().def(name = "Playback status", info = "Current playback status", editable = EditMode.APP)
    val duration by cvro(state.playback.duration).uiConverter { it.toHMSMs() }
@@ -231,6 +245,16 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
          info = "Disallow all song modifications by this application.\n\nWhen true, app is unable to change any song metadata"
       )
 
+   /** Play statistics not yet written to song tags, see [playStatsWritePeriod]. */
+   val playStats = PlayStats(APP.location.user.library/"PlayStats.journal")
+
+   /** Period of writing [playStats] into song tags. Default 5 minutes. */
+   val playStatsWritePeriod by cv(5.minutes)
+      .def(
+         name = "Play statistics write period",
+         info = "Playcount and played time are updated in library immediately, but written into song tags in batches with this period, as writing tags during playback may be slow or disrupt the playback"
+      )
+
    /** Enable /audio in [AppHttp]. This API exposes audio library. Default false. */
    val httpEnabled by cv(false)
       .def(name = "Enable /audio http API",info = "This API exposes audio library")
@@ -267,6 +291,16 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
    /** Set of time-specific actions that individually execute when song playback reaches point of handler's interest. */
    val onPlaybackAt: MutableList<PlayTimeHandler> = ArrayList()
 
+   /** Updates playlists and playing song with library changes */
+   private val songChangesHandler = Subscribed {
+      Subscription(
+         APP.db.changes.subscribe { change -> PlaylistManager.playlists.forEach { it.updateItemsWith(change) } },
+         APP.db.changes.subscribe({ playingSong.value.uri }) { it?.let(playingSong::update) },
+         APP.db.changes.subscribe({ playing.value?.uri }) { it?.let { playing.value = it } },
+      )
+   }
+
+   private val libraryApi = LibraryJsonApi()
    /** Audio http API. */
    private val httpApi = Subscribed {
       Subscription(
@@ -281,11 +315,22 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
                .toList()
             val songs = when {
                filter.isEmpty() -> APP.db.songsById
-               else -> APP.db.songsById.filter { s ->
-                  filter.any { s.getTitleOrEmpty().contains(it, true) } || filter.any { s.getArtistOrEmpty().contains(it, true) }
+               else -> filter.flatMap { APP.db.songsIndex.search(it) }.sortedByDescending { it.score }.distinctBy { it.key }.mapNotNull { APP.db.songsById[it.key] }
+            }
+            AppHttp.StreamResponse("application/json; charset=UTF-8") { o ->
+               JsWriter(o.bufferedWriter()).apply {
+                  beginArray()
+                  songs.forEach { value(it.id.encodeBase64()) }
+                  endArray()
+                  flush()
                }
             }
-            JsArray(songs.map { JsString(it.id.encodeBase64()) })
+         },
+         APP.http.serverRoutes route AppHttp.Handler("/api/v1/audio/library") {
+            libraryApi.page(it)
+         },
+         APP.http.serverRoutes route AppHttp.Handler("/api/v1/audio/library/%songId") {
+            libraryApi.song(it)
          },
          APP.http.serverRoutes route AppHttp.Handler("/audio/library/%songId") {
             val uri = it.requestURI.path.substringAfter("/audio/library/").decodeBase64().orThrow.toURI()
@@ -296,8 +341,8 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
                for (f in Metadata.Field.all.filter { it.isTypeStringRepresentable() })
                   it.responseHeaders["Spit-Song-${f.name()}"] = song.getField(f).toS()
 
+               // file response supports HEAD, Range and conditional requests, so clients can seek
                when {
-                  it.requestMethod=="HEAD" -> null
                   song.isFileBased() -> song.getFile()
                   song.isHttpBased() -> song.uri.toURL().openConnection()
                   else -> fail { "Unsupported uri scheme ${uri.scheme}" }
@@ -309,20 +354,23 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
 
    fun initialize() {
       playingSong.updated attach { playing.value = it }
+      songChangesHandler.subscribe()
+      prefetchDepth sync { prefetcher.depth = it }
+      prefetchSize sync { prefetcher.size = it }
 
       // use jaudiotagger for total time value (fixes incorrect values coming from player classes)
       playingSong.updated attach { state.playback.duration.value = it.getLength() }
 
       // maintain PLAYED_FIRST_TIME & PLAYED_LAST_TIME metadata
       // note: for performance reasons we update AFTER song stops playing, not WHEN it starts
-      // as with playcount incrementing, it could disrupt playback, although now we are losing
-      // updates on application closing!
+      // the tag is written later, see playStats
+      playStats.init()
+      playStatsWritePeriod sync playStats::flushPeriodically
       playingSong.changed attachChanges { o, _ ->
-         if (!o.isEmpty()) // TODO: add config to avoid this operation if not in library
-            o.write {
-               it.setPlayedFirstNowIfEmpty()
-               it.setPlayedLastNow()
-            }
+         if (!o.isEmpty()) {
+            val at = System.currentTimeMillis()
+            runIO { playStats.record(o, playedAt = at) }
+         }
       }
 
       onPlaybackAt += PlayTimeHandler.at({ total -> total }) {
@@ -340,21 +388,25 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
 
    fun dispose() {
       httpApi.unsubscribe()
+      songChangesHandler.unsubscribe()
+      prefetcher.cancel()
+      playStats.dispose()
       player.dispose()
       isDisposed = true
    }
 
-   /** Initialize state from last session  */
+   /** Initialize state from last session, once the active playlist is restored */
    fun restore() {
-      when {
-         !continuePlaybackOnStart -> APP.actionStream(PlaybackRestoreAborted("ContinuePlaybackOnStart is off"))
-         PlaylistManager.use({ it.playing }, null)==null -> APP.actionStream(PlaybackRestoreAborted("No playback was active"))
-         else -> {
-            if (continuePlaybackPaused) state.playback.status.value = PAUSED
-            activate()
+      PlaylistManager.store.restored(PlaylistManager.active) ui {
+         when {
+            !continuePlaybackOnStart -> APP.actionStream(PlaybackRestoreAborted("ContinuePlaybackOnStart is off"))
+            PlaylistManager.use({ it.playing }, null)==null -> APP.actionStream(PlaybackRestoreAborted("No playback was active"))
+            else -> {
+               if (continuePlaybackPaused) state.playback.status.value = PAUSED
+               activate()
+            }
          }
       }
-
    }
 
    /** Suspends playback if any to release all resources. */
@@ -416,8 +468,6 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
 
       private val changedImpl = v(value)
       private val updatedImpl = v(value)
-      private var valNext = Metadata.EMPTY
-      private val valNextLoader = fxTimer(400.millis, 1) { preloadNext() }
 
       private fun setValue(change: Boolean, newMetadata: Metadata) {
          failIfNotFxThread()
@@ -473,10 +523,11 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
 
       /** Execute when song starts playing.  */
       fun songChanged(song: Song?) {
+         val songKnown = song?.let { APP.db.getSong(it) ?: prefetcher[it] }
          when {
             song==null || song==Metadata.EMPTY -> setValue(true, Metadata.EMPTY)
             value.same(song) -> setValue(true, value)
-            valNext.same(song) -> setValue(true, valNext)
+            songKnown!=null -> setValue(true, songKnown)
             else ->
                runIO {
                   song.read()
@@ -484,18 +535,7 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
                   setValue(true, if (it.isEmpty()) song.toMeta() else it)
                }
          }
-         valNextLoader.start()
-      }
-
-      private fun preloadNext() {
-         val next = PlaylistManager.use( { it.nextPlaying }, null)
-         if (next!=null) {
-            runIO {
-               next.read()
-            } ui {
-               valNext = it
-            }
-         }
+         prefetcher.schedule()
       }
    }
 
@@ -724,15 +764,12 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
     * It is possible to use an [EventReducer] which will reduce multiple events into one, in such case always updating input is recommended.
     */
 
-   fun onSongRefresh(handler: (MapSet<URI, Metadata>) -> Unit): Subscription {
-      refreshHandlers.add(handler)
-      return Subscription { refreshHandlers.remove(handler) }
-   }
+   fun onSongRefresh(handler: (SongChange) -> Unit): Subscription =
+      APP.db.changes.subscribe(handler)
 
    /** [onSongRefresh] that monitors single song. Invoked on FX thread. */
-   fun onSongRefresh(song: () -> Song?, handler: (Metadata) -> Unit): Subscription = onSongRefresh { metadatas ->
-      song().ifNotNull { metadatas.ifHasK(it.uri, handler) }
-   }
+   fun onSongRefresh(song: () -> Song?, handler: (Metadata) -> Unit): Subscription =
+      APP.db.changes.subscribe({ song()?.uri }) { it.ifNotNull(handler) }
 
    /** Singleton variant of [refreshSongs].  */
    @ThreadSafe
@@ -793,9 +830,7 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
    // use only on fx thread
    private val red = toLast<MutableList<Metadata>>(3000.0, { o, n -> o += n; o }) { refreshSongsWithNow(it) }
 
-   private val refreshHandlers = ArrayList<(MapSet<URI, Metadata>) -> Unit>()
-
-   // runs refresh on bgr thread, thread safe
+   // runs refresh on bgr thread, thread safe, ui is refreshed through library changes, see songChangesHandler
    private fun refreshSongsWithNow(ms: List<Metadata>) {
       if (ms.isEmpty()) return
 
@@ -803,28 +838,9 @@ class PlayerManager: GlobalSubConfigDelegator("Playback") {
          val msInDb = ms.filter { APP.db.exists(it) }
          if (msInDb.isEmpty()) return@runIO
 
-         // metadata map hashed with resource identity : O(n^2) -> O(n)
-         val mm = MapSet(msInDb) { it.uri }
-
-         // update library
-         APP.db.addSongs(mm)
-
-         runFX {
-            // update all playlist songs referring to this updated metadata
-            PlaylistManager.playlists.forEach {
-               it.forEach { song -> mm.ifHasK(song.uri) { song.update(it) } }
-               it.durationUpdater.push(null)
-            }
-
-            // refresh playing song data
-            mm.ifHasE(playingSong.value) { playingSong.update(it) }
-            playing.value.ifNotNull { pv -> mm.ifHasE(pv) { playing.value = it } }
-
-            // refresh rest
-            refreshHandlers.forEach { it(mm) }
-         }
+         // update library, play statistics not yet written to tags are kept
+         APP.db.addSongs(playStats.withPending(msInDb))
       }
    }
 
 }
-
@@ -23,6 +23,8 @@ class PlayerState {
 
    @JvmField val playback: PlaybackState
    @JvmField val playlists: MutableList<Playlist> = ArrayList()
+   /** Index of playing song by id of playlists persisted in [PlaylistManager.store], see [deserialize] */
+   private val playlistsStored = LinkedHashMap<UUID, Int>()
    @JvmField var playlistId: UUID? = null
 
    constructor() {
@@ -30,7 +32,10 @@ class PlayerState {
    }
 
    constructor(s: PlayerStateDB) {
-      playlists += s.playlists.map { it.toDomain() }
+      s.playlists.forEach {
+         if (it.items.isEmpty()) playlistsStored[UUID.fromString(it.id)] = it.playing
+         else playlists += it.toDomain()
+      }
       playlistId = s.playlistId?.let { UUID.fromString(it) }
       playback = s.playback.toDomain()
    }
@@ -46,6 +51,7 @@ class PlayerState {
       playlists setTo PlaylistManager.playlists.filter { it.id in playlistsActive }
 
       val db = PlayerStateDB(this@PlayerState)
+      PlaylistManager.store.save(playlists)
       return CoreSerializer.useAtomically {
          writeSingleStorage(db)
       }
@@ -67,8 +73,12 @@ class PlayerState {
             .orNull()?.toDomain()
             ?: PlayerState()
 
+         // playlists are restored when opened, the active playlist immediately so playback can be restored
          PlaylistManager.playlists += p.playlists
+         p.playlists.forEach(PlaylistManager.store::track)
          PlaylistManager.active = p.playlistId
+         p.playlistsStored.forEach { (id, playing) -> PlaylistManager.store.register(id, playing) }
+         p.playlistId?.let(PlaylistManager::restore)
 
          return p
       }
@@ -0,0 +1,170 @@
+package sp.it.pl.audio
+
+import java.net.URI
+import sp.it.pl.audio.tagging.Metadata
+import sp.it.pl.audio.tagging.Metadata.Field
+import sp.it.util.animation.Loop
+import sp.it.util.async.runFX
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIfNotFxThread
+import sp.it.util.reactive.Subscription
+
+/**
+ * Change of library songs, i.e., difference between two versions of the library.
+ *
+ * @property version version of the library after this change
+ * @property added songs added to the library by uri
+ * @property updated songs changed in the library by uri
+ * @property updatedFrom versions of the [updated] songs before this change by uri
+ * @property removed uris of songs removed from the library
+ */
+class SongChange(
+   val version: Long,
+   val added: Map<URI, Metadata>,
+   val updated: Map<URI, Metadata>,
+   val updatedFrom: Map<URI, Metadata>,
+   val removed: Set<URI>
+) {
+
+   /**
+    * Changed fields of the [updated] songs by uri, empty if the song was refreshed, but no compared field changed (e.g.
+    * cover). Computed on first access, as comparing all fields of all songs is expensive, e.g., on library reload.
+    */
+   val updatedFields: Map<URI, Set<Field<*>>> by lazy {
+      updated.mapValues { (uri, m) -> updatedFrom[uri]?.let { changedFields(it, m) } ?: FIELDS_COMPARED }
+   }
+
+   /** @return the added or updated song with the specified uri or null if it did not change or was removed */
+   operator fun get(uri: URI): Metadata? = updated[uri] ?: added[uri]
+
+   /** @return whether the specified field of any song was changed, including added and removed songs */
+   fun isChanged(field: Field<*>): Boolean = added.isNotEmpty() || removed.isNotEmpty() || updatedFields.values.any { field in it }
+
+   /** @return whether there is no change */
+   fun isEmpty(): Boolean = added.isEmpty() && updated.isEmpty() && removed.isEmpty()
+
+   /** @return change equivalent to this change followed by the specified change */
+   infix fun then(next: SongChange): SongChange {
+      val a = LinkedHashMap(added)
+      val u = LinkedHashMap(updated)
+      val uf = HashMap(updatedFrom)
+      val r = LinkedHashSet(removed)
+      next.removed.forEach { a -= it; u -= it; uf -= it; r += it }
+      next.added.forEach { (uri, m) -> r -= uri; a[uri] = m }
+      next.updated.forEach { (uri, m) ->
+         if (uri in a) a[uri] = m
+         else {
+            u[uri] = m
+            next.updatedFrom[uri]?.let { uf.putIfAbsent(uri, it) }
+         }
+      }
+      return SongChange(next.version, a, u, uf, r)
+   }
+
+   companion object {
+      /** Fields compared to find changed fields of a song, i.e., all except those that are expensive to compute */
+      private val FIELDS_COMPARED by lazy { Field.all - setOf(Field.COVER, Field.FULLTEXT) }
+
+      /** @return fields whose values differ between the specified versions of a song */
+      fun changedFields(old: Metadata, new: Metadata): Set<Field<*>> =
+         FIELDS_COMPARED.filterTo(LinkedHashSet()) { it.getOf(old)!=it.getOf(new) }
+
+      /** @return change between the specified library versions, songs are compared by identity */
+      fun of(version: Long, old: Map<String, Metadata>, new: Map<String, Metadata>): SongChange {
+         val added = LinkedHashMap<URI, Metadata>()
+         val updated = LinkedHashMap<URI, Metadata>()
+         val updatedFrom = HashMap<URI, Metadata>()
+         val removed = LinkedHashSet<URI>()
+         new.forEach { (id, m) ->
+            val o = old[id]
+            when {
+               o==null -> added[m.uri] = m
+               o!==m -> {
+                  updated[m.uri] = m
+                  updatedFrom[m.uri] = o
+               }
+            }
+         }
+         old.forEach { (id, m) -> if (id !in new) removed += m.uri }
+         return SongChange(version, added, updated, updatedFrom, removed)
+      }
+   }
+}
+
+/**
+ * Versioned feed of library [SongChange]s.
+ *
+ * Changes may be published from any thread. They are merged and delivered on FX thread at most once per pulse, so
+ * many consecutive changes (e.g. tag writing or library scan) cause a single ui update.
+ * Subscribers may limit interest to a song or a field, in which case they are only invoked for relevant changes.
+ * Subscribing must be done on FX thread.
+ */
+class SongChanges {
+   private val lock = Any()
+   private var pending: SongChange? = null
+   private val pulse = Loop(Runnable { deliver() })
+   private val handlers = ArrayList<(SongChange) -> Unit>()
+   private val handlersByUri = HashMap<URI, MutableList<(Metadata?) -> Unit>>()
+
+   /** Version of the library, incremented with every published change */
+   @Volatile var version = 0L
+      private set
+
+   /** Publishes change between the specified library versions, see [SongChange.of] */
+   @ThreadSafe
+   fun publish(old: Map<String, Metadata>, new: Map<String, Metadata>) {
+      val change = synchronized(lock) {
+         SongChange.of(version + 1, old, new).takeUnless { it.isEmpty() }?.also {
+            version = it.version
+            pending = pending?.then(it) ?: it
+         }
+      }
+      if (change!=null) runFX { pulse.start() }
+   }
+
+   /** Invokes the handler with every change. Invoked on FX thread. */
+   fun subscribe(handler: (SongChange) -> Unit): Subscription {
+      failIfNotFxThread()
+      handlers += handler
+      return Subscription { handlers -= handler }
+   }
+
+   /** Invokes the handler with changes that change the specified field. Invoked on FX thread. */
+   fun subscribe(field: Field<*>, handler: (SongChange) -> Unit): Subscription =
+      subscribe { if (it.isChanged(field)) handler(it) }
+
+   /** Invokes the handler with the new version of the song (null if removed), whenever it changes. Invoked on FX thread. */
+   fun subscribe(uri: URI, handler: (Metadata?) -> Unit): Subscription {
+      failIfNotFxThread()
+      handlersByUri.getOrPut(uri) { ArrayList(1) } += handler
+      return Subscription {
+         handlersByUri[uri]?.let {
+            it -= handler
+            if (it.isEmpty()) handlersByUri -= uri
+         }
+      }
+   }
+
+   /**
+    * Invokes the handler with the new version of the song with the uri supplied at the time of the change (null if
+    * removed), whenever it changes. Use when the song of interest itself changes, e.g., displayed song.
+    * Invoked on FX thread.
+    */
+   fun subscribe(uri: () -> URI?, handler: (Metadata?) -> Unit): Subscription = subscribe { change ->
+      uri()?.let { u -> if (u in change.removed) handler(null) else change[u]?.let(handler) }
+   }
+
+   private fun deliver() {
+      pulse.stop()
+      val change = synchronized(lock) { pending.also { pending = null } } ?: return
+
+      handlers.toList().forEach { it(change) }
+      if (handlersByUri.isNotEmpty()) {
+         fun notify(uri: URI, m: Metadata?) = handlersByUri[uri]?.toList()?.forEach { it(m) }
+         change.added.forEach { (uri, m) -> notify(uri, m) }
+         change.updated.forEach { (uri, m) -> notify(uri, m) }
+         change.removed.forEach { notify(it, null) }
+      }
+   }
+
+}
@@ -21,6 +21,29 @@ class MetadatasDB: HashMap<String, Metadata>, Serializable {
    }
 }
 
+/** Persisted [FileFingerprint]s of library song files by [Metadata.id]. */
+class FileFingerprintsDB: HashMap<String, FileFingerprint>, Serializable {
+   constructor(): super()
+   constructor(fingerprints: Map<String, FileFingerprint>): super(fingerprints)
+
+   companion object {
+      private const val serialVersionUID: Long = 1
+   }
+}
+
+/**
+ * File attributes obtainable without reading the file, which change when file content changes.
+ *
+ * @param size file size in bytes
+ * @param modifiedMs last modified time in ms since epoch
+ * @param fileKey key uniquely identifying the file on its file system (e.g. device and inode), null if not available
+ */
+data class FileFingerprint(val size: Long, val modifiedMs: Long, val fileKey: String?): Serializable {
+   companion object {
+      private const val serialVersionUID: Long = 1
+   }
+}
+
 class PlayerStateDB: Serializable {
    var playback: PlaybackStateDB
    var playlists: List<PlaylistDB>
@@ -28,7 +51,7 @@ class PlayerStateDB: Serializable {
 
    constructor(s: PlayerState) {
       playback = PlaybackStateDB(s.playback)
-      playlists = s.playlists.map { PlaylistDB(it) }
+      playlists = s.playlists.map { PlaylistDB(it.id, PlaylistManager.store.indexOfPlaying(it)) }
       playlistId = PlaylistManager.active?.toString()
    }
 
@@ -65,15 +88,19 @@ class PlaybackStateDB(s: PlaybackState): Serializable {
    }
 }
 
+/**
+ * Playlist in [PlayerStateDB].
+ * Songs are stored separately, see [sp.it.pl.audio.playlist.PlaylistStore]. [items] are only read for playlists stored by older versions.
+ */
 class PlaylistDB: Serializable {
    var id: String
    var playing: Int
    var items: List<PlaylistItemDB>
 
-   constructor(p: Playlist) {
-      this.id = p.id.toString()
-      this.playing = p.indexOfPlaying()
-      this.items = p.map { PlaylistItemDB(it) }
+   constructor(id: UUID, playing: Int) {
+      this.id = id.toString()
+      this.playing = playing
+      this.items = listOf()
    }
 
    fun toDomain() = Playlist(UUID.fromString(id)).also {
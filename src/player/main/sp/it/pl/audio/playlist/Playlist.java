@@ -16,10 +16,14 @@ import java.util.stream.Stream;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.util.Duration;
 import org.jetbrains.annotations.Nullable;
 import sp.it.pl.audio.Song;
+import sp.it.pl.audio.SongChange;
+import sp.it.pl.audio.playlist.sequence.ShuffleSequence;
 import sp.it.util.async.executor.EventReducer;
+import sp.it.util.collections.list.ObservableListIndex;
 import sp.it.util.collections.mapset.MapSet;
 import sp.it.util.units.NofX;
 import static java.util.Collections.singletonList;
@@ -44,6 +48,11 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 	private final ReadOnlyObjectWrapper<Duration> durationWrapper = new ReadOnlyObjectWrapper<>(Duration.ZERO);
 	public final ReadOnlyObjectProperty<Duration> duration = durationWrapper.getReadOnlyProperty();
 
+	/** Non-repeating shuffle of the songs, used in random loop mode. */
+	public final ShuffleSequence<PlaylistSong> shuffle = new ShuffleSequence<>();
+	/** Index of song positions by identity and by uri, so position queries do not scan the playlist. */
+	private final ObservableListIndex<PlaylistSong, URI> index = new ObservableListIndex<>(this, Song::getUri);
+
 	/**
 	 * Needs to be invoked when {@link PlaylistSong#update()} on any song in this playlist is invoked.
 	 * Prefer {@link #updateItem(sp.it.pl.audio.Song)} and {@link #updateItems()}.
@@ -59,6 +68,12 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 		this.id = id;
 
 		onChange(this, runnable(() -> durationUpdater.push(null)));
+		addListener((ListChangeListener<PlaylistSong>) c -> {
+			while (c.next())
+				if (!c.wasPermutated() && !c.wasUpdated())
+					shuffle.update(c.getRemoved(), c.getAddedSubList());
+			if (isPlaying()) runFX(() -> APP.audio.getPrefetcher().schedule());
+		});
 	}
 
 	public void updatePlayingItem(int i) {
@@ -83,8 +98,7 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 		}
 
 		@Override public NofX index(Song song) {
-			for (int i = 0; i<size(); i++) if (get(i).same(song)) return new NofX(i, size());
-			return new NofX(-1, size());
+			return new NofX(indexOfFirstSame(song), size());
 		}
 	}
 
@@ -128,14 +142,29 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 		return transformer.index(song).getN();
 	}
 
+	/**
+	 * Returns index of the first same song in this playlist, ignoring {@link #setTransformation(sp.it.pl.audio.playlist.Playlist.Transformer)}.
+	 *
+	 * @return song index. -1 if not in playlist.
+	 * @see Song#same(sp.it.pl.audio.Song)
+	 */
+	public int indexOfFirstSame(Song song) {
+		return index.indexOfKey(song.getUri());
+	}
+
+	/** @return index of the specified song instance or -1 if not in playlist, same as {@link #indexOf(Object)}, but O(1) */
+	public int indexOfIdentity(PlaylistSong song) {
+		return index.indexOf(song);
+	}
+
 	/** @return index of playing song or -1 if no song is playing */
 	public int indexOfPlaying() {
-		return playingSongWrapper.get()==null ? -1 : indexOf(playingSongWrapper.get());
+		return playingSongWrapper.get()==null ? -1 : indexOfIdentity(playingSongWrapper.get());
 	}
 
 	/** @return true when playlist contains songs same as the parameter */
 	public boolean containsSame(Song song) {
-		return stream().anyMatch(song::same);
+		return index.containsKey(song.getUri());
 	}
 
 	/** @return true iff any song on this playlist is being played. */
@@ -197,7 +226,7 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 	 * Duplicate will appear on the next index following the original.
 	 */
 	public void duplicateItem(PlaylistSong song) {
-		int i = indexOf(song);
+		int i = indexOfIdentity(song);
 		if (i!=-1) add(i + 1, song.copy());
 	}
 
@@ -211,7 +240,7 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 		int index = 0;
 		List<PlaylistSong> to_dup = new ArrayList<>();
 		for (PlaylistSong song : songs) {
-			int i = indexOf(song);
+			int i = indexOfIdentity(song);
 			if (i!=-1) {
 				to_dup.add(song.copy());
 				index = i + 1;
@@ -273,10 +302,29 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 	 * @param song song to update
 	 */
 	public void updateItem(Song song) {
-		stream().filter(song::same).forEach(PlaylistSong::update);
+		index.elementsOfKey(song.getUri()).forEach(PlaylistSong::update);
 		durationUpdater.push(null);
 	}
 
+	/**
+	 * Updates songs of this playlist that were added or updated in the library.
+	 * Only the changed songs are looked up, so the cost does not depend on the size of this playlist.
+	 *
+	 * @param change library change
+	 */
+	public void updateItemsWith(SongChange change) {
+		var isUpdated = false;
+		for (var ms : List.of(change.getUpdated(), change.getAdded())) {
+			for (var e : ms.entrySet()) {
+				for (var song : index.elementsOfKey(e.getKey())) {
+					song.update(e.getValue());
+					isUpdated = true;
+				}
+			}
+		}
+		if (isUpdated) durationUpdater.push(null);
+	}
+
 	/**
 	 * Updates all not updated songs.
 	 * <p/>
@@ -316,13 +364,9 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 
 	/** Plays given URI by searching for an existing PlaylistSong with that URI or adding it as a new Song */
 	public void playUri(URI uri) {
-		for (PlaylistSong song : this) {
-			if(song.same(uri)) {
-				playTransformedItem(song);
-				return;
-			}
-		}
-		addAndPlay(uri);
+		var i = index.indexOfKey(uri);
+		if (i>=0) playTransformedItem(get(i));
+		else addAndPlay(uri);
 	}
 
 	/** Adds a new PlaylistSong to the end of the Playlist and plays it */
@@ -379,7 +423,7 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 	public void playItem(@Nullable PlaylistSong song, UnaryOperator<PlaylistSong> altSupplier) {
 		if (song!=null) {
 			transform(items -> {
-				if (items.contains(song)) {
+				if (items==this ? indexOfIdentity(song)>=0 : items.contains(song)) {
 					runVT(() -> {
 						// we can't play song -> we try to play next one and eventually get here again => need defend against case where no song is playable
 						boolean unplayable = song.isCorrupt();  // blocking
@@ -482,8 +526,18 @@ public class Playlist extends ObservableListWrapper<PlaylistSong> {
 		playTransformedItem(get(from));
 	}
 
-	public PlaylistSong getNextPlaying() {
-		return PlaylistManager.playingItemSelector.getNext(getPlaying(), transformNow());
+	/** @return song that will play next, without affecting the selection of the next song, or null if none */
+	public @Nullable PlaylistSong getNextPlaying() {
+		var upcoming = getUpcoming(1);
+		return upcoming.isEmpty() ? null : upcoming.getFirst();
+	}
+
+	/**
+	 * @param count maximal number of songs
+	 * @return songs that will play next in order, without affecting the selection of the next song
+	 */
+	public List<PlaylistSong> getUpcoming(int count) {
+		return PlaylistManager.playingItemSelector.getUpcoming(getPlaying(), transformNow(), count);
 	}
 
 /* ------------------------------------------------------------------------------------------------------------------ */
@@ -28,6 +28,8 @@ object PlaylistManager: GlobalSubConfigDelegator("Playback") {
    @JvmField val playlists = MapSet<UUID, Playlist> { it.id }
    /** [Playlist.id] of currently active playlist or null if none active. */
    @JvmField var active: UUID? = null
+   /** Persistence of [playlists]. */
+   @JvmField val store = PlaylistStore()
    /** Selects next playing item. */
    @JvmField val playingItemSelector = PlayingSequence()
    /** Last selected item on playlist or null if none. */
@@ -49,6 +51,9 @@ object PlaylistManager: GlobalSubConfigDelegator("Playback") {
       return if (p==null) or else action(p)
    }
 
+   /** @return playlist with the specified id, restored from [store] if it was not restored yet, or null if none */
+   fun restore(id: UUID): Playlist? = playlists[id] ?: store.restore(id)?.also { playlists += it }
+
    /** Plays first item on playlist. */
    @IsAction(name = "Play first", info = "Plays first item on playlist.", keys = "ALT+W", global = true)
    fun playFirstItem() = use { it.playTransformedFirst() }
@@ -2,63 +2,77 @@ package sp.it.pl.audio.playlist
 
 import io.github.oshai.kotlinlogging.KotlinLogging
 import java.io.File
-import java.io.IOException
+import java.io.InputStream
 import java.net.URI
 import java.net.URISyntaxException
 import java.nio.charset.Charset
+import java.util.concurrent.ConcurrentHashMap
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants.END_ELEMENT
+import javax.xml.stream.XMLStreamConstants.START_ELEMENT
+import kotlin.math.roundToLong
 import kotlin.text.Charsets.UTF_8
 import org.jetbrains.annotations.Blocking
-import sp.it.pl.audio.SimpleSong
 import sp.it.pl.audio.Song
+import sp.it.pl.audio.tagging.Metadata
 import sp.it.pl.main.FileExtensions.m3u
 import sp.it.pl.main.FileExtensions.m3u8
+import sp.it.pl.main.FileExtensions.pls
+import sp.it.pl.main.FileExtensions.xspf
 import sp.it.util.dev.fail
 import sp.it.util.dev.failIfFxThread
 import sp.it.util.file.div
 import sp.it.util.file.hasExtension
-import sp.it.util.functional.net
+import sp.it.util.file.toFileOrNull
+import sp.it.util.file.writeSafely
+import sp.it.util.functional.orNull
 import sp.it.util.functional.runTry
 
 private const val EXTM3U = "#EXTM3U"
 private const val EXTINF = "#EXTINF"
+private const val CHUNK_SIZE = 1024
 private val logger = KotlinLogging.logger { }
 
+/**
+ * Reads the playlist file of any supported format, see [isPlaylistFile].
+ *
+ * @return songs of the playlist, see [readPlaylist]
+ */
 @Blocking
-fun readM3uPlaylist(file: File): List<Song> {
-   failIfFxThread()
-
-   val location = file.parentFile ?: fail { "File=$file is not a playlist file" }
-   val encoding = when {
-      file hasExtension m3u -> Charset.defaultCharset()
-      file hasExtension m3u8 -> UTF_8
-      else -> fail { "File=$file is not a supported playlist file" }
-   }
+fun readPlaylist(file: File): List<PlaylistSong> = ArrayList<PlaylistSong>().apply { readPlaylist(file) { addAll(it) } }
 
-   return file.useLines(encoding) { lines ->
-      lines
-         .filter { l -> !l.startsWith("#") && l.isNotEmpty() }
-         .flatMap { l ->
-            null
-               ?: l.toAbsoluteURIOrNull()?.net { sequenceOf(SimpleSong(it)) }
-               ?: File(l).absoluteTo(location)?.net {
-                  if (it.isM3uPlaylist()) readM3uPlaylist(it).asSequence()
-                  else sequenceOf(SimpleSong(it))
-               }
-               ?: sequenceOf()
-         }
-         .toList()
-   }
+/**
+ * Reads the playlist file of any supported format, see [isPlaylistFile], streaming the songs to the consumer in
+ * chunks, in playlist order, so large playlists do not need to be materialized.
+ *
+ * Songs with known artist, title and length (e.g. `#EXTINF` in m3u) are created updated, i.e., do not require reading
+ * the tag, see [PlaylistSong.isUpdated].
+ * Relative paths are resolved against the playlist location in parallel. Nested playlists are read in place, unless
+ * they form a cycle, in which case they are skipped.
+ */
+@Blocking
+fun readPlaylist(file: File, consumer: (List<PlaylistSong>) -> Unit) {
+   failIfFxThread()
+   PlaylistParser(consumer).read(file)
 }
 
+/**
+ * Writes the songs into `dir/name.m3u8` m3u8 playlist file, streaming the songs. Each song with known artist, title or
+ * length is preceded by an `#EXTINF` line, so the playlist can be read without reading the tags.
+ */
 @Blocking
 fun writeM3uPlaylist(playlist: List<Song>, name: String, dir: File) {
    failIfFxThread()
 
    val file = dir/"$name.$m3u8"
-   runTry {
-      file.bufferedWriter(UTF_8).use { w ->
-         playlist.forEach {
-            w.appendLine(it.uri.toString())
+   file.writeSafely {
+      runTry {
+         it.bufferedWriter(UTF_8, 64*1024).use { w ->
+            w.appendLine(EXTM3U)
+            playlist.forEach { song ->
+               song.toExtInf()?.let(w::appendLine)
+               w.appendLine(song.uri.toString())
+            }
          }
       }
    }.ifError {
@@ -66,23 +80,223 @@ fun writeM3uPlaylist(playlist: List<Song>, name: String, dir: File) {
    }
 }
 
-fun File.isM3uPlaylist() = hasExtension(m3u, m3u8)
-
-private fun File.absoluteTo(dir: File): File? =
-   if (isAbsolute) {
-      this
-   } else {
-      try {
-         File(dir, this.path).canonicalFile
-      } catch (e: IOException) {
-         logger.error(e) { "Failed to resolve relative path=$this to location=$dir" }
-         null
-      }
-   }
+/** @return whether this is playlist file of format supported by [readPlaylist], i.e., m3u, m3u8, pls or xspf */
+fun File.isPlaylistFile() = hasExtension(m3u, m3u8, pls, xspf)
 
 fun String.toAbsoluteURIOrNull() =
    try {
       URI(this).takeIf { it.isAbsolute }
    } catch (e: URISyntaxException) {
       null
-   }
\ No newline at end of file
+   }
+
+/** Playlist entry as written in the playlist file, with optional artist, title and length. */
+private class PlaylistEntry(val path: String, val artist: String?, val title: String?, val lengthMs: Double?) {
+
+   /**
+    * @return updated song if the entry carries the song length or not updated song otherwise, as updated songs are
+    * never read, so their length would remain unknown
+    */
+   fun toSong(uri: URI): PlaylistSong =
+      if (lengthMs==null) PlaylistSong(uri)
+      else PlaylistSong(uri, artist, title, lengthMs)
+
+   companion object {
+      /** @return entry for the path with information parsed from `Artist - Title` display name and length in seconds */
+      fun of(path: String, name: String?, lengthS: Double?): PlaylistEntry {
+         val n = name?.trim().takeUnless { it.isNullOrEmpty() }
+         val lengthMs = lengthS?.takeIf { it>=0 }?.times(1000)
+         return if (n==null) PlaylistEntry(path, null, null, lengthMs)
+         else if (" - " in n) PlaylistEntry(path, n.substringBefore(" - ").trim(), n.substringAfter(" - ").trim(), lengthMs)
+         else PlaylistEntry(path, null, n, lengthMs)
+      }
+   }
+}
+
+/** Single-use reader of a playlist file and its nested playlist files. */
+private class PlaylistParser(private val consumer: (List<PlaylistSong>) -> Unit) {
+   /** Canonical playlist files being read, used to detect cycles */
+   private val visiting = HashSet<File>()
+   /** Canonical directories by directory, so each directory is canonicalized once */
+   private val dirs = ConcurrentHashMap<File, File>()
+   private var buffer = ArrayList<PlaylistSong>(CHUNK_SIZE)
+
+   fun read(file: File) {
+      readFile(file)
+      flush()
+   }
+
+   private fun readFile(file: File) {
+      val fileCanonical = runTry { file.canonicalFile }.orNull() ?: file.absoluteFile
+      if (!visiting.add(fileCanonical)) {
+         logger.warn { "Skipping playlist file=$file, which includes itself" }
+         return
+      }
+      try {
+         val location = fileCanonical.parentFile ?: fail { "File=$file is not a playlist file" }
+         val parse: (Sequence<PlaylistEntry>) -> Unit = { it.chunked(CHUNK_SIZE).forEach { chunk -> readChunk(chunk, location) } }
+         when {
+            file hasExtension m3u -> file.useLines(Charset.defaultCharset()) { parse(parseM3u(it)) }
+            file hasExtension m3u8 -> file.useLines(UTF_8) { parse(parseM3u(it)) }
+            file hasExtension pls -> file.useLines(UTF_8) { parse(parsePls(it)) }
+            file hasExtension xspf -> file.inputStream().buffered().use { parse(parseXspf(it)) }
+            else -> fail { "File=$file is not a supported playlist file" }
+         }
+      } finally {
+         visiting -= fileCanonical
+      }
+   }
+
+   private fun readChunk(chunk: List<PlaylistEntry>, location: File) {
+      val uris = chunk.parallelStream().map { resolve(it, location) }.toList()
+      chunk.forEachIndexed { i, entry ->
+         val uri = uris[i] ?: return@forEachIndexed
+         val playlist = uri.toFileOrNull()?.takeIf { it.isPlaylistFile() }
+         if (playlist!=null) {
+            flush()
+            readFile(playlist)
+         } else {
+            buffer += entry.toSong(uri)
+            if (buffer.size>=CHUNK_SIZE) flush()
+         }
+      }
+   }
+
+   private fun flush() {
+      if (buffer.isEmpty()) return
+      consumer(buffer)
+      buffer = ArrayList(CHUNK_SIZE)
+   }
+
+   private fun resolve(entry: PlaylistEntry, location: File): URI? {
+      // single letter scheme is Windows drive, e.g. `C:/music`
+      entry.path.toAbsoluteURIOrNull()?.takeIf { it.scheme.length>1 }?.let { return it }
+      return runTry {
+         val file = File(entry.path)
+         when {
+            file.isAbsolute -> file
+            file.name.isEmpty() || file.name=="." || file.name==".." -> File(location, entry.path).canonicalFile
+            else -> File(location, entry.path).let { File(it.parentFile.canonicalDir(), it.name) }
+         }.toURI()
+      }.ifError {
+         logger.error(it) { "Failed to resolve relative path=${entry.path} to location=$location" }
+      }.orNull()
+   }
+
+   private fun File.canonicalDir(): File = dirs[this] ?: canonicalFile.also { dirs[this] = it }
+
+   /** Parses `#EXTINF:<length in s>[ <attributes>],<Artist - Title>` lines preceding the paths */
+   private fun parseM3u(lines: Sequence<String>): Sequence<PlaylistEntry> = sequence {
+      var extInf: String? = null
+      for (l in lines) {
+         val line = l.trim()
+         when {
+            line.isEmpty() -> Unit
+            line.startsWith(EXTINF, true) -> extInf = line
+            line.startsWith("#") -> Unit
+            else -> {
+               yield(extInf?.parseExtInf(line) ?: PlaylistEntry(line, null, null, null))
+               extInf = null
+            }
+         }
+      }
+   }
+
+   private fun String.parseExtInf(path: String): PlaylistEntry {
+      val info = substring(EXTINF.length).removePrefix(":")
+      // attributes may contain quoted commas
+      var quoted = false
+      var comma = 0
+      while (comma<info.length && (quoted || info[comma]!=',')) {
+         if (info[comma]=='"') quoted = !quoted
+         comma++
+      }
+      val length = info.substring(0, comma).trim().substringBefore(' ').toDoubleOrNull()
+      val name = info.substring((comma + 1).coerceAtMost(info.length))
+      return PlaylistEntry.of(path, name, length)
+   }
+
+   /** Parses `FileN=`, `TitleN=` and `LengthN=` lines, emitting entry once all its lines have been read */
+   private fun parsePls(lines: Sequence<String>): Sequence<PlaylistEntry> = sequence {
+      class Pls(var path: String? = null, var title: String? = null, var length: Double? = null)
+      val entries = LinkedHashMap<Int, Pls>()
+      for (l in lines) {
+         val key = l.substringBefore('=', "").trim().lowercase()
+         val value = l.substringAfter('=', "").trim()
+         val attr = key.takeWhile { it.isLetter() }
+         val i = key.substring(attr.length).toIntOrNull() ?: continue
+         val e = entries.getOrPut(i) { Pls() }
+         when (attr) {
+            "file" -> e.path = value
+            "title" -> e.title = value
+            "length" -> e.length = value.toDoubleOrNull()
+         }
+         // entries are usually grouped, so emit all complete entries preceding the current one
+         while (entries.size>1) {
+            val (first, p) = entries.entries.first()
+            if (first==i) break
+            entries -= first
+            p.path?.let { yield(PlaylistEntry.of(it, p.title, p.length)) }
+         }
+      }
+      entries.values.forEach { p -> p.path?.let { yield(PlaylistEntry.of(it, p.title, p.length)) } }
+   }
+
+   /** Parses `track` elements with `location`, `creator`, `title` and `duration` in ms */
+   private fun parseXspf(input: InputStream): Sequence<PlaylistEntry> = sequence {
+      val r = XMLInputFactory.newDefaultFactory().createXMLStreamReader(input)
+      try {
+         var path: String? = null
+         var artist: String? = null
+         var title: String? = null
+         var length: Double? = null
+         var inTrack = false
+         while (r.hasNext()) {
+            when (r.next()) {
+               START_ELEMENT -> when (r.localName) {
+                  "track" -> { inTrack = true; path = null; artist = null; title = null; length = null }
+                  "location" -> if (inTrack && path==null) path = r.elementText.trim()
+                  "creator" -> if (inTrack) artist = r.elementText.trim().ifEmpty { null }
+                  "title" -> if (inTrack) title = r.elementText.trim().ifEmpty { null }
+                  "duration" -> if (inTrack) length = r.elementText.trim().toDoubleOrNull()
+               }
+               END_ELEMENT -> if (r.localName=="track") {
+                  inTrack = false
+                  path?.let { yield(PlaylistEntry(it.xspfLocationToPath(), artist, title, length)) }
+               }
+            }
+         }
+      } finally {
+         r.close()
+      }
+   }
+
+   /** @return absolute uri or decoded relative path of the xspf location, which is always uri */
+   private fun String.xspfLocationToPath(): String =
+      toAbsoluteURIOrNull()?.toString() ?: runTry { URI(this).path }.orNull() ?: this
+
+}
+
+private fun Song.toExtInf(): String? {
+   val artist: String?
+   val title: String?
+   val lengthMs: Double?
+   when (this) {
+      is PlaylistSong -> {
+         if (!isUpdated) return null
+         artist = getArtist().ifEmpty { null }
+         title = getTitle().ifEmpty { null }
+         lengthMs = timeMs
+      }
+      is Metadata -> {
+         if (isEmpty()) return null
+         artist = getArtist()
+         title = getTitle()
+         lengthMs = getLengthInMs().takeIf { it>0 }
+      }
+      else -> return null
+   }
+   val length = lengthMs?.div(1000)?.roundToLong() ?: -1
+   val name = listOfNotNull(artist, title).joinToString(" - ").replace('\n', ' ')
+   return "$EXTINF:$length,$name"
+}
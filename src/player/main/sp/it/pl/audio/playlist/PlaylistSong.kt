@@ -100,7 +100,8 @@ class PlaylistSong: Song {
       uriP = new_uri
       nameP = SimpleStringProperty()
       timeP = SimpleObjectProperty()
-      setATN(_artist, _title, _length?.net { Duration(it) })
+      // not yet visible to other threads, so there is no need to set the values on FX thread
+      setATNNow(_artist, _title, _length?.net { Duration(it) })
       isUpdated = true
    }
 
@@ -218,13 +219,17 @@ class PlaylistSong: Song {
 
    private fun setATN(artist: String?, title: String?, duration: Duration?) {
       runFX {
-         this.artist = artist
-         this.title = title.takeUnless { it.isNullOrBlank() } ?: uri.path.substringAfterLast("/").substringBeforeLast(".")
-         this.nameP.value = listOfNotNull(this.artist, this.title).joinToString(" - ")
-         this.timeP.value = duration ?: this.timeP.value
+         setATNNow(artist, title, duration)
       }
    }
 
+   private fun setATNNow(artist: String?, title: String?, duration: Duration?) {
+      this.artist = artist
+      this.title = title.takeUnless { it.isNullOrBlank() } ?: uri.path.substringAfterLast("/").substringBeforeLast(".")
+      this.nameP.value = listOfNotNull(this.artist, this.title).joinToString(" - ")
+      this.timeP.value = duration ?: this.timeP.value
+   }
+
    /** @return true if this item is corrupted */
    override fun isCorrupt(): Boolean {
       isCorruptCached = super.isCorrupt()
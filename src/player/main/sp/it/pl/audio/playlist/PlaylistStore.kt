@@ -0,0 +1,373 @@
+package sp.it.pl.audio.playlist
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.IdentityHashMap
+import java.util.UUID
+import java.util.zip.CRC32
+import javafx.collections.ListChangeListener
+import sp.it.pl.core.CoreSerializer
+import sp.it.pl.main.APP
+import sp.it.pl.main.App.Rank.MASTER
+import sp.it.pl.main.App.Rank.SLAVE
+import sp.it.util.async.executor.FxTimer.Companion.fxTimer
+import sp.it.util.async.future.Fut
+import sp.it.util.async.future.Fut.Companion.fut
+import sp.it.util.async.runIO
+import sp.it.util.dev.failIfNotFxThread
+import sp.it.util.file.div
+import sp.it.util.file.writeSafely
+import sp.it.util.functional.runTry
+import sp.it.util.units.seconds
+import sp.it.util.units.uri
+
+/**
+ * Persistence of playlists, one file per playlist, so a change in one playlist does not rewrite all of them.
+ *
+ * Playlist is stored as a snapshot file followed by append-only log of edits done since the snapshot was written.
+ * Edits are appended to the log shortly after they happen, in batches framed by their length and CRC32, so a batch
+ * cut off by a crash is not applied. The snapshot is rewritten only when the log grows larger than the snapshot or when
+ * the playlist has changed when the application state is saved, see [save].
+ * Songs are encoded in compact binary form, with each uri directory stored only once per snapshot or log record.
+ *
+ * Persisted playlists are restored lazily, i.e., decoded only when requested, on [runIO], see [restore].
+ *
+ * Must be used on FX thread. Writing is done on [CoreSerializer] thread.
+ */
+class PlaylistStore {
+   private val dir by lazy { APP.location.user.library/"Playlists" }
+   private val stored = LinkedHashMap<UUID, Int>()
+   private val tracked = IdentityHashMap<Playlist, Tracker>()
+   private val restoring = HashMap<UUID, Restoring>()
+   private val flusher = fxTimer(1.seconds, 1) { flush() }
+
+   /** Ids of persisted playlists that were not restored yet */
+   val ids: Set<UUID> get() = stored.keys
+
+   /** Registers persisted playlist with the specified index of playing song, so it can be [restore]d later. */
+   fun register(id: UUID, playing: Int) {
+      failIfNotFxThread()
+      stored[id] = playing
+   }
+
+   /**
+    * Decodes the persisted playlist registered with [register]. The playlist is returned immediately and its songs
+    * are inserted before any songs added since, once decoded on [runIO], see [restored]. The playing song is only
+    * restored if the playlist is [PlaylistManager.active]. The playlist is [track]ed.
+    *
+    * @return restored playlist or null if no playlist with the id is registered
+    */
+   fun restore(id: UUID): Playlist? {
+      failIfNotFxThread()
+      val playing = stored.remove(id) ?: return null
+      val playlist = Playlist(id)
+      val snapshot = dir/"$id.$SNAPSHOT"
+      val log = dir/"$id.$LOG"
+      restoring[id] = Restoring(playing, runIO {
+         val songs = ArrayList<PlaylistSong>()
+         runTry {
+            if (snapshot.exists()) snapshot.readWith { it.readSongs(songs) }
+            if (log.exists()) {
+               val logSize = log.readWith { it.readLog(songs) }
+               if (logSize<log.length()) {
+                  logger.warn { "Playlist log=$log is incomplete, ignoring last ${log.length() - logSize} bytes" }
+                  // slave may see a batch the master is still appending, only master repairs the log
+                  if (APP.rank==MASTER) FileChannel.open(log.toPath(), WRITE).use { it.truncate(logSize) }
+               }
+            }
+         }.ifError {
+            logger.error(it) { "Failed to restore playlist id=$id" }
+         }
+         Restored(songs, snapshot.length().takeIf { snapshot.exists() }, log.length())
+      } ui {
+         val isTracked = restoring.remove(id)!=null
+         val isEdited = playlist.isNotEmpty()
+         playlist.addAll(0, it.songs)
+         if (id==PlaylistManager.active) playlist.updatePlayingItem(playing)
+         if (isTracked && playlist !in tracked)
+            tracked[playlist] = if (isEdited) Tracker(playlist, null, 0) else Tracker(playlist, it.snapshotSize, it.logSize)
+      })
+      return playlist
+   }
+
+   /** @return future completing on FX thread when the playlist with the specified id is [restore]d, if it is being restored */
+   fun restored(id: UUID?): Fut<Unit> = restoring[id]?.fut ?: fut()
+
+   /** @return index of playing song of the playlist or the persisted one if the playlist is still being [restore]d */
+   fun indexOfPlaying(playlist: Playlist): Int = restoring[playlist.id]?.playing ?: playlist.indexOfPlaying()
+
+   /**
+    * Starts persisting edits of the playlist, replacing tracked playlist with the same id, if any.
+    * Has no effect if the playlist is already tracked.
+    */
+   fun track(playlist: Playlist) {
+      failIfNotFxThread()
+      if (playlist in tracked) return
+      tracked.keys.filter { it.id==playlist.id }.forEach { tracked.remove(it)?.dispose() }
+      tracked[playlist] = Tracker(playlist, null, 0)
+   }
+
+   /**
+    * Persists the specified playlists, writing snapshot of those that changed since their snapshot was written.
+    * Other playlists, restored or not, are stopped being tracked and their files are deleted.
+    * Playlists still being [restore]d are skipped and their files are kept, as their songs are not known yet.
+    *
+    * @return future completing when all is written
+    */
+   fun save(playlists: Collection<Playlist>): Fut<Unit> {
+      failIfNotFxThread()
+      flusher.stop()
+
+      val untracked = tracked.keys.filter { p -> playlists.none { it===p } }
+      untracked.forEach { tracked.remove(it)?.dispose() }
+      stored.clear()
+      restoring.keys.retainAll(playlists.mapTo(HashSet()) { it.id })
+      playlists.forEach { if (it.id !in restoring) track(it) }
+
+      tracked.values.forEach { t ->
+         if (t.isDirty()) t.writeSnapshot()
+         else t.writeLog()
+      }
+
+      val ids = playlists.mapTo(HashSet()) { it.id.toString() }
+      return CoreSerializer.useAtomically {
+         if (APP.rank!=SLAVE) dir.listFiles()?.forEach { f ->
+            if (f.name.substringBefore('.') !in ids && !f.delete())
+               logger.error { "Failed to delete playlist file=$f" }
+         }
+      }
+   }
+
+   private fun flush() {
+      tracked.values.forEach { t ->
+         if (t.isLogTooLarge()) t.writeSnapshot()
+         else t.writeLog()
+      }
+   }
+
+   private fun write(block: () -> Unit) {
+      if (APP.rank==SLAVE) return
+      CoreSerializer.useAtomically {
+         runTry {
+            dir.mkdirs()
+            block()
+         }.ifError {
+            logger.error(it) { "Failed to write playlist" }
+         }
+      }
+   }
+
+   /**
+    * Encodes edits of the playlist as they happen and writes them.
+    *
+    * @param snapshotSize size of the snapshot file or null if there is none
+    * @param logSize size of the log file
+    */
+   private inner class Tracker(val playlist: Playlist, var snapshotSize: Long?, var logSize: Long) {
+      private val ops = ByteArrayOutputStream()
+      private val out = DataOutputStream(ops)
+      /** Number of not updated songs in the snapshot, which are stored without artist, title and length */
+      private var snapshotNotUpdated = if (snapshotSize==null) 0 else playlist.count { !it.isUpdated }
+      private val listener = ListChangeListener<PlaylistSong> { c ->
+         out.writeChange(c)
+         flusher.start()
+      }
+
+      init {
+         playlist.addListener(listener)
+      }
+
+      fun isDirty() = snapshotSize==null || logSize>0 || ops.size()>0 || playlist.count { !it.isUpdated }<snapshotNotUpdated
+
+      fun isLogTooLarge() = snapshotSize==null || logSize + ops.size()>maxOf(LOG_SIZE_MIN, snapshotSize!!)
+
+      fun writeSnapshot() {
+         val id = playlist.id
+         val bytes = ByteArrayOutputStream().also { DataOutputStream(it).writeSongs(playlist) }.toByteArray()
+         ops.reset()
+         snapshotSize = bytes.size.toLong()
+         snapshotNotUpdated = playlist.count { !it.isUpdated }
+         logSize = 0
+         write {
+            (dir/"$id.$SNAPSHOT").writeSafely { f -> runTry { f.writeBytes(bytes) } }.orThrow
+            (dir/"$id.$LOG").delete()
+         }
+      }
+
+      fun writeLog() {
+         if (ops.size()==0) return
+         val id = playlist.id
+         val bytes = ops.toByteArray().toLogBatch()
+         ops.reset()
+         logSize += bytes.size
+         write {
+            FileOutputStream(dir/"$id.$LOG", true).use { it.write(bytes) }
+         }
+      }
+
+      fun dispose() = playlist.removeListener(listener)
+   }
+
+   private class Restoring(val playing: Int, val fut: Fut<Unit>)
+
+   private class Restored(val songs: List<PlaylistSong>, val snapshotSize: Long?, val logSize: Long)
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val SNAPSHOT = "playlist"
+      private const val LOG = "log"
+      private const val LOG_SIZE_MIN = 1024L*1024L
+      private const val OP_INSERT = 1
+      private const val OP_REMOVE = 2
+      private const val OP_PERMUTE = 3
+      private const val FLAG_UPDATED = 1
+      private const val BATCH_HEADER_SIZE = 4 + 4
+
+      private fun <R> File.readWith(block: (DataInputStream) -> R) = DataInputStream(inputStream().buffered()).use(block)
+
+      /** Writes songs, directories of uris are written once, songs refer to them by index */
+      internal fun DataOutputStream.writeSongs(songs: List<PlaylistSong>) {
+         val dirs = LinkedHashMap<String, Int>()
+         val songDirs = IntArray(songs.size) { i ->
+            val uri = songs[i].uri.toString()
+            dirs.getOrPut(uri.substring(0, uri.lastIndexOf('/') + 1)) { dirs.size }
+         }
+         writeVarInt(dirs.size)
+         dirs.keys.forEach(::writeUTF)
+         writeVarInt(songs.size)
+         songs.forEachIndexed { i, s ->
+            val uri = s.uri.toString()
+            writeVarInt(songDirs[i])
+            writeUTF(uri.substring(uri.lastIndexOf('/') + 1))
+            if (s.isUpdated) {
+               writeByte(FLAG_UPDATED)
+               writeUTF(s.getArtist())
+               writeUTF(s.getTitle())
+               writeDouble(s.timeMs ?: Double.NaN)
+            } else {
+               writeByte(0)
+            }
+         }
+      }
+
+      /** Reads songs written by [writeSongs] */
+      internal fun DataInputStream.readSongs(into: MutableList<PlaylistSong>, at: Int = into.size) {
+         val dirs = Array(readVarInt()) { readUTF() }
+         val songs = List(readVarInt()) {
+            val u = uri(dirs[readVarInt()] + readUTF())
+            if ((readByte().toInt() and FLAG_UPDATED)==0) {
+               PlaylistSong(u)
+            } else {
+               val artist = readUTF().ifEmpty { null }
+               val title = readUTF().ifEmpty { null }
+               val length = readDouble().takeUnless { it.isNaN() }
+               PlaylistSong(u, artist, title, length)
+            }
+         }
+         into.addAll(at, songs)
+      }
+
+      /** Writes the edits of the change as log operations, see [readLog] */
+      internal fun DataOutputStream.writeChange(c: ListChangeListener.Change<out PlaylistSong>) {
+         while (c.next()) {
+            when {
+               c.wasPermutated() -> {
+                  writeByte(OP_PERMUTE)
+                  writeVarInt(c.from)
+                  writeVarInt(c.to - c.from)
+                  for (i in c.from until c.to) writeVarInt(c.getPermutation(i))
+               }
+               c.wasUpdated() -> Unit
+               else -> {
+                  if (c.wasRemoved()) {
+                     writeByte(OP_REMOVE)
+                     writeVarInt(c.from)
+                     writeVarInt(c.removedSize)
+                  }
+                  if (c.wasAdded()) {
+                     writeByte(OP_INSERT)
+                     writeVarInt(c.from)
+                     writeSongs(c.addedSubList)
+                  }
+               }
+            }
+         }
+      }
+
+      /** @return these log operations framed as log batch, i.e., `length: Int`, `crc32: Int`, `operations: ByteArray(length)` */
+      internal fun ByteArray.toLogBatch(): ByteArray =
+         ByteBuffer.allocate(BATCH_HEADER_SIZE + size).putInt(size).putInt(CRC32().apply { update(this@toLogBatch) }.value.toInt()).put(this).array()
+
+      /**
+       * Applies the logged batches of edits, ignoring incomplete or corrupted batch at the end, e.g., when application
+       * did not close properly.
+       *
+       * @return length of the valid part of the log
+       */
+      internal fun DataInputStream.readLog(songs: MutableList<PlaylistSong>): Long {
+         var validLength = 0L
+         try {
+            while (true) {
+               val length = readInt()
+               val crcExpected = readInt()
+               if (length<0) break
+               val batch = ByteArray(length).also(::readFully)
+               if (CRC32().apply { update(batch) }.value.toInt()!=crcExpected) break
+               DataInputStream(batch.inputStream()).readOps(songs)
+               validLength += BATCH_HEADER_SIZE + length
+            }
+         } catch (e: EOFException) {
+            // end of log or incomplete batch
+         }
+         return validLength
+      }
+
+      private fun DataInputStream.readOps(songs: MutableList<PlaylistSong>) {
+         while (true) {
+            when (val op = read()) {
+               -1 -> break
+               OP_INSERT -> readSongs(songs, readVarInt())
+               OP_REMOVE -> {
+                  val from = readVarInt()
+                  songs.subList(from, from + readVarInt()).clear()
+               }
+               OP_PERMUTE -> {
+                  val from = readVarInt()
+                  val permuted = songs.subList(from, from + readVarInt())
+                  val permutation = IntArray(permuted.size) { readVarInt() - from }
+                  permuted.toList().forEachIndexed { i, s -> permuted[permutation[i]] = s }
+               }
+               else -> error("Unknown playlist log operation=$op")
+            }
+         }
+      }
+
+      internal fun DataOutputStream.writeVarInt(value: Int) {
+         var v = value
+         while ((v and 0x7F.inv())!=0) {
+            writeByte((v and 0x7F) or 0x80)
+            v = v ushr 7
+         }
+         writeByte(v)
+      }
+
+      internal fun DataInputStream.readVarInt(): Int {
+         var value = 0
+         var shift = 0
+         while (true) {
+            val b = readUnsignedByte()
+            value = value or ((b and 0x7F) shl shift)
+            if ((b and 0x80)==0) return value
+            shift += 7
+         }
+      }
+   }
+}
@@ -1,7 +1,8 @@
 package sp.it.pl.audio.playlist.sequence;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
+import sp.it.pl.audio.playlist.Playlist;
 import sp.it.pl.audio.playlist.PlaylistSong;
 import sp.it.util.access.Values;
 import static sp.it.util.dev.FailKt.noNull;
@@ -12,8 +13,6 @@ import static sp.it.util.dev.FailKt.noNull;
  */
 public class PlayingSequence {
     private PlaylistSongSelector<PlaylistSong> selector = LoopMode.PLAYLIST.selector();
-    private static final List<PlaylistSong> history = new ArrayList<>();
-    private static int history_pos = -1;
 
     /**
      * Sets the logic that determines how the next item should be selected.
@@ -31,10 +30,11 @@ public class PlayingSequence {
      * @return next item
      */
     public PlaylistSong getNext(PlaylistSong current, List<PlaylistSong> playlist) {
-        if (current==null || !playlist.contains(current))
+        int index = indexOf(current, playlist);
+        if (index<0)
             return playlist.isEmpty() ? null : playlist.getFirst();
         else
-            return selector.next(playlist.size(), playlist.indexOf(current), current, playlist);
+            return selector.next(playlist.size(), index, current, playlist);
     }
 
     /**
@@ -45,10 +45,35 @@ public class PlayingSequence {
      * @return previous item
      */
     public PlaylistSong getPrevious(PlaylistSong current, List<PlaylistSong> playlist) {
-        if (current==null || !playlist.contains(current))
+        int index = indexOf(current, playlist);
+        if (index<0)
             return playlist.isEmpty() ? null : playlist.getFirst();
         else
-            return selector.previous(playlist.size(), playlist.indexOf(current), current, playlist);
+            return selector.previous(playlist.size(), index, current, playlist);
+    }
+
+    /**
+     * Returns items from the list that would follow the specified item according to selection logic, without affecting
+     * the selection. If specified item is null, the first item is used.
+     *
+     * @param count maximal number of items
+     * @return upcoming items
+     */
+    public List<PlaylistSong> getUpcoming(PlaylistSong current, List<PlaylistSong> playlist, int count) {
+        if (playlist.isEmpty() || count<=0) return List.of();
+        if (current==null) {
+            var first = playlist.getFirst();
+            var rest = selector.upcoming(count - 1, first, playlist, it -> indexOf(it, playlist));
+            return Stream.concat(Stream.of(first), rest.stream()).toList();
+        }
+        return selector.upcoming(count, current, playlist, it -> indexOf(it, playlist));
+    }
+
+    /** @return index of the item in the list or -1 if null or not in the list, O(1) if the list is {@link Playlist} */
+    private static int indexOf(PlaylistSong item, List<PlaylistSong> list) {
+        if (item==null) return -1;
+        else if (list instanceof Playlist p) return p.indexOfIdentity(item);
+        else return list.indexOf(item);
     }
 
     /** Playback looping mode. */
@@ -56,7 +81,7 @@ public class PlayingSequence {
         OFF {
             @Override
             public PlaylistSongSelector<PlaylistSong> selector() {
-                return new PlaylistSongSelector<>(
+                return PlaylistSongSelector.of(
                         (size, index, current_item, playlist) -> {
                             if (size==0 || index==0) return null;
                             if (current_item==null) return playlist.getFirst();
@@ -76,43 +101,19 @@ public class PlayingSequence {
                     if (current_item==null && size>0) return playlist.getFirst();
                     return current_item;
                 };
-                return new PlaylistSongSelector<>(sel, sel);
+                return PlaylistSongSelector.of(sel, sel);
             }
         },
         RANDOM {
             @Override
             public PlaylistSongSelector<PlaylistSong> selector() {
-                return new PlaylistSongSelector<>(
-                        (size, index, current_item, playlist) -> {
-                            if (size==0) return null;
-                            // generate random index
-                            history_pos--;
-                            if (history_pos>0 && history_pos<history.size() - 1) {
-                                return history.get(history_pos);
-                            }
-                            int i = (int) Math.round(Math.random()*(size - 1));
-                            return playlist.get(i);
-                        },
-                        (size, index, current_item, playlist) -> {
-                            if (size==0) return null;
-                            if (history_pos>-1 && history_pos<history.size() - 2) {
-                                history_pos++;
-                                return history.get(history_pos);
-                            }
-                            // generate random index
-                            int i = (int) Math.round(Math.random()*(size - 1));
-                            PlaylistSong p = playlist.get(i);
-                            history_pos++;
-                            history.add(history_pos, p);
-                            return p;
-                        }
-                );
+                return new ShuffleSelector();
             }
         },
         PLAYLIST {
             @Override
             public PlaylistSongSelector<PlaylistSong> selector() {
-                return new PlaylistSongSelector<>(
+                return PlaylistSongSelector.of(
                         (size, index, current_item, playlist) -> {
                             if (size==0) return null;
                             if (current_item==null) return playlist.getFirst();
@@ -1,13 +1,45 @@
 package sp.it.pl.audio.playlist.sequence
 
 /** Selector of next or previous item in the list. */
-class PlaylistSongSelector<E>(private val prev: Selection<E>, private val next: Selection<E>) {
+interface PlaylistSongSelector<E> {
 
-   @Suppress("UNUSED_PARAMETER")
-   fun same(size: Int, index: Int, current_item: E, list: List<E>): E = current_item
+   /**
+    * @param size size of the list.
+    * @param index index of the currently selected item.
+    * @param current_item currently selected item.
+    * @param list list the selection operates on.
+    * @return item following the current item or null if none
+    */
+   fun next(size: Int, index: Int, current_item: E, list: List<E>): E?
 
-   fun next(size: Int, index: Int, current_item: E, list: List<E>): E = next.select(size, index, current_item, list)
+   /** @return item preceding the current item or null if none, see [next] */
+   fun previous(size: Int, index: Int, current_item: E, list: List<E>): E?
 
-   fun previous(size: Int, index: Int, current_item: E, list: List<E>): E = prev.select(size, index, current_item, list)
+   /**
+    * @param count maximal number of items
+    * @param indexOf index of an item in the list or -1 if not in the list
+    * @return items [next] would return in succession, starting from the current item, without affecting the selection
+    */
+   fun upcoming(count: Int, current_item: E, list: List<E>, indexOf: (E) -> Int): List<E> {
+      val items = ArrayList<E>(count)
+      var item = current_item
+      while (items.size<count) {
+         val index = indexOf(item)
+         item = (if (index<0) list.firstOrNull() else next(list.size, index, item, list)) ?: break
+         if (item===current_item || items.any { it===item }) break
+         items += item
+      }
+      return items
+   }
 
-}
\ No newline at end of file
+   companion object {
+
+      /** @return selector using the specified selections */
+      @JvmStatic
+      fun <E> of(prev: Selection<E>, next: Selection<E>): PlaylistSongSelector<E> = object: PlaylistSongSelector<E> {
+         override fun next(size: Int, index: Int, current_item: E, list: List<E>): E = next.select(size, index, current_item, list)
+         override fun previous(size: Int, index: Int, current_item: E, list: List<E>): E = prev.select(size, index, current_item, list)
+      }
+
+   }
+}
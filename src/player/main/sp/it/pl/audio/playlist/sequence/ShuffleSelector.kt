@@ -0,0 +1,70 @@
+package sp.it.pl.audio.playlist.sequence
+
+import java.lang.ref.WeakReference
+import java.util.Collections
+import java.util.IdentityHashMap
+import javafx.beans.InvalidationListener
+import javafx.collections.ObservableList
+import kotlin.math.ln
+import sp.it.pl.audio.Song
+import sp.it.pl.audio.playlist.Playlist
+import sp.it.pl.audio.playlist.PlaylistManager
+import sp.it.pl.audio.playlist.PlaylistSong
+import sp.it.pl.core.InfoUi
+import sp.it.pl.core.NameUi
+import sp.it.pl.main.APP
+
+/**
+ * Selector using the [Playlist.shuffle] of the playlist the list belongs to, so songs do not repeat until all have been
+ * played, see [ShuffleSequence].
+ *
+ * If the list is a (e.g. filtered or sorted) view of the playlist, only songs in the list are selected, which requires
+ * O(n) lookup set of the list. The set is reused while the list is the same [ObservableList] that did not change, e.g.,
+ * items of a playlist table. If the playlist can not be determined, next song is selected randomly.
+ */
+class ShuffleSelector: PlaylistSongSelector<PlaylistSong> {
+   private var listSetOf = WeakReference<List<PlaylistSong>>(null)
+   private var listSet: Set<PlaylistSong>? = null
+   private val listSetInvalidator = InvalidationListener { listSet = null }
+
+   override fun next(size: Int, index: Int, current_item: PlaylistSong, list: List<PlaylistSong>) =
+      select(current_item, list) { next(current_item, it) } ?: list.randomOrNull()
+
+   override fun previous(size: Int, index: Int, current_item: PlaylistSong, list: List<PlaylistSong>) =
+      select(current_item, list) { previous(current_item, it) }
+
+   override fun upcoming(count: Int, current_item: PlaylistSong, list: List<PlaylistSong>, indexOf: (PlaylistSong) -> Int) =
+      select(current_item, list) { upcoming(current_item, count, it) }.orEmpty()
+
+   private fun <T> select(current: PlaylistSong, list: List<PlaylistSong>, selection: ShuffleSequence<PlaylistSong>.((PlaylistSong) -> Boolean) -> T): T? {
+      if (list.isEmpty()) return null
+      val playlist = list as? Playlist ?: PlaylistManager.playlists.find { it.indexOfIdentity(current)>=0 } ?: return null
+      val shuffle = playlist.shuffle.apply { weigher = APP.audio.shuffleWeighting.value.weigher }
+      return if (list===playlist) {
+         shuffle.selection { true }
+      } else {
+         val listSet = listSet(list)
+         shuffle.selection { it in listSet }
+      }
+   }
+
+   /** @return identity set of the list's songs, cached while the list is the same observable list that did not change */
+   private fun listSet(list: List<PlaylistSong>): Set<PlaylistSong> {
+      if (listSetOf.get()!==list) {
+         (listSetOf.get() as? ObservableList<*>)?.removeListener(listSetInvalidator)
+         (list as? ObservableList<*>)?.addListener(listSetInvalidator)
+         listSetOf = WeakReference(list)
+         listSet = null
+      }
+      return listSet?.takeIf { list is ObservableList<*> }
+         ?: Collections.newSetFromMap(IdentityHashMap<PlaylistSong, Boolean>(list.size)).apply { addAll(list) }.also { listSet = it }
+   }
+
+}
+
+/** Weighting of songs in [ShuffleSelector] */
+enum class ShuffleWeighting(val weigher: ((Song) -> Double)?, override val nameUi: String, override val infoUi: String): NameUi, InfoUi {
+   NONE(null, "None", "All songs are equally likely to play sooner"),
+   RATING({ APP.db.getSong(it)?.getRatingPercent() ?: 0.5 }, "Rating", "Songs with higher rating are likely to play sooner. Unrated songs count as 50%"),
+   PLAYCOUNT({ 1.0 + ln(1.0 + (APP.db.getSong(it)?.getPlaycountOr0() ?: 0)) }, "Playcount", "Songs played more often are likely to play sooner"),
+}
@@ -0,0 +1,253 @@
+package sp.it.pl.audio.playlist.sequence
+
+import java.util.Collections
+import java.util.IdentityHashMap
+import kotlin.random.Random
+import sp.it.util.dev.failIf
+
+/**
+ * Non-repeating shuffle of a changing set of items, i.e., every item is selected once before any item repeats.
+ *
+ * Items are drawn from the items not yet selected in the current cycle. When there are none, a new cycle starts
+ * (with all items except the current one, so it does not repeat immediately). Added items join the current cycle and
+ * removed items leave it, without reshuffling.
+ *
+ * Items may be weighted (see [weigher]), heavier items being selected sooner in the cycle. Draws use an alias table
+ * with rejection of items no longer in the cycle. The table is rebuilt when half of the weight of the cycle has been
+ * drawn or items were added, so [next] is O(1) amortized. Items rejected by filter stay in the table.
+ *
+ * Selected items are remembered in bounded history, which [previous] and [next] navigate before drawing new items.
+ * Items drawn ahead by [upcoming] are planned at the end of the history, so [next] returns them in order.
+ *
+ * Items are compared by identity. Not thread safe.
+ *
+ * @param historySize maximal number of remembered selected items
+ */
+class ShuffleSequence<E: Any> @JvmOverloads constructor(val historySize: Int = 256, private val random: Random = Random.Default) {
+   private val items = identitySet<E>()
+   private val remaining = identitySet<E>()
+   private val history = ArrayDeque<E>()
+   private var historyAt = -1
+   private var plannedAt = 0
+   private var table: AliasTable<E>? = null
+   private var tableWeights = IdentityHashMap<E, Double>()
+   private var tableWeightRemaining = 0.0
+
+   /** Weight of an item (non-positive weight is treated as very small weight) or null for uniform shuffle. */
+   var weigher: ((E) -> Double)? = null
+      set(value) {
+         if (field!==value) table = null
+         field = value
+      }
+
+   init {
+      failIf(historySize<1) { "History size must be at least 1" }
+   }
+
+   /** Number of items */
+   val size: Int
+      get() = items.size
+
+   /**
+    * Removes the removed items and adds the added items, ignoring items that are in both, e.g., when observing changes
+    * of a list, which may report all items as replaced.
+    */
+   fun update(removed: Collection<E>, added: Collection<E>) {
+      if (removed.isEmpty() && added.isEmpty()) return
+      val addedSet = identitySet<E>().apply { addAll(added) }
+      val removedSet = identitySet<E>().apply { addAll(removed) }
+      removed.forEach { if (it !in addedSet) remove(it) }
+      added.forEach { if (it !in removedSet) add(it) }
+   }
+
+   /** Adds the item to the current cycle */
+   fun add(item: E) {
+      if (items.add(item) && remaining.add(item)) table = null
+   }
+
+   /** Removes the item */
+   fun remove(item: E) {
+      items -= item
+      removeRemaining(item)
+   }
+
+   /** Removes all items and history */
+   fun clear() {
+      items.clear()
+      remaining.clear()
+      history.clear()
+      historyAt = -1
+      plannedAt = 0
+      table = null
+   }
+
+   /**
+    * Marks the item as selected, which removes it from the current cycle and makes it the current item in the history.
+    * Invoked automatically by [next] and [previous] for their current item.
+    */
+   fun selected(item: E) {
+      if (history.getOrNull(historyAt)===item) return
+      removeRemaining(item)
+      // planned items that will not be selected return to the cycle
+      while (history.size>historyAt + 1) {
+         val i = history.removeLast()
+         if (history.size>=plannedAt && i in items && i!==item && remaining.add(i)) table = null
+      }
+      history.addLast(item)
+      historyAt = history.lastIndex
+      plannedAt = history.size
+      trimHistory()
+   }
+
+   /**
+    * Plans the next items, so they are returned by [next] in order, unless other item is [selected].
+    *
+    * @param current currently selected item or null if none
+    * @param count number of items to plan, at most half of [historySize]
+    * @param filter items to select from, e.g., visible items, all by default
+    * @return up to [count] next items
+    */
+   fun upcoming(current: E?, count: Int, filter: (E) -> Boolean = { true }): List<E> {
+      current?.let(::selected)
+      val planned = ArrayList<E>(count)
+      var i = historyAt + 1
+      while (planned.size<count.coerceAtMost(historySize/2)) {
+         if (i<history.size) {
+            val item = history[i++]
+            if (item in items && filter(item)) planned += item
+         } else {
+            val item = draw(planned.lastOrNull() ?: current, filter) ?: break
+            history.addLast(item)
+            planned += item
+            trimHistory()
+            i = history.size
+         }
+      }
+      return planned
+   }
+
+   /** Removes the oldest items over [historySize], but never the current item */
+   private fun trimHistory() {
+      while (history.size>historySize && historyAt>0) {
+         history.removeFirst()
+         historyAt--
+         plannedAt--
+      }
+   }
+
+   /**
+    * @param current currently selected item or null if none
+    * @param filter items to select from, e.g., visible items, all by default
+    * @return next item from the history or newly drawn item or null if there is none
+    */
+   fun next(current: E?, filter: (E) -> Boolean = { true }): E? {
+      current?.let(::selected)
+      while (historyAt<history.lastIndex) {
+         val item = history[++historyAt]
+         plannedAt = plannedAt.coerceAtLeast(historyAt + 1)
+         if (item in items && filter(item)) return item
+      }
+      return draw(current, filter)?.also(::selected)
+   }
+
+   /**
+    * @param current currently selected item or null if none
+    * @param filter items to select from, e.g., visible items, all by default
+    * @return previous item from the history or null if there is none
+    */
+   fun previous(current: E?, filter: (E) -> Boolean = { true }): E? {
+      current?.let(::selected)
+      while (historyAt>0) {
+         val item = history[--historyAt]
+         if (item in items && filter(item)) return item
+      }
+      return null
+   }
+
+   private fun draw(current: E?, filter: (E) -> Boolean): E? {
+      if (remaining.isEmpty()) startCycle(current)
+      drawFromCycle(filter)?.let { return it }
+      // no eligible item left in this cycle
+      startCycle(current)
+      return drawFromCycle(filter) ?: current?.takeIf { it in items && filter(it) }
+   }
+
+   private fun drawFromCycle(filter: (E) -> Boolean): E? {
+      val rejected = ArrayList<E>()
+      var drawn: E? = null
+      while (drawn==null && remaining.isNotEmpty()) {
+         val t = table?.takeIf { tableWeightRemaining*2>=it.weight } ?: buildTable()
+         val item = t.sample(random)
+         if (item in remaining) {
+            removeRemaining(item)
+            if (filter(item)) drawn = item else rejected += item
+         }
+      }
+      // rejected items return to the cycle, the table is only invalid if it was rebuilt without them
+      rejected.forEach {
+         remaining += it
+         val w = tableWeights[it]
+         if (w==null) table = null else tableWeightRemaining += w
+      }
+      return drawn
+   }
+
+   private fun startCycle(current: E?) {
+      remaining.clear()
+      remaining.addAll(items)
+      if (remaining.size>1) current?.let(remaining::remove)
+      table = null
+   }
+
+   private fun removeRemaining(item: E) {
+      if (remaining.remove(item)) tableWeightRemaining -= tableWeights[item] ?: 0.0
+   }
+
+   private fun buildTable(): AliasTable<E> {
+      val w = weigher
+      tableWeights = IdentityHashMap<E, Double>(remaining.size).apply {
+         remaining.forEach { put(it, if (w==null) 1.0 else w(it).takeIf { it>MIN_WEIGHT } ?: MIN_WEIGHT) }
+      }
+      return AliasTable(tableWeights).also {
+         table = it
+         tableWeightRemaining = it.weight
+      }
+   }
+
+   /** Vose's alias table for O(1) sampling of discrete distribution. */
+   private class AliasTable<E>(weights: Map<E, Double>) {
+      val weight = weights.values.sum()
+      private val items = ArrayList(weights.keys)
+      private val probability = DoubleArray(items.size)
+      private val alias = IntArray(items.size)
+
+      init {
+         val n = items.size
+         val scaled = DoubleArray(n) { weights[items[it]]!!*n/weight }
+         val small = ArrayDeque<Int>()
+         val large = ArrayDeque<Int>()
+         scaled.forEachIndexed { i, p -> if (p<1.0) small += i else large += i }
+         while (small.isNotEmpty() && large.isNotEmpty()) {
+            val s = small.removeLast()
+            val l = large.removeLast()
+            probability[s] = scaled[s]
+            alias[s] = l
+            scaled[l] = scaled[l] + scaled[s] - 1.0
+            if (scaled[l]<1.0) small += l else large += l
+         }
+         large.forEach { probability[it] = 1.0 }
+         small.forEach { probability[it] = 1.0 }
+      }
+
+      fun sample(random: Random): E {
+         val i = random.nextInt(items.size)
+         return items[if (random.nextDouble()<probability[i]) i else alias[i]]
+      }
+   }
+
+   companion object {
+      private const val MIN_WEIGHT = 0.001
+
+      private fun <E> identitySet(): MutableSet<E> = Collections.newSetFromMap(IdentityHashMap())
+   }
+}
@@ -0,0 +1,152 @@
+package sp.it.pl.audio.tagging
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import org.jaudiotagger.tag.images.Artwork
+import org.jaudiotagger.tag.images.ArtworkFactory
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.SimpleSong
+import sp.it.pl.core.Core
+import sp.it.pl.main.APP
+import sp.it.pl.ui.objects.image.ArtworkCover
+import sp.it.pl.ui.objects.image.Cover
+import sp.it.pl.ui.objects.image.Cover.CoverSource
+import sp.it.pl.ui.objects.image.EmptyCover
+import sp.it.util.collections.map.CacheStats
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIf
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.file.SegmentStore
+import sp.it.util.functional.Option.None
+import sp.it.util.functional.Option.Some
+import sp.it.util.functional.Try
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.units.FileSize.Companion.Mi
+
+/**
+ * Persistent cache of artwork embedded in audio file tags.
+ *
+ * Reading the artwork from tag requires parsing the whole tag, which is slow and is repeated whenever a cover is
+ * disposed and loaded again. This cache stores the artwork (or the fact there is none) per file, identified by path,
+ * size and last modified time, so changed files (e.g. by tag writing) are read again.
+ *
+ * The cache is filled lazily by [getOrRead], i.e., only with artwork that is actually displayed, so bulk tag reading
+ * (e.g. library scan) does not evict it.
+ */
+@ThreadSafe
+class ArtworkCache(val dir: File): Core {
+   private val store = lazy {
+      runTry { SegmentStore(dir, SEGMENT_COUNT, SEGMENT_SIZE).apply { open() } }
+         .ifError { logger.error(it) { "Failed to open artwork cache $dir, cache disabled" } }
+         .orNull()
+   }
+
+   override fun dispose() {
+      if (store.isInitialized()) store.value?.close()
+   }
+
+   /** @return artwork embedded in the tag of the specified audio file or null if none, read from the tag only if not cached */
+   @Blocking
+   fun getOrRead(file: File): Try<Artwork?, Throwable> {
+      failIfFxThread()
+
+      val key = key(file)
+      val cached = store.value?.get(key)?.let { bytes ->
+         runTry { decode(bytes) }
+            .ifError { logger.warn(it) { "Failed to decode cached artwork of file=$file" } }
+            .orNull()
+      } ?: None
+      return when (cached) {
+         is Some -> Try.ok(cached.value)
+         is None -> file.readAudioFile().map { it?.tag?.firstArtwork }.ifOk { put(key, it) }
+      }
+   }
+
+   /**
+    * @return cover of the specified audio file, like [Metadata.getCover], but the tag is only read if the artwork is
+    * not cached or the cover is looked up by song metadata (e.g. [CoverSource.DIRECTORY]) of song not in library
+    */
+   @Blocking
+   fun getCover(file: File, source: CoverSource): Cover {
+      failIfFxThread()
+
+      fun fromTag() = getOrRead(file).orNull()?.let { ArtworkCover(it, it.info) }
+      fun fromDir() = (APP.db.getSong(file.toURI()) ?: SimpleSong(file).read()).getCover(CoverSource.DIRECTORY).takeUnless { it.isEmpty() }
+      return when (source) {
+         CoverSource.NONE -> EmptyCover
+         CoverSource.TAG -> fromTag() ?: EmptyCover
+         CoverSource.DIRECTORY -> fromDir() ?: EmptyCover
+         CoverSource.ANY -> fromTag() ?: fromDir() ?: EmptyCover
+      }
+   }
+
+   /** Removes all cached artwork */
+   fun clear() {
+      store.value?.clear()
+   }
+
+   /** @return statistics of this cache, size is in bytes, does not open the cache if not yet open */
+   fun stats(): CacheStats = store.takeIf { it.isInitialized() }?.value?.stats() ?: CacheStats(0, 0, 0, 0, 0)
+
+   private fun put(key: String, artwork: Artwork?) {
+      runTry { encode(artwork) }
+         .ifError { logger.warn(it) { "Failed to encode artwork for key=$key" } }
+         .orNull()
+         ?.let { store.value?.put(key, it) }
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val FORMAT_VERSION = 1
+      private const val SEGMENT_COUNT = 8
+      private const val SEGMENT_SIZE = (32*Mi).toInt()
+
+      private fun key(file: File) = "${file.absolutePath}|${file.length()}|${file.lastModified()}"
+
+      /** @return artwork as version, presence marker and its fields */
+      private fun encode(a: Artwork?): ByteArray {
+         val bytes = ByteArrayOutputStream(a?.binaryData?.size?.plus(256) ?: 8)
+         DataOutputStream(bytes).use { s ->
+            s.writeInt(FORMAT_VERSION)
+            s.writeBoolean(a!=null)
+            if (a!=null) {
+               s.writeUTF(a.mimeType.orEmpty())
+               s.writeUTF(a.description.orEmpty())
+               s.writeInt(a.width)
+               s.writeInt(a.height)
+               s.writeInt(a.pictureType)
+               s.writeBoolean(a.isLinked)
+               s.writeUTF(a.imageUrl.orEmpty())
+               val data = a.binaryData ?: ByteArray(0)
+               s.writeInt(data.size)
+               s.write(data)
+            }
+         }
+         return bytes.toByteArray()
+      }
+
+      /** @return artwork or null if the file has no artwork */
+      private fun decode(bytes: ByteArray): Some<Artwork?> {
+         DataInputStream(bytes.inputStream()).use { s ->
+            val version = s.readInt()
+            failIf(version!=FORMAT_VERSION) { "Unsupported artwork format version=$version" }
+            if (!s.readBoolean()) return Some(null)
+            val a = ArtworkFactory.getNew().apply {
+               mimeType = s.readUTF()
+               description = s.readUTF()
+               width = s.readInt()
+               height = s.readInt()
+               pictureType = s.readInt()
+               isLinked = s.readBoolean()
+               imageUrl = s.readUTF()
+               binaryData = ByteArray(s.readInt()).also(s::readFully)
+            }
+            return Some(a)
+         }
+      }
+   }
+}
@@ -78,7 +78,7 @@ import sp.it.util.units.uri
  *
  * To access any field in a generic way, see [Field] and [getField].
  */
-class Metadata: Song, Serializable {
+class Metadata: Song, Serializable, Cloneable {
 
    // file fields
 
@@ -654,8 +654,7 @@ class Metadata: Song, Serializable {
    private fun readCoverFromTag(): Try<ArtworkCover?, Throwable> = readArtworkFromTag().map { if (it==null) null else ArtworkCover(it, it.info) }
 
    private fun readArtworkFromTag(): Try<Artwork?, Throwable> = ok(getFile())
-      .andAlso { it?.readAudioFile() ?: ok() }
-      .map { it?.tag?.firstArtwork }
+      .andAlso { it?.let(APP.artworks::getOrRead) ?: ok() }
       .ifError { logger.warn(it) { "Failed to read cover from tag of song=$uri" } }
 
    /** @return the cover image file on a file system or null if this song is not file based */
@@ -709,6 +708,34 @@ class Metadata: Song, Serializable {
    /** @return time this song was added to library or null if none */
    fun getTimeLibraryAdded(): LocalDateTime? = libraryAdded?.toLongOrNull()?.localDateTimeFromMillis()
 
+   /**
+    * Sets time this song was added to library to now, if none. Does not write the tag.
+    * Use only on instances that have not been published yet, e.g., when adding songs to library.
+    */
+   internal fun initLibraryAddedNowIfEmpty() = apply {
+      if (libraryAdded.isNullOrBlank()) libraryAdded = System.currentTimeMillis().toString()
+   }
+
+   /**
+    * Sets time this song was added to library to that of the specified metadata, if none. Does not write the tag.
+    * Use only on instances that have not been published yet, e.g., when updating songs in library.
+    */
+   internal fun initLibraryAddedIfEmpty(m: Metadata?) = apply {
+      if (libraryAdded.isNullOrBlank()) libraryAdded = m?.libraryAdded
+   }
+
+   /** @return this or copy of this with time this song was added to library set to that of the specified metadata, if none, see [initLibraryAddedIfEmpty] */
+   internal fun withLibraryAddedIfEmpty(m: Metadata?): Metadata =
+      if (!libraryAdded.isNullOrBlank() || m?.libraryAdded.isNullOrBlank()) this
+      else (clone() as Metadata).also { it.libraryAdded = m!!.libraryAdded }
+
+   /** @return copy of this with the specified play statistics applied, see [PlayStats] */
+   internal fun withPlayStats(playcountBy: Int, playedFirst: Long?, playedLast: Long?) = (clone() as Metadata).also {
+      if (playcountBy!=0) it.playcount = (playcount ?: 0) + playcountBy
+      if (playedFirst!=null && it.playedFirst.isNullOrBlank()) it.playedFirst = playedFirst.toString()
+      if (playedLast!=null) it.playedLast = playedLast.toString()
+   }
+
    /** @return all available text about this song */
    fun getFulltext() = FIELDS_FULLTEXT.asSequence().map { it.getOf(this) }.filterNotNull().toStringSeq()
 
@@ -822,8 +849,9 @@ class Metadata: Song, Serializable {
          return if (i>-1) tag.getValue(FieldKey.COMMENT, i) else null
       }
 
+      /** All text fields, see [getFulltext] */
       @Suppress("UNCHECKED_CAST")
-      private val FIELDS_FULLTEXT: List<Field<String?>> = Field.all.asSequence()
+      val FIELDS_FULLTEXT: List<Field<String?>> = Field.all.asSequence()
          .filter { it.type.raw.isSubclassOf<String?>() }
          .map { it as Field<String?> }
          .toList()
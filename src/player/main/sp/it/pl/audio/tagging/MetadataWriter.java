@@ -578,6 +578,11 @@ public class MetadataWriter extends Song {
 		setCustomField(TAG_ID_PLAYED_FIRST, String.valueOf(epochMs));
 	}
 
+	public void setPlayedFirstIfEmpty(LocalDateTime at) {
+		if (hasCustomField(TAG_ID_PLAYED_FIRST)) return;
+		setPlayedFirst(at);
+	}
+
 	public void setPlayedLast(LocalDateTime at) {
 		long epochMs = at.atZone(ZONE_ID).toInstant().toEpochMilli();
 		setCustomField(TAG_ID_PLAYED_LAST, String.valueOf(epochMs));
@@ -813,6 +818,16 @@ public class MetadataWriter extends Song {
 		}
 	}
 
+	/**
+	 * Returns the audio file being written to, which reflects the written tag after {@link #write()}.
+	 * Allows creating up-to-date {@link Metadata} without reading the file again.
+	 *
+	 * @return the audio file or null if none or its tag could not be read
+	 */
+	AudioFile getWrittenAudioFile() {
+		return hasCorruptedTag ? null : audioFile;
+	}
+
 	/**
 	 * Finds out how many fields this writer needs to commit.
 	 *
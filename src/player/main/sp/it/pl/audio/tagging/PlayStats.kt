@@ -0,0 +1,250 @@
+package sp.it.pl.audio.tagging
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.OpenOption
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.zip.CRC32
+import javafx.util.Duration
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.SimpleSong
+import sp.it.pl.audio.playlist.toAbsoluteURIOrNull
+import sp.it.pl.main.APP
+import sp.it.pl.main.isAudio
+import sp.it.util.async.runIO
+import sp.it.util.async.runPeriodic
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.file.parentDirOrRoot
+import sp.it.util.file.writeSafely
+import sp.it.util.functional.runTry
+import sp.it.util.localDateTimeFromMillis
+import sp.it.util.reactive.Subscription
+
+/**
+ * Write-behind store of song play statistics, i.e., playcount and first and last played time.
+ *
+ * Writing the tag on every play is slow and may rewrite the whole file (e.g. ID3v2 tag with exhausted padding), so
+ * play statistics are applied to the library immediately, but written to the song tags later, coalesced per song, in
+ * batches, see [flush]. Until then, they are persisted in an append-only journal, which is replayed by [init], so
+ * nothing is lost on crash, and they are applied to songs read from tags when refreshing the library, see [withPending].
+ *
+ * Record layout: `length: Int`, `crc32: Int`, `payload: ByteArray(length)`.
+ * Payload layout: `id: UTF`, `playcountBy: Int`, `playedFirst: Long`, `playedLast: Long`, times being -1 if none.
+ * Each record holds all pending statistics of the song, so the last record of the song wins.
+ */
+@ThreadSafe
+class PlayStats(val file: File) {
+   private val pending = LinkedHashMap<String, Stats>()
+   private val flushLock = Any()
+   private var flushing: Subscription? = null
+
+   /** Replays the journal. Call once, before any other method. */
+   @Blocking
+   @Synchronized
+   fun init() {
+      pending.clear()
+      if (!file.exists()) return
+
+      var validLength = 0L
+      DataInputStream(file.inputStream().buffered()).use { input ->
+         while (true) {
+            try {
+               val length = input.readInt()
+               val crcExpected = input.readInt()
+               if (length<0 || length>file.length()) break
+               val payload = ByteArray(length).also(input::readFully)
+               if (CRC32().apply { update(payload) }.value.toInt()!=crcExpected) break
+               val (id, stats) = decode(payload)
+               pending[id] = stats
+               validLength += HEADER_SIZE + length
+            } catch (e: EOFException) {
+               break
+            }
+         }
+      }
+      if (validLength<file.length()) {
+         logger.warn { "Play statistics journal=$file has corrupted tail, truncating ${file.length() - validLength} bytes" }
+         FileChannel.open(file.toPath(), WRITE).use { it.truncate(validLength) }
+      }
+      logger.info { "Replayed play statistics of ${pending.size} songs" }
+   }
+
+   /** Invokes [flush] periodically with the specified period, replacing the previous period. */
+   fun flushPeriodically(period: Duration) {
+      flushing?.unsubscribe()
+      flushing = runPeriodic(period) { runIO { flush() } }
+   }
+
+   /** Stops flushing periodically. Pending statistics remain in the journal and are written after next [init]. */
+   fun dispose() {
+      flushing?.unsubscribe()
+      flushing = null
+   }
+
+   /**
+    * Records a play of the specified song and applies it to the library.
+    *
+    * @param playcountBy number to increment playcount by
+    * @param playedAt time of the play in epoch milliseconds to set as last (and first, if none) played time or null
+    * @return the song with the play statistics applied or null if the song can not have play statistics
+    */
+   @Blocking
+   fun record(song: Metadata, playcountBy: Int = 0, playedAt: Long? = null): Metadata? {
+      failIfFxThread()
+      if (APP.audio.readOnly || song.isEmpty() || !song.isFileBased() || !song.getFile()!!.isAudio()) return null
+
+      val stats = Stats(playcountBy, playedAt, playedAt)
+      // not refreshed through PlayerManager.refreshSongsWith, which would apply the pending statistics again
+      val songUpdated = record(song.id, stats) { id, change -> APP.db.updateSong(id, change).blockAndGetOrThrow() }
+      return songUpdated ?: song.withPlayStats(stats.playcountBy, stats.playedFirst, stats.playedLast)
+   }
+
+   /**
+    * Adds the specified statistics to the pending statistics of the song with the specified id and applies them to the
+    * library song using the specified atomic update, so concurrently recorded statistics are not lost.
+    *
+    * @return the library song with the statistics applied or null if not in library
+    */
+   @Blocking
+   internal fun record(id: String, stats: Stats, updateSong: (String, (Metadata) -> Metadata) -> Metadata?): Metadata? {
+      recordPending(id, stats)
+      return updateSong(id) { it.withPlayStats(stats.playcountBy, stats.playedFirst, stats.playedLast) }
+   }
+
+   /** @return the specified songs read from tags with their pending statistics applied */
+   fun withPending(songs: List<Metadata>): List<Metadata> {
+      val pending = synchronized(this) { if (pending.isEmpty()) return songs else LinkedHashMap(pending) }
+      return songs.map { s -> pending[s.id]?.let { s.withPlayStats(it.playcountBy, it.playedFirst, it.playedLast) } ?: s }
+   }
+
+   /** Adds the specified statistics to the pending statistics of the song with the specified id and journals them. */
+   @Blocking
+   internal fun recordPending(id: String, stats: Stats) {
+      synchronized(this) {
+         val statsAll = pending[id]?.then(stats) ?: stats
+         pending[id] = statsAll
+         runTry { append(listOf(id to statsAll)) }.ifError { logger.error(it) { "Failed to append play statistics of song=$id to journal=$file" } }
+      }
+   }
+
+   /** @return snapshot of the pending statistics */
+   internal fun pending(): Map<String, Stats> = synchronized(this) { LinkedHashMap(pending) }
+
+   /**
+    * Writes pending play statistics into the song tags, one tag write per song, and refreshes the written songs.
+    * Statistics of the currently playing song are not written, to not disrupt the playback.
+    */
+   @Blocking
+   fun flush() {
+      failIfFxThread()
+
+      synchronized(flushLock) {
+         val playingId = APP.audio.playingSong.value.id
+         val batch = synchronized(this) { pending.filterKeys { it!=playingId } }
+         if (batch.isEmpty() || APP.audio.readOnly) return
+
+         val w = MetadataWriter()
+         val songsWritten = ArrayList<Metadata>()
+         val written = batch.filter { (id, stats) ->
+            val song = id.toAbsoluteURIOrNull()?.let(::SimpleSong)
+            val f = song?.getFile()
+            when {
+               song==null || f==null || !f.exists() -> true
+               else -> {
+                  val playcount = if (stats.playcountBy==0) null else song.read().getPlaycountOr0() + stats.playcountBy
+                  w.reset(song)
+                  playcount?.let(w::setPlaycount)
+                  stats.playedFirst?.localDateTimeFromMillis()?.let(w::setPlayedFirstIfEmpty)
+                  stats.playedLast?.localDateTimeFromMillis()?.let(w::setPlayedLast)
+                  w.write().isOk.also { ok ->
+                     if (ok) w.writtenAudioFile?.let(::Metadata)?.let(songsWritten::add)
+                  }
+               }
+            }
+         }
+
+         completePending(written)
+         APP.audio.refreshSongsWith(songsWritten)
+         logger.info { "Written play statistics of ${written.size}/${batch.size} songs" }
+      }
+   }
+
+   /**
+    * Removes the specified written statistics from the pending statistics and rewrites the journal.
+    * Statistics recorded since the written ones were obtained remain pending.
+    */
+   @Blocking
+   internal fun completePending(written: Map<String, Stats>) {
+      synchronized(this) {
+         written.forEach { (id, stats) ->
+            val statsLeft = pending[id]?.minus(stats)
+            if (statsLeft==null || statsLeft.isEmpty()) pending -= id
+            else pending[id] = statsLeft
+         }
+         file.writeSafely { f -> runTry { write(f, pending.toList(), TRUNCATE_EXISTING) } }
+            .ifError { logger.error(it) { "Failed to rewrite play statistics journal=$file" } }
+      }
+   }
+
+   private fun append(records: List<Pair<String, Stats>>) = write(file, records, APPEND)
+
+   private fun write(f: File, records: List<Pair<String, Stats>>, vararg options: OpenOption) {
+      val payloads = records.map { (id, stats) -> encode(id, stats) }
+      val buffer = ByteBuffer.allocate(payloads.sumOf { HEADER_SIZE + it.size })
+      payloads.forEach { buffer.putInt(it.size).putInt(CRC32().apply { update(it) }.value.toInt()).put(it) }
+      buffer.flip()
+
+      f.parentDirOrRoot.mkdirs()
+      FileChannel.open(f.toPath(), CREATE, WRITE, *options).use { ch ->
+         while (buffer.hasRemaining()) ch.write(buffer)
+         ch.force(false)
+      }
+   }
+
+   /** Pending play statistics of a song */
+   internal data class Stats(val playcountBy: Int, val playedFirst: Long?, val playedLast: Long?) {
+      /** @return statistics of this followed by the specified statistics */
+      infix fun then(next: Stats) = Stats(playcountBy + next.playcountBy, playedFirst ?: next.playedFirst, next.playedLast ?: playedLast)
+
+      /** @return statistics of this that remain to be written after the specified statistics, which this started with, were written */
+      operator fun minus(written: Stats) = Stats(
+         playcountBy - written.playcountBy,
+         playedFirst.takeIf { written.playedFirst==null },
+         playedLast.takeIf { it!=written.playedLast }
+      )
+
+      /** @return true iff there is nothing to write */
+      fun isEmpty() = playcountBy==0 && playedFirst==null && playedLast==null
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val HEADER_SIZE = 4 + 4
+
+      private fun encode(id: String, stats: Stats): ByteArray {
+         val bytes = ByteArrayOutputStream(64 + id.length)
+         DataOutputStream(bytes).use { s ->
+            s.writeUTF(id)
+            s.writeInt(stats.playcountBy)
+            s.writeLong(stats.playedFirst ?: -1)
+            s.writeLong(stats.playedLast ?: -1)
+         }
+         return bytes.toByteArray()
+      }
+
+      private fun decode(payload: ByteArray): Pair<String, Stats> =
+         DataInputStream(payload.inputStream()).use { s ->
+            s.readUTF() to Stats(s.readInt(), s.readLong().takeIf { it>=0 }, s.readLong().takeIf { it>=0 })
+         }
+   }
+}
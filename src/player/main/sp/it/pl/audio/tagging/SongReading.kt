@@ -1,10 +1,23 @@
 package sp.it.pl.audio.tagging
 
 import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.io.IOException
+import java.net.URI
+import java.nio.file.FileVisitResult
+import java.nio.file.FileVisitResult.CONTINUE
+import java.nio.file.FileVisitResult.TERMINATE
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.attribute.BasicFileAttributes
 import javafx.concurrent.Task
 import javafx.event.EventHandler
 import javafx.scene.media.Media
 import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.FileFingerprint
+import sp.it.pl.audio.FileFingerprintsDB
+import sp.it.pl.audio.SimpleSong
 import sp.it.pl.audio.Song
 import sp.it.pl.audio.playlist.PlaylistSong
 import sp.it.pl.main.APP
@@ -12,6 +25,7 @@ import sp.it.pl.main.isAudio
 import sp.it.pl.main.isVideo
 import sp.it.util.collections.materialize
 import sp.it.util.dev.failIfFxThread
+import sp.it.util.file.isAnyChildOf
 import sp.it.util.functional.getOrSupply
 import sp.it.util.functional.net
 import sp.it.util.functional.orNull
@@ -35,7 +49,7 @@ fun Song.read(): Metadata {
       isFileBased() -> {
          val f = getFile()!!
          when {
-            f.isAudio() -> f.readAudioFile().orNull()?.net { Metadata(it) } ?: Metadata.EMPTY
+            f.isAudio() -> f.readAudioFile().orNull()?.net(::Metadata) ?: Metadata.EMPTY
             f.isVideo() -> toMeta()
             else -> Metadata.EMPTY
          }
@@ -55,6 +69,7 @@ fun Song.read(): Metadata {
 // TODO: handle error properly, return custom Result object
 /**
  * Creates task that reads metadata for specified songs, returning all successfully read metadata.
+ * Songs are read in parallel, see [SongScanner].
  *
  * @param songs list of songs to read metadata for
  * @return the task reading metadata returning all successfully read metadata
@@ -68,41 +83,25 @@ fun Song.Companion.readTask(songs: Collection<Song>) = object: Task<List<Metadat
    }
 
    override fun call(): List<Metadata> {
-      val all = songs.size
-      var completed = 0
-      var failed = 0
-      val metadatas = ArrayList<Metadata>()
-
-      for (song in songs) {
-         if (isCancelled) return metadatas
-
-         completed++
-
-         val m = song.read()
-         if (m.isEmpty()) failed++ // on fail
-         else metadatas.add(m)    // on success
-
-         updateMessage(all, completed, failed)
-         updateProgress(completed.toLong(), all.toLong())
-      }
-
-      if (!isCancelled) {
-         updateMessage(all, completed, failed)
-         updateProgress(completed.toLong(), all.toLong())
+      val result = SongScanner().scan(songs, { isCancelled }, {}) {
+         updateMessage(it)
+         updateProgress(it.done.toLong(), it.all.toLong())
       }
-
-      return metadatas
+      return result.read
    }
 
-   private fun updateMessage(all: Int, done: Int, failed: Int) {
+   private fun updateMessage(stats: SongScanStats) {
       sb.setLength(0)
       sb += "Read: "
-      sb += done
+      sb += stats.done
       sb += "/"
-      sb += all
+      sb += stats.all
       sb += " "
       sb += " Failed: "
-      sb += failed
+      sb += stats.failed
+      sb += " ("
+      sb += stats.toString()
+      sb += ")"
       updateMessage(sb.toString())
    }
 }
@@ -110,8 +109,9 @@ fun Song.Companion.readTask(songs: Collection<Song>) = object: Task<List<Metadat
 // TODO: handle error properly, failed songs should still be added as Song.toMeta() instead of ignored
 /**
  * Creates a task that:
- *  *  Reads metadata from files of the songs.
- *  *  Adds songs to library. If library already contains the song, it will not be added.
+ *  *  Reads metadata from files of the songs, in parallel, see [SongScanner].
+ *  *  Adds songs to library in batches. If library already contains the song, it will not be added.
+ *     The time of adding the song to library is stored in library only, the file is not modified.
  *  *  Returns detailed information about the end result
  *
  * @return the task
@@ -127,43 +127,33 @@ fun Song.Companion.addToLibTask(songs: Collection<Song>) = object: Task<AddSongs
 
    override fun call(): AddSongsToLibResult {
       val all = ArrayList(songs)
-      val processed = ArrayList<Song>(all.size)
-      val converted = ArrayList<Metadata>(all.size)
-      val skipped = ArrayList<Song>(0)
-
-      for (song in songs) {
-         if (isCancelled) break
-
-         var m = APP.db.getSong(song)
-         if (m==null) {
-            song.writeNoRefresh { it.setLibraryAddedNowIfEmpty() }
-            m = song.read()
-
-            if (m.isEmpty()) skipped += song
-            else converted += m
-
-         } else {
-            skipped += song
+      val (inDb, notInDb) = all.partition { APP.db.exists(it) }
+      val skippedInDb = inDb.size
+
+      val result = SongScanner().scan(
+         notInDb,
+         { isCancelled },
+         { batch -> APP.db.addSongs(batch.map { it.initLibraryAddedNowIfEmpty() }) },
+         { stats ->
+            updateMessage(all.size, skippedInDb + stats.done, skippedInDb + stats.failed, stats)
+            updateProgress(skippedInDb + stats.done.toLong(), all.size.toLong())
          }
-
-         processed += song
-
-         updateMessage(all.size, processed.size, skipped.size)
-         updateProgress(processed.size.toLong(), all.size.toLong())
-      }
-
-      if (!isCancelled) {
-         APP.db.addSongs(converted)
-
-         updateMessage(all.size, processed.size, skipped.size)
-         updateProgress(processed.size.toLong(), all.size.toLong())
+      )
+
+      val converted = result.read
+      val skipped = inDb + result.failed
+      val processed = inDb + result.read + result.failed
+      if (result.stats.done>0) {
+         // shown in the task message, so the user can find the files slowing the library down
+         val slowest = result.stats.slowestToS()
+         logger.info { "Slowest songs to add to library:\n$slowest" }
+         updateMessage(all.size, skippedInDb + result.stats.done, skippedInDb + result.stats.failed, result.stats, slowest)
       }
 
       return AddSongsToLibResult(all, processed, converted, skipped)
    }
 
-
-   private fun updateMessage(all: Int, done: Int, skipped: Int) {
+   private fun updateMessage(all: Int, done: Int, skipped: Int, stats: SongScanStats, slowest: String? = null) {
       sb.setLength(0)
       sb += "Added: "
       sb += done
@@ -171,6 +161,13 @@ fun Song.Companion.addToLibTask(songs: Collection<Song>) = object: Task<AddSongs
       sb += all
       sb += " Skipped: "
       sb += skipped
+      sb += " ("
+      sb += stats.toString()
+      sb += ")"
+      if (slowest!=null) {
+         sb += "\nSlowest:\n"
+         sb += slowest
+      }
       updateMessage(sb.toString())
    }
 }
@@ -182,6 +179,159 @@ class AddSongsToLibResult(
    val skipped: List<Song>
 )
 
+/**
+ * Creates a task that updates library from the specified directories incrementally:
+ *  *  Walks the directories once, collecting [FileFingerprint] of every audio file.
+ *  *  Reads metadata only of files that are new or changed since the last update, see
+ *     [sp.it.pl.plugin.impl.SongDb.getFingerprints].
+ *  *  Removes from library songs within the directories, that no longer exist. Songs outside the directories are
+ *     checked individually, unless [isSubset].
+ *  *  Detects moved files, which keep the time they were added to library.
+ *
+ * @param isSubset whether the directories are only part of the library (e.g. subtrees to reconcile after lost file
+ * monitoring events), in which case songs and fingerprints outside the directories are left untouched
+ * @return the task
+ */
+fun Song.Companion.updateLibFromDirsTask(dirs: Collection<File>, isSubset: Boolean = false) = object: Task<UpdateLibFromDirsResult>() {
+   private val sb = StringBuilder(40)
+
+   init {
+      updateTitle("Updating library from locations")
+      updateMessage("Progress: -")
+      updateProgress(-1, 1)
+   }
+
+   override fun call(): UpdateLibFromDirsResult {
+      val fingerprintsOld = APP.db.getFingerprints()
+      val songs = APP.db.songsById
+      val files = HashMap<String, Path>()
+      val fingerprints = HashMap<String, FileFingerprint>()
+      val (dirsAvailable, dirsUnavailable) = dirs.partition { it.isDirectory }
+
+      // walk
+      dirsAvailable.forEach { dir ->
+         Files.walkFileTree(dir.toPath(), object: SimpleFileVisitor<Path>() {
+            override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+               if (isCancelled) return TERMINATE
+               if (attrs.isRegularFile && file.isAudio()) {
+                  val id = file.toFileUriNoIo().toString()
+                  files[id] = file
+                  fingerprints[id] = FileFingerprint(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey()?.toString())
+                  if (files.size%1000==0) updateMessage("Scanned: ${files.size}")
+               }
+               return CONTINUE
+            }
+            override fun visitFileFailed(file: Path, e: IOException): FileVisitResult {
+               logger.warn(e) { "Failed to scan file=$file" }
+               return CONTINUE
+            }
+         })
+      }
+      if (isCancelled) return UpdateLibFromDirsResult(listOf(), listOf(), listOf(), listOf(), 0)
+
+      // diff
+      val changed = ArrayList<Path>()
+      val added = ArrayList<Path>()
+      fingerprints.forEach { (id, fingerprint) ->
+         val m = songs[id]
+         val fingerprintOld = fingerprintsOld[id]
+         when {
+            m==null -> added += files[id]!!
+            // without previous fingerprint, the song is assumed unchanged if the size matches, this avoids re-reading whole library when fingerprints are not yet available
+            fingerprintOld==null && m.getFileSizeInB()==fingerprint.size -> Unit
+            fingerprintOld!=fingerprint -> changed += files[id]!!
+         }
+      }
+      // songs in unavailable directories (e.g. unmounted) are kept
+      val removed = songs.filter { m ->
+         m.id !in fingerprints && m.isFileBased() && m.getFile()!!.net { f ->
+            dirsUnavailable.none { f isAnyChildOf it } && (dirsAvailable.any { f isAnyChildOf it } || (!isSubset && !f.exists()))
+         }
+      }
+      val removedByMoveKey = removed.mapNotNull { m -> fingerprintsOld[m.id]?.net { it.moveKey(m.id) to m } }.toMap()
+      val moved = added.mapNotNull { f ->
+         val id = f.toFileUriNoIo().toString()
+         removedByMoveKey[fingerprints[id]!!.moveKey(id)]?.net { id to it }
+      }.toMap()
+
+      // update
+      val result = SongScanner().scan(
+         (added + changed).map { SimpleSong(it.toFile()) },
+         { isCancelled },
+         { batch -> APP.db.addSongs(batch.map { it.initLibraryAddedIfEmpty(moved[it.id] ?: songs[it.id]).initLibraryAddedNowIfEmpty() }) },
+         { stats ->
+            updateMessage(stats, added.size, changed.size, removed.size)
+            updateProgress(stats.done.toLong(), stats.all.toLong())
+         }
+      )
+      // removed only after the scan, so songs moved to files that were not read (e.g. scan was cancelled) are kept
+      // along with their library added time and play stats and are detected as moved next time
+      val read = result.read.mapTo(HashSet()) { it.id }
+      val movedNotRead = moved.filterKeys { it !in read }.values.mapTo(HashSet()) { it.id }
+      val removedNow = removed.filter { it.id !in movedNotRead }
+      APP.db.removeSongs(removedNow)
+
+      // fingerprints of files that were to be read, but were not, are kept old, so they are read next time
+      val toRead = (added + changed).mapTo(HashSet()) { it.toFileUriNoIo().toString() }
+      val removedIds = removedNow.mapTo(HashSet()) { it.id }
+      val fingerprintsKept =
+         if (isSubset) fingerprintsOld.filterKeys { it !in removedIds && it !in fingerprints }
+         else fingerprintsOld.filterKeys { it in movedNotRead }
+      val fingerprintsNew = fingerprints.mapNotNull { (id, f) ->
+         when {
+            id !in toRead || id in read -> id to f
+            else -> fingerprintsOld[id]?.net { id to it }
+         }
+      }
+      APP.db.setFingerprints(FileFingerprintsDB(fingerprintsKept + fingerprintsNew))
+
+      return UpdateLibFromDirsResult(
+         result.read.filter { !songs.containsKey(it.id) },
+         result.read.filter { songs.containsKey(it.id) },
+         removedNow,
+         moved.keys.toList(),
+         fingerprints.size - added.size - changed.size
+      )
+   }
+
+   private fun updateMessage(stats: SongScanStats, added: Int, changed: Int, removed: Int) {
+      sb.setLength(0)
+      sb += "New: "
+      sb += added
+      sb += " Changed: "
+      sb += changed
+      sb += " Removed: "
+      sb += removed
+      sb += " Read: "
+      sb += stats.done
+      sb += "/"
+      sb += stats.all
+      sb += " ("
+      sb += stats.toString()
+      sb += ")"
+      updateMessage(sb.toString())
+   }
+
+   /** @return key that identifies the file across moves, ideally by [FileFingerprint.fileKey] */
+   private fun FileFingerprint.moveKey(id: String) = fileKey ?: "$size:$modifiedMs:${id.substringAfterLast('/')}"
+
+   /** @return same as [File.toURI] without [File.isDirectory] check, which would access the file system */
+   private fun Path.toFileUriNoIo(): URI {
+      var p = toAbsolutePath().toString().replace(File.separatorChar, '/')
+      if (!p.startsWith("/")) p = "/$p"
+      if (p.startsWith("//")) p = "//$p"
+      return URI("file", null, p, null)
+   }
+}
+
+class UpdateLibFromDirsResult(
+   val added: List<Metadata>,
+   val updated: List<Metadata>,
+   val removed: List<Metadata>,
+   val moved: List<String>,
+   val unchanged: Int
+)
+
 // TODO: return proper Result object
 /** @return a task that removes from library all songs, which refer to non-existent files */
 fun Song.Companion.removeMissingFromLibTask() = object: Task<Unit>() {
@@ -0,0 +1,163 @@
+package sp.it.pl.audio.tagging
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.util.PriorityQueue
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.Song
+import sp.it.pl.main.APP
+import sp.it.pl.plugin.impl.LibraryPlugin
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.functional.getOr
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.units.formatToSmallestUnit
+import sp.it.util.units.millis
+
+private val logger = KotlinLogging.logger { }
+
+/**
+ * Reads metadata of songs in parallel, using a bounded pool of virtual threads.
+ *
+ * Reading is mostly waiting for i/o (particularly on network storage), so multiple reads at once hide the latency.
+ * The number of concurrent reads is limited to [parallelism] to avoid thrashing spinning disks.
+ *
+ * @param parallelism maximal number of songs read at once
+ * @param batchSize number of read songs passed to the batch handler at once
+ */
+class SongScanner(val parallelism: Int = parallelismCurrent, val batchSize: Int = 500) {
+
+   /**
+    * Reads metadata of the specified songs. Returns once all songs are read or [isCancelled] returns true.
+    *
+    * @param isCancelled polled periodically, when true, no more songs are read and all read songs so far are returned
+    * @param onBatch invoked (on the calling thread) with successfully read metadata, in batches of [batchSize]
+    * @param onProgress invoked (on the calling thread) with up-to-date statistics, at most every 100ms and once at the end
+    * @return all successfully read metadata along with statistics
+    */
+   @Blocking
+   fun scan(songs: Collection<Song>, isCancelled: () -> Boolean, onBatch: (List<Metadata>) -> Unit, onProgress: (SongScanStats) -> Unit): SongScanResult {
+      failIfFxThread()
+
+      val stats = SongScanStats(songs.size)
+      val read = ArrayList<Metadata>(songs.size)
+      val failed = ArrayList<Song>(0)
+      val batch = ArrayList<Metadata>(batchSize)
+      val executor = Executors.newFixedThreadPool(1 max parallelism, Thread.ofVirtual().name("song-scan-", 0).factory())
+      try {
+         val completion = ExecutorCompletionService<Scanned>(executor)
+         songs.forEach { song ->
+            completion.submit {
+               val timeStart = System.nanoTime()
+               val m = runTry { song.read() }.ifError { logger.warn(it) { "Failed to read song=${song.uri}" } }.getOr(Metadata.EMPTY)
+               Scanned(song, m, System.nanoTime() - timeStart)
+            }
+         }
+
+         var progressReportedAt = 0L
+         var remaining = songs.size
+         while (remaining>0) {
+            if (isCancelled()) break
+            val s = completion.poll(100, MILLISECONDS)?.get()
+            if (s!=null) {
+               remaining--
+               stats.add(s)
+               if (s.metadata.isEmpty()) {
+                  failed += s.song
+               } else {
+                  read += s.metadata
+                  batch += s.metadata
+                  if (batch.size>=batchSize) {
+                     onBatch(batch.toList())
+                     batch.clear()
+                  }
+               }
+            }
+            if (System.nanoTime() - progressReportedAt>100_000_000L) {
+               progressReportedAt = System.nanoTime()
+               onProgress(stats)
+            }
+         }
+      } finally {
+         executor.shutdownNow()
+      }
+
+      if (batch.isNotEmpty()) onBatch(batch.toList())
+      onProgress(stats)
+      logger.info { "Read ${stats.done}/${stats.all} songs: $stats" }
+      return SongScanResult(read, failed, stats)
+   }
+
+   /** Result of reading single song */
+   class Scanned(val song: Song, val metadata: Metadata, val nanos: Long)
+
+   companion object {
+      /** Default parallelism, tuned for local storage */
+      val parallelismDefault = 4 max Runtime.getRuntime().availableProcessors()
+
+      /** Parallelism as configured in [LibraryPlugin] or [parallelismDefault] */
+      val parallelismCurrent: Int
+         get() = APP.plugins.get<LibraryPlugin>()?.readParallelism?.value ?: parallelismDefault
+   }
+}
+
+/** Result of [SongScanner.scan] */
+class SongScanResult(
+   /** Successfully read songs */
+   val read: List<Metadata>,
+   /** Songs that could not be read */
+   val failed: List<Song>,
+   /** Statistics of the run */
+   val stats: SongScanStats
+)
+
+/** Throughput statistics of [SongScanner.scan]. Not thread-safe. */
+class SongScanStats(val all: Int) {
+   private val timeStart = System.nanoTime()
+   private val slowestImpl = PriorityQueue<SongScanner.Scanned>(SLOWEST_COUNT + 1, compareBy { it.nanos })
+
+   /** Number of processed songs */
+   var done = 0
+      private set
+   /** Number of songs that failed to read */
+   var failed = 0
+      private set
+   /** Number of bytes of successfully read songs */
+   var bytes = 0L
+      private set
+
+   /** Time since start in seconds */
+   val seconds: Double
+      get() = (System.nanoTime() - timeStart)/1e9
+
+   /** Throughput in files per second */
+   val filesPerSecond: Double
+      get() = done/(seconds max 0.001)
+
+   /** Throughput in megabytes per second */
+   val mbPerSecond: Double
+      get() = bytes/1024.0/1024.0/(seconds max 0.001)
+
+   /** Slowest read songs so far, slowest first */
+   val slowest: List<SongScanner.Scanned>
+      get() = slowestImpl.sortedByDescending { it.nanos }
+
+   fun add(s: SongScanner.Scanned) {
+      done++
+      if (s.metadata.isEmpty()) failed++
+      else bytes += 0L max s.metadata.getFileSizeInB()
+      slowestImpl += s
+      if (slowestImpl.size>SLOWEST_COUNT) slowestImpl.poll()
+   }
+
+   /** @return human-readable list of the slowest read songs */
+   fun slowestToS(): String = slowest.joinToString("\n") { "${(it.nanos/1e6).millis.formatToSmallestUnit()} ${it.song.uri}" }
+
+   override fun toString() = "%.1f files/s, %.2f MB/s".format(filesPerSecond, mbPerSecond)
+
+   companion object {
+      const val SLOWEST_COUNT = 5
+   }
+}
@@ -0,0 +1,112 @@
+package sp.it.pl.audio.tagging
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.Song
+import sp.it.pl.main.isAudio
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.functional.getOr
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.math.min
+
+private val logger = KotlinLogging.logger { }
+
+/**
+ * Writes tags of songs in parallel, using a bounded pool of virtual threads, each with its own [MetadataWriter].
+ *
+ * Like reading (see [SongScanner]), writing is mostly waiting for i/o, so multiple writes at once hide the latency.
+ * Every file is committed separately, so a failure affects only the respective song. Metadata of the written songs is
+ * created from the written tag, without reading the files again.
+ *
+ * @param parallelism maximal number of songs written at once
+ */
+class SongTagWriter(val parallelism: Int = SongScanner.parallelismCurrent) {
+
+   /**
+    * Writes tags of the specified songs. Songs that are not audio files are ignored. Returns once all songs are
+    * written or [isCancelled] returns true, in which case songs being written are still written.
+    *
+    * @param setter song tag editor, invoked concurrently for different songs
+    * @param isCancelled polled periodically, when true, no more songs are written
+    * @param onProgress invoked (on the calling thread) with up-to-date statistics, at most every 100ms and once at the end
+    * @return metadata of written songs along with statistics
+    */
+   @Blocking
+   fun write(songs: Collection<Song>, setter: (Song, MetadataWriter) -> Unit, isCancelled: () -> Boolean, onProgress: (SongScanStats) -> Unit): SongWriteResult {
+      failIfFxThread()
+
+      val songsWritable = songs.filter { it.isFileBased() && it.getFile()!!.isAudio() }
+      val stats = SongScanStats(songsWritable.size)
+      val written = ArrayList<Metadata>(songsWritable.size)
+      val failed = ArrayList<Song>(0)
+      val queue = ConcurrentLinkedQueue(songsWritable)
+      val results = LinkedBlockingQueue<SongScanner.Scanned>()
+      val workers = 1 max parallelism min songsWritable.size
+      val executor = Executors.newFixedThreadPool(1 max workers, Thread.ofVirtual().name("song-write-", 0).factory())
+      try {
+         repeat(workers) {
+            executor.execute {
+               val w = MetadataWriter()
+               var song = queue.poll()
+               while (song!=null) {
+                  results += write(w, song, setter)
+                  song = queue.poll()
+               }
+            }
+         }
+         executor.shutdown()
+
+         var progressReportedAt = 0L
+         while (!executor.isTerminated || results.isNotEmpty()) {
+            // cancelling must not interrupt writing, as that could leave the file corrupted
+            if (isCancelled()) queue.clear()
+            val s = results.poll(100, MILLISECONDS)
+            if (s!=null) {
+               stats.add(s)
+               if (s.metadata.isEmpty()) failed += s.song
+               else written += s.metadata
+            }
+            if (System.nanoTime() - progressReportedAt>100_000_000L) {
+               progressReportedAt = System.nanoTime()
+               onProgress(stats)
+            }
+         }
+      } finally {
+         queue.clear()
+         executor.shutdown()
+      }
+
+      onProgress(stats)
+      logger.info { "Written ${stats.done}/${stats.all} songs: $stats" }
+      return SongWriteResult(written, failed, stats)
+   }
+
+   private fun write(w: MetadataWriter, song: Song, setter: (Song, MetadataWriter) -> Unit): SongScanner.Scanned {
+      val timeStart = System.nanoTime()
+      val m = runTry {
+         w.reset(song)
+         setter(song, w)
+         w.write().orThrow
+         w.writtenAudioFile?.let(::Metadata) ?: song.read()
+      }.ifError {
+         logger.warn(it) { "Failed to write song=${song.uri}" }
+      }.getOr(Metadata.EMPTY)
+      w.reset()
+      return SongScanner.Scanned(song, m, System.nanoTime() - timeStart)
+   }
+}
+
+/** Result of [SongTagWriter.write] */
+class SongWriteResult(
+   /** Metadata of successfully written songs */
+   val written: List<Metadata>,
+   /** Songs that could not be written */
+   val failed: List<Song>,
+   /** Statistics of the run */
+   val stats: SongScanStats
+)
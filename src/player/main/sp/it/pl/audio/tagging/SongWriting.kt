@@ -1,15 +1,19 @@
 package sp.it.pl.audio.tagging
 
+import javafx.concurrent.Task
 import org.jetbrains.annotations.Blocking
 import sp.it.pl.audio.Song
 import sp.it.pl.main.APP
+import sp.it.pl.main.AppProgress
 import sp.it.pl.main.isAudio
 import sp.it.pl.plugin.impl.Notifier
 import sp.it.util.async.runFX
 import sp.it.util.async.runIO
+import sp.it.util.async.runVT
 import sp.it.util.dev.ThreadSafe
 import sp.it.util.dev.failIfFxThread
 import sp.it.util.functional.Try
+import sp.it.util.functional.orNull
 
 // TODO: use Fut
 
@@ -20,20 +24,27 @@ import sp.it.util.functional.Try
 fun Song.write(setter: (MetadataWriter) -> Unit) = listOf(this).write(setter, {})
 
 /**
- * @param setter song tag editor
- * @param action executes after writing with the result on fx thread
+ * Writes the songs in parallel (see [SongTagWriter]), reporting the progress in [AppProgress], and refreshes all written
+ * songs at once, including songs written before the writing was cancelled.
+ *
+ * @param setter song tag editor, invoked concurrently for different songs
+ * @param action executes after writing with the written songs on fx thread
  */
 @ThreadSafe
 fun Collection<Song>.write(setter: (MetadataWriter) -> Unit, action: (List<Metadata>) -> Unit) {
    if (APP.audio.readOnly) return
 
-   runIO {
-      writeNoRefresh(setter)
-      val songs = asSequence().map { it.read() }.filter { !it.isEmpty() }.toList()
-      APP.audio.refreshSongsWith(songs)
-      songs
-   } ui {
-      action(it)
+   val songs = toList()
+   runFX {
+      val task = Song.writeTask(songs) { _, w -> setter(w) }
+      AppProgress.start(task)
+      runVT {
+         task.run()
+         task.written
+      } ui { songsWritten ->
+         APP.audio.refreshSongsWith(songsWritten)
+         action(songsWritten)
+      }
    }
 }
 
@@ -52,7 +63,7 @@ fun Song.write(setter: (MetadataWriter) -> Unit, action: (Try<Boolean, Exception
          setter(w)
          val success = w.write()
 
-         val m = read()
+         val m = success.orNull()?.let { w.writtenAudioFile }?.let(::Metadata) ?: read()
          if (!m.isEmpty()) APP.audio.refreshItemWith(m)
          success
       } ui {
@@ -70,20 +81,50 @@ fun Song.write(setter: (MetadataWriter) -> Unit, action: (Try<Boolean, Exception
 fun Song.writeNoRefresh(setter: (MetadataWriter) -> Unit) = listOf(this).writeNoRefresh(setter)
 
 /**
- * @param setter song tag editor
+ * Writes the songs in parallel, see [SongTagWriter].
+ *
+ * @param setter song tag editor, invoked concurrently for different songs
+ * @return metadata of the written songs
  */
 @Blocking
-fun Collection<Song>.writeNoRefresh(setter: (MetadataWriter) -> Unit) {
+fun Collection<Song>.writeNoRefresh(setter: (MetadataWriter) -> Unit): List<Metadata> {
    failIfFxThread()
-   if (APP.audio.readOnly) return
+   if (APP.audio.readOnly) return listOf()
 
-   val w = MetadataWriter()
-   forEach {
-      if (it.isFileBased() && it.getFile()!!.isAudio()) {
-         w.reset(it)
-         setter(w)
-         w.write()
+   return SongTagWriter().write(this, { _, w -> setter(w) }, { false }, {}).written
+}
+
+/**
+ * Creates task that writes tags of the specified songs, returning metadata of the successfully written songs.
+ * Songs are written in parallel, see [SongTagWriter].
+ *
+ * @param songs songs to write
+ * @param setter song tag editor, invoked concurrently for different songs
+ * @return the task writing the songs and returning metadata of the successfully written songs
+ */
+fun Song.Companion.writeTask(songs: Collection<Song>, setter: (Song, MetadataWriter) -> Unit) = SongWriteTask(songs, setter)
+
+/** Task writing tags of songs, see [Song.Companion.writeTask]. */
+class SongWriteTask(private val songs: Collection<Song>, private val setter: (Song, MetadataWriter) -> Unit): Task<List<Metadata>>() {
+
+   /**
+    * Metadata of the successfully written songs, set when the writing ends, even if the task was cancelled (in which
+    * case [getValue] is null), as songs written before the cancellation remain written.
+    */
+   @Volatile var written: List<Metadata> = listOf()
+      private set
+
+   init {
+      updateTitle("Writing tags")
+   }
+
+   override fun call(): List<Metadata> {
+      val result = SongTagWriter().write(songs, setter, { isCancelled }) {
+         updateMessage("Written: ${it.done}/${it.all} Failed: ${it.failed} ($it)")
+         updateProgress(it.done.toLong(), it.all.toLong())
       }
+      written = result.written
+      return result.written
    }
 }
 
@@ -19,6 +19,8 @@ import org.apache.fury.logging.LoggerFactory
 import org.apache.fury.resolver.ClassChecker
 import org.apache.fury.serializer.kotlin.KotlinSerializers
 import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.FileFingerprint
+import sp.it.pl.audio.FileFingerprintsDB
 import sp.it.pl.audio.MetadatasDB
 import sp.it.pl.audio.PlaybackStateDB
 import sp.it.pl.audio.PlayerStateDB
@@ -43,6 +45,7 @@ val logger = KotlinLogging.logger { }
 object CoreSerializer: Core {
 
    private val serializer = SerializerFury()
+   private val serializerBytes = SerializerFuryBytes()
    private val serializerActor = ActorSe<CoreSerializer.() -> Unit>("Serializator") { this.it() }
 
    private val fury by lazy {
@@ -78,6 +81,8 @@ object CoreSerializer: Core {
             register(PlaylistDB::class.java)
             register(PlaylistItemDB::class.java)
             register(MetadatasDB::class.java)
+            register(FileFingerprintsDB::class.java)
+            register(FileFingerprint::class.java)
             register(Metadata::class.java)
          }
    }
@@ -87,6 +92,11 @@ object CoreSerializer: Core {
       fun write(f: File, o: Any?): Unit = f.outputStream().use { fury.serialize(it, o) }
    }
 
+   class SerializerFuryBytes {
+      fun read(bytes: ByteArray): Any? = fury.deserialize(bytes)
+      fun write(o: Any?): ByteArray = fury.serialize(o)
+   }
+
    class SerializerJava {
       fun read(f: File): Any? = ObjectInputStream(f.inputStream().buffered()).use { it.readObject() }
       fun write(f: File, o: Any?) = ObjectOutputStream(f.outputStream().buffered()).use { it.writeObject(o) }
@@ -153,4 +163,18 @@ object CoreSerializer: Core {
       }
    }
 
+   /**
+    * Serializes the specified object to bytes, using the same serializer as [writeSingleStorage].
+    * Useful for storages that persist many small objects, e.g. journals.
+    * Should be called within [useAtomically] like any other storage operation.
+    */
+   @Blocking
+   fun <T: Serializable> writeBytes(o: T): Try<ByteArray, Throwable> =
+      runTry { serializerBytes.write(o) }
+
+   /** Deserializes object written using [writeBytes]. */
+   @Blocking
+   fun <T: Serializable> readBytes(bytes: ByteArray, c: KClass<T>): Try<T, Throwable> =
+      runTry { c.cast(serializerBytes.read(bytes)) }
+
 }
\ No newline at end of file
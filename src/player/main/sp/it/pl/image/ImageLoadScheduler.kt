@@ -0,0 +1,243 @@
+package sp.it.pl.image
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import sp.it.util.async.SemaphoreLock
+import sp.it.util.async.future.Fut
+import sp.it.util.async.invoke
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.ui.image.Interrupts
+
+/**
+ * Executor of image loading tasks, which limits how many of them run at once and starts the most urgent ones first.
+ *
+ * At most [parallelism] tasks run at once and at most [parallelismPerDevice] of them load file from the same storage
+ * device, so a slow device does not occupy all the slots.
+ * Queued task with the lowest [Priority] starts first, tasks of the same priority start from the most recently
+ * submitted, so content the user navigated to last loads first. Priority is evaluated each time a task is to be
+ * started, so it can reflect what is currently visible, see [sp.it.pl.ui.objects.grid.GridCell.computeLoadPriority].
+ * No task starts while [throttle] is locked.
+ *
+ * Cancelled task, that has not started yet, runs immediately without waiting for a slot and [Interrupts.isInterrupted],
+ * so it completes fast and its result is still delivered. Cancelled running task is [Interrupts.interrupt]ed.
+ *
+ * Thread-safe.
+ */
+class ImageLoadScheduler(
+   private val executor: Executor,
+   val parallelism: Int,
+   val parallelismPerDevice: Int,
+   private val throttle: SemaphoreLock = SemaphoreLock()
+): Executor {
+   private val lock = ReentrantLock()
+   private val changed = lock.newCondition()
+   private var isChanged = false
+   private val incoming = ArrayList<Task<*>>()
+   private val queued = ArrayList<Task<*>>()
+   private var running = 0
+   private val runningPerDevice = HashMap<Any, Int>()
+   private var submitted = 0L
+   private var completed = 0L
+   private var cancelled = 0L
+   private val waitLatencies = Latencies()
+   private val loadLatencies = Latencies()
+   private val devices = ConcurrentHashMap<File, Any>()
+
+   init {
+      Thread.ofVirtual().name("ImageLoadScheduler").start(::dispatch)
+   }
+
+   /** Submits the block with no file and [Priority.DEFAULT] priority, see [submit] */
+   override fun execute(command: Runnable) {
+      submit(null, Priority.DEFAULT) { command.run() }
+   }
+
+   /**
+    * @param file file the block loads image from or null if unknown, used to limit parallelism per storage device
+    * @param priority priority of the task
+    * @param block loading block
+    * @return task, which can be [Task.cancel]ed and provides [Task.result]
+    */
+   @ThreadSafe
+   fun <T> submit(file: File?, priority: Priority, block: () -> T): Task<T> {
+      val task = Task(file, priority, block)
+      lock.withLock {
+         task.seq = submitted++
+         incoming += task
+         signal()
+      }
+      return task
+   }
+
+   /** @return current queue depth, counts and percentiles of recent latencies */
+   @ThreadSafe
+   fun stats(): Stats = lock.withLock {
+      Stats(incoming.size + queued.size, running, completed, cancelled, waitLatencies.percentiles(), loadLatencies.percentiles())
+   }
+
+   private fun signal() {
+      isChanged = true
+      changed.signal()
+   }
+
+   private fun dispatch() {
+      while (true) {
+         val added = lock.withLock {
+            while (!isChanged) changed.await()
+            isChanged = false
+            incoming.toList().also { incoming.clear() }
+         }
+         // resolving device may block, so it is done outside the lock (cancelled task may no longer be QUEUED)
+         added.forEach { it.device = it.file?.let(::deviceOf) }
+         throttle.acquireAndRelease()
+         val started = lock.withLock {
+            added.filterTo(queued) { it.state==State.QUEUED }
+            generateSequence { if (running<parallelism) next()?.also(::acquireSlot) else null }.toList()
+         }
+         started.forEach { t -> executor { t.run(true) } }
+      }
+   }
+
+   private fun next(): Task<*>? {
+      var best: Task<*>? = null
+      var bestPriority = 0
+      for (t in queued) {
+         if (t.device!=null && (runningPerDevice[t.device] ?: 0)>=parallelismPerDevice) continue
+         val p = t.priority.priority()
+         if (best==null || p<bestPriority || (p==bestPriority && t.seq>best.seq)) {
+            best = t
+            bestPriority = p
+         }
+      }
+      if (best!=null) queued.remove(best)
+      return best
+   }
+
+   private fun acquireSlot(t: Task<*>) {
+      t.state = State.RUNNING
+      running++
+      t.device?.let { runningPerDevice.merge(it, 1, Int::plus) }
+   }
+
+   private fun releaseSlot(t: Task<*>) {
+      running--
+      t.device?.let { d -> runningPerDevice.compute(d) { _, n -> n?.minus(1)?.takeIf { it>0 } } }
+      signal()
+   }
+
+   private fun deviceOf(file: File): Any =
+      devices.computeIfAbsent(file.parentFile ?: file) { dir ->
+         runTry { Files.getFileStore(dir.toPath()) }.orNull() ?: dir.toPath().root ?: dir
+      }
+
+   /** Image loading task. See [submit]. */
+   inner class Task<T> internal constructor(val file: File?, val priority: Priority, private val block: () -> T) {
+      private val submittedAt = System.nanoTime()
+      private val f = CompletableFuture<T>()
+      internal var seq = 0L
+      @Volatile internal var device: Any? = null
+      internal var state = State.QUEUED
+      private var thread: Thread? = null
+      private var isCancelled = false
+
+      /** Result of the [block], completes even if this task is cancelled */
+      val result: Fut<T> = Fut(f)
+
+      /** Cancels this task, see [ImageLoadScheduler]. Has no effect if this task is already done or cancelled. */
+      @ThreadSafe
+      fun cancel() {
+         val runNow = lock.withLock {
+            if (isCancelled || state==State.DONE) return
+            isCancelled = true
+            cancelled++
+            when (state) {
+               State.QUEUED -> {
+                  incoming.remove(this)
+                  queued.remove(this)
+                  state = State.RUNNING
+                  true
+               }
+               else -> {
+                  thread?.let(Interrupts::interrupt)
+                  false
+               }
+            }
+         }
+         if (runNow) executor { run(false) }
+      }
+
+      internal fun run(hasSlot: Boolean) {
+         val startedAt = System.nanoTime()
+         lock.withLock {
+            thread = Thread.currentThread()
+            if (isCancelled) Interrupts.interrupt()
+         }
+         val r = runTry { block() }.ifError { logger.error(it) { "Unhandled exception" } }
+         lock.withLock {
+            state = State.DONE
+            thread = null
+            Interrupts.dispose()
+            if (hasSlot) releaseSlot(this)
+            if (!isCancelled) {
+               completed++
+               waitLatencies += startedAt - submittedAt
+               loadLatencies += System.nanoTime() - startedAt
+            }
+         }
+         r.ifOk { f.complete(it) }.ifError { f.completeExceptionally(it) }
+      }
+   }
+
+   internal enum class State { QUEUED, RUNNING, DONE }
+
+   /** Priority of a task, lower value is more urgent. Evaluated when tasks are being started, so must be fast, non-blocking and thread-safe. */
+   fun interface Priority {
+      fun priority(): Int
+
+      companion object {
+         /** Priority of tasks of visible content or with no notion of visibility */
+         @JvmField val DEFAULT = Priority { 0 }
+      }
+   }
+
+   /**
+    * @property queued number of tasks waiting to start
+    * @property running number of tasks running
+    * @property completed number of tasks completed, excluding cancelled
+    * @property cancelled number of cancelled tasks
+    * @property waitLatency latency from submitting to start of recently completed tasks
+    * @property loadLatency latency from start to completion of recently completed tasks
+    */
+   data class Stats(val queued: Int, val running: Int, val completed: Long, val cancelled: Long, val waitLatency: Latency, val loadLatency: Latency)
+
+   /** Latency percentiles in milliseconds */
+   data class Latency(val p50: Double, val p95: Double, val p99: Double)
+
+   /** Ring buffer of the last recorded latencies in nanoseconds */
+   private class Latencies(size: Int = 1024) {
+      private val values = LongArray(size)
+      private var count = 0L
+
+      operator fun plusAssign(nanos: Long) {
+         values[(count++%values.size).toInt()] = nanos
+      }
+
+      fun percentiles(): Latency {
+         val sorted = values.copyOf(minOf(count, values.size.toLong()).toInt()).apply { sort() }
+         fun p(p: Double) = if (sorted.isEmpty()) 0.0 else sorted[((sorted.size - 1)*p).toInt()]/1_000_000.0
+         return Latency(p(0.50), p(0.95), p(0.99))
+      }
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+   }
+}
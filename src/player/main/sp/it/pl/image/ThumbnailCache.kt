@@ -0,0 +1,177 @@
+package sp.it.pl.image
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import javafx.scene.image.Image
+import javafx.scene.image.PixelBuffer
+import javafx.scene.image.PixelFormat
+import javafx.scene.image.WritableImage
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.core.Core
+import sp.it.util.access.readOnlyThreadSafe
+import sp.it.util.async.runIO
+import sp.it.util.collections.map.CacheStats
+import sp.it.util.collections.map.WeightedLruCache
+import sp.it.util.conf.GlobalSubConfigDelegator
+import sp.it.util.conf.cv
+import sp.it.util.conf.def
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIf
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.file.SegmentStore
+import sp.it.util.file.deleteRecursivelyOrThrow
+import sp.it.util.file.div
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.math.min
+import sp.it.util.ui.image.Interrupts
+import sp.it.util.ui.image.Params
+import sp.it.util.ui.image.withUrl
+import sp.it.util.units.FileSize
+import sp.it.util.units.FileSize.Companion.Mi
+
+/**
+ * Two-tier cache of image thumbnails, see [ImageLoader.memoized].
+ * - memory tier: [WeightedLruCache] of decoded images, bounded by their pixel bytes, so recycled cells (e.g. in grids)
+ *   do not decode the same thumbnail repeatedly
+ * - disk tier: [SegmentStore] of deflate-compressed pixels, bounded by [diskMax] in segments of [DISK_SEGMENT_SIZE],
+ *   so thumbnails survive application restart without loading and scaling the original image
+ *
+ * Thumbnails are identified by the file (path, size, last modified time) and the requested size and fit, so changed
+ * files are reloaded.
+ *
+ * Replaces the per-loader cache directories `~/<cacheKey>` used by [ImageLoader.memoized] before, which are deleted
+ * when the loader is first used, see [deleteLegacyDir].
+ */
+@ThreadSafe
+class ThumbnailCache(val dir: File): Core, GlobalSubConfigDelegator("Thumbnails") {
+   /** Maximal size of the disk tier, applied when the disk tier is opened */
+   val diskMax by cv(FileSize(512*Mi))
+      .def(name = "Disk cache size", info = "Maximal disk space used by cached thumbnails. Applied on next start.")
+   private val diskMaxTS by diskMax.readOnlyThreadSafe()
+   private val memory = WeightedLruCache<String, Image>(MEMORY_MAX) { it.byteSize }
+   private val legacyDirsDeleted = ConcurrentHashMap.newKeySet<UUID>()
+   private val disk = lazy {
+      val segmentCount = (diskMaxTS.inBytes()/DISK_SEGMENT_SIZE).coerceIn(2L, Int.MAX_VALUE.toLong()).toInt()
+      runTry { SegmentStore(dir, segmentCount, DISK_SEGMENT_SIZE).apply { open() } }
+         .ifError { logger.error(it) { "Failed to open thumbnail disk cache $dir, disk cache disabled" } }
+         .orNull()
+   }
+
+   override fun dispose() {
+      if (disk.isInitialized()) disk.value?.close()
+   }
+
+   /**
+    * @param namespace namespace of the thumbnail, e.g. the loader
+    * @param load loads the thumbnail if not cached
+    * @return cached thumbnail for the specified parameters or newly loaded one or null if loading failed
+    */
+   @Blocking
+   fun getOrLoad(namespace: String, p: Params, load: (Params) -> Image?): Image? {
+      failIfFxThread()
+
+      val key = key(namespace, p)
+      return null
+         ?: memory[key]
+         ?: when {
+            Interrupts.isInterrupted -> null
+            else -> disk.value?.get(key)?.let { bytes ->
+               runTry { decode(bytes) }
+                  .ifError { logger.warn(it) { "Failed to decode cached thumbnail of file=${p.file}" } }
+                  .orNull()
+            }?.also { memory.put(key, it) }
+         }
+         ?: when {
+            Interrupts.isInterrupted -> null
+            else -> load(p)?.also { img ->
+               memory.put(key, img)
+               encode(img)?.let { disk.value?.put(key, it) }
+            }
+         }
+   }
+
+   /** Deletes the cache directory of the specified memoized loader cache key used before this cache, if any. Once per key, on [runIO]. */
+   fun deleteLegacyDir(cacheKey: UUID) {
+      if (!legacyDirsDeleted.add(cacheKey)) return
+      runIO {
+         val legacyDir = File(System.getProperty("user.home")).absoluteFile/cacheKey.toString()
+         if (legacyDir.isDirectory)
+            runTry { legacyDir.deleteRecursivelyOrThrow() }
+               .ifOk { logger.info { "Deleted legacy thumbnail cache $legacyDir" } }
+               .ifError { logger.warn(it) { "Failed to delete legacy thumbnail cache $legacyDir" } }
+      }
+   }
+
+   /** Removes all cached thumbnails */
+   fun clear() {
+      memory.clear()
+      disk.value?.clear()
+   }
+
+   /** @return statistics of the memory and disk tier, sizes are in bytes, does not open the disk tier if not yet open */
+   fun stats(): Stats = Stats(memory.stats(), disk.takeIf { it.isInitialized() }?.value?.stats() ?: CacheStats(0, 0, 0, 0, 0))
+
+   /** Statistics of the [ThumbnailCache] tiers */
+   data class Stats(val memory: CacheStats, val disk: CacheStats)
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val FORMAT_VERSION = 1
+      private const val DISK_SEGMENT_SIZE = (32*Mi).toInt()
+      private val MEMORY_MAX = 256*Mi min Runtime.getRuntime().maxMemory()/8
+
+      private val Image.byteSize: Long
+         get() = width.toLong()*height.toLong()*4
+
+      private fun key(namespace: String, p: Params) =
+         "$namespace|${p.file.absolutePath}|${p.file.length()}|${p.file.lastModified()}|${p.size.width.toInt() max 0}x${p.size.height.toInt() max 0}x${p.fit}"
+
+      /** @return image as version, size, url and deflate-compressed [PixelFormat.getByteBgraPreInstance] pixels or null if it has no pixels */
+      private fun encode(img: Image): ByteArray? {
+         val pixels = img.pixelReader ?: return null
+         val w = img.width.toInt()
+         val h = img.height.toInt()
+         val buffer = ByteBuffer.allocate(w*h*4)
+         pixels.getPixels(0, 0, w, h, PixelFormat.getByteBgraPreInstance(), buffer, w*4)
+
+         val bytes = ByteArrayOutputStream(w*h)
+         DataOutputStream(bytes).use { s ->
+            s.writeInt(FORMAT_VERSION)
+            s.writeInt(w)
+            s.writeInt(h)
+            s.writeUTF(img.url.orEmpty())
+            val deflater = Deflater(Deflater.BEST_SPEED)
+            try {
+               DeflaterOutputStream(s, deflater).apply { write(buffer.array()); finish() }
+            } finally {
+               deflater.end()
+            }
+         }
+         return bytes.toByteArray()
+      }
+
+      private fun decode(bytes: ByteArray): Image {
+         DataInputStream(bytes.inputStream()).use { s ->
+            val version = s.readInt()
+            failIf(version!=FORMAT_VERSION) { "Unsupported thumbnail format version=$version" }
+            val w = s.readInt()
+            val h = s.readInt()
+            val url = s.readUTF().ifEmpty { null }
+            val pixels = InflaterInputStream(s).use { it.readNBytes(w*h*4) }
+            failIf(pixels.size!=w*h*4) { "Thumbnail data truncated" }
+            return WritableImage(PixelBuffer(w, h, ByteBuffer.wrap(pixels), PixelFormat.getByteBgraPreInstance())).withUrl(url)
+         }
+      }
+   }
+}
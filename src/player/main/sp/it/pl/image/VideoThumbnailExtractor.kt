@@ -0,0 +1,222 @@
+package sp.it.pl.image
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.net.URI
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import javafx.scene.image.Image
+import javafx.scene.image.WritableImage
+import kotlinx.coroutines.withContext
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.main.APP
+import sp.it.pl.main.AppError
+import sp.it.pl.main.AppProgress
+import sp.it.pl.main.downloadFile
+import sp.it.pl.main.ifErrorNotify
+import sp.it.pl.main.onErrorNotify
+import sp.it.pl.main.reportFor
+import sp.it.util.async.coroutine.VT
+import sp.it.util.async.coroutine.runSuspendingFx
+import sp.it.util.async.future.Fut
+import sp.it.util.async.future.Fut.Companion.fut
+import sp.it.util.async.runIO
+import sp.it.util.async.runVT
+import sp.it.util.dev.fail
+import sp.it.util.dev.failIf
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.dev.stacktraceAsString
+import sp.it.util.file.del
+import sp.it.util.file.deleteRecursivelyOrThrow
+import sp.it.util.file.div
+import sp.it.util.file.setExecutableOrThrow
+import sp.it.util.file.type.MimeType.Companion.`image∕bmp`
+import sp.it.util.file.unzip
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.system.Os
+import sp.it.util.ui.image.FitFrom.OUTSIDE
+import sp.it.util.ui.image.Interrupts
+import sp.it.util.ui.image.Params
+import sp.it.util.ui.image.loadImagePsd
+import sp.it.util.ui.image.withUrl
+
+/**
+ * Extracts video thumbnails, i.e., frame 1 second into the video (or last frame of shorter video) using ffmpeg.
+ *
+ * Uses ffmpeg on `PATH` if available, otherwise on Windows, ffmpeg is downloaded on first use.
+ * Runs at most [parallelism] ffmpeg processes at once, each extracting the frame in a single invocation. Thumbnails
+ * are cached in [sp.it.pl.main.App.thumbnails]. Concurrent requests for the same thumbnail share single extraction.
+ *
+ * Replaces the `~/video-covers` directory of extracted frames used before, which is deleted when the extractor is first
+ * used, see [deleteLegacyDir].
+ *
+ * Thread-safe.
+ */
+object VideoThumbnailExtractor {
+   private val logger = KotlinLogging.logger { }
+   private const val NAMESPACE = "video-frame"
+   private const val AT = "1"
+   private const val TIMEOUT_S = 60L
+
+   /** Maximal number of ffmpeg processes running at once */
+   val parallelism = 1 max Runtime.getRuntime().availableProcessors()/2
+   private val slots = Semaphore(parallelism)
+   private val extractions = ConcurrentHashMap<String, Extraction>()
+
+   init {
+      deleteLegacyDir()
+   }
+
+   /**
+    * @return thumbnail of the video file, scaled as the parameters require, or null if extraction failed or
+    * [Interrupts.isInterrupted], in which case the extraction may still complete and the result be cached
+    */
+   @Blocking
+   operator fun invoke(p: Params): Image? {
+      failIfFxThread()
+
+      val e = extractions.computeIfAbsent(p.key()) { Extraction(it, p) }
+      e.waiters.incrementAndGet()
+      try {
+         if (e.isStarted.compareAndSet(false, true)) runVT(e::run)
+         while (!e.result.isDone) {
+            if (Interrupts.isInterrupted) return null
+            runTry { e.result.get(50, MILLISECONDS) }
+         }
+         return e.result.getNow(null)
+      } finally {
+         e.waiters.decrementAndGet()
+      }
+   }
+
+   /** Deletes the directory of extracted frames used before the thumbnail cache, if any, on [runIO] */
+   private fun deleteLegacyDir() {
+      runIO {
+         val legacyDir = File(System.getProperty("user.home")).absoluteFile/"video-covers"
+         if (legacyDir.isDirectory)
+            runTry { legacyDir.deleteRecursivelyOrThrow() }
+               .ifOk { logger.info { "Deleted legacy video thumbnail cache $legacyDir" } }
+               .ifError { logger.warn(it) { "Failed to delete legacy video thumbnail cache $legacyDir" } }
+      }
+   }
+
+   private fun Params.key() = "${file.absolutePath}|${size.width.toInt() max 0}x${size.height.toInt() max 0}x$fit"
+
+   /** Extraction shared by concurrent requests, skipped if all of them give up before it obtains a slot */
+   private class Extraction(val key: String, val p: Params) {
+      val waiters = AtomicInteger(0)
+      val isStarted = AtomicBoolean(false)
+      val result = CompletableFuture<Image?>()
+
+      fun run() {
+         val img = runTry {
+            APP.thumbnails.getOrLoad(NAMESPACE, p) {
+               slots.acquire()
+               try {
+                  if (waiters.get()==0) null else extract(it)
+               } finally {
+                  slots.release()
+               }
+            }
+         } orNull {
+            logger.warn(it) { "Failed to extract video thumbnail of file=${p.file}" }
+         }
+         extractions.remove(key, this)
+         result.complete(img)
+      }
+   }
+
+   @Blocking
+   private fun extract(p: Params): Image? {
+      // unavailable ffmpeg is reported once, see ffmpeg
+      val ffmpeg = ffmpeg.getDone().toTry().orNull() ?: return null
+      val dir = (APP.location.user.tmp/"video-thumbnails").apply { mkdirs() }
+      val out = File.createTempFile("thumbnail", ".bmp", dir)
+      try {
+         val w = p.size.width.toInt() max 0
+         val h = p.size.height.toInt() max 0
+         val scale = when {
+            w==0 || h==0 -> arrayOf()
+            else -> arrayOf("-vf", "scale=w=min(iw\\,$w):h=min(ih\\,$h):force_original_aspect_ratio=${if (p.fit==OUTSIDE) "increase" else "decrease"}")
+         }
+         // reads only the first second, overwriting the output with each frame, so the output is the frame at 1s or
+         // the last frame of shorter video, without obtaining the video duration first
+         val process = ProcessBuilder(
+            ffmpeg.absolutePath, "-nostdin", "-v", "error", "-y",
+            "-t", AT, "-i", p.file.absolutePath,
+            "-an", "-sn", "-dn", *scale, "-update", "1", "-f", "image2", "-c:v", "bmp", out.absolutePath
+         ).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD).start()
+
+         if (!process.waitFor(TIMEOUT_S, SECONDS)) {
+            process.destroyForcibly()
+            fail { "ffmpeg did not finish in ${TIMEOUT_S}s" }
+         }
+         failIf(process.exitValue()!=0) { "ffmpeg failed and returned ${process.exitValue()}" }
+         if (out.length()==0L) return null
+
+         val img = loadImagePsd(p.copy(file = out, mime = `image∕bmp`), highQuality = false)
+         // the url must not point to the deleted temporary file
+         return if (img is WritableImage) img.withUrl(p.file) else img
+      } finally {
+         out.delete()
+      }
+   }
+
+   /** ffmpeg on `PATH` or downloaded ffmpeg on Windows */
+   private val ffmpeg: Fut<File> by lazy {
+      val os = Os.current
+      val ffmpegOnPath = System.getenv("PATH").orEmpty().split(File.pathSeparator).asSequence()
+         .filter { it.isNotBlank() }
+         .map { File(it)/(if (os==Os.WINDOWS) "ffmpeg.exe" else "ffmpeg") }
+         .find { it.isFile && it.canExecute() }
+      if (ffmpegOnPath!=null) return@lazy fut(ffmpegOnPath)
+
+      val ffmpegVersion = "ffmpeg-20190826-0821bc4-win64-static"
+      val ffmpegDir = APP.location/"ffmpeg"
+      val ffmpegBin = ffmpegDir/"ffmpeg-5.1.2-essentials_build"
+      val ffmpegZip = ffmpegDir/"ffmpeg.zip"
+      val ffmpegBinary = when (os) {
+         Os.WINDOWS -> ffmpegBin/"bin"/"ffmpeg.exe"
+         else -> return@lazy Fut(CompletableFuture.failedFuture<File>(RuntimeException("Video thumbnail extraction requires ffmpeg on PATH on $os"))).onErrorNotify {
+            AppError("Failed to obtain ffmpeg", "Video thumbnails are not available.\n\nExact problem:\n${it.message}")
+         }
+      }
+      val ffmpegLink = URI("https://www.gyan.dev/ffmpeg/builds/packages/ffmpeg-5.1.2-essentials_build.zip")
+      runSuspendingFx {
+         AppProgress.start("Obtaining ffmpeg").reportFor { task ->
+            withContext(VT) {
+               if (!ffmpegBinary.exists()) {
+                  if (ffmpegDir.exists()) ffmpegDir.deleteRecursivelyOrThrow()
+                  downloadFile(ffmpegLink, ffmpegZip, task)
+                  ffmpegZip.unzip(ffmpegDir) { it.substringAfter("$ffmpegVersion/") }
+                  ffmpegBinary.setExecutableOrThrow(true)
+                  ffmpegZip.del()
+               }
+
+               failIf(!ffmpegBinary.exists()) { "Ffmpeg executable=$ffmpegBinary does not exist" }
+               failIf(!ffmpegBinary.canExecute()) { "Ffmpeg executable=$ffmpegBinary must be executable" }
+               ffmpegBinary
+            }
+         }
+      }.onDone {
+         it.toTry().ifErrorNotify {
+            AppError(
+               "Failed to obtain ffmpeg",
+               """
+                  |ffmpeg version: $ffmpegVersion
+                  |ffmpeg link: $ffmpegLink
+                  |
+                  | ${it.stacktraceAsString}
+               """.trimMargin()
+            )
+         }
+      }
+   }
+}
@@ -22,6 +22,7 @@ import kotlin.system.exitProcess
 import kotlin.text.Charsets.UTF_8
 import sp.it.pl.audio.PlayerManager
 import sp.it.pl.audio.playlist.PlaylistManager
+import sp.it.pl.audio.tagging.ArtworkCache
 import sp.it.pl.core.CoreConfiguration
 import sp.it.pl.core.CoreConverter
 import sp.it.pl.core.CoreEnv
@@ -35,6 +36,7 @@ import sp.it.pl.core.CoreOs
 import sp.it.pl.core.CoreOshi
 import sp.it.pl.core.CoreSerializer
 import sp.it.pl.core.CoreSerializerJson
+import sp.it.pl.image.ThumbnailCache
 import sp.it.pl.layout.WidgetManager
 import sp.it.pl.main.App.Rank.MASTER
 import sp.it.pl.main.App.Rank.SLAVE
@@ -42,13 +44,16 @@ import sp.it.pl.main.Events.ActionEvent
 import sp.it.pl.plugin.PluginManager
 import sp.it.pl.plugin.impl.Notifier
 import sp.it.pl.plugin.impl.SongDb
+import sp.it.pl.ui.objects.hierarchy.Item.CoverStrategy
 import sp.it.pl.ui.objects.window.stage.WindowManager
 import sp.it.util.access.v
 import sp.it.util.action.ActionManager
 import sp.it.util.action.ActionRegistrar
 import sp.it.util.action.IsAction
 import sp.it.util.async.runFX
+import sp.it.util.async.runIO
 import sp.it.util.async.runLater
+import sp.it.util.async.runPeriodic
 import sp.it.util.conf.ConfigDef
 import sp.it.util.conf.EditMode.NONE
 import sp.it.util.conf.GlobalConfigDelegator
@@ -76,6 +81,7 @@ import sp.it.util.functional.runTry
 import sp.it.util.math.max
 import sp.it.util.reactive.Disposer
 import sp.it.util.reactive.Handler1
+import sp.it.util.reactive.on
 import sp.it.util.system.Os.WINDOWS
 import sp.it.util.system.SystemOutListener
 import sp.it.util.system.chooseFile
@@ -84,6 +90,7 @@ import sp.it.util.type.ClassName
 import sp.it.util.type.InstanceDescription
 import sp.it.util.type.InstanceName
 import sp.it.util.type.ObjectFieldMap
+import sp.it.util.units.minutes
 import sp.it.util.units.uri
 
 lateinit var APP: App
@@ -237,6 +244,14 @@ class App: Application(), GlobalConfigDelegator {
    val env = CoreEnv.apply { init() }
    /** Image I/O core. */
    val imageIo = CoreImageIO(locationTmp/"imageio")
+   /** Image thumbnail cache core. */
+   val thumbnails = ThumbnailCache(location.user.tmp/"thumbnails")
+   /** Embedded song artwork cache core. */
+   val artworks = ArtworkCache(location.user.tmp/"artworks")
+
+   init {
+      onStarted += { runPeriodic(5.minutes) { runIO { logImageStats() } } on onStopping }
+   }
    /** String-Object converter core. */
    val converter = CoreConverter.apply { init() }
    /** Json converter core. */
@@ -360,6 +375,13 @@ class App: Application(), GlobalConfigDelegator {
       }
    }
 
+   /** Logs image loading queue and latencies and image cache statistics */
+   private fun logImageStats() {
+      logger.info { "Image loading: ${CoverStrategy.VT_IMAGE.stats()}" }
+      logger.info { "Thumbnail cache: ${thumbnails.stats()}" }
+      logger.info { "Artwork cache: ${artworks.stats()}" }
+   }
+
    override fun start(primaryStage: Stage) {
       logger.info { "Starting..." }
 
@@ -437,6 +459,8 @@ class App: Application(), GlobalConfigDelegator {
          serializerJson.dispose()
          converter.dispose()
          imageIo.dispose()
+         thumbnails.dispose()
+         artworks.dispose()
          env.dispose()
          logging.dispose()
       }.ifError {
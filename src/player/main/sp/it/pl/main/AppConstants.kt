@@ -81,6 +81,8 @@ object FileExtensions {
    const val command = "spit-command"
    const val m3u = "m3u"
    const val m3u8 = "m3u8"
+   const val pls = "pls"
+   const val xspf = "xspf"
 }
 
 object FileMimes {
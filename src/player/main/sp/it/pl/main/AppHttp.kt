@@ -23,8 +23,17 @@ import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.Socket
 import java.net.URI
+import java.net.URLDecoder
 import java.nio.CharBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.READ
+import java.time.Instant
+import java.time.ZoneOffset.UTC
+import java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME
+import java.util.UUID
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.zip.GZIPOutputStream
 import kotlin.text.Charsets.UTF_8
 import org.jetbrains.annotations.Range
 import sp.it.pl.core.Core
@@ -53,7 +62,6 @@ import sp.it.util.functional.runTry
 import sp.it.util.reactive.Subscription
 import sp.it.util.text.readCodePoints
 import sp.it.util.text.toPrintableNonWhitespace
-import sp.it.util.units.FileSize.Companion.sizeInBytes
 import sp.it.util.units.uri
 
 /** Application http server & http client. */
@@ -131,7 +139,7 @@ class AppHttp(
          // 404 if no match
          r ?: throw Exception404("No handler for ${e.requestURI.path}")
          // 405 if no method match
-         r.takeIf { it.method==null || it.method==e.requestMethod } ?: throw Exception405("Method not allowed for ${e.requestURI.path}")
+         r.takeIf { it.method==null || it.method==e.requestMethod || (it.method=="GET" && e.requestMethod=="HEAD") } ?: throw Exception405("Method not allowed for ${e.requestURI.path}")
          r.block(e)
       }.map {
          when (it) {
@@ -139,13 +147,14 @@ class AppHttp(
             else -> it
          }
       }.ifError { x ->
-         if (x is Exception404)
-            e.respond(404, 0) { it.writer().write(x.message ?: "") }
-         if (x is Exception405)
-            e.respond(405, 0) { it.writer().write(x.message ?: "") }
-         else {
-            logger.error(x) { "Failed to handle http request ${e.requestMethod} ${e.requestURI}" }
-            e.respond(500, 0) { it.writer().write(x.message ?: "") }
+         when (x) {
+            is Exception404 -> e.respond(404, 0) { it.writer().write(x.message ?: "") }
+            is Exception405 -> e.respond(405, 0) { it.writer().write(x.message ?: "") }
+            is HttpException -> e.respond(x.status, 0) { it.writer().write(x.message ?: "") }
+            else -> {
+               logger.error(x) { "Failed to handle http request ${e.requestMethod} ${e.requestURI}" }
+               e.respond(500, 0) { it.writer().write(x.message ?: "") }
+            }
          }
       }.ifOk {
          val bs = DEFAULT_BUFFER_SIZE
@@ -156,34 +165,10 @@ class AppHttp(
                e.respond(200, 0) {}
             is InputStream ->
                e.respond(200, 0) { o -> it.buffered(bs).use { i -> i.copyTo(o, bs) } }
-            is File -> {
-               val fileSize = it.sizeInBytes()
-               val isRange = e.requestHeaders["Range"]!=null
-               val range = e.requestHeaders["Range"]?.first()?.split("-")?.net { parts ->
-                  parts[0].toLong()..when {
-                     parts.size>1 && parts[1].isNotEmpty() -> parts[1].toLong()
-                     else -> it.sizeInBytes() - 1
-                  }
-               } ?: 0..it.sizeInBytes() - 1
-               val contentLength = range.endInclusive - range.start + 1
-               e.responseHeaders["Content-Type"] = it.mimeType().name
-               e.responseHeaders["Content-Length"] = contentLength.toString()
-               e.responseHeaders["Accept-Ranges"] = "bytes"
-               if (isRange) e.responseHeaders["Content-Range"] = "bytes ${range.start}-${range.endInclusive}/$fileSize"
-
-               e.respond(if (isRange) 206 else 200, contentLength) { o ->
-                  val buffer = ByteArray(bs)
-                  var bytesRead: Int
-                  var bytesRemaining = contentLength
-                  var i = it.inputStream().buffered(bs)
-                  while (i.read(buffer).also { bytesRead = it }>=0 && bytesRemaining>0) {
-                     val bytesToWrite = if (bytesRead<=bytesRemaining) bytesRead else bytesRemaining
-                     o.write(buffer, 0, bytesToWrite.toInt())
-                     bytesRemaining -= bytesRead
-                  }
-                  println("bytes read $bytesRead")
-               }
-            }
+            is File ->
+               e.respondFile(it)
+            is StreamResponse ->
+               e.respondStream(it)
             else -> {
                e.responseHeaders["Content-Type"] = "application/json"
                val s = Config.json.toJsonValue(it).toPrettyS().toByteArray()
@@ -229,11 +214,22 @@ class AppHttp(
          }
    }
 
+   /**
+    * Response body written by the handler directly to the response stream, e.g., large json.
+    * Compressed using gzip if the client accepts it. Sent chunked, i.e., without `Content-Length`.
+    */
+   class StreamResponse(val contentType: String, val writer: (OutputStream) -> Unit)
+
+   /** Exception causing response with the specified http status code and the message as body */
+   class HttpException(val status: Int, message: String): RuntimeException(message)
+
    private class Exception404(message: String): RuntimeException(message)
    private class Exception405(message: String): RuntimeException(message)
 
    companion object {
       private val logger = KotlinLogging.logger { }
+      /** Maximal number of ranges in a `Range` header, more ranges cause the header to be ignored */
+      private const val MAX_RANGES = 16
 
       private val loggableMimeTypes = setOf(
          "application/json",
@@ -261,6 +257,11 @@ class AppHttp(
       fun HttpResponse.isFromSpitPlayer() =
          headers["Server"]?.startsWith(APP.name)==true
 
+      /** @return url decoded query parameters of the request by name, in order of appearance */
+      fun HttpExchange.queryParams(): Map<String, List<String>> =
+         requestURI.rawQuery.orEmpty().split("&").filter { it.isNotEmpty() }
+            .groupBy({ URLDecoder.decode(it.substringBefore("="), UTF_8) }, { URLDecoder.decode(it.substringAfter("=", ""), UTF_8) })
+
       /** Set `Server` header to this application. */
       fun HttpExchange.setFromSpitPlayer() {
          responseHeaders["Server"] = "${APP.name}/${APP.version}"
@@ -271,15 +272,143 @@ class AppHttp(
          return range.first { runTry { Socket(localhost, it).use { true } }.getOr(false) }
       }
 
-      private fun HttpExchange.respond(status: Int, contentLength: Long, writer: (OutputStream) -> Unit) {
+      private fun HttpExchange.respond(status: Int, contentLength: Long, buffered: Boolean = true, writer: (OutputStream) -> Unit) {
          setFromSpitPlayer()
-         if (requestMethod=="HEAD") {
+         if (requestMethod=="HEAD" || contentLength<0) {
             sendResponseHeaders(status, -1)
             responseBody.close()
          } else {
             sendResponseHeaders(status, contentLength)
             runTry {
-               responseBody.buffered(DEFAULT_BUFFER_SIZE).use { writer(it); it.flush() }
+               (if (buffered) responseBody.buffered(DEFAULT_BUFFER_SIZE) else responseBody).use { writer(it); it.flush() }
+            }
+         }
+      }
+
+      private fun HttpExchange.respondStream(response: StreamResponse) {
+         val isGzip = requestHeaders["Accept-Encoding"].orEmpty().any { h -> h.split(",").any { it.substringBefore(";").trim()=="gzip" } }
+         responseHeaders["Content-Type"] = response.contentType
+         responseHeaders["Vary"] = "Accept-Encoding"
+         if (isGzip) responseHeaders["Content-Encoding"] = "gzip"
+         respond(200, 0) { o ->
+            if (isGzip) GZIPOutputStream(o, DEFAULT_BUFFER_SIZE).let { response.writer(it); it.finish() }
+            else response.writer(o)
+         }
+      }
+
+      /**
+       * Responds with the file content, supporting:
+       * - `HEAD`, i.e., headers only
+       * - `ETag` derived from file size and modification time and `Last-Modified`
+       * - conditional requests, i.e., `If-None-Match`, `If-Modified-Since` (304) and `If-Range`
+       * - `Range` of bytes, i.e., `bytes=0-99`, `bytes=100-`, `bytes=-100` or multiple ranges as `multipart/byteranges` (206, 416)
+       *
+       * The content is transferred using [FileChannel.transferTo], so the file is streamed in chunks rather than read whole.
+       * As the response body is a plain [OutputStream], the transfer still copies through a temporary buffer, see [transferTo].
+       */
+      private fun HttpExchange.respondFile(file: File) {
+         val size = file.length()
+         val modifiedMs = file.lastModified()
+         val eTag = "\"${size.toString(16)}-${modifiedMs.toString(16)}\""
+         val lastModified = RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(modifiedMs).atOffset(UTC))
+         val type = file.mimeType().name
+         responseHeaders["Accept-Ranges"] = "bytes"
+         responseHeaders["ETag"] = eTag
+         responseHeaders["Last-Modified"] = lastModified
+
+         // conditional request, If-None-Match takes precedence over If-Modified-Since
+         val ifNoneMatch = requestHeaders.getFirst("If-None-Match")
+         val isNotModified = when {
+            ifNoneMatch!=null -> ifNoneMatch.trim()=="*" || ifNoneMatch.split(",").any { it.trim().removePrefix("W/")==eTag }
+            else -> requestHeaders.getFirst("If-Modified-Since")?.parseHttpDate()?.net { modifiedMs/1000<=it.epochSecond } ?: false
+         }
+         if (isNotModified) {
+            respond(304, -1) {}
+            return
+         }
+
+         // range request, If-Range ignores range if the file changed
+         val ifRange = requestHeaders.getFirst("If-Range")?.trim()
+         val isRangeValid = ifRange==null || ifRange==eTag || ifRange.parseHttpDate()?.net { modifiedMs/1000<=it.epochSecond }==true
+         val ranges = requestHeaders.getFirst("Range")?.takeIf { isRangeValid }?.parseByteRanges(size)
+         when {
+            ranges==null -> {
+               responseHeaders["Content-Type"] = type
+               responseHeaders["Content-Length"] = size.toString()
+               respond(200, size, false) { o -> file.transferTo(0, size, o) }
+            }
+            ranges.isEmpty() -> {
+               responseHeaders["Content-Range"] = "bytes */$size"
+               respond(416, -1) {}
+            }
+            ranges.size==1 -> {
+               val r = ranges.first()
+               val length = r.last - r.first + 1
+               responseHeaders["Content-Type"] = type
+               responseHeaders["Content-Length"] = length.toString()
+               responseHeaders["Content-Range"] = "bytes ${r.first}-${r.last}/$size"
+               respond(206, length, false) { o -> file.transferTo(r.first, length, o) }
+            }
+            else -> {
+               val boundary = UUID.randomUUID().toString()
+               val heads = ranges.map { r -> "\r\n--$boundary\r\nContent-Type: $type\r\nContent-Range: bytes ${r.first}-${r.last}/$size\r\n\r\n".toByteArray(UTF_8) }
+               val tail = "\r\n--$boundary--\r\n".toByteArray(UTF_8)
+               val length = ranges.indices.sumOf { heads[it].size + ranges[it].last - ranges[it].first + 1 } + tail.size
+               responseHeaders["Content-Type"] = "multipart/byteranges; boundary=$boundary"
+               responseHeaders["Content-Length"] = length.toString()
+               respond(206, length, false) { o ->
+                  ranges.forEachIndexed { i, r ->
+                     o.write(heads[i])
+                     file.transferTo(r.first, r.last - r.first + 1, o)
+                  }
+                  o.write(tail)
+               }
+            }
+         }
+      }
+
+      /**
+       * @return satisfiable ranges of `bytes=` range header of content of the specified size, sorted and coalesced,
+       * empty if none is satisfiable, or null if the header is malformed, in which case it is to be ignored
+       */
+      private fun String.parseByteRanges(size: Long): List<LongRange>? {
+         val specs = trim().takeIf { it.startsWith("bytes=", true) }?.substring(6)?.split(",") ?: return null
+         if (specs.size>MAX_RANGES) return null
+         val ranges = specs.map { spec ->
+            val (start, end) = spec.trim().split("-", limit = 2).takeIf { it.size==2 }?.map { it.trim() } ?: return null
+            when {
+               start.isEmpty() -> end.toLongOrNull()?.takeIf { it>0 }?.let { (size - it).coerceAtLeast(0)..<size } ?: return null
+               else -> {
+                  val s = start.toLongOrNull() ?: return null
+                  val e = if (end.isEmpty()) size - 1 else end.toLongOrNull()?.takeIf { it>=s }?.coerceAtMost(size - 1) ?: return null
+                  s..e
+               }
+            }
+         }
+         return ranges.filter { it.first<size && !it.isEmpty() }.sortedBy { it.first }.fold(ArrayList<LongRange>()) { rs, r ->
+            val last = rs.lastOrNull()
+            if (last!=null && r.first<=last.last + 1) rs[rs.size - 1] = last.first..maxOf(last.last, r.last)
+            else rs += r
+            rs
+         }
+      }
+
+      /** @return instant of the http date or null if not a valid date */
+      private fun String.parseHttpDate(): Instant? =
+         runTry { Instant.from(RFC_1123_DATE_TIME.parse(trim())) }.orNull()
+
+      /**
+       * Writes the specified part of the file to the stream, using [FileChannel.transferTo].
+       * The target is not a [FileChannel] or socket channel, so the JDK copies through a temporary buffer, i.e., this is not zero-copy.
+       */
+      private fun File.transferTo(position: Long, count: Long, o: OutputStream) {
+         FileChannel.open(toPath(), READ).use { ch ->
+            val target = Channels.newChannel(o)
+            var transferred = 0L
+            while (transferred<count) {
+               val n = ch.transferTo(position + transferred, count - transferred, target)
+               if (n<=0) break
+               transferred += n
             }
          }
       }
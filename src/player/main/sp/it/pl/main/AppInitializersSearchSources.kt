@@ -7,6 +7,8 @@ import sp.it.pl.conf.Command
 import sp.it.pl.layout.ComponentLoaderProcess
 import sp.it.pl.layout.ComponentLoaderStrategy
 import sp.it.pl.layout.WidgetFactory
+import sp.it.pl.layout.WidgetUse.ANY
+import sp.it.pl.layout.feature.PlaylistFeature
 import sp.it.pl.layout.loadIn
 import sp.it.pl.ui.objects.SpitComboBox
 import sp.it.pl.ui.objects.autocomplete.ConfigSearch.Entry
@@ -46,6 +48,18 @@ fun AppSearch.initApp() = APP.apply {
       )
    }
 
+   sources += AppSearch.Source.complete("Songs") { phrases ->
+      db.searchSongs(phrases.joinToString(" "), limit = 50).asSequence().map { s ->
+         Entry.of(
+            name = "Play song: ${s.getArtistOrEmpty()} - ${s.getTitleOrEmpty()}",
+            icon = IconFA.MUSIC,
+            infoΛ = { s.getPathAsString() }
+         ) {
+            widgetManager.widgets.use<PlaylistFeature>(ANY) { it.playlist.addAndPlay(s.uri) }
+         }
+      }
+   }
+
    data class Radix(val radix: Int, val name: String)
    val radixes = mapOf("bin" to 2, "oct" to 8, "dec" to 10, "hex" to 16)
    sources += AppSearch.Source("Math number conversions") { radixes.keys.asSequence() } byAny { "bin oct dec hex" } toSource {
@@ -18,8 +18,8 @@ import kotlinx.coroutines.runBlocking
 import sp.it.pl.audio.SimpleSong
 import sp.it.pl.audio.Song
 import sp.it.pl.audio.playlist.PlaylistManager
-import sp.it.pl.audio.playlist.isM3uPlaylist
-import sp.it.pl.audio.playlist.readM3uPlaylist
+import sp.it.pl.audio.playlist.isPlaylistFile
+import sp.it.pl.audio.playlist.readPlaylist
 import sp.it.pl.audio.tagging.AddSongsToLibResult
 import sp.it.pl.audio.tagging.Metadata
 import sp.it.pl.audio.tagging.addToLibTask
@@ -257,8 +257,8 @@ fun ActionPane.initActionPane(): ActionPane = also { ap ->
          "Add songs to new playlist widget.",
          IconMD.PLAYLIST_PLAY,
          BLOCK,
-         constriction = { it.isM3uPlaylist() },
-      ) { f -> PlaylistManager.use { it.setAndPlay(readM3uPlaylist(f)) } },
+         constriction = { it.isPlaylistFile() },
+      ) { f -> PlaylistManager.use { it.setAndPlay(readPlaylist(f)) } },
       actionAll<File>(
          "Add to library",
          "Add songs to library. The process is customizable and it is also possible to edit the songs in the tag editor.",
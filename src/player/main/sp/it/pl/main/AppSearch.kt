@@ -1,9 +1,18 @@
 package sp.it.pl.main
 
 import sp.it.pl.main.AppSettings.search as conf
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.util.PriorityQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import javafx.beans.InvalidationListener
 import javafx.collections.ObservableList
 import javafx.scene.Node
+import org.jetbrains.annotations.Blocking
 import sp.it.pl.core.NameUi
+import sp.it.pl.ui.objects.autocomplete.AutoCompletionBinding.SuggestionProvider
 import sp.it.pl.ui.objects.autocomplete.ConfigSearch
 import sp.it.pl.ui.objects.autocomplete.ConfigSearch.Entry
 import sp.it.pl.ui.objects.autocomplete.ConfigSearch.Entry.SimpleEntry
@@ -14,32 +23,34 @@ import sp.it.util.conf.Constraint.UiConverter
 import sp.it.util.conf.GlobalSubConfigDelegator
 import sp.it.util.conf.butElement
 import sp.it.util.conf.cList
+import sp.it.util.conf.cv
 import sp.it.util.conf.def
 import sp.it.util.conf.noPersist
-import sp.it.util.functional.net
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.text.SearchableText
+import sp.it.util.units.millis
 
+/**
+ * Application search.
+ *
+ * All [sources] are searched concurrently, each on its own virtual thread and within [sourceTimeLimit], so slow sources
+ * do not delay results of others. Results of all sources are ranked by relevance (see [SearchableText.score]) and
+ * merged into a single list of best results, which is reported as sources complete. Results found by sources that did
+ * not complete within the time limit are reported at the end.
+ */
 class AppSearch: GlobalSubConfigDelegator(conf.name) {
    val sources by cList<Source>().def(conf.sources).noPersist().butElement(UiConverter<Source> { it.nameUi })
+   val sourceTimeLimit by cv(200.millis).def(conf.sourceTimeLimit)
    val history = History()
    private val sourcesTS by sources.readOnlyThreadSafe()
+   private val sourceTimeLimitTS by sourceTimeLimit.readOnlyThreadSafe()
 
    fun buildUi(onAutoCompleted: (Entry) -> Unit = {}): Node {
       val tf = searchTextField()
       ConfigSearch(
          tf,
          history,
-         { text ->
-            when {
-               text.isEmpty() -> listOf()
-               else -> {
-                  val maxResults = 50
-                  val phrases = text.dropWhile { it == ' ' }.dropLastWhile { it == ' ' }.split(" ").toList()
-                  val results = sourcesTS.asSequence().flatMap { it.source(phrases) }.take(maxResults + 1).toList()
-                  if (results.size<maxResults + 1) results
-                  else results.dropLast(1) + SimpleEntry("more items...", null, { null }, {})
-               }
-            }
-         }
+         SuggestionProvider { text, isCancelled, emit -> search(text, RESULTS_MAX, isCancelled, emit) }
       ).apply {
          this.hideOnSuggestion.value = true
          this.onAutoCompleted += onAutoCompleted
@@ -48,32 +59,166 @@ class AppSearch: GlobalSubConfigDelegator(conf.name) {
       return tf
    }
 
-   class Source private constructor(override val nameUi: String, val source: (List<String>) -> Sequence<Entry>): NameUi {
+   /**
+    * Searches all [sources] for the specified text.
+    *
+    * @param text space separated phrases, blank text matches nothing
+    * @param resultsMax maximal number of results, if there are more, an entry indicating more results is appended
+    * @param isCancelled polled periodically, when true, search stops
+    * @param onResults invoked, on the current thread, with the best results found so far whenever they change and always
+    * at the end of the search, best first
+    */
+   @Blocking
+   fun search(text: String, resultsMax: Int, isCancelled: () -> Boolean = { false }, onResults: (List<Entry>) -> Unit) {
+      failIfFxThread()
+
+      val phrases = text.lowercase().split(" ").filter { it.isNotEmpty() }
+      if (phrases.isEmpty()) return onResults(listOf())
+
+      val sources = sourcesTS
+      val deadline = System.nanoTime() + sourceTimeLimitTS.toMillis().toLong()*1000_000L
+      val isExpired = { isCancelled() || System.nanoTime()>deadline }
+      val results = TopK(resultsMax)
+      var resultsReported = false
+      fun report() = onResults(results.sorted().map { it.match.entry } + (if (results.count>resultsMax) listOf(moreResultsEntry) else listOf()))
+
+      // results of every source, filled as found, so results of sources that do not complete in time are not lost
+      val sourcesResults = sources.map { TopK(resultsMax) }
+      val sourcesMerged = BooleanArray(sources.size)
+      val executor = Executors.newVirtualThreadPerTaskExecutor()
+      try {
+         val completion = ExecutorCompletionService<Int>(executor)
+         sources.forEachIndexed { i, source ->
+            completion.submit {
+               for ((j, m) in source.source(phrases).withIndex()) {
+                  if (isExpired()) break
+                  sourcesResults[i].add(Ranked(m, i, j))
+               }
+               i
+            }
+         }
+         for (n in sources.indices) {
+            val sourceCompleted = completion.poll(deadline - System.nanoTime(), NANOSECONDS) ?: break
+            if (isCancelled()) return
+            try {
+               val i = sourceCompleted.get()
+               sourcesMerged[i] = true
+               if (sourcesResults[i].count>0) {
+                  results.addAll(sourcesResults[i])
+                  report()
+                  resultsReported = true
+               }
+            } catch (e: ExecutionException) {
+               logger.error(e.cause) { "Search source failed" }
+            }
+         }
+      } finally {
+         // sources that did not complete within the time limit are abandoned
+         executor.shutdownNow()
+      }
+      if (isCancelled()) return
+      // partial results of sources that did not complete within the time limit
+      sourcesResults.forEachIndexed { i, r ->
+         if (!sourcesMerged[i] && r.count>0) {
+            results.addAll(r)
+            resultsReported = false
+         }
+      }
+      if (!resultsReported) report()
+   }
+
+   class Source private constructor(override val nameUi: String, val source: (List<String>) -> Sequence<Match>): NameUi {
       companion object {
-         operator fun <T> invoke(nameUi: String, source: ObservableList<T>) = SourceDef(nameUi) { source.materialize().asSequence() }
-         operator fun <T> invoke(nameUi: String, source: () -> Sequence<T>) = SourceDef(nameUi, source)
-         fun complete(nameUi: String, source: (List<String>) -> Sequence<Entry>) = Source(nameUi, source)
+         operator fun <T> invoke(nameUi: String, source: ObservableList<T>) = SourceDef(nameUi, source) { source.materialize().asSequence() }
+         operator fun <T> invoke(nameUi: String, source: () -> Sequence<T>) = SourceDef(nameUi, null, source)
+         /** @return source that filters the entries itself, entries are ranked in the provided order */
+         fun complete(nameUi: String, source: (List<String>) -> Sequence<Entry>) = Source(nameUi) { phrases -> source(phrases).map { e -> Match(SCORE_UNRANKED) { e } } }
+         /** @return source that filters and ranks the entries itself */
+         fun completeRanked(nameUi: String, source: (List<String>) -> Sequence<Match>) = Source(nameUi, source)
       }
    }
 
-   class SourceDef<T>(val nameUi: String, val source: () -> Sequence<T>) {
+   /**
+    * Search result with its relevance score in range 0..1, see [SearchableText.score].
+    * The entry is only created if the result makes it into the best results.
+    */
+   class Match(val score: Double, entry: () -> Entry) {
+      val entry by lazy(entry)
+   }
+
+   /**
+    * @param invalidatedBy if not null, search text of the items is computed once and cached until this observable
+    * invalidates, otherwise it is computed for every search
+    */
+   class SourceDef<T>(val nameUi: String, val invalidatedBy: ObservableList<*>?, val source: () -> Sequence<T>) {
       infix fun by(searchText: (T) -> String) = byAll(searchText)
-      infix fun byAll(searchText: (T) -> String) = SourceDef2(nameUi, source, searchText)
-      infix fun byAny(searchText: (T) -> String) = SourceDefAny(nameUi, source, searchText)
+      infix fun byAll(searchText: (T) -> String) = SourceDef2(nameUi, SearchableItems(source, searchText, invalidatedBy)) { it.scoreAll(this) }
+      infix fun byAny(searchText: (T) -> String) = SourceDef2(nameUi, SearchableItems(source, searchText, invalidatedBy)) { it.scoreAny(this) }
    }
 
-   class SourceDef2<T>(val nameUi: String, val source: () -> Sequence<T>, val searchText: (T) -> String) {
-      infix fun toSource(entryBuilder: (T) -> Entry) = Source.complete(nameUi) { phrases ->
-         source()
-            .filter { searchText(it).net { phrases.all { phrase -> it.contains(phrase, true) } } }
-            .map(entryBuilder)
+   class SourceDef2<T>(val nameUi: String, private val items: SearchableItems<T>, private val score: List<String>.(SearchableText) -> Double) {
+      infix fun toSource(entryBuilder: (T) -> Entry) = Source.completeRanked(nameUi) { phrases ->
+         items().mapNotNull { (item, text) ->
+            phrases.score(text).takeIf { it>0.0 }?.let { Match(it) { entryBuilder(item) } }
+         }
       }
    }
-   class SourceDefAny<T>(val nameUi: String, val source: () -> Sequence<T>, val searchText: (T) -> String) {
-      infix fun toSource(entryBuilder: (T) -> Entry) = Source.complete(nameUi) { phrases ->
-         source()
-            .filter { searchText(it).net { phrases.any { phrase -> it.contains(phrase, true) } } }
-            .map(entryBuilder)
+
+   /** Items of a source with their search text, cached if possible */
+   class SearchableItems<T>(private val source: () -> Sequence<T>, private val searchText: (T) -> String, invalidatedBy: ObservableList<*>?) {
+      @Volatile private var cache: List<Pair<T, SearchableText>>? = null
+      /** Incremented on every invalidation, so items computed before the invalidation are not cached */
+      private var cacheGeneration = 0L
+      private val isCacheable = invalidatedBy!=null
+
+      init {
+         invalidatedBy?.addListener(InvalidationListener { synchronized(this) { cacheGeneration++; cache = null } })
       }
+
+      operator fun invoke(): Sequence<Pair<T, SearchableText>> =
+         if (isCacheable) (cache ?: computeCache()).asSequence()
+         else source().map { it to SearchableText(searchText(it)) }
+
+      private fun computeCache(): List<Pair<T, SearchableText>> {
+         val generation = synchronized(this) { cacheGeneration }
+         val items = source().map { it to SearchableText(searchText(it)) }.toList()
+         synchronized(this) { if (generation==cacheGeneration) cache = items }
+         return items
+      }
+   }
+
+   private class Ranked(val match: Match, val sourceIndex: Int, val itemIndex: Int)
+
+   /** Best [k] results, by score and then by source and item order. Thread safe. */
+   private class TopK(val k: Int) {
+      private val heap = PriorityQueue(rankedOrder.reversed())
+      /** Number of all added results */
+      var count = 0
+         private set
+
+      @Synchronized
+      fun add(r: Ranked) {
+         count++
+         heap += r
+         if (heap.size>k) heap.poll()
+      }
+
+      @Synchronized
+      fun addAll(other: TopK) = synchronized(other) {
+         other.heap.forEach(::add)
+         count += other.count - other.heap.size
+      }
+
+      @Synchronized
+      fun sorted(): List<Ranked> = heap.sortedWith(rankedOrder)
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val RESULTS_MAX = 50
+      /** Score of results of sources that do not rank results, see [Source.complete] */
+      const val SCORE_UNRANKED = 0.5
+      private val rankedOrder = compareByDescending<Ranked> { it.match.score }.thenBy { it.sourceIndex }.thenBy { it.itemIndex }
+      private val moreResultsEntry = SimpleEntry("more items...", null, { null }, {})
    }
-}
\ No newline at end of file
+}
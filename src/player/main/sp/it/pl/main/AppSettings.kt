@@ -530,6 +530,23 @@ This adds/removes registry key HKEY_CLASSES_ROOT\*\shell\SpitPlayer. This may re
          /** Editability of the config. */
          override val editable = EditMode.USER
       }
+      /** Maximal time to search a single source. Slower sources stop searching and only results found within the limit are shown. */
+      object `sourceTimeLimit`: ConfigDefinition {
+         /** Compile-time constant equivalent to [name]. */
+         const val cname: String = """Source time limit"""
+         /** Compile-time constant equivalent to [info]. */
+         const val cinfo: String = """Maximal time to search a single source. Slower sources stop searching and only results found within the limit are shown."""
+         /** Compile-time constant equivalent to [group]. */
+         const val cgroup: String = """Search"""
+         /** Name of the config. */
+         override val name = cname
+         /** Group of the config. */
+         override val group = cgroup
+         /** Description of the config. */
+         override val info = cinfo
+         /** Editability of the config. */
+         override val editable = EditMode.USER
+      }
    }
    object `ui` {
       /** Name of the group. */
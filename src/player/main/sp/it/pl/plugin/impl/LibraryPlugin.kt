@@ -6,10 +6,11 @@ import java.nio.file.StandardWatchEventKinds.ENTRY_CREATE
 import java.nio.file.StandardWatchEventKinds.ENTRY_DELETE
 import sp.it.pl.audio.SimpleSong
 import sp.it.pl.audio.Song
+import sp.it.pl.audio.tagging.SongScanner
 import sp.it.pl.audio.tagging.addToLibTask
-import sp.it.pl.audio.tagging.removeMissingFromLibTask
+import sp.it.pl.audio.tagging.updateLibFromDirsTask
 import sp.it.pl.main.APP
-import sp.it.pl.main.findAudio
+import sp.it.pl.main.isAudio
 import sp.it.pl.main.withAppProgress
 import sp.it.pl.plugin.PluginBase
 import sp.it.pl.plugin.PluginInfo
@@ -17,21 +18,27 @@ import sp.it.util.async.executor.EventReducer
 import sp.it.util.async.future.runAndGet
 import sp.it.util.async.runVT
 import sp.it.util.collections.materialize
+import sp.it.util.conf.between
 import sp.it.util.conf.butElement
 import sp.it.util.conf.cList
 import sp.it.util.conf.cr
 import sp.it.util.conf.cv
 import sp.it.util.conf.def
+import sp.it.util.conf.min
 import sp.it.util.conf.only
 import sp.it.util.conf.readOnlyUnless
-import sp.it.util.file.FileMonitor
 import sp.it.util.file.FileMonitor.Companion.monitorDirectory
+import sp.it.util.file.FileTreeMonitor.Companion.monitorFileTree
+import sp.it.util.file.FileTreeMonitor.WatchBudget
 import sp.it.util.file.FileType.DIRECTORY
 import sp.it.util.file.isAnyChildOf
 import sp.it.util.functional.invoke
+import sp.it.util.functional.net
+import sp.it.util.reactive.Disposer
 import sp.it.util.reactive.Subscribed
 import sp.it.util.reactive.Subscription
 import sp.it.util.reactive.onItemAdded
+import sp.it.util.reactive.on
 import sp.it.util.reactive.onItemRemoved
 import sp.it.util.reactive.sync
 import sp.it.util.system.Os
@@ -60,13 +67,26 @@ class LibraryPlugin: PluginBase() {
       info = "Remove non-existent songs and add new songs from location"
    )
 
-   val dirMonitoringSupported = Os.WINDOWS.isCurrent
+   val readParallelism by cv(SongScanner.parallelismDefault).between(1, 64).def(
+      name = "Read parallelism",
+      info = "Maximal number of song files read at once when adding songs to library or reading them. " +
+         "Higher values help with network or solid state storage, lower values with spinning disks."
+   )
+
+   val dirMonitoringSupported = Os.WINDOWS.isCurrent || Os.UNIX.isCurrent
    val dirMonitoringEnabled by cv(false).readOnlyUnless(dirMonitoringSupported).def(
       name = "Monitor files",
       info = "Monitor all locations recursively and automatically update library by adding/removing songs. On some system, file may be unsupported and disabled."
    )
+   val dirMonitoringWatchLimit by cv(8192).min(16).readOnlyUnless(Os.UNIX.isCurrent).def(
+      name = "Monitor files watch limit",
+      info = "Maximal number of monitored directories (on Linux, every directory requires a watch). " +
+         "Should be well below the system limit `fs.inotify.max_user_watches`, which is shared by all applications. " +
+         "Directories over the limit are not monitored."
+   )
 
-   private val dirMonitors = HashMap<File, FileMonitor>()
+   private val dirMonitors = HashMap<File, Subscription>()
+   private val dirMonitorsBudget = WatchBudget(dirMonitoringWatchLimit.value)
    private val dirMonitoring = Subscribed {
       when {
          dirMonitoringSupported -> Subscription(
@@ -78,16 +98,20 @@ class LibraryPlugin: PluginBase() {
    }
    private val toBeAdded = HashSet<File>()
    private val toBeRemoved = HashSet<File>()
+   private val toBeRescanned = HashSet<File>()
    private val update = EventReducer.toLast<Unit>(2000.0) { updateLibraryFromEvents() }
+   private val onStop = Disposer()
 
    override fun start() {
+      dirMonitoringWatchLimit sync { dirMonitorsBudget.max = it } on onStop
       dirMonitoring.subscribe()
       if (updateOnStart.value) updateLibrary()
    }
 
    override fun stop() {
+      onStop()
       dirMonitoring.unsubscribe()
-      dirMonitors.values.forEach { it.stop() }
+      dirMonitors.values.forEach { it.unsubscribe() }
       dirMonitors.clear()
       updateLibraryFromEvents()
    }
@@ -97,7 +121,7 @@ class LibraryPlugin: PluginBase() {
 
       val wasDuplicate = dir in sourceDirs
       if (!wasDuplicate) {
-         dirMonitors.remove(dir)?.stop()
+         dirMonitors.remove(dir)?.unsubscribe()
          sourceDirs.forEach { handleLocationAdded(it) }  // starts monitoring previously shadowed directories
       }
    }
@@ -109,19 +133,31 @@ class LibraryPlugin: PluginBase() {
       val isShadowed = dirMonitors.keys.any { monitoredDir -> dir isAnyChildOf monitoredDir }
       val needsMonitoring = !isDuplicate && !isShadowed
       if (needsMonitoring) {
-         dirMonitors[dir] = monitorDirectory(dir, true) { type, file ->
-            when (type) {
-               ENTRY_CREATE -> {
-                  toBeRemoved -= file
-                  toBeAdded += file
-                  update()
+         dirMonitors[dir] = when {
+            // native recursive monitoring
+            Os.WINDOWS.isCurrent -> monitorDirectory(dir, true) { type, file ->
+               when (type) {
+                  ENTRY_CREATE -> {
+                     toBeRemoved -= file
+                     toBeAdded += file
+                     update()
+                  }
+                  ENTRY_DELETE -> {
+                     toBeAdded -= file
+                     toBeRemoved += file
+                     update()
+                  }
                }
-               ENTRY_DELETE -> {
-                  toBeAdded -= file
-                  toBeRemoved += file
-                  update()
-               }
-            }
+            }.net { Subscription { it.stop() } }
+            // watch per directory
+            else -> monitorFileTree(dir, dirMonitorsBudget, { it.isAudio() }) { changes ->
+               toBeRemoved -= changes.added
+               toBeAdded += changes.added
+               toBeAdded -= changes.removed
+               toBeRemoved += changes.removed
+               toBeRescanned += changes.rescanned
+               update()
+            }.net { Subscription { it.stop() } }
          }
       }
    }
@@ -129,29 +165,49 @@ class LibraryPlugin: PluginBase() {
    private fun updateLibraryFromEvents() {
       val toAdd = toBeAdded.materialize()
       val toRem = toBeRemoved.materialize()
+      val toRescan = toBeRescanned.materialize()
       toBeAdded.clear()
       toBeRemoved.clear()
+      toBeRescanned.clear()
+      if (toAdd.isEmpty() && toRem.isEmpty() && toRescan.isEmpty()) return
 
       APP.plugins.use<Notifier> {
          it.showTextNotification(
             "Library file change",
-            "Some song files in library changed\n\tAdded: ${"file".pluralUnit(toAdd.size)}\n\tRemoved: ${"file".pluralUnit(toRem.size)}"
+            "Some song files in library changed\n\tAdded: ${"file".pluralUnit(toAdd.size)}\n\tRemoved: ${"file".pluralUnit(toRem.size)}" +
+               (if (toRescan.isEmpty()) "" else "\n\tRescanned: ${"directory".pluralUnit(toRescan.size)}")
          )
       }
 
       runVT {
-         Song.addToLibTask(toAdd.map { SimpleSong(it) }).runAndGet()
-         APP.db.removeSongs(toRem.map { SimpleSong(it) })
+         Song.addToLibTask(toAdd.map { SimpleSong(it) }).also { it.withAppProgress() }.runAndGet()
+         // removed file may be a directory, in which case all songs within it are removed
+         if (toRem.isNotEmpty()) {
+            val toRemPaths = toRem.mapTo(HashSet()) { it.path }
+            APP.db.removeSongs(
+               APP.db.songsById.filter { m -> m.getFile()?.path?.isWithinAny(toRemPaths)==true }
+            )
+         }
+         if (toRescan.isNotEmpty())
+            Song.updateLibFromDirsTask(toRescan, true).also { it.withAppProgress() }.runAndGet()
       }.withAppProgress("Updating song library from detected changes")
    }
 
    fun updateLibrary() {
       val dirs = sourceDirs.materialize()
       runVT {
-         val songs = findAudio(dirs).map { SimpleSong(it) }.toList()
-         Song.addToLibTask(songs).runAndGet()
-         Song.removeMissingFromLibTask().run()
-      }.withAppProgress("Updating song library from locations")
+         Song.updateLibFromDirsTask(dirs).also { it.withAppProgress() }.runAndGet()
+      }
+   }
+
+   /** @return whether this path or any of its parent paths is in the specified paths */
+   private fun String.isWithinAny(paths: Set<String>): Boolean {
+      var end = length
+      while (end>0) {
+         if (substring(0, end) in paths) return true
+         end = lastIndexOf(File.separatorChar, end - 1)
+      }
+      return false
    }
 
    companion object: PluginInfo {
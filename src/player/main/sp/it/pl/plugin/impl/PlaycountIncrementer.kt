@@ -4,7 +4,6 @@ import javafx.util.Duration.seconds
 import sp.it.pl.audio.playback.PlayTimeHandler
 import sp.it.pl.audio.playback.PlayTimeHandler.Companion.at
 import sp.it.pl.audio.tagging.Metadata
-import sp.it.pl.audio.tagging.write
 import sp.it.pl.main.APP
 import sp.it.pl.plugin.PluginBase
 import sp.it.pl.plugin.PluginInfo
@@ -19,6 +18,7 @@ import sp.it.pl.plugin.impl.PlaycountIncrementer.PlaycountIncStrategy.ON_TIME_AN
 import sp.it.pl.plugin.impl.PlaycountIncrementer.PlaycountIncStrategy.ON_TIME_OR_PERCENT
 import sp.it.util.action.IsAction
 import sp.it.util.async.runFX
+import sp.it.util.async.runIO
 import sp.it.util.conf.between
 import sp.it.util.conf.cv
 import sp.it.util.conf.def
@@ -56,7 +56,7 @@ class PlaycountIncrementer: PluginBase() {
       }
       .def(name = "Show notification (update)", info = "Shows notification when playcount is incremented.")
    val delay by cv(true)
-      .def(name = "Delay writing", info = "Delays editing tag until different song starts playing." +
+      .def(name = "Delay writing", info = "Delays incrementing until different song starts playing. The tag itself is written later, see playback play statistics write period." +
          "\n\n* May improve playback experience." +
          "\n\n* Reduces consecutive updates to a single update."
       )
@@ -95,11 +95,7 @@ class PlaycountIncrementer: PluginBase() {
             queue += song
             APP.actionStream(PlaycountIncScheduled(song))
          } else {
-            val by = 1
-            val to = song.getPlaycountOr0() + by
-            song.write({ it.setPlaycount(to) }) {
-               if (it.isOk) APP.actionStream(PlaycountInc(song, by, to))
-            }
+            incrementBy(song, 1)
          }
       }
    }
@@ -140,10 +136,15 @@ class PlaycountIncrementer: PluginBase() {
       val by = queue.count { it.same(song) }
       if (by>0) {
          queue.removeIf { it.same(song) }
-         val to = song.getPlaycountOr0() + by
-         song.write({ it.setPlaycount(to) }) {
-            if (it.isOk) APP.actionStream(PlaycountInc(song, by, to))
-         }
+         incrementBy(song, by)
+      }
+   }
+
+   private fun incrementBy(song: Metadata, by: Int) {
+      runIO {
+         APP.audio.playStats.record(song, playcountBy = by)
+      } ui {
+         if (it!=null) APP.actionStream(PlaycountInc(song, by, it.getPlaycountOr0()))
       }
    }
 
@@ -5,9 +5,11 @@ import java.lang.String.CASE_INSENSITIVE_ORDER
 import java.net.URI
 import java.util.concurrent.ConcurrentHashMap
 import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.FileFingerprintsDB
 import sp.it.pl.audio.MetadatasDB
 import sp.it.pl.audio.SimpleSong
 import sp.it.pl.audio.Song
+import sp.it.pl.audio.SongChanges
 import sp.it.pl.audio.playlist.toAbsoluteURIOrNull
 import sp.it.pl.audio.tagging.Metadata
 import sp.it.pl.audio.tagging.read
@@ -16,11 +18,13 @@ import sp.it.pl.core.CoreSerializer
 import sp.it.pl.layout.controller.io.Output
 import sp.it.pl.layout.controller.io.appWide
 import sp.it.pl.main.APP
+import sp.it.pl.main.App.Rank.MASTER
 import sp.it.pl.main.withAppProgress
+import sp.it.pl.plugin.impl.SongDbJournal.Op.Delete
+import sp.it.pl.plugin.impl.SongDbJournal.Op.Upsert
 import sp.it.util.async.future.Fut
 import sp.it.util.async.runFX
 import sp.it.util.async.runNew
-import sp.it.util.async.runVT
 import sp.it.util.collections.mapset.MapSetRO
 import sp.it.util.dev.ThreadSafe
 import sp.it.util.file.div
@@ -30,6 +34,11 @@ import sp.it.util.file.writeSafely
 import sp.it.util.functional.net
 import sp.it.util.functional.orAlsoTry
 import sp.it.util.functional.orNull
+import sp.it.util.math.max
+import sp.it.util.text.FulltextIndex
+import sp.it.util.text.FulltextIndex.Match
+import sp.it.util.text.FulltextIndex.Match.CONTAINS
+import sp.it.util.text.FulltextIndex.WeightedText
 import sp.it.util.type.type
 import sp.it.util.units.uuid
 
@@ -46,16 +55,26 @@ class SongDb {
    /** All library songs by [Song.id]. This is in memory db and should be used as read-only. */
    @ThreadSafe @Volatile var songsById = MapSetRO(mapOf<String, Metadata>(), { it.id })
 
+   /**
+    * Fulltext index of [songsById] by [Song.id], updated whenever the library changes.
+    * Searches all text fields, ranking matches by [Metadata.Field] weight, see [fulltextWeight].
+    */
+   @ThreadSafe val songsIndex = FulltextIndex<String>()
+
    /** Map of unique values per field gathered from [songsById], sorted by [CASE_INSENSITIVE_ORDER] ASC. */
    @ThreadSafe val itemUniqueValuesByField = ConcurrentHashMap<Metadata.Field<*>, LinkedHashSet<String>>()
    val songListFile = APP.location.user.library/"MetadataIdsDB.txt"
+   /** Feed of library changes, published whenever the in memory db changes */
+   val changes = SongChanges()
+   /** Changes to the library since the last persisted [MetadatasDB] snapshot */
+   private val journal = SongDbJournal(APP.location.user.library/"MetadatasDB.journal")
 
    fun init() {
       if (running) return
       running = true
 
       moods = APP.location.resources.moods_yml.readTextTry().orNull().orEmpty().lineSequence().filterNot { it.startsWith("#") || it.isBlank() }.sorted().toCollection(LinkedHashSet())
-      runVT { updateInMemoryDbFromPersisted() }.withAppProgress("Loading song database")
+      CoreSerializer.useAtomically { updateInMemoryDbFromPersisted() }.withAppProgress("Loading song database")
    }
 
    fun stop() {
@@ -72,63 +91,134 @@ class SongDb {
    /** @return item from library with the specified URI or null if not found */
    fun getSong(uri: URI): Metadata? = songsById[uri.toString()]
 
+   /** @return library songs matching all terms of the specified query, best match first, see [songsIndex] */
+   @ThreadSafe
+   fun searchSongs(query: String, match: Match = CONTAINS, limit: Int = Int.MAX_VALUE): List<Metadata> {
+      val songs = songsById
+      return songsIndex.search(query, match, limit).mapNotNull { songs[it.key] }
+   }
+
    @Blocking
-   private fun getAllSongs(): MetadatasDB = CoreSerializer.readSingleStorage<MetadatasDB>()
-      .orAlsoTry {
-         val songs = songListFile.useLines { it.toList() }
-         val songsById = songs
-            .mapNotNull { id -> id.toAbsoluteURIOrNull()?.net { id to it } }
-            .associate { (id, uri) ->
-               id to SimpleSong(uri).net {
-                  it.read().takeUnless { it.isEmpty() } ?: it.toMeta()
+   private fun getAllSongs(): MetadatasDB {
+      val ms = CoreSerializer.readSingleStorage<MetadatasDB>()
+         .orAlsoTry {
+            val songs = songListFile.useLines { it.toList() }
+            val songsById = songs
+               .mapNotNull { id -> id.toAbsoluteURIOrNull()?.net { id to it } }
+               .associate { (id, uri) ->
+                  id to SimpleSong(uri).net {
+                     it.read().takeUnless { it.isEmpty() } ?: it.toMeta()
+                  }
                }
-            }
-         MetadatasDB(songsById)
-      }
-      .orNull() ?: MetadatasDB()
+            MetadatasDB(songsById)
+         }
+         .orNull() ?: MetadatasDB()
+      journal.replay(ms)
+      return ms
+   }
 
    fun addSongs(songs: Collection<Metadata>) {
       if (songs.isEmpty()) return
 
       CoreSerializer.useAtomically {
-         val ms = MetadatasDB(songsById.backingMap())
-         songs.forEach { ms[it.id] = it }
-         songListFile.writeSafely { ms.keys.asSequence().writeLnToFileTry(it) }.orThrow
-         writeSingleStorage(ms)
-         updateInMemoryDbFromPersisted()
+         // library added time may be stored only in db, songs are copied, as they may still be used by the caller
+         val ss = songs.map { it.withLibraryAddedIfEmpty(songsById[it.id]) }
+         if (APP.rank==MASTER) journal.append(ss.map { Upsert(it) })
+         updateInMemoryDb { ms -> ss.forEach { ms[it.id] = it } }
       }
    }
 
+   /**
+    * Applies the specified change to the library song with the specified id, reading and writing it in one serialized
+    * step, so changes done concurrently are not lost.
+    *
+    * @return future of the changed song or null if the song is not in library
+    */
+   fun updateSong(id: String, change: (Metadata) -> Metadata): Fut<Metadata?> {
+      var songChanged: Metadata? = null
+      return CoreSerializer.useAtomically {
+         val s = songsById[id]?.let(change) ?: return@useAtomically
+         if (APP.rank==MASTER) journal.append(listOf(Upsert(s)))
+         updateInMemoryDb { ms -> ms[s.id] = s }
+         songChanged = s
+      }.then { songChanged }
+   }
+
    fun removeSongs(songs: Collection<Song>) {
       if (songs.isEmpty()) return
 
       CoreSerializer.useAtomically {
-         val ms = MetadatasDB(songsById.backingMap())
-         songs.forEach { ms.remove(it.id) }
-         songListFile.writeSafely { ms.keys.asSequence().writeLnToFileTry(it) }.orThrow
-         writeSingleStorage(ms)
-         updateInMemoryDbFromPersisted()
+         if (APP.rank==MASTER) journal.append(songs.map { Delete(it.id) })
+         updateInMemoryDb { ms -> songs.forEach { ms.remove(it.id) } }
       }
+   }
+
+   /** @return persisted fingerprints of library song files or empty if none */
+   @Blocking
+   fun getFingerprints(): FileFingerprintsDB = CoreSerializer.readSingleStorage<FileFingerprintsDB>().orNull() ?: FileFingerprintsDB()
 
+   /** Persists the specified fingerprints of library song files, replacing the previous ones. */
+   fun setFingerprints(fingerprints: FileFingerprintsDB): Fut<Unit> = CoreSerializer.useAtomically {
+      writeSingleStorage(fingerprints)
    }
 
    fun removeAllSongs() {
       CoreSerializer.useAtomically {
-         songListFile.writeSafely { sequenceOf<String>().writeLnToFileTry(it) }.orThrow
-         writeSingleStorage(MetadatasDB())
-         updateInMemoryDbFromPersisted()
+         compact(MetadatasDB())
+         writeSingleStorage(FileFingerprintsDB())
+         setInMemoryDB(mapOf())
       }
    }
 
-   private fun setInMemoryDB(l: List<Metadata>) {
-      songsById = MapSetRO(l, { it.id })
+   /** Applies the specified change to a copy of the in memory db, without reading the persisted db. Must be called within [CoreSerializer.useAtomically]. */
+   private fun CoreSerializer.updateInMemoryDb(change: (MutableMap<String, Metadata>) -> Unit) {
+      val ms = HashMap(songsById.backingMap())
+      change(ms)
+      setInMemoryDB(ms)
+      compactIfNeeded()
+   }
+
+   /** Compacts the db if the [journal] is too big in relation to the library. Must be called within [CoreSerializer.useAtomically]. */
+   private fun CoreSerializer.compactIfNeeded() {
+      if (journal.recordCount>=(COMPACTION_RECORDS_MIN max songsById.size/COMPACTION_RECORDS_RATIO))
+         compact(MetadatasDB(songsById.backingMap()))
+   }
+
+   /** Persists the specified songs as a new snapshot and clears the journal. Must be called within [CoreSerializer.useAtomically]. */
+   private fun CoreSerializer.compact(ms: MetadatasDB) {
+      if (APP.rank!=MASTER) return
+
+      songListFile.writeSafely { ms.keys.asSequence().writeLnToFileTry(it) }.orThrow
+      writeSingleStorage(ms).orThrow
+      journal.clear()
+   }
+
+   private fun setInMemoryDB(ms: Map<String, Metadata>) {
+      val msOld = songsById.backingMap()
+      songsById = MapSetRO(ms, { it.id })
+      changes.publish(msOld, ms)
+      updateSongsIndex(msOld, ms)
       updateSongValues()
 
+      val l = ms.values.toList()
       runFX {
          songs.value = l
       }
    }
 
+   /** Updates [songsIndex] with songs that differ between the specified db versions, so only changed songs are tokenized. */
+   private fun updateSongsIndex(msOld: Map<String, Metadata>, ms: Map<String, Metadata>) {
+      if (ms.isEmpty()) {
+         songsIndex.clear()
+      } else {
+         songsIndex.removeAll(msOld.keys.filter { it !in ms })
+         songsIndex.putAll(ms.filter { (id, m) -> msOld[id]!==m }.mapValues { (_, m) -> m.toIndexed() })
+      }
+   }
+
+   private fun Metadata.toIndexed(): List<WeightedText> =
+      Metadata.FIELDS_FULLTEXT.mapNotNull { f -> f.getOf(this)?.takeIf { it.isNotBlank() }?.net { WeightedText(it, f.fulltextWeight) } }
+
    private fun updateSongValues() {
       itemUniqueValuesByField.clear()
       Metadata.Field.all.asSequence()
@@ -142,8 +232,12 @@ class SongDb {
       itemUniqueValuesByField[Metadata.Field.MOOD] = moods
    }
 
-   @ThreadSafe
-   fun updateInMemoryDbFromPersisted() = setInMemoryDB(getAllSongs().values.toList())
+   /** Loads persisted db into memory, including recovery of changes from journal. Must be called within [CoreSerializer.useAtomically]. */
+   @Blocking
+   fun updateInMemoryDbFromPersisted() {
+      setInMemoryDB(getAllSongs())
+      CoreSerializer.compactIfNeeded()
+   }
 
    @ThreadSafe
    fun refreshSongsFromFile(songs: List<Song>) {
@@ -160,4 +254,22 @@ class SongDb {
       }
    }
 
+   companion object {
+      /** Weight of matches within the field in [songsIndex] */
+      val Metadata.Field<*>.fulltextWeight: Float
+         get() = when (this) {
+            Metadata.Field.TITLE -> 8f
+            Metadata.Field.ARTIST -> 6f
+            Metadata.Field.ALBUM_ARTIST -> 5f
+            Metadata.Field.ALBUM -> 4f
+            Metadata.Field.COMMENT -> 2f
+            else -> 1f
+         }
+
+      /** Minimal number of [journal] records to compact the db */
+      private const val COMPACTION_RECORDS_MIN = 1000
+      /** Compact the db when [journal] has more records than library size divided by this number */
+      private const val COMPACTION_RECORDS_RATIO = 4
+   }
+
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package sp.it.pl.plugin.impl
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.zip.CRC32
+import org.jetbrains.annotations.Blocking
+import sp.it.pl.audio.tagging.Metadata
+import sp.it.pl.core.CoreSerializer
+import sp.it.pl.main.APP
+import sp.it.pl.main.App.Rank.MASTER
+import sp.it.util.file.parentDirOrRoot
+import sp.it.util.functional.orNull
+
+/**
+ * Append-only journal of [SongDb] changes, applied on top of the last persisted [sp.it.pl.audio.MetadatasDB] snapshot.
+ *
+ * Every change is appended as a self-contained record, so a single song update costs O(1) I/O instead of rewriting
+ * the whole library. The journal is replayed on top of the snapshot when the database loads and cleared when the
+ * snapshot is compacted, see [SongDb].
+ *
+ * Record layout: `length: Int`, `crc32: Int`, `type: Byte`, `payload: ByteArray(length)`.
+ * Records are idempotent, so replaying journal over a snapshot that already contains some of them is harmless, which
+ * makes crash between snapshot write and journal clearing safe. Incomplete or corrupted tail (e.g. due to crash during
+ * append) is detected by the checksum and truncated on [replay], if this is the [sp.it.pl.main.App.Rank.MASTER] instance.
+ *
+ * Not thread-safe, must be used from within [CoreSerializer.useAtomically].
+ */
+class SongDbJournal(val file: File) {
+
+   /** Number of records in the journal, valid after [replay] */
+   var recordCount = 0
+      private set
+
+   /** Size of the journal in bytes, valid after [replay] */
+   var byteCount = 0L
+      private set
+
+   /** Appends the specified operations as records and flushes them to the storage device. */
+   @Blocking
+   fun append(ops: Collection<Op>) {
+      if (ops.isEmpty()) return
+
+      val records = ops.map { it.toRecord() }
+      val buffer = ByteBuffer.allocate(records.sumOf { HEADER_SIZE + it.second.size })
+      records.forEach { (type, payload) ->
+         val crc = CRC32().apply { update(type.toInt()); update(payload) }
+         buffer.putInt(payload.size).putInt(crc.value.toInt()).put(type).put(payload)
+      }
+      buffer.flip()
+
+      file.parentDirOrRoot.mkdirs()
+      FileChannel.open(file.toPath(), CREATE, WRITE, APPEND).use { ch ->
+         while (buffer.hasRemaining()) ch.write(buffer)
+         ch.force(false)
+      }
+      recordCount += records.size
+      byteCount += buffer.limit()
+   }
+
+   /**
+    * Applies all valid records to the specified songs in the order they were appended.
+    * Truncates the invalid tail of the journal, if any.
+    */
+   @Blocking
+   fun replay(songs: MutableMap<String, Metadata>) {
+      recordCount = 0
+      byteCount = 0L
+      if (!file.exists()) return
+
+      var validLength = 0L
+      DataInputStream(file.inputStream().buffered()).use { input ->
+         while (true) {
+            val op = try {
+               val length = input.readInt()
+               val crcExpected = input.readInt()
+               val type = input.readByte()
+               if (length<0 || length>file.length()) break
+               val payload = ByteArray(length).also(input::readFully)
+               val crc = CRC32().apply { update(type.toInt()); update(payload) }
+               if (crc.value.toInt()!=crcExpected) break
+               validLength += HEADER_SIZE + length
+               type.toOp(payload)
+            } catch (e: EOFException) {
+               break
+            }
+
+            when (op) {
+               is Op.Upsert -> songs[op.song.id] = op.song
+               is Op.Delete -> songs -= op.id
+               null -> Unit
+            }
+            recordCount++
+         }
+      }
+
+      if (validLength<file.length()) {
+         // slave may see a record the master is still appending, only master repairs the journal
+         if (APP.rank==MASTER) {
+            logger.warn { "Song database journal=$file has corrupted tail, truncating ${file.length() - validLength} bytes" }
+            FileChannel.open(file.toPath(), WRITE).use { it.truncate(validLength) }
+         } else {
+            logger.warn { "Song database journal=$file has corrupted tail, ignoring ${file.length() - validLength} bytes" }
+         }
+      }
+      byteCount = validLength
+      logger.info { "Replayed $recordCount song database journal records" }
+   }
+
+   /** Removes all records. Call after the snapshot containing all the journal changes has been persisted. */
+   @Blocking
+   fun clear() {
+      if (file.exists())
+         FileChannel.open(file.toPath(), WRITE).use { it.truncate(0); it.force(false) }
+      recordCount = 0
+      byteCount = 0L
+   }
+
+   private fun Op.toRecord(): Pair<Byte, ByteArray> = when (this) {
+      is Op.Upsert -> TYPE_UPSERT to CoreSerializer.writeBytes(song).orThrow
+      is Op.Delete -> TYPE_DELETE to id.toByteArray(Charsets.UTF_8)
+   }
+
+   private fun Byte.toOp(payload: ByteArray): Op? = when (this) {
+      TYPE_UPSERT -> CoreSerializer.readBytes(payload, Metadata::class)
+         .ifError { logger.warn(it) { "Failed to read song from song database journal record" } }
+         .map { Op.Upsert(it) }
+         .orNull()
+      TYPE_DELETE -> Op.Delete(String(payload, Charsets.UTF_8))
+      else -> null.also { logger.warn { "Unknown song database journal record type=$this" } }
+   }
+
+   /** Journal operation */
+   sealed interface Op {
+      /** Song was added or updated */
+      data class Upsert(val song: Metadata): Op
+      /** Song with the specified [Metadata.id] was removed */
+      data class Delete(val id: String): Op
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val HEADER_SIZE = 4 + 4 + 1
+      private const val TYPE_UPSERT: Byte = 1
+      private const val TYPE_DELETE: Byte = 2
+   }
+
+}
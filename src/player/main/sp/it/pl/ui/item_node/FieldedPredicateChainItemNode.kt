@@ -13,6 +13,8 @@ import javafx.scene.input.KeyEvent
 import javafx.util.Callback
 import kotlin.streams.asSequence
 import sp.it.pl.ui.item_node.FieldedPredicateItemNode.PredicateData
+import sp.it.util.access.fieldvalue.FieldPredicate
+import sp.it.util.access.fieldvalue.FieldPredicates
 import sp.it.util.access.fieldvalue.ObjectField
 import sp.it.util.functional.Util.IS
 import sp.it.util.functional.asIs
@@ -69,8 +71,16 @@ open class FieldedPredicateChainItemNode<T, F: ObjectField<T, Any?>>: ChainValue
       generateValue()
    }
 
-   override fun reduce(values: Stream<Predicate<T>>): Predicate<T> =
-      values.asSequence().fold(IS.asIs(), Predicate<T>::and)
+   /** @return conjunction of the predicates, [FieldPredicates] if possible, so it can be evaluated by [sp.it.util.access.fieldvalue.ColumnarFilter] */
+   override fun reduce(values: Stream<Predicate<T>>): Predicate<T> {
+      val predicates = values.asSequence().filter { it!==IS }.toList()
+      return when {
+         predicates.isEmpty() -> IS.asIs()
+         predicates.size==1 -> predicates.first()
+         predicates.all { it is FieldPredicate<*, *> } -> FieldPredicates(predicates.map { it.asIs<FieldPredicate<T, *>>() })
+         else -> predicates.fold(IS.asIs(), Predicate<T>::and)
+      }
+   }
 
    fun buildToggleOnKeyHandler(filterVisible: WritableValue<Boolean>, owner: Node) = EventHandler<KeyEvent> { e ->
       if (!e.isConsumed) {
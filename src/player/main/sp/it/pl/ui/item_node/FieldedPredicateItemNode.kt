@@ -12,6 +12,7 @@ import sp.it.pl.core.CoreFunctors.pool
 import sp.it.pl.main.AppTexts
 import sp.it.pl.ui.objects.SpitComboBox
 import sp.it.pl.ui.objects.icon.CheckIcon
+import sp.it.util.access.fieldvalue.FieldPredicate
 import sp.it.util.access.fieldvalue.ObjectField
 import sp.it.util.collections.list.PrefList
 import sp.it.util.collections.setTo
@@ -112,23 +113,15 @@ class FieldedPredicateItemNode<V, F: ObjectField<V, *>?>: ValueNode<Predicate<V>
          val p = config!!.value
          val o = typeCB.value?.value
          if (p!=null && o!=null) {
-            var pr = predicate(o, p)
-            if (negB.selected.value) pr = pr.negate()
-            changeValue(pr)
+            changeValue(predicate(o, p, negB.selected.value))
          }
       }
    }
 
    override fun getNode() = root
 
-   private fun <V, T> predicate(field: ObjectField<V, T>, f: (T) -> Boolean): Predicate<V> =
-      when {
-         f===Util.IS0 || f===Util.ISNT0 || f===IS || f===Util.ISNT || (f is TypeAwareF<*, *> && f.typeIn.isNullable) -> Predicate { f(field.getOf(it)) }
-         else -> Predicate { element: V ->
-            val o = field.getOf(element)
-            o!=null && f(o)
-         }
-      }
+   private fun <V, T> predicate(field: ObjectField<V, T>, f: (T) -> Boolean, isNegated: Boolean): Predicate<V> =
+      FieldPredicate(field, f, f===Util.IS0 || f===Util.ISNT0 || f===IS || f===Util.ISNT || (f is TypeAwareF<*, *> && f.typeIn.isNullable), isNegated)
 
    @JvmRecord
    data class PredicateData<T>(val name: String, val type: VType<*>, val value: T) {
@@ -36,6 +36,7 @@ import javafx.scene.input.KeyEvent.KEY_PRESSED
 import javafx.scene.input.MouseButton.PRIMARY
 import javafx.scene.input.MouseEvent.MOUSE_CLICKED
 import javafx.scene.input.MouseEvent.MOUSE_PRESSED
+import sp.it.pl.ui.objects.autocomplete.AutoCompletionBinding.SuggestionProvider
 import sp.it.util.functional.asIf
 import sp.it.util.reactive.Disposer
 import sp.it.util.reactive.Subscription
@@ -59,7 +60,11 @@ open class AutoCompletion<T>: AutoCompletionBinding<T> {
    protected val disposer = Disposer()
 
    /** Creates an auto-completion binding between the specified textField and suggestions. */
-   internal constructor(textField: TextInputControl, suggestionProvider: (String) -> Collection<T>, converter: (T) -> String): super(textField, suggestionProvider, converter) {
+   internal constructor(textField: TextInputControl, suggestionProvider: (String) -> Collection<T>, converter: (T) -> String):
+      this(textField, SuggestionProvider { text, _, emit -> emit(suggestionProvider(text)) }, converter)
+
+   /** Creates an auto-completion binding between the specified textField and progressively computed suggestions. */
+   internal constructor(textField: TextInputControl, suggestionProvider: SuggestionProvider<T>, converter: (T) -> String): super(textField, suggestionProvider, converter) {
       this.completionTargetTyped = textField
       this.converter = converter
 
@@ -29,10 +29,12 @@
 
 package sp.it.pl.ui.objects.autocomplete
 
+import java.util.concurrent.atomic.AtomicLong
 import javafx.scene.Node
 import javafx.stage.WindowEvent.WINDOW_HIDDEN
 import javafx.stage.WindowEvent.WINDOW_SHOWING
 import javafx.util.StringConverter
+import sp.it.pl.ui.objects.autocomplete.AutoCompletionBinding.SuggestionProvider
 import sp.it.util.access.v
 import sp.it.util.async.executor.EventReducer
 import sp.it.util.async.executor.EventReducer.Companion.toLast
@@ -63,6 +65,8 @@ abstract class AutoCompletionBinding<T> {
    protected val popup = lazy { buildPopup().apply { initPopup(this) } }
    /** AutoEvent reducer for [updateSuggestions] to reduce the number of suggestions evaluation calls. */
    protected val suggestionProviderEventReducer: EventReducer<String>
+   /** Id of the last suggestions computation, suggestions of previous computations are discarded. */
+   private val suggestionsId = AtomicLong(0)
    /** If true, all user input changes are ignored. Primary used to avoid self triggering while auto-completing. */
    protected var ignoreInputChanges = false
    /** Auto-completion handlers */
@@ -81,20 +85,35 @@ abstract class AutoCompletionBinding<T> {
     * @param suggestionProvider The strategy to retrieve suggestions
     * @param converter The converter to be used to convert suggestions to strings
     */
-   protected constructor(completionTarget: Node, suggestionProvider: (String) -> Collection<T>, converter: (T) -> String) {
+   protected constructor(completionTarget: Node, suggestionProvider: (String) -> Collection<T>, converter: (T) -> String):
+      this(completionTarget, SuggestionProvider { text, _, emit -> emit(suggestionProvider(text)) }, converter)
+
+   /**
+    * Creates a new AutoCompletionBinding
+    *
+    * @param completionTarget The target node to which auto-completion shall be added
+    * @param suggestionProvider The strategy to retrieve suggestions, possibly progressively
+    * @param converter The converter to be used to convert suggestions to strings
+    */
+   protected constructor(completionTarget: Node, suggestionProvider: SuggestionProvider<T>, converter: (T) -> String) {
       this.converter = converter
       this.completionTarget = completionTarget
       this.suggestionProviderEventReducer = toLast(250.0) { text ->
+         val id = suggestionsId.incrementAndGet()
+         val isCancelled = { id!=suggestionsId.get() }
          runVT {
-            suggestionProvider(text)
-         } ui { suggestions ->
-            if (completionTarget.scene!=null)
-               if (!suggestions.isEmpty()) {
-                  popup.value.suggestions setTo suggestions
-                  showAutoCompletePopup()
-               } else {
-                  hideAutoCompletePopup()
-               }
+            suggestionProvider.suggest(text, isCancelled) { suggestions ->
+               if (!isCancelled())
+                  runFX {
+                     if (!isCancelled() && completionTarget.scene!=null)
+                        if (!suggestions.isEmpty()) {
+                           popup.value.suggestions setTo suggestions
+                           showAutoCompletePopup()
+                        } else {
+                           hideAutoCompletePopup()
+                        }
+                  }
+            }
          }
       }
    }
@@ -153,4 +172,16 @@ abstract class AutoCompletionBinding<T> {
 
    data class Ctx(val term: String)
 
+   /** Strategy to retrieve suggestions */
+   fun interface SuggestionProvider<T> {
+      /**
+       * Computes suggestions for the specified text. Invoked on background thread.
+       *
+       * @param isCancelled whether the suggestions are no longer needed, e.g. because the text changed
+       * @param emit consumes all suggestions computed so far, may be invoked multiple times to show suggestions
+       * progressively, the last invocation determines the final suggestions
+       */
+      fun suggest(text: String, isCancelled: () -> Boolean, emit: (Collection<T>) -> Unit)
+   }
+
 }
\ No newline at end of file
@@ -40,6 +40,7 @@ import sp.it.pl.main.emScaled
 import sp.it.pl.ui.item_node.ConfigEditor
 import sp.it.pl.ui.objects.SpitLabeledSkin
 import sp.it.pl.ui.objects.SpitLabeledSkin.SpitLabeledSkinWithTooltip
+import sp.it.pl.ui.objects.autocomplete.AutoCompletionBinding.SuggestionProvider
 import sp.it.pl.ui.objects.autocomplete.ConfigSearch.Entry
 import sp.it.pl.ui.objects.icon.Icon
 import sp.it.util.access.minus
@@ -79,7 +80,10 @@ class ConfigSearch: AutoCompletion<Entry> {
    private val history: History
    private var ignoreEvent = false
 
-   constructor(textField: TextField, history: History = History(), sources: (String) -> Collection<Entry>): super(
+   constructor(textField: TextField, history: History = History(), sources: (String) -> Collection<Entry>):
+      this(textField, history, SuggestionProvider { text, _, emit -> emit(sources(text)) })
+
+   constructor(textField: TextField, history: History = History(), sources: SuggestionProvider<Entry>): super(
       textField,
       sources,
       defaultStringConverter()
@@ -1,6 +1,7 @@
 package sp.it.pl.ui.objects.grid
 
 import javafx.scene.control.IndexedCell
+import sp.it.pl.image.ImageLoadScheduler.Priority
 import sp.it.util.access.V
 import sp.it.util.ui.pseudoclass
 
@@ -25,6 +26,13 @@ open class GridCell<T: Any, F: Any>: IndexedCell<T>() {
       updateSelected(isSelected)
    }
 
+   /** @return priority of loading content of this cell at its current index, which decreases as it leaves visible area of the grid */
+   fun computeLoadPriority(): Priority {
+      val flow = gridView.value?.skinImpl?.flow ?: return Priority.DEFAULT
+      val i = index
+      return Priority { flow.computeLoadPriority(i) }
+   }
+
    override fun createDefaultSkin() = GridCellSkin(this)
 
    /** Dispose of this cell with the intention of never being used again. Called automatically in when grid skin disposes. */
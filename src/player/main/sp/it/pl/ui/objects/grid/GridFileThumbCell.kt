@@ -221,7 +221,7 @@ open class GridFileThumbCell: GridCell<Item, File>() {
       when (val cover = item.cover) {
          is ImageLoad.NotStarted, is ImageLoad.DoneInterrupted -> {
             thumb!!.loadImage(null)
-            item.computeCover(computeThumbSize(), thumb!!.fitFrom.value) ui { updateCoverPost(item, i, it) }
+            item.computeCover(computeThumbSize(), thumb!!.fitFrom.value, computeLoadPriority()) ui { updateCoverPost(item, i, it) }
          }
          is ImageLoad.Loading -> {
             thumb!!.loadImage(null)
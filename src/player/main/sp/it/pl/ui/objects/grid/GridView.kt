@@ -1,5 +1,6 @@
 package sp.it.pl.ui.objects.grid
 
+import java.util.IdentityHashMap
 import java.util.function.Predicate
 import javafx.beans.property.ObjectProperty
 import javafx.collections.FXCollections
@@ -17,10 +18,16 @@ import kotlin.streams.asSequence
 import sp.it.pl.ui.objects.search.SearchAutoCancelable
 import sp.it.util.access.StyleableCompanion
 import sp.it.util.access.V
+import sp.it.util.access.fieldvalue.ColumnarSort
+import sp.it.util.access.fieldvalue.ColumnarSort.SortKey
+import sp.it.util.access.fieldvalue.FieldColumns
 import sp.it.util.access.fieldvalue.ObjectField
 import sp.it.util.access.fieldvalue.StringGetter
 import sp.it.util.access.sv
 import sp.it.util.access.svMetaData
+import sp.it.util.async.future.Fut
+import sp.it.util.collections.materialize
+import sp.it.util.collections.setTo
 import sp.it.util.functional.Functors.F1
 import sp.it.util.functional.asIs
 import sp.it.util.math.P
@@ -71,6 +78,10 @@ class GridView<T: Any, F: Any>(type: KClass<F>, filterMapper: F1<T, F>, backingL
    val itemsComparator: ObjectProperty<Comparator<in T>> = itemsSorted.comparatorProperty()
    /** Visible items. [itemsRaw], with [itemsPredicate] and [itemsComparator] applied. Identical to [itemsSorted] */
    val itemsShown: ObservableList<T> = itemsSorted
+   /** Sorts [itemsRaw], see [itemsRawSortBy] */
+   private val itemsRawSorter = ColumnarSort<T>()
+   /** Columns of [itemsRaw] for [itemsRawSorter], reused as long as [itemsRaw] contains the same items */
+   private var itemsRawColumns = FieldColumns<T>(listOf())
 
    /**
     * Selection change activation strategies. Can be combined. Empty set will cause this grid to ignore selection.
@@ -133,6 +144,31 @@ class GridView<T: Any, F: Any>(type: KClass<F>, filterMapper: F1<T, F>, backingL
 
    override fun createDefaultSkin(): GridViewSkin<T, F> = GridViewSkin(this)
 
+   /**
+    * Sorts [itemsRaw] by the specified keys off fx thread, see [ColumnarSort].
+    * Unlike [itemsComparator], which sorts on fx thread, this is suitable for large number of items or expensive keys.
+    * The sort keys are reused for subsequent sorts, as long as [itemsRaw] contains the same items.
+    * Has no effect if [itemsRaw] changes in the meantime.
+    */
+   fun itemsRawSortBy(keys: List<SortKey<T>>): Fut<Unit> =
+      itemsRawSort { items, indexes -> itemsRawSorter.sort(items, indexes, keys) }
+
+   /** [itemsRawSortBy] using the specified comparator, which must be thread-safe. */
+   fun itemsRawSortBy(comparator: Comparator<in T>): Fut<Unit> =
+      itemsRawSort { items, indexes -> itemsRawSorter.sort(items, indexes, comparator) }
+
+   private fun itemsRawSort(sorting: (FieldColumns<T>, IntArray) -> Fut<IntArray?>): Fut<Unit> {
+      val itemsOld = itemsRaw.materialize()
+      val indexByItem = itemsRawColumns.items.withIndex().associateTo(IdentityHashMap()) { it.value to it.index }
+      val indexes = itemsOld.map { indexByItem[it] ?: -1 }.toIntArray()
+      if (itemsOld.size!=itemsRawColumns.size || -1 in indexes) itemsRawColumns = FieldColumns(itemsOld)
+      val items = itemsRawColumns
+      return sorting(items, if (items.items===itemsOld) IntArray(itemsOld.size) { it } else indexes) ui { sorted ->
+         if (sorted!=null && itemsRaw==itemsOld)
+            itemsRaw setTo sorted.map(items.items::get)
+      }
+   }
+
    override fun getControlCssMetaData() = classCssMetaData
 
    /** Strategy for cell selection change activation behavior. */
@@ -303,6 +303,10 @@ public class GridViewSkin<T, F> implements Skin<GridView<T,F>> {
 		grid = null;
 	}
 
+	public Flow<T,F> getFlow() {
+		return flow;
+	}
+
 	public Stream<GridCell<T,F>> getCells() {
 		return flow.getCells();
 	}
@@ -459,6 +463,8 @@ public class GridViewSkin<T, F> implements Skin<GridView<T,F>> {
 		private final double scrollSpeedMultiplier = 3;
 		private boolean firstLayout = true;
 		private @Nullable Anim scrollAnim = null;
+		private volatile int loadIndexMin = 0;
+		private volatile int loadIndexMax = -1;
 
 		public Flow(GridViewSkin<T,F> skin) {
 			this.skin = skin;
@@ -606,6 +612,8 @@ public class GridViewSkin<T, F> implements Skin<GridView<T,F>> {
 				int indexStart = computeMinVisibleCellIndex();
 				int indexEnd = min(itemsAllCount - 1, computeMaxVisibleCellIndex());
 				int itemCount = indexEnd - indexStart + 1;
+				loadIndexMin = indexStart;
+				loadIndexMax = indexEnd;
 
 				if (itemsAllCount==0) {
 					var cells = List.copyOf(visibleCells);
@@ -697,8 +705,23 @@ public class GridViewSkin<T, F> implements Skin<GridView<T,F>> {
 			if (wasFocused) skin.grid.requestFocus();
 		}
 
+		/**
+		 * Thread-safe.
+		 *
+		 * @return load priority of the cell with the specified index, which is its distance from the visible cells or 0 if visible
+		 */
+		public int computeLoadPriority(int i) {
+			int indexMin = loadIndexMin, indexMax = loadIndexMax;
+			if (indexMax<indexMin || i<0) return Integer.MAX_VALUE;
+			else if (i<indexMin) return indexMin - i;
+			else if (i>indexMax) return i - indexMax;
+			else return 0;
+		}
+
 		void dispose() {
 			needsRebuildCells = false;
+			loadIndexMin = 0;
+			loadIndexMax = -1;
 			var cells = List.copyOf(visibleCells);
 			visibleCells.clear();
 			cells.forEach(c -> c.dispose());
@@ -1,17 +1,15 @@
 package sp.it.pl.ui.objects.hierarchy
 
-import java.awt.image.BufferedImage
-import java.awt.image.BufferedImage.TYPE_INT_ARGB
 import java.io.File
 import java.util.Locale
 import java.util.UUID
-import java.util.concurrent.Executor
 import java.util.function.Consumer
 import javafx.scene.image.Image
-import sp.it.pl.audio.SimpleSong
-import sp.it.pl.audio.tagging.read
+import sp.it.pl.image.ImageLoadScheduler
+import sp.it.pl.image.ImageLoadScheduler.Priority
 import sp.it.pl.image.ImageLoader
 import sp.it.pl.image.ImageStandardLoader
+import sp.it.pl.main.APP
 import sp.it.pl.main.Double01
 import sp.it.pl.main.imageExtensionsRead
 import sp.it.pl.main.isAudio
@@ -33,9 +31,6 @@ import sp.it.util.async.SemaphoreLock
 import sp.it.util.async.VT
 import sp.it.util.async.future.Fut
 import sp.it.util.async.future.Fut.Companion.fut
-import sp.it.util.async.limitAccess
-import sp.it.util.async.limitParallelism
-import sp.it.util.async.runOn
 import sp.it.util.dev.failIfFxThread
 import sp.it.util.dev.failIfNotFxThread
 import sp.it.util.file.FileType
@@ -51,8 +46,8 @@ import sp.it.util.ui.image.FitFrom
 import sp.it.util.ui.image.FitFrom.OUTSIDE
 import sp.it.util.ui.image.ImageSize
 import sp.it.util.ui.image.Interrupts
-import sp.it.util.ui.image.toBuffered
-import sp.it.util.ui.image.toFxAndFlush
+import sp.it.util.ui.image.drawTo
+import sp.it.util.ui.image.toImageFx
 
 /**
  * File wrapper, content of Cell with an image cover.
@@ -78,10 +73,7 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
    protected var coverFile: Option<File?> = None
 
    @Volatile
-   protected var loadingThread: Thread? = null
-
-   @Volatile
-   protected var loadingPreInterrupted = false
+   protected var loadingTask: ImageLoadScheduler.Task<ImageLoad>? = null
 
    @Volatile
    protected var disposed = false
@@ -126,7 +118,7 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
       cover = DoneErr
       coverFile = None
       computeCoverInterrupt()
-      loadingThread = null
+      loadingTask = null
       disposed = true
    }
 
@@ -136,7 +128,7 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
       cover = NotStarted
       coverFile = None
       computeCoverInterrupt()
-      loadingThread = null
+      loadingTask = null
       loadProgress = 0.0
    }
 
@@ -231,45 +223,42 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
       return if (disposed) {
          fut(false)
       } else {
-         runOn(CoverStrategy.VT_IMAGE) {
+         CoverStrategy.VT_IMAGE.submit(value, Priority.DEFAULT) {
             FileField.IS_HIDDEN.getOf(value)
-         }
+         }.result
       }
    }
 
+   /** Cancels loading of the cover, see [ImageLoadScheduler.Task.cancel] */
    open fun computeCoverInterrupt() {
-      loadingPreInterrupted = true
-      Interrupts.interrupt(loadingThread)
+      loadingTask?.cancel()
    }
 
-	fun computeCover(size: ImageSize, fit: FitFrom): Fut<ImageLoad> {
+	fun computeCover(size: ImageSize, fit: FitFrom, priority: Priority = Priority.DEFAULT): Fut<ImageLoad> {
 		failIfNotFxThread()
 
 		return when (val c = cover) {
 			is DoneOk -> fut(c)
 			is DoneErr -> fut(c)
 			is Loading -> c.loading
-			is NotStarted -> computeCoverAsync(None, size, fit)
-			is DoneInterrupted -> computeCoverAsync(c.fileOpt, size, fit)
+			is NotStarted -> computeCoverAsync(None, size, fit, priority)
+			is DoneInterrupted -> computeCoverAsync(c.fileOpt, size, fit, priority)
 		}
 	}
 
-   private fun computeCoverAsync(imgFile: Option<File?>, size: ImageSize, fit: FitFrom): Fut<ImageLoad> {
+   private fun computeCoverAsync(imgFile: Option<File?>, size: ImageSize, fit: FitFrom, priority: Priority): Fut<ImageLoad> {
       if (disposed) {
          cover = DoneErr
          return fut(DoneErr)
       }
 
-      loadingPreInterrupted = false
       val str = coverStrategy
-      val cl = runOn(CoverStrategy.VT_IMAGE) {
-         loadingThread = Thread.currentThread()
-         if (loadingPreInterrupted) return@runOn DoneInterrupted(imgFile)
-         if (Interrupts.isInterrupted) return@runOn DoneInterrupted(imgFile)
+      val task = CoverStrategy.VT_IMAGE.submit(value, priority) {
+         if (Interrupts.isInterrupted) return@submit DoneInterrupted(imgFile)
 
          var ci = null as Image?
          val cf = imgFile.getOrSupply { computeCoverFile(str) }
-         if (Interrupts.isInterrupted) return@runOn DoneInterrupted(Some(cf))
+         if (Interrupts.isInterrupted) return@submit DoneInterrupted(Some(cf))
 
          try {
             val ch: List<Item>? = children
@@ -286,21 +275,18 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
                         .toList()
                      val w = size.width.toInt()
                      val h = size.height.toInt()
-                     val imgFin = BufferedImage(w, h, TYPE_INT_ARGB)
-                     val imgFinGraphics = imgFin.graphics
+                     val pixels = IntArray(w*h)
                      subCovers.forEachIndexed { i, img ->
-                        val bi = img.toBuffered()
-                        imgFinGraphics.drawImage(bi, w/2*(i%2), h/2*(i/2), size.width.toInt()/2, size.height.toInt()/2, null)
-                        bi?.flush()
+                        img.drawTo(pixels, w, w/2*(i%2), h/2*(i/2), w/2, h/2)
                         JavaLegacy.destroyImage(img)
                      }
-                     ci = imgFin.toFxAndFlush()
+                     ci = pixels.toImageFx(w, h)
                   }
                } else if (valType===FILE) {
                   if (value.isVideo() && str.useVideoFrameCover) {
                      ci = str.loader.invoke(value, size, fit)
                   } else if (value.isAudio()) {
-                     val c = SimpleSong(value).read().getCover(CoverSource.ANY)
+                     val c = APP.artworks.getCover(value, CoverSource.ANY)
                      ci = if (c.isEmpty()) null else c.getImage(size, fit)
                   } else if (value.path.endsWith(".pdf")) {
                      ci = str.loader.invoke(value, size, fit)
@@ -315,9 +301,10 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
             if (Interrupts.isInterrupted) DoneInterrupted(Some(cf))
             else DoneErr
          }
-      } ui {
-         Interrupts.dispose(loadingThread)
-         loadingThread = null
+      }
+      loadingTask = task
+      val cl = task.result ui {
+         if (loadingTask===task) loadingTask = null
          cover = it
          it
       }
@@ -404,7 +391,7 @@ abstract class Item(parent: Item?, value: File, valueType: FileType): Hierarchic
       companion object {
          @JvmField val DEFAULT = CoverStrategy(true, true, false, true, null)
          @JvmField val VT_IMAGE_THROTTLE = SemaphoreLock()
-         @JvmField val VT_IMAGE: Executor = VT.limitParallelism(6).limitAccess(VT_IMAGE_THROTTLE)
+         @JvmField val VT_IMAGE = ImageLoadScheduler(VT, 6, 4, VT_IMAGE_THROTTLE)
       }
    }
 }
\ No newline at end of file
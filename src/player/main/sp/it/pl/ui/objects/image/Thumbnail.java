@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sp.it.pl.image.ImageLoadScheduler.Priority;
 import sp.it.pl.image.ImageStandardLoader;
 import sp.it.util.access.V;
 import sp.it.util.animation.Anim;
@@ -54,7 +55,6 @@ import static sp.it.pl.main.AppKt.APP;
 import static sp.it.pl.ui.objects.hierarchy.Item.CoverStrategy.VT_IMAGE;
 import static sp.it.util.Util.clip;
 import static sp.it.util.async.AsyncKt.FX;
-import static sp.it.util.async.AsyncKt.runOn;
 import static sp.it.util.dev.FailKt.failIfNotFxThread;
 import static sp.it.util.file.UtilKt.toFileOrNull;
 import static sp.it.util.functional.Util.ISNT0;
@@ -269,7 +269,7 @@ public class Thumbnail {
 		} else if (image.getValue()==null || image.getValue().getUrl()==null || !img.getAbsoluteFile().toURI().equals(toAbsoluteURIOrNull(image.getValue().getUrl()))) {
 			ImageSize size = calculateImageLoadSize();
 			if (image.getValue()==null || image.getValue().getUrl()==null || !img.getAbsoluteFile().toURI().equals(toAbsoluteURIOrNull(image.getValue().getUrl())) || size.width-5.0>image.getValue().getWidth() || size.height-5.0>image.getValue().getHeight()) {
-				runOn(VT_IMAGE, () -> ImageStandardLoader.INSTANCE.invoke(img, size, fitFrom.getValue())).useBy(FX, this::setImgAsync);
+				VT_IMAGE.submit(img, Priority.DEFAULT, () -> ImageStandardLoader.INSTANCE.invoke(img, size, fitFrom.getValue())).getResult().useBy(FX, this::setImgAsync);
 			}
 		}
 	}
@@ -282,7 +282,7 @@ public class Thumbnail {
 			imageFile = null;
 			var size = calculateImageLoadSize();
 			if (img.getFile()==null || image.getValue()==null || image.getValue().getUrl()==null || !img.getFile().getAbsoluteFile().toURI().equals(toAbsoluteURIOrNull(image.getValue().getUrl())) || size.width-5.0>image.getValue().getWidth() || size.height-5.0>image.getValue().getHeight()) {
-				runOn(VT_IMAGE, () -> img.getImage(size, fitFrom.getValue())).useBy(FX, i -> loadImage(i, img.getFile()));
+				VT_IMAGE.submit(img.getFile(), Priority.DEFAULT, () -> img.getImage(size, fitFrom.getValue())).getResult().useBy(FX, i -> loadImage(i, img.getFile()));
 			}
 		}
 	}
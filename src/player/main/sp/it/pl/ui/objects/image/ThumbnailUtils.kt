@@ -7,18 +7,14 @@ import java.util.function.Function
 import java.util.function.IntFunction
 import javafx.animation.Animation
 import javafx.animation.Animation.INDEFINITE
-import javafx.animation.Animation.Status.STOPPED
-import javafx.animation.KeyFrame
-import javafx.animation.Timeline
 import javafx.event.ActionEvent
-import javafx.event.EventHandler
 import javafx.scene.image.Image
 import javafx.util.Duration
 import kotlin.concurrent.Volatile
 import kotlinx.coroutines.runBlocking
-import sp.it.util.JavaLegacy
 import sp.it.util.async.VT
 import sp.it.util.async.coroutine.launch
+import sp.it.util.async.executor.FxTimer.Companion.fxTimer
 import sp.it.util.async.future.Fut
 import sp.it.util.async.future.orNull
 import sp.it.util.async.runVT
@@ -29,13 +25,10 @@ import sp.it.util.functional.consumer
 import sp.it.util.functional.ifNull
 import sp.it.util.functional.invoke
 import sp.it.util.functional.net
-import sp.it.util.type.Util
-import sp.it.util.ui.image.ImageFrame
+import sp.it.util.ui.image.ImageFrameStream
 import sp.it.util.ui.image.ImageSize
 import sp.it.util.ui.image.Params
-import sp.it.util.ui.image.imgImplLoadFX
 import sp.it.util.ui.image.isImageAnimated
-import sp.it.util.ui.image.loadImageFrames
 import sp.it.util.ui.size
 import sp.it.util.units.millis
 
@@ -44,8 +37,9 @@ class ThumbnailAnim(val thumbnail: Thumbnail) {
 
    private var animInitialized = false
    private var animCycleCount = INDEFINITE
-   private var animation: Timeline? = null
-   private var animImages: Fut<List<ImageFrame>?>? = null
+   private var animation: FramePlayer? = null
+   private var animFrames: Fut<FramePlayer?>? = null
+   private var animId = 0L
    private var animCommand = {}
 
    /** Clears state to be usable for next animation/image. Call just before loading image. */
@@ -53,18 +47,18 @@ class ThumbnailAnim(val thumbnail: Thumbnail) {
       animInitialized = false
       animCycleCount = INDEFINITE
       animCommand = {}
-      animation?.stop()
+      animId++
+      animation?.dispose()
       animation = null
-      animImages?.ui { it?.forEach { JavaLegacy.destroyImage(it.img) } }
-      animImages = null
+      animFrames = null
       thumbnail.image.value.net { if (thumbnail.imageView.image!==it) thumbnail.setImgFrame(it) }
    }
 
    private fun animInitialize(lazy: Boolean) {
       if (!lazy) animInitializeImpl()
-      if (animImages==null) return
-      if (animImages!!.isDone()) animCommand()
-      else animImages = animImages!!.ui { animCommand(); it }
+      if (animFrames==null) return
+      if (animFrames!!.isDone()) animCommand()
+      else animFrames = animFrames!!.ui { animCommand(); it }
    }
 
    private fun animInitializeImpl() {
@@ -72,42 +66,22 @@ class ThumbnailAnim(val thumbnail: Thumbnail) {
       animInitialized = true
 
       val i = thumbnail.image.value
-      var f = thumbnail.file
-      var fMime = f?.mimeType()
-      if (i==null || fMime==null) {
+      val f = thumbnail.file
+      val fMime = f?.mimeType()
+      if (i==null || f==null || fMime==null) {
          return
-      } else if (fMime.name=="image/gif") {
+      } else if (fMime.name=="image/gif" || fMime.name=="image/webp") {
          try {
-            var isAnim = isImageAnimated(f, fMime)
+            val isAnim = isImageAnimated(f, fMime)
             if (isAnim) {
-               var p = Params(f, ImageSize(i.size), thumbnail.fitFrom.value, fMime, false)
-               animImages = runVT { imgImplLoadFX(p.file, p.size, p.scaleExact) }.then {
-                  listOf(ImageFrame(0, 0, it))
-               }.ui { it: List<ImageFrame>? ->
-                  if (it!=null) {
-                     var img = it.firstOrNull()?.img
-                     thumbnail.setImgFrame(img)
-                     animation = if (img==null) null else Util.getFieldValue(Util.getFieldValue(img, "animation"), "timeline")
-                     animation?.stop()
-                     animation?.cycleCount = animCycleCount
+               val p = Params(f, ImageSize(i.size), thumbnail.fitFrom.value, fMime, false)
+               val id = animId
+               animFrames = runVT { ImageFrameStream.open(p) }.ui { frames ->
+                  when {
+                     frames==null -> null
+                     id!=animId -> null.also { frames.close() }
+                     else -> FramePlayer(frames).apply { cycleCount = animCycleCount }.also { animation = it }
                   }
-                  it
-               }
-            }
-         } catch (t: Throwable) {
-            logger.error(t) { "Failed to load image=$f animation" }
-         }
-      } else if (fMime.name=="image/webp") {
-         try {
-            var isAnim = isImageAnimated(f, fMime)
-            if (isAnim) {
-               var p = Params(f, ImageSize(i.size), thumbnail.fitFrom.value, fMime, false)
-               animImages = runVT { loadImageFrames(p) }.ui { frames ->
-                  animation = Timeline(
-                     *frames!!.map { f -> KeyFrame(f.delayMs.millis, EventHandler { _ -> thumbnail.setImgFrame(f.img) }) }.toTypedArray()
-                  )
-                  animation?.cycleCount = animCycleCount
-                  frames
                }
             }
          } catch (t: Throwable) {
@@ -118,11 +92,11 @@ class ThumbnailAnim(val thumbnail: Thumbnail) {
 
    /** @return whether the current image has animation (animation must be initialized before this call) */
    fun isAnimated(): Fut<Boolean> =
-      animImages?.then { animation!=null } ?: Fut.fut(false) // same impl as Image.isAnimation(), which is not public
+      animFrames?.then { animation!=null } ?: Fut.fut(false)
 
    /** @return whether the current image has animation and it is playing */
    fun isAnimating(): Boolean =
-      animation?.net { it.currentRate!=0.0 } ?: false
+      animation?.isPlaying ?: false
 
    /** Plays or pauses currently loaded image animation  */
    fun animationPlayPause(play: Boolean): Unit =
@@ -148,21 +122,65 @@ class ThumbnailAnim(val thumbnail: Thumbnail) {
       animCycleCount = 1 // must not be indefinite or else future never ends
       animationPlay()
       // build future that waits for animation end
-      val a = animImages
+      val a = animFrames
       return if (a==null)
           Fut.fut(Unit)
       else
-         a.then {
-            animation
-         }.then(VT) {
-            if (it==null) Unit else while (it.status!=STOPPED) Thread.sleep(1)
+         a.then(VT) {
+            if (it==null) Unit else while (!it.isStopped) Thread.sleep(1)
          }.thenRecover {
             Unit
          }
    }
 
+   /** Shows frames of the [ImageFrameStream] in the [thumbnail] for their durations, see [Animation.cycleCount] */
+   private inner class FramePlayer(private val frames: ImageFrameStream) {
+      var cycleCount = INDEFINITE
+      private var cycle = 0
+      private var isFirstFrame = true
+      private val timer = fxTimer(0.millis, 1) { next() }
+      var isPlaying = false
+         private set
+      @Volatile var isStopped = false
+         private set
+
+      fun play() {
+         if (isPlaying || isStopped) return
+         isPlaying = true
+         timer.start(0.millis)
+      }
+
+      fun pause() {
+         isPlaying = false
+         timer.stop()
+      }
+
+      fun dispose() {
+         pause()
+         isStopped = true
+         frames.close()
+      }
+
+      private fun next() {
+         if (!isPlaying) return
+         val f = frames.peek()
+         if (f==null) {
+            timer.start(FRAME_POLL_PERIOD)
+         } else if (f.index==0 && !isFirstFrame && cycleCount!=INDEFINITE && ++cycle>=cycleCount) {
+            pause()
+            isStopped = true
+         } else {
+            frames.poll()
+            isFirstFrame = false
+            thumbnail.setImgFrame(f.image)
+            timer.start(f.durationMs.millis)
+         }
+      }
+   }
+
    companion object {
       private val logger = KotlinLogging.logger { }
+      private val FRAME_POLL_PERIOD = 10.millis
    }
 
 }
\ No newline at end of file
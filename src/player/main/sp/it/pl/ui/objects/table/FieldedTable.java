@@ -18,10 +18,12 @@ import javafx.scene.control.Tooltip;
 import javafx.scene.control.skin.TableHeaderRow;
 import javafx.scene.layout.Pane;
 import javafx.util.Callback;
+import org.jetbrains.annotations.Nullable;
 import sp.it.pl.access.fieldvalue.AnyField.STRING_UI;
 import sp.it.pl.ui.objects.contextmenu.MenuItemBoolean;
 import sp.it.pl.ui.objects.table.TableColumnInfo.ColumnInfo;
 import sp.it.util.Sort;
+import sp.it.util.access.fieldvalue.ColumnarSort.SortKey;
 import sp.it.util.access.fieldvalue.MetaField;
 import sp.it.util.access.fieldvalue.ObjectField;
 import sp.it.util.access.fieldvalue.ObjectFieldBase;
@@ -285,10 +287,10 @@ public class FieldedTable<T> extends ImprovedTable<T> {
 
 	public final ReadOnlyObjectProperty<Comparator<? super T>> itemsComparator = itemsComparatorWrapper.getReadOnlyProperty();
 
-	@SuppressWarnings("unused")
-	public final ObjectProperty<F3<? super ObjectField<?, ?>, ? super ObjectField<?, ?>, ? super Sort, ? extends Comparator<?>>> itemsComparatorFieldFactory = new SimpleObjectProperty<>((fOriginal, fMemoized, sort) ->
-		fMemoized.comparatorNonNull(sort==Sort.DESCENDING ? Comparator::nullsFirst : Comparator::nullsLast)
-	);
+	private final F3<? super ObjectField<?, ?>, ? super ObjectField<?, ?>, ? super Sort, ? extends Comparator<?>> itemsComparatorFieldFactoryDefault = (fOriginal, fMemoized, sort) ->
+		fMemoized.comparatorNonNull(sort==Sort.DESCENDING ? Comparator::nullsFirst : Comparator::nullsLast);
+
+	public final ObjectProperty<F3<? super ObjectField<?, ?>, ? super ObjectField<?, ?>, ? super Sort, ? extends Comparator<?>>> itemsComparatorFieldFactory = new SimpleObjectProperty<>(itemsComparatorFieldFactoryDefault);
 
 	/**
 	 * Sorts the items by the field. Sorting does not operate on table's sort
@@ -332,6 +334,18 @@ public class FieldedTable<T> extends ImprovedTable<T> {
 		return computeComparatorEnhanced(it -> it.memoized());
 	}
 
+	/**
+	 * @return sort keys equivalent to {@link #computeComparator()}, which allow sorting by precomputed keys, or null if
+	 * {@link #itemsComparatorFieldFactory} is not the default, in which case the comparator must be used
+	 */
+	@SuppressWarnings("unchecked")
+	protected @Nullable List<SortKey<T>> computeSortKeys() {
+		if (itemsComparatorFieldFactory.get()!=itemsComparatorFieldFactoryDefault) return null;
+		return getSortOrder().stream()
+			.map(column -> new SortKey<>((ObjectField<T,?>) column.getUserData(), Sort.of(column.getSortType())))
+			.toList();
+	}
+
 	@SuppressWarnings({"unchecked", "unused"})
 	protected Comparator<T> computeComparatorEnhanced(F1<ObjectField<T,?>, ObjectField<T,?>> enhancer) {
 		return getSortOrder().stream()
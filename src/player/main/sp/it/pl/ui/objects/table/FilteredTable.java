@@ -11,15 +11,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
-import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Pos;
 import javafx.geometry.Side;
 import javafx.scene.Node;
@@ -48,6 +49,9 @@ import sp.it.pl.ui.objects.icon.Icon;
 import sp.it.pl.ui.objects.search.SearchAutoCancelable;
 import sp.it.util.access.V;
 import sp.it.util.access.fieldvalue.ColumnField.INDEX;
+import sp.it.util.access.fieldvalue.ColumnarFilter;
+import sp.it.util.access.fieldvalue.ColumnarSort;
+import sp.it.util.access.fieldvalue.FieldColumns;
 import sp.it.util.access.fieldvalue.ObjectField;
 import sp.it.util.functional.TryKt;
 import sp.it.util.ui.UiDelegateKt;
@@ -74,7 +78,6 @@ import static sp.it.pl.ui.objects.table.TableViewExtensionsKt.rows;
 import static sp.it.util.Util.digits;
 import static sp.it.util.Util.zeroPad;
 import static sp.it.util.async.AsyncKt.runLater;
-import static sp.it.util.async.AsyncKt.runVT;
 import static sp.it.util.dev.FailKt.failIf;
 import static sp.it.util.dev.FailKt.noNull;
 import static sp.it.util.functional.TryKt.runTry;
@@ -105,10 +108,21 @@ import static sp.it.util.ui.UtilKt.menuItem;
  */
 public class FilteredTable<T> extends FieldedTable<T> {
 
+	/** Minimal number of items for the filtering to be asynchronous */
+	private static final int FILTER_ASYNC_SIZE_MIN = 5000;
+
 	/** Initial filter criteria for the filter, used when filter is opened or additional filter added */
 	public @Nullable ObjectField<T,?> primaryFilterField;
 	private final ObservableList<T> allItems;
-	private final FilteredList<T> filteredItems;
+	private final ObservableList<T> filteredItems;
+	/** Snapshot of {@link #allItems} for {@link #itemsFilter} and {@link #itemsSorter}, which reuse its columns. Null if stale. */
+	private @Nullable FieldColumns<T> allItemsColumns = null;
+	/** Snapshot {@link #filteredItemsSourceIndexes} refer to */
+	private FieldColumns<T> filteredItemsColumns = new FieldColumns<>(List.of());
+	private int[] filteredItemsSourceIndexes = new int[0];
+	private final ColumnarFilter<T> itemsFilter = new ColumnarFilter<>();
+	private final ColumnarSort<T> itemsSorter = new ColumnarSort<>();
+	private final AtomicLong filterLock = new AtomicLong(0);
 	private final ObservableList<T> sortedItems;
 	private final ReadOnlyObjectWrapper<Boolean> itemsSortingWrapper = new ReadOnlyObjectWrapper<>(false);
 	public final ReadOnlyObjectProperty<Boolean> itemsSorting = itemsSortingWrapper.getReadOnlyProperty();
@@ -135,20 +149,20 @@ public class FilteredTable<T> extends FieldedTable<T> {
 
 		var mf = computeMainField(mainField);
 		allItems = noNull(backing_list);
-		filteredItems = allItems.filtered(null);
+		filteredItems = observableArrayList();
 		sortedItems = observableArrayList();
-		itemsPredicate = filteredItems.predicateProperty();
-		filteredItems.addListener(new ListChangeListener<T>() {
-			@Override
-			public void onChanged(Change<? extends T> c) {
-				c.next();
+		itemsPredicate = new SimpleObjectProperty<>(null);
+		allItems.addListener((ListChangeListener<T>) c -> {
+			// columns extracted so far are updated only for the changed items, so small changes of large lists are cheap
+			allItemsColumns = allItemsColumns==null ? null : allItemsColumns.changed(new ArrayList<>(allItems), c);
+			c.reset();
+			while (c.next())
 				if (c.wasUpdated()) getSelectionModel().clearSelection();
-				// without this, table would be empty
-				// the sort can also throw IndexOutOfBounds exception for selection update when setAll
-				// is called for non empty selection. It causes selection to be cleared, which is fine.
-				// Catch is better than nothing
-				runTry(() -> { sort(); return null; });
-			}
+			refilter();
+		});
+		attach(itemsPredicate, p -> {
+			refilter();
+			return Unit.INSTANCE;
 		});
 
 		var sortLock = new AtomicLong(0);
@@ -157,39 +171,33 @@ public class FilteredTable<T> extends FieldedTable<T> {
 			var lock = sortLock.incrementAndGet();
 			if (!isInitialSort.getAndSet(false)) {
 				// TODO retain selection
-//				if (getSortOrder().isEmpty()) {
-//					itemsSortingWrapper.setValue(true);
-//					updateComparator();
-//					sortedItems.setAll(new ArrayList<>(filteredItems));
-//					itemsSortingWrapper.setValue(false);
-//				} else {
-					itemsSortingWrapper.setValue(true);
-					updateComparator();
-					var fi = new ArrayList<>(filteredItems);
-					var c = computeComparatorMemoized();
-
-					// do async only if necessary
-					if (c==SAME || fi.isEmpty()) {
-						sortedItems.setAll(fi);
+				itemsSortingWrapper.setValue(true);
+				updateComparator();
+				var items = filteredItemsColumns;
+				var indexes = filteredItemsSourceIndexes;
+				var c = computeComparator();
+
+				// do async only if necessary
+				if (c==SAME || indexes.length==0) {
+					itemsSorter.cancel();
+					sortedItems.setAll(filteredItems);
+					itemsSortingWrapper.setValue(false);
+				} else {
+					var keys = computeSortKeys();
+					var sorting = keys!=null ? itemsSorter.sort(items, indexes, keys) : itemsSorter.sort(items, indexes, c);
+					sorting.thenRecoverNull().ui(sorted -> {
+						if (lock!=sortLock.get()) return null;
+						if (sorted!=null) sortedItems.setAll(itemsAt(items, sorted));
 						itemsSortingWrapper.setValue(false);
-					} else {
-						runVT(() -> {
-							if (lock!=sortLock.get()) return null;
-							fi.sort(c);
-							return null;
-						}).ui(i -> {
-							if (lock!=sortLock.get()) return null;
-							sortedItems.setAll(fi);
-							itemsSortingWrapper.setValue(false);
-							return null;
-						});
-					}
-//				}
+						return null;
+					});
+				}
 			}
 			return true;
 		});
 
 		setItems(sortedItems);
+		refilter();
 		VBox.setVgrow(this, ALWAYS);
 
 		items_info.bind(this);
@@ -207,7 +215,7 @@ public class FilteredTable<T> extends FieldedTable<T> {
 
 		// filtering
 		primaryFilterField = mf;
-		filterPane = new Filter(filteredItems);
+		filterPane = new Filter(itemsPredicate);
 		filterPane.getNode().setVisible(false);
 		var filterKeyHandler = filterPane.buildToggleOnKeyHandler(filterVisible, this);
 		filterPane.getNode().addEventFilter(KEY_PRESSED, filterKeyHandler);
@@ -276,9 +284,8 @@ public class FilteredTable<T> extends FieldedTable<T> {
 	 * <p/>
 	 * Do not use {@link #setItems(javafx.collections.ObservableList)} or
 	 * {@code getItems().setAll(new_items)}. It will cause the filters to stop
-	 * working. The first replaces the table item list (instance of {@link FilteredList}),
-	 * which must not happen. The second would throw an exception as FilteredList
-	 * is not directly modifiable.
+	 * working. The first replaces the table item list (sorted list of filtered items),
+	 * which must not happen. The second would be overwritten on next filter or sort.
 	 * </p>
 	 * Because the sorting is asynchronous (on bgr thread),
 	 * the changes to {@link #getItems()} and the like may not be applied when this method returns,
@@ -301,7 +308,49 @@ public class FilteredTable<T> extends FieldedTable<T> {
 	 * @return index in the unfiltered list backing this table
 	 */
 	public int getSourceIndex(int index) {
-		return filteredItems.getSourceIndex(index);
+		return filteredItemsSourceIndexes[index];
+	}
+
+	/**
+	 * Filters {@link #allItems} using {@link #itemsPredicate} into {@link #filteredItems}.
+	 * Large lists are filtered asynchronously by {@link #itemsFilter}, in which case only the result is applied on fx thread.
+	 */
+	private void refilter() {
+		var lock = filterLock.incrementAndGet();
+		var p = itemsPredicate.get();
+		if (allItemsColumns==null) allItemsColumns = new FieldColumns<>(new ArrayList<>(allItems));
+		var items = allItemsColumns;
+		if (p==null || p==IS) {
+			itemsFilter.cancel();
+			applyFilter(items, IntStream.range(0, items.getSize()).toArray());
+		} else if (items.getSize()<FILTER_ASYNC_SIZE_MIN) {
+			itemsFilter.cancel();
+			applyFilter(items, IntStream.range(0, items.getSize()).filter(i -> p.test(items.getItems().get(i))).toArray());
+		} else {
+			itemsSortingWrapper.setValue(true);
+			itemsFilter.filter(items, p).thenRecoverNull().ui(bits -> {
+				if (lock!=filterLock.get()) return null;
+				if (bits==null) itemsSortingWrapper.setValue(false);
+				else applyFilter(items, bits.stream().toArray());
+				return null;
+			});
+		}
+	}
+
+	private void applyFilter(FieldColumns<T> items, int[] indexes) {
+		filteredItemsColumns = items;
+		filteredItemsSourceIndexes = indexes;
+		filteredItems.setAll(itemsAt(items, indexes));
+		// the sort can throw IndexOutOfBounds exception for selection update when setAll
+		// is called for non empty selection. It causes selection to be cleared, which is fine.
+		// Catch is better than nothing
+		runTry(() -> { sort(); return null; });
+	}
+
+	private static <T> List<T> itemsAt(FieldColumns<T> items, int[] indexes) {
+		var list = new ArrayList<T>(indexes.length);
+		for (int i: indexes) list.add(items.getItems().get(i));
+		return list;
 	}
 
 /* --------------------- TOP CONTROLS ------------------------------------------------------------------------------- */
@@ -446,10 +495,10 @@ public class FilteredTable<T> extends FieldedTable<T> {
 	/** Table's filter node. */
 	public class Filter extends FieldedPredicateChainItemNode<T,ObjectField<T,Object>> {
 
-		public Filter(FilteredList<T> filterList) {
+		public Filter(ObjectProperty<Predicate<? super T>> filterPredicate) {
 			super();
 			setPrefTypeSupplier(FilteredTable.this::getPrimaryFilterPredicate);
-			onItemChange = predicate -> filterList.setPredicate(predicate==IS ? null : predicate);
+			onItemChange = predicate -> filterPredicate.setValue(predicate==IS ? null : predicate);
 			setData(getFilterPredicates());
 		}
 	}
@@ -657,7 +706,7 @@ public class FilteredTable<T> extends FieldedTable<T> {
 				setText(null);
 			} else {
 				var j = getIndex();
-				var i = showOriginalIndex.getValue() ? filteredItems.getSourceIndex(j) : j;
+				var i = showOriginalIndex.getValue() ? getSourceIndex(j) : j;
 				var txt = zeropadIndex.getValue() ? zeroPad(i + 1, digits(computeMaxIndex(getTableView())), '0') : String.valueOf(i + 1);
 				setText(txt + ".");
 			}
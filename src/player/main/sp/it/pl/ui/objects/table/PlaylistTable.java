@@ -32,6 +32,7 @@ import sp.it.util.Sort;
 import sp.it.util.access.V;
 import sp.it.util.access.fieldvalue.ColumnField.INDEX;
 import sp.it.util.access.fieldvalue.ObjectField;
+import sp.it.util.collections.list.ObservableListIndex;
 import sp.it.util.reactive.Disposer;
 import sp.it.util.units.NofX;
 import static de.jensd.fx.glyphs.materialdesignicons.MaterialDesignIcon.PLAYLIST_PLUS;
@@ -43,8 +44,8 @@ import static javafx.scene.input.MouseButton.PRIMARY;
 import static javafx.scene.input.MouseEvent.MOUSE_CLICKED;
 import static javafx.scene.input.MouseEvent.MOUSE_DRAGGED;
 import static javafx.scene.input.TransferMode.ANY;
-import static sp.it.pl.audio.playlist.PlaylistReaderKt.isM3uPlaylist;
-import static sp.it.pl.audio.playlist.PlaylistReaderKt.readM3uPlaylist;
+import static sp.it.pl.audio.playlist.PlaylistReaderKt.isPlaylistFile;
+import static sp.it.pl.audio.playlist.PlaylistReaderKt.readPlaylist;
 import static sp.it.pl.audio.playlist.PlaylistSong.Field.LENGTH;
 import static sp.it.pl.audio.playlist.PlaylistSong.Field.NAME;
 import static sp.it.pl.audio.playlist.PlaylistSong.Field.TITLE;
@@ -93,6 +94,8 @@ public class PlaylistTable extends FilteredTable<PlaylistSong> {
 		super(PlaylistSong.class, NAME.INSTANCE, playlist);
 
 		var items = getItems();
+		var itemsIndex = new ObservableListIndex<>(items, Song::getUri);
+		disposer.plusAssign(() -> { itemsIndex.dispose(); return Unit.INSTANCE; });
 		playlist.setTransformation(new Transformer() {
 			@Override public void transform(List<PlaylistSong> original, Consumer<? super List<PlaylistSong>> then) {
 				then.accept(items);
@@ -103,8 +106,7 @@ public class PlaylistTable extends FilteredTable<PlaylistSong> {
 			}
 
 			@Override public NofX index(Song song) {
-				for (int i = 0; i<items.size(); i++) if (items.get(i).same(song)) return new NofX(i, items.size());
-				return new NofX(-1, items.size());
+				return new NofX(itemsIndex.indexOfKey(song.getUri()), items.size());
 			}
 		});
 
@@ -246,7 +248,7 @@ public class PlaylistTable extends FilteredTable<PlaylistSong> {
 		);
 		installDrag(
 			this, PLAYLIST_PLUS, "Add to playlist",
-			e -> e.getDragboard().hasFiles() && e.getDragboard().getFiles().stream().anyMatch(it -> isM3uPlaylist(it)),
+			e -> e.getDragboard().hasFiles() && e.getDragboard().getFiles().stream().anyMatch(it -> isPlaylistFile(it)),
 //			e -> !getItemsRaw().isEmpty(),
 			consumer(e -> dropDrag(e, getItemsRaw().size()))
 		);
@@ -347,12 +349,12 @@ public class PlaylistTable extends FilteredTable<PlaylistSong> {
 			e.consume();
 		}
 		// TODO: move to Drag utils
-		if (e.getDragboard().hasFiles() && e.getDragboard().getFiles().stream().anyMatch(it -> isM3uPlaylist(it))) {
+		if (e.getDragboard().hasFiles() && e.getDragboard().getFiles().stream().anyMatch(it -> isPlaylistFile(it))) {
 			List<File> files = e.getDragboard().getFiles();
 			runNew(() ->
 				files.stream()
-					.filter(it -> isM3uPlaylist(it))
-					.flatMap(it -> readM3uPlaylist(it).stream())
+					.filter(it -> isPlaylistFile(it))
+					.flatMap(it -> readPlaylist(it).stream())
 					.toList()
 			).useBy(FX, items ->
 				getPlaylist().addItems(items, index)
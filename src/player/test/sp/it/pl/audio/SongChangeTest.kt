@@ -0,0 +1,97 @@
+package sp.it.pl.audio
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.collections.shouldContain
+import io.kotest.matchers.collections.shouldNotContain
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import java.net.URI
+import sp.it.pl.audio.playlist.PlaylistSong
+import sp.it.pl.audio.tagging.Metadata
+import sp.it.pl.audio.tagging.Metadata.Field
+
+class SongChangeTest: FreeSpec({
+
+   fun song(name: String, artist: String = "Artist", title: String = "Title") = Metadata(PlaylistSong(URI("file:///music/$name.mp3"), artist, title, 1000.0))
+   fun lib(vararg songs: Metadata) = songs.associateBy { it.id }
+
+   SongChange::class.simpleName!! - {
+      "of" - {
+         "finds added, updated and removed songs" {
+            val a = song("a")
+            val b = song("b")
+            val c = song("c")
+            val b2 = song("b", artist = "Other")
+            val d = song("d")
+            val change = SongChange.of(2, lib(a, b, c), lib(a, b2, d))
+
+            change.version shouldBe 2
+            change.added shouldBe mapOf(d.uri to d)
+            change.updated shouldBe mapOf(b.uri to b2)
+            change.updatedFrom shouldBe mapOf(b.uri to b)
+            change.removed shouldBe setOf(c.uri)
+            change[b.uri] shouldBeSameInstanceAs b2
+            change[d.uri] shouldBeSameInstanceAs d
+            change[a.uri] shouldBe null
+            change.isEmpty() shouldBe false
+         }
+         "compares songs by identity" {
+            val a = song("a")
+            SongChange.of(1, lib(a), lib(a)).isEmpty() shouldBe true
+            SongChange.of(1, lib(a), lib(song("a"))).updated.keys shouldBe setOf(a.uri)
+         }
+         "finds changed fields" {
+            val b = song("b")
+            val change = SongChange.of(1, lib(b), lib(song("b", artist = "Other")))
+            change.updatedFields[b.uri]!! shouldContain Field.ARTIST
+            change.updatedFields[b.uri]!! shouldNotContain Field.TITLE
+            SongChange.of(1, lib(b), lib(song("b"))).updatedFields shouldBe mapOf(b.uri to setOf())
+         }
+         "is changed by field" {
+            val b = song("b")
+            val change = SongChange.of(1, lib(b), lib(song("b", artist = "Other")))
+            change.isChanged(Field.ARTIST) shouldBe true
+            change.isChanged(Field.TITLE) shouldBe false
+            SongChange.of(1, lib(b), lib(b, song("c"))).isChanged(Field.TITLE) shouldBe true
+         }
+      }
+      "then" - {
+         val a = song("a")
+         val b = song("b")
+
+         "merges added and updated song into added song" {
+            val a2 = song("a", title = "Other")
+            val change = SongChange.of(1, lib(), lib(a)) then SongChange.of(2, lib(a), lib(a2))
+            change.version shouldBe 2
+            change.added shouldBe mapOf(a.uri to a2)
+            change.updated shouldBe mapOf()
+         }
+         "merges added and removed song into removed song" {
+            val change = SongChange.of(1, lib(), lib(a)) then SongChange.of(2, lib(a), lib())
+            change.added shouldBe mapOf()
+            change.removed shouldBe setOf(a.uri)
+         }
+         "merges removed and added song into added song" {
+            val change = SongChange.of(1, lib(a), lib()) then SongChange.of(2, lib(), lib(a))
+            change.added shouldBe mapOf(a.uri to a)
+            change.removed shouldBe setOf()
+         }
+         "merges updates into single update from the first version" {
+            val b2 = song("b", artist = "Other")
+            val b3 = song("b", artist = "Other", title = "Other")
+            val change = SongChange.of(1, lib(a, b), lib(a, b2)) then SongChange.of(2, lib(a, b2), lib(a, b3))
+            change.updated shouldBe mapOf(b.uri to b3)
+            change.updatedFrom shouldBe mapOf(b.uri to b)
+            change.updatedFields[b.uri]!! shouldContain Field.ARTIST
+            change.updatedFields[b.uri]!! shouldContain Field.TITLE
+         }
+         "merges update and removal into removal" {
+            val change = SongChange.of(1, lib(a, b), lib(a, song("b", artist = "Other"))) then SongChange.of(2, lib(a, b), lib(a))
+            change.updated shouldBe mapOf()
+            change.updatedFrom shouldBe mapOf()
+            change.removed shouldBe setOf(b.uri)
+         }
+      }
+   }
+
+})
@@ -0,0 +1,62 @@
+package sp.it.pl.audio.playlist
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.net.URI
+import java.nio.file.Files
+import sp.it.util.file.div
+
+class PlaylistReaderTest: FreeSpec({
+
+   fun dir() = Files.createTempDirectory("playlist-reader").toFile().canonicalFile.apply { deleteOnExit() }
+
+   "readPlaylist" - {
+      "reads m3u8 with EXTINF" {
+         val dir = dir()
+         val file = (dir/"a.m3u8").apply {
+            writeText(
+               """
+               #EXTM3U
+               #EXTINF:125 tvg-name="a, b",Artist - Title
+               sub/1.mp3
+               2.mp3
+               http://host/stream
+               """.trimIndent()
+            )
+         }
+         val songs = readPlaylist(file)
+         songs.map { it.uri } shouldBe listOf((dir/"sub"/"1.mp3").toURI(), (dir/"2.mp3").toURI(), URI("http://host/stream"))
+         songs[0].isUpdated shouldBe true
+         songs[0].getArtist() shouldBe "Artist"
+         songs[0].getTitle() shouldBe "Title"
+         songs[0].timeMs shouldBe 125000.0
+         songs[1].isUpdated shouldBe false
+      }
+      "reads EXTINF without length as not updated" {
+         val dir = dir()
+         val file = (dir/"a.m3u").apply { writeText("#EXTM3U\n#EXTINF:-1,Title\n1.mp3") }
+         val songs = readPlaylist(file)
+         songs.map { it.uri } shouldBe listOf((dir/"1.mp3").toURI())
+         songs[0].isUpdated shouldBe false
+      }
+      "reads nested playlists and skips cycles" {
+         val dir = dir()
+         (dir/"a.m3u").writeText("1.mp3\nb.pls\n4.mp3")
+         (dir/"b.pls").writeText("[playlist]\nFile1=2.mp3\nTitle1=Two\nLength1=-1\nFile2=a.m3u\nFile3=c.xspf\nNumberOfEntries=3")
+         (dir/"c.xspf").writeText(
+            """<?xml version="1.0" encoding="UTF-8"?>
+            <playlist version="1" xmlns="http://xspf.org/ns/0/"><trackList>
+               <track><location>3.mp3</location><creator>Artist</creator><title>Three</title><duration>1000</duration></track>
+               <track><location>b.pls</location></track>
+            </trackList></playlist>"""
+         )
+         val songs = readPlaylist(dir/"a.m3u")
+         songs.map { it.uri } shouldBe listOf("1.mp3", "2.mp3", "3.mp3", "4.mp3").map { (dir/it).toURI() }
+         songs[1].isUpdated shouldBe false
+         songs[1].time shouldBe null
+         songs[2].getArtist() shouldBe "Artist"
+         songs[2].timeMs shouldBe 1000.0
+      }
+   }
+
+})
@@ -0,0 +1,108 @@
+package sp.it.pl.audio.playlist
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.ints.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.URI
+import javafx.collections.FXCollections
+import javafx.collections.ListChangeListener
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.readLog
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.readSongs
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.readVarInt
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.toLogBatch
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.writeChange
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.writeSongs
+import sp.it.pl.audio.playlist.PlaylistStore.Companion.writeVarInt
+
+class PlaylistStoreTest: FreeSpec({
+
+   fun bytes(block: DataOutputStream.() -> Unit) = ByteArrayOutputStream().also { DataOutputStream(it).use(block) }.toByteArray()
+   fun ByteArray.input() = DataInputStream(inputStream())
+   fun songs(vararg names: String) = names.map { PlaylistSong(URI("file:///music/${it.substringBefore('/')}/${it.substringAfter('/')}.mp3")) }
+   fun List<PlaylistSong>.uris() = map { it.uri }
+
+   /** @return log batches of the edits of the songs, one batch per edit */
+   fun logEdits(songs: List<PlaylistSong>, vararg edits: MutableList<PlaylistSong>.() -> Unit): List<ByteArray> {
+      val list = FXCollections.observableArrayList(songs)
+      val batches = ArrayList<ByteArray>()
+      list.addListener(ListChangeListener { c -> batches += bytes { writeChange(c) }.toLogBatch() })
+      edits.forEach { it(list) }
+      return batches
+   }
+
+   "varint" - {
+      "round-trips" {
+         val values = listOf(0, 1, 127, 128, 300, 16383, 16384, Int.MAX_VALUE, -1, Int.MIN_VALUE)
+         val encoded = bytes { values.forEach { writeVarInt(it) } }
+         encoded.input().run { values.map { readVarInt() } } shouldBe values
+      }
+      "is compact" {
+         bytes { writeVarInt(127) }.size shouldBe 1
+         bytes { writeVarInt(128) }.size shouldBe 2
+      }
+   }
+
+   "songs" - {
+      "round-trip with directory dictionary" {
+         val songs = songs("a/1", "a/2", "b/3", "a/4") + PlaylistSong(URI("file:///music/c/5.mp3"), "Artist", "Title", 1000.0) + PlaylistSong(URI("http://host/stream"))
+         val read = ArrayList<PlaylistSong>().apply { bytes { writeSongs(songs) }.input().readSongs(this) }
+         read.uris() shouldBe songs.uris()
+         read.map { it.isUpdated } shouldBe songs.map { it.isUpdated }
+         read[4].getArtist() shouldBe "Artist"
+         read[4].getTitle() shouldBe "Title"
+         read[4].timeMs shouldBe 1000.0
+      }
+      "store each directory once" {
+         val many = bytes { writeSongs(songs("a/1", "a/2", "a/3", "a/4")) }
+         val one = bytes { writeSongs(songs("a/1")) }
+         many.size - one.size shouldBeLessThan 3*"file:///music/a/".length
+      }
+      "insert at index" {
+         val read = ArrayList(songs("a/1", "a/4"))
+         bytes { writeSongs(songs("a/2", "a/3")) }.input().readSongs(read, 1)
+         read.uris() shouldBe songs("a/1", "a/2", "a/3", "a/4").uris()
+      }
+   }
+
+   "log" - {
+      val initial = songs("a/1", "a/2", "b/3", "b/4", "c/5")
+
+      "replays insert, remove and permute" {
+         val edits = arrayOf<MutableList<PlaylistSong>.() -> Unit>(
+            { addAll(1, songs("d/6", "d/7")) },
+            { subList(3, 5).clear() },
+            { sortByDescending { it.uri.toString() } },
+            { add(songs("e/8").first()) },
+         )
+         val log = logEdits(initial, *edits)
+         val edited = ArrayList(initial).apply { edits.forEach { it(this) } }
+         val replayed = ArrayList(initial)
+         val length = log.reduce { a, b -> a + b }.input().readLog(replayed)
+
+         replayed.uris() shouldBe edited.uris()
+         length shouldBe log.sumOf { it.size }.toLong()
+      }
+      "ignores incomplete last batch" {
+         val log = logEdits(initial, { add(songs("d/6").first()) }, { removeAt(0) })
+         val bytes = log[0] + log[1].copyOf(log[1].size - 1)
+         val replayed = ArrayList(initial)
+         val length = bytes.input().readLog(replayed)
+
+         replayed.uris() shouldBe (initial + songs("d/6")).uris()
+         length shouldBe log[0].size.toLong()
+      }
+      "ignores corrupted last batch" {
+         val log = logEdits(initial, { add(songs("d/6").first()) }, { removeAt(0) })
+         val bytes = log[0] + log[1].copyOf().apply { this[lastIndex] = (this[lastIndex] + 1).toByte() }
+         val replayed = ArrayList(initial)
+         val length = bytes.input().readLog(replayed)
+
+         replayed.uris() shouldBe (initial + songs("d/6")).uris()
+         length shouldBe log[0].size.toLong()
+      }
+   }
+
+})
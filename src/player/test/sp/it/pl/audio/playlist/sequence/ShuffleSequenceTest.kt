@@ -0,0 +1,86 @@
+package sp.it.pl.audio.playlist.sequence
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import kotlin.random.Random
+
+class ShuffleSequenceTest: FreeSpec({
+
+   ShuffleSequence::class.simpleName!! - {
+      "selects every item once per cycle" {
+         val items = (1..100).map { Item(it) }
+         val shuffle = ShuffleSequence<Item>(random = Random(0)).apply { update(listOf(), items) }
+
+         var current: Item? = null
+         val selected = (1..100).map { shuffle.next(current)!!.also { current = it } }
+         selected shouldContainExactlyInAnyOrder items
+         shuffle.next(current) shouldNotBe current
+      }
+      "selects every item once per cycle when weighted" {
+         val items = (1..100).map { Item(it) }
+         val shuffle = ShuffleSequence<Item>(random = Random(0)).apply { weigher = { it.value.toDouble() }; update(listOf(), items) }
+
+         var current: Item? = null
+         val selected = (1..100).map { shuffle.next(current)!!.also { current = it } }
+         selected shouldContainExactlyInAnyOrder items
+         selected.take(50).sumOf { it.value } shouldBeGreaterThan selected.drop(50).sumOf { it.value }
+      }
+      "follows added and removed items" {
+         val items = (1..10).map { Item(it) }
+         val added = Item(11)
+         val shuffle = ShuffleSequence<Item>(random = Random(0)).apply { update(listOf(), items) }
+
+         var current: Item? = null
+         val selected = (1..5).map { shuffle.next(current)!!.also { current = it } }
+         val removed = items.first { it !in selected }
+         shuffle.update(listOf(removed), listOf(added))
+         val selectedRest = (1..5).map { shuffle.next(current)!!.also { current = it } }
+         (selected + selectedRest) shouldContainExactlyInAnyOrder (items - removed + added)
+      }
+      "navigates history" {
+         val items = (1..10).map { Item(it) }
+         val shuffle = ShuffleSequence<Item>(historySize = 3, random = Random(0)).apply { update(listOf(), items) }
+
+         val a = shuffle.next(null)!!
+         val b = shuffle.next(a)!!
+         val c = shuffle.next(b)!!
+         val d = shuffle.next(c)!!
+         shuffle.previous(d) shouldBe c
+         shuffle.previous(c) shouldBe b
+         shuffle.previous(b) shouldBe null
+         shuffle.next(b) shouldBe c
+         shuffle.next(c) shouldBe d
+      }
+      "plans upcoming items" {
+         val items = (1..10).map { Item(it) }
+         val shuffle = ShuffleSequence<Item>(random = Random(0)).apply { update(listOf(), items) }
+
+         val a = shuffle.next(null)!!
+         val upcoming = shuffle.upcoming(a, 3)
+         shuffle.upcoming(a, 3) shouldBe upcoming
+         shuffle.next(a) shouldBe upcoming[0]
+         shuffle.next(upcoming[0]) shouldBe upcoming[1]
+
+         shuffle.selected(a)
+         var current: Item? = a
+         val selected = (1..7).map { shuffle.next(current)!!.also { current = it } }
+         (selected + a + upcoming[0] + upcoming[1]) shouldContainExactlyInAnyOrder items
+      }
+      "selects only filtered items" {
+         val items = (1..10).map { Item(it) }
+         val shuffle = ShuffleSequence<Item>(random = Random(0)).apply { update(listOf(), items) }
+
+         var current: Item? = null
+         repeat(20) {
+            current = shuffle.next(current) { it.value%2==0 }
+            current!!.value%2 shouldBe 0
+         }
+      }
+   }
+
+})
+
+private class Item(val value: Int)
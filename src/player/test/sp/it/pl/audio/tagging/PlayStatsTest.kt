@@ -0,0 +1,68 @@
+package sp.it.pl.audio.tagging
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.io.File
+import java.net.URI
+import java.util.concurrent.CyclicBarrier
+import kotlin.concurrent.thread
+import sp.it.pl.audio.SimpleSong
+import sp.it.pl.audio.tagging.PlayStats.Stats
+
+class PlayStatsTest: FreeSpec({
+
+   fun journal() = File.createTempFile("play-stats-test", ".journal").apply { delete(); deleteOnExit() }
+
+   PlayStats::class.simpleName!! - {
+      "written statistics are no longer pending" {
+         val s = PlayStats(journal())
+         s.recordPending("a", Stats(1, 10, 10))
+         s.recordPending("b", Stats(2, 20, 20))
+         s.completePending(s.pending())
+         s.pending() shouldBe mapOf()
+         PlayStats(s.file).apply { init() }.pending() shouldBe mapOf()
+      }
+      "statistics recorded during flush remain pending without the written part" {
+         val s = PlayStats(journal())
+         s.recordPending("a", Stats(1, 10, 10))
+         s.recordPending("b", Stats(2, 20, 20))
+         val written = s.pending()
+         s.recordPending("a", Stats(1, 30, 30))
+         s.completePending(written)
+         s.pending() shouldBe mapOf("a" to Stats(1, null, 30))
+         PlayStats(s.file).apply { init() }.pending() shouldBe mapOf("a" to Stats(1, null, 30))
+      }
+      "statistics not written remain pending" {
+         val s = PlayStats(journal())
+         s.recordPending("a", Stats(1, 10, 10))
+         s.recordPending("b", Stats(2, 20, 20))
+         s.completePending(s.pending().filterKeys { it=="b" })
+         s.pending() shouldBe mapOf("a" to Stats(1, 10, 10))
+      }
+      "concurrently recorded statistics are all applied to library" {
+         val s = PlayStats(journal())
+         val id = URI("file:///a.mp3").toString()
+         val library = mutableMapOf(id to Metadata(SimpleSong(URI(id))))
+         fun updateSong(i: String, change: (Metadata) -> Metadata) = synchronized(library) { library[i]?.let(change)?.also { library[i] = it } }
+         val barrier = CyclicBarrier(2)
+         listOf(Stats(1, 10, 10), Stats(2, 20, 20))
+            .map { stats -> thread { barrier.await(); s.record(id, stats, ::updateSong) } }
+            .forEach { it.join() }
+         library[id]!!.getPlaycountOr0() shouldBe 3
+         s.pending()[id]!!.playcountBy shouldBe 3
+      }
+   }
+
+   Stats::class.simpleName!! - {
+      "then" {
+         Stats(1, 10, 10) then Stats(2, 20, 20) shouldBe Stats(3, 10, 20)
+         Stats(1, null, null) then Stats(0, 20, 20) shouldBe Stats(1, 20, 20)
+      }
+      "minus" {
+         Stats(3, 10, 20) - Stats(1, 10, 10) shouldBe Stats(2, null, 20)
+         Stats(3, 10, 20) - Stats(3, 10, 20) shouldBe Stats(0, null, null)
+         (Stats(3, 10, 20) - Stats(3, 10, 20)).isEmpty() shouldBe true
+      }
+   }
+
+})
@@ -0,0 +1,41 @@
+package sp.it.pl.image
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import sp.it.pl.image.ImageLoadScheduler.Priority
+import sp.it.util.async.VT
+import sp.it.util.ui.image.Interrupts
+
+class ImageLoadSchedulerTest: FreeSpec({
+
+   ImageLoadScheduler::class.simpleName!! - {
+      "starts tasks by priority, then most recent first" {
+         val s = ImageLoadScheduler(VT, 1, 1)
+         val blocked = CountDownLatch(1)
+         val order = CopyOnWriteArrayList<String>()
+         s.submit(null, { -1 }) { blocked.await() }
+         val tasks = listOf("a" to 1, "b" to 0, "c" to 0).map { (n, p) -> s.submit(null, { p }) { order += n } }
+         blocked.countDown()
+         tasks.forEach { it.result.asCompletableFuture().get(5, SECONDS) }
+
+         order shouldBe listOf("c", "b", "a")
+         s.stats().completed shouldBe 4
+         s.stats().queued shouldBe 0
+      }
+      "runs cancelled queued task immediately and interrupted" {
+         val s = ImageLoadScheduler(VT, 1, 1)
+         val blocked = CountDownLatch(1)
+         s.submit(null, Priority.DEFAULT) { blocked.await() }
+         val task = s.submit(null, { 1 }) { Interrupts.isInterrupted }
+         task.cancel()
+
+         task.result.asCompletableFuture().get(5, SECONDS) shouldBe true
+         blocked.countDown()
+         s.stats().cancelled shouldBe 1
+      }
+   }
+
+})
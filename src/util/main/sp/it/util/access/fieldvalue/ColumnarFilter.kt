@@ -0,0 +1,69 @@
+package sp.it.util.access.fieldvalue
+
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Predicate
+import org.jetbrains.annotations.Blocking
+import sp.it.util.access.fieldvalue.FieldColumns.Companion.forEachChunk
+import sp.it.util.async.future.Fut
+import sp.it.util.async.runVT
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.functional.asIs
+
+/**
+ * Filters lists of items off the fx thread, in parallel chunks.
+ *
+ * [FieldPredicate]s and [FieldPredicates] are evaluated against [FieldColumns], which are extracted once per field and
+ * reused as long as the same columns are filtered, so changing the filter (e.g. as user types the query) does not
+ * invoke [ObjectField.getOf] for every item again. Other predicates are evaluated directly.
+ *
+ * Only the last filtering is computed to completion, any previous is cancelled, see [filter].
+ *
+ * @param T type of the filtered items
+ */
+class ColumnarFilter<T> {
+   private val generation = AtomicLong(0)
+
+   /**
+    * Cancels previous filtering and filters the specified items.
+    *
+    * @return future of bitmap of indexes of matching items or null if cancelled
+    */
+   fun filter(items: FieldColumns<T>, predicate: Predicate<in T>): Fut<BitSet?> {
+      val g = generation.incrementAndGet()
+      return runVT { filterNow(items, predicate) { g!=generation.get() } }
+   }
+
+   /** Cancels any filtering in progress. */
+   fun cancel() {
+      generation.incrementAndGet()
+   }
+
+   /**
+    * Filters the specified items on the current thread.
+    *
+    * @param isCancelled polled periodically, when true, filtering stops
+    * @return bitmap of indexes of matching items or null if cancelled
+    */
+   @Blocking
+   fun filterNow(items: FieldColumns<T>, predicate: Predicate<in T>, isCancelled: () -> Boolean): BitSet? {
+      failIfFxThread()
+
+      val test: (Int) -> Boolean = when (predicate) {
+         is FieldPredicate<*, *> ->
+            items.column(predicate.field.asIs(), isCancelled)?.let { c -> { i: Int -> predicate.testValue(c[i]) } } ?: return null
+         is FieldPredicates<*> ->
+            predicate.predicates.map { items.column(it.field.asIs(), isCancelled) ?: return null }.let { cs -> { i: Int -> cs.indices.all { predicate.predicates[it].testValue(cs[it][i]) } } }
+         else ->
+            { i: Int -> predicate.test(items.items[i]) }
+      }
+
+      val words = LongArray((items.size + 63)/64)
+      val isDone = forEachChunk(items.size, isCancelled) { from, to ->
+         for (i in from until to)
+            if (test(i)) words[i ushr 6] = words[i ushr 6] or (1L shl i)
+      }
+      return if (isDone) BitSet.valueOf(words) else null
+   }
+
+}
@@ -0,0 +1,156 @@
+package sp.it.util.access.fieldvalue
+
+import java.util.Arrays
+import java.util.BitSet
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicLong
+import org.jetbrains.annotations.Blocking
+import sp.it.util.Sort
+import sp.it.util.Sort.DESCENDING
+import sp.it.util.Sort.NONE
+import sp.it.util.async.future.Fut
+import sp.it.util.async.runVT
+import sp.it.util.dev.failIfFxThread
+import sp.it.util.functional.asIs
+import sp.it.util.type.isSubclassOf
+import sp.it.util.type.raw
+
+/**
+ * Sorts items off the fx thread, using parallel stable sort of item indexes.
+ *
+ * When sorting by [SortKey]s, the sort keys are computed once per field from [FieldColumns] - into primitive arrays for
+ * numeric fields - and reused for subsequent sorts of the same columns (e.g. sorting by multiple columns or after
+ * changing filter), so [ObjectField.getOf] is not invoked O(n log n) times.
+ *
+ * Only the last sort is computed to completion, any previous is cancelled, see [sort].
+ *
+ * @param T type of the sorted items
+ */
+class ColumnarSort<T> {
+   private val generation = AtomicLong(0)
+
+   /**
+    * Cancels previous sort and sorts the specified item indexes by the specified keys.
+    *
+    * @param indexes indexes of [FieldColumns.items] to sort, e.g. all or only those that passed filter
+    * @return future of sorted indexes or null if cancelled
+    */
+   fun sort(items: FieldColumns<T>, indexes: IntArray, keys: List<SortKey<T>>): Fut<IntArray?> {
+      val g = generation.incrementAndGet()
+      return runVT { sortNow(items, indexes, keys) { g!=generation.get() } }
+   }
+
+   /** [sort] that compares items using the specified comparator, for when [SortKey] can not express the order */
+   fun sort(items: FieldColumns<T>, indexes: IntArray, comparator: Comparator<in T>): Fut<IntArray?> {
+      val g = generation.incrementAndGet()
+      return runVT { sortNow(items, indexes, comparator) { g!=generation.get() } }
+   }
+
+   /** Cancels any sort in progress. */
+   fun cancel() {
+      generation.incrementAndGet()
+   }
+
+   /** [sort] on the current thread. */
+   @Blocking
+   fun sortNow(items: FieldColumns<T>, indexes: IntArray, keys: List<SortKey<T>>, isCancelled: () -> Boolean): IntArray? {
+      failIfFxThread()
+
+      val columns = keys.filter { it.sort!=NONE }.map { k ->
+         val c = items.derived(k.field, KeyColumn::class, isCancelled) { KeyColumn.of(k.field, it) } ?: return null
+         if (k.sort==DESCENDING) c.reversed else c
+      }
+      return sortIndexes(indexes, isCancelled) { a, b ->
+         var r = 0
+         for (c in columns) {
+            r = c.compare(a, b)
+            if (r!=0) break
+         }
+         r
+      }
+   }
+
+   /** [sort] on the current thread. */
+   @Blocking
+   fun sortNow(items: FieldColumns<T>, indexes: IntArray, comparator: Comparator<in T>, isCancelled: () -> Boolean): IntArray? {
+      failIfFxThread()
+      return sortIndexes(indexes, isCancelled) { a, b -> comparator.compare(items.items[a], items.items[b]) }
+   }
+
+   private fun sortIndexes(indexes: IntArray, isCancelled: () -> Boolean, comparator: (Int, Int) -> Int): IntArray? {
+      val boxed = indexes.toTypedArray()
+      return try {
+         // Arrays.parallelSort is stable for objects
+         Arrays.parallelSort(boxed) { a, b ->
+            if (isCancelled()) throw CancellationException()
+            comparator(a, b)
+         }
+         boxed.toIntArray()
+      } catch (e: CancellationException) {
+         null
+      }
+   }
+
+   /** Sort by value of the [field], null values are always last. */
+   data class SortKey<T>(val field: ObjectField<T, *>, val sort: Sort)
+
+   /** Sort key of every item. Compares in ascending order with nulls last. */
+   private abstract class KeyColumn(val nulls: BitSet) {
+      abstract fun compareNonNull(a: Int, b: Int): Int
+
+      open fun compare(a: Int, b: Int): Int {
+         val aNull = nulls[a]
+         val bNull = nulls[b]
+         return when {
+            aNull && bNull -> 0
+            aNull -> 1
+            bNull -> -1
+            else -> compareNonNull(a, b)
+         }
+      }
+
+      /** Same as this, except non-null values are in descending order (nulls remain last) */
+      val reversed: KeyColumn by lazy {
+         val self = this
+         if (self is OfNone) self
+         else object: KeyColumn(nulls) {
+            override fun compareNonNull(a: Int, b: Int) = self.compareNonNull(b, a)
+         }
+      }
+
+      class OfLong(nulls: BitSet, val keys: LongArray): KeyColumn(nulls) {
+         override fun compareNonNull(a: Int, b: Int) = keys[a].compareTo(keys[b])
+      }
+
+      class OfDouble(nulls: BitSet, val keys: DoubleArray): KeyColumn(nulls) {
+         override fun compareNonNull(a: Int, b: Int) = keys[a].compareTo(keys[b])
+      }
+
+      class OfComparable(nulls: BitSet, val keys: Array<Any?>): KeyColumn(nulls) {
+         override fun compareNonNull(a: Int, b: Int) = keys[a]!!.asIs<Comparable<Any>>().compareTo(keys[b]!!)
+      }
+
+      class OfNone(nulls: BitSet): KeyColumn(nulls) {
+         override fun compare(a: Int, b: Int) = 0
+         override fun compareNonNull(a: Int, b: Int) = 0
+      }
+
+      companion object {
+         fun of(field: ObjectField<*, *>, values: Array<Any?>): KeyColumn {
+            val nulls = BitSet(values.size).apply { values.forEachIndexed { i, v -> if (v==null) set(i) } }
+            val type = field.type.raw
+            return when {
+               type==Byte::class || type==Short::class || type==Int::class || type==Long::class ->
+                  OfLong(nulls, LongArray(values.size) { values[it]?.asIs<Number>()?.toLong() ?: 0L })
+               type==Float::class || type==Double::class ->
+                  OfDouble(nulls, DoubleArray(values.size) { values[it]?.asIs<Number>()?.toDouble() ?: 0.0 })
+               field.type.isSubclassOf<Comparable<*>>() ->
+                  OfComparable(nulls, values)
+               else ->
+                  OfNone(nulls)
+            }
+         }
+      }
+   }
+
+}
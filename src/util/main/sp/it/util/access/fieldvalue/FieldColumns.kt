@@ -0,0 +1,106 @@
+package sp.it.util.access.fieldvalue
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.IntStream
+import javafx.collections.ListChangeListener.Change
+import org.jetbrains.annotations.Blocking
+import sp.it.util.functional.asIs
+
+/**
+ * Columns of field values of the specified items, i.e., for every field, the values extracted by [ObjectField.getOf]
+ * for every item, in the order of the items.
+ *
+ * Columns are extracted lazily, in parallel chunks, and cached, so filtering or sorting the same items repeatedly
+ * (e.g. as user types filter query or sorts by multiple columns) does not invoke [ObjectField.getOf] again.
+ * The instance should be replaced when items change, see [changed]. Thread-safe.
+ *
+ * @param items items, must not be modified afterward
+ */
+class FieldColumns<T>(val items: List<T>) {
+   private val columns = ConcurrentHashMap<ObjectField<T, *>, Array<Any?>>()
+   private val derived = ConcurrentHashMap<Pair<ObjectField<T, *>, Any>, Any>()
+
+   /** Number of items */
+   val size: Int
+      get() = items.size
+
+   /**
+    * @param isCancelled polled periodically, when true, extraction stops
+    * @return values of the field for every item or null if cancelled
+    */
+   @Blocking
+   fun column(field: ObjectField<T, *>, isCancelled: () -> Boolean): Array<Any?>? =
+      columns[field] ?: run {
+         val c = arrayOfNulls<Any?>(items.size)
+         val isDone = forEachChunk(items.size, isCancelled) { from, to ->
+            for (i in from until to) c[i] = field.getOf(items[i])
+         }
+         if (isDone) columns.putIfAbsent(field, c) ?: c else null
+      }
+
+   /**
+    * @param key identifies the kind of derived data, e.g. sort keys
+    * @return cached data derived from the column of the specified field or null if cancelled
+    */
+   @Blocking
+   fun <R: Any> derived(field: ObjectField<T, *>, key: Any, isCancelled: () -> Boolean, derive: (Array<Any?>) -> R): R? {
+      derived[field to key]?.let { return it.asIs() }
+      val c = column(field, isCancelled) ?: return null
+      val d = derive(c)
+      return derived.putIfAbsent(field to key, d)?.asIs() ?: d
+   }
+
+   /**
+    * Columns of the specified items, which are the items of this changed by the specified change. Columns extracted so
+    * far are retained, only values of the added and updated items are extracted, so small changes of large lists are
+    * cheap. Permutations and large changes leave the columns to be extracted again lazily.
+    *
+    * @param items items after the change, must not be modified afterward
+    * @param change change of the list the items of this were copied from, its sub-changes are iterated from the start
+    * @return new instance
+    */
+   fun changed(items: List<T>, change: Change<out T>): FieldColumns<T> {
+      val fc = FieldColumns(items)
+      if (columns.isEmpty()) return fc
+
+      // from, removed size, added size
+      val splices = ArrayList<IntArray>()
+      var addedCount = 0
+      change.reset()
+      while (change.next()) {
+         when {
+            change.wasPermutated() -> { change.reset(); return fc }
+            change.wasUpdated() -> splices += intArrayOf(change.from, change.to - change.from, change.to - change.from)
+            else -> splices += intArrayOf(change.from, change.removedSize, change.addedSize)
+         }
+         addedCount += splices.last()[2]
+      }
+      change.reset()
+      if (addedCount>items.size/2) return fc
+
+      columns.forEach { (field, c) ->
+         val cs = c.toMutableList()
+         splices.forEach { (from, removedSize, addedSize) ->
+            cs.subList(from, from + removedSize).clear()
+            cs.addAll(from, (from until from + addedSize).map { field.getOf(items[it]) })
+         }
+         if (cs.size==items.size) fc.columns[field] = cs.toTypedArray()
+      }
+      return fc
+   }
+
+   companion object {
+      /** Number of items processed by single parallel task, multiple of 64 so chunks never share a bitmap word */
+      const val CHUNK_SIZE = 64*64
+
+      /** Invokes the block for every chunk of the range `[0, size)` in parallel. @return true if all chunks were processed or false if cancelled */
+      @Blocking
+      fun forEachChunk(size: Int, isCancelled: () -> Boolean, block: (Int, Int) -> Unit): Boolean {
+         val chunks = (size + CHUNK_SIZE - 1)/CHUNK_SIZE
+         IntStream.range(0, chunks).parallel().forEach { chunk ->
+            if (!isCancelled()) block(chunk*CHUNK_SIZE, minOf(size, (chunk + 1)*CHUNK_SIZE))
+         }
+         return !isCancelled()
+      }
+   }
+}
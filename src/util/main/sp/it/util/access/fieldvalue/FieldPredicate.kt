@@ -0,0 +1,32 @@
+package sp.it.util.access.fieldvalue
+
+import java.util.function.Predicate
+import sp.it.util.functional.asIs
+
+/**
+ * [Predicate] testing the value extracted by [field].
+ *
+ * Unlike a lambda, the field and the value test are known, which allows evaluating the predicate against already
+ * extracted field values, see [testValue] and [ColumnarFilter].
+ *
+ * @param f test of the extracted value
+ * @param isNullSafe whether [f] accepts null, otherwise null values never match
+ * @param isNegated whether the result of the test is negated
+ */
+class FieldPredicate<V, T>(val field: ObjectField<V, T>, val f: (T) -> Boolean, val isNullSafe: Boolean, val isNegated: Boolean): Predicate<V> {
+
+   override fun test(element: V) = testValue(field.getOf(element))
+
+   /** @return result of this predicate for element with the specified value of [field] */
+   fun testValue(value: Any?): Boolean = (if (isNullSafe) f(value.asIs()) else value!=null && f(value.asIs()))!=isNegated
+
+   override fun negate() = FieldPredicate(field, f, isNullSafe, !isNegated)
+
+}
+
+/** Conjunction of [FieldPredicate]s. */
+class FieldPredicates<V>(val predicates: List<FieldPredicate<V, *>>): Predicate<V> {
+
+   override fun test(element: V) = predicates.all { it.test(element) }
+
+}
@@ -0,0 +1,116 @@
+package sp.it.util.collections.list
+
+import java.util.IdentityHashMap
+import javafx.collections.ListChangeListener
+import javafx.collections.ObservableList
+
+/**
+ * Index of element positions of an observable list, by element identity and by element key, maintained from list
+ * change events, so [indexOf], [indexOfKey], [containsKey] and [indicesOfKey] do not scan the list.
+ *
+ * Additions to and removals from the end of the list (the most common changes, e.g. adding songs to playlist) are
+ * applied incrementally. Other structural changes (insertion, removal in the middle, sorting) invalidate the index,
+ * which is rebuilt at the next query, so consecutive queries on unchanged list (e.g. table column sorting) are O(1)
+ * amortized.
+ *
+ * Keys of the elements must be constant, updates of the elements are ignored.
+ * Not thread safe, must be used on the thread that modifies the list.
+ *
+ * @param list list to index
+ * @param keyOf key of an element, e.g. uri
+ */
+class ObservableListIndex<E: Any, K: Any>(private val list: ObservableList<E>, private val keyOf: (E) -> K) {
+   private val byIdentity = IdentityHashMap<E, Int>()
+   private val byKey = HashMap<K, MutableList<Int>>()
+   private var isValid = false
+   private val listener = ListChangeListener<E> { onChange(it) }
+
+   init {
+      list.addListener(listener)
+   }
+
+   /** Stops observing the list. The index must not be used afterwards. */
+   fun dispose() {
+      list.removeListener(listener)
+   }
+
+   /** @return index of the first occurrence of the specified element instance or -1 if none, like [List.indexOf] using identity */
+   fun indexOf(element: E): Int {
+      validate()
+      return byIdentity[element] ?: -1
+   }
+
+   /** @return whether the list contains the specified element instance */
+   fun contains(element: E): Boolean = indexOf(element)>=0
+
+   /** @return index of the first element with the specified key or -1 if none */
+   fun indexOfKey(key: K): Int {
+      validate()
+      return byKey[key]?.first() ?: -1
+   }
+
+   /** @return whether the list contains element with the specified key */
+   fun containsKey(key: K): Boolean = indexOfKey(key)>=0
+
+   /** @return indices of all elements with the specified key, in ascending order */
+   fun indicesOfKey(key: K): List<Int> {
+      validate()
+      return byKey[key]?.toList().orEmpty()
+   }
+
+   /** @return elements with the specified key, in list order */
+   fun elementsOfKey(key: K): List<E> {
+      validate()
+      return byKey[key]?.map { list[it] }.orEmpty()
+   }
+
+   private fun onChange(c: ListChangeListener.Change<out E>) {
+      if (!isValid) return
+      while (c.next()) {
+         when {
+            c.wasPermutated() || c.wasReplaced() -> {
+               invalidate()
+               return
+            }
+            c.wasUpdated() -> Unit
+            c.wasAdded() && !c.wasRemoved() && c.to==c.list.size -> {
+               for (i in c.from until c.to) add(i, c.list[i])
+            }
+            c.wasRemoved() && !c.wasAdded() && c.from==c.list.size -> {
+               c.removed.forEachIndexed { i, e -> remove(c.from + i, e) }
+            }
+            else -> {
+               invalidate()
+               return
+            }
+         }
+      }
+   }
+
+   private fun add(i: Int, e: E) {
+      byIdentity.putIfAbsent(e, i)
+      byKey.getOrPut(keyOf(e)) { ArrayList(1) } += i
+   }
+
+   private fun remove(i: Int, e: E) {
+      if (byIdentity[e]==i) byIdentity -= e
+      val k = keyOf(e)
+      byKey[k]?.let {
+         it.remove(i)
+         if (it.isEmpty()) byKey -= k
+      }
+   }
+
+   private fun invalidate() {
+      isValid = false
+      byIdentity.clear()
+      byKey.clear()
+   }
+
+   private fun validate() {
+      if (isValid) return
+      list.forEachIndexed(::add)
+      isValid = true
+   }
+
+}
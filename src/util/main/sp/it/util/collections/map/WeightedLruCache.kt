@@ -0,0 +1,107 @@
+package sp.it.util.collections.map
+
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIf
+
+/**
+ * Least recently used cache bounded by total weight of its values, e.g. byte size of images.
+ *
+ * When the total weight exceeds [maxWeight], least recently accessed entries are evicted. Value heavier than
+ * [maxWeight] is not cached at all.
+ *
+ * @param maxWeight maximal total weight of the values, must not be negative
+ * @param weigher weight of a value, must not be negative and must be constant for the value
+ */
+@ThreadSafe
+class WeightedLruCache<K: Any, V: Any>(maxWeight: Long, private val weigher: (V) -> Long) {
+   private val map = LinkedHashMap<K, V>(16, 0.75f, true)
+   private var hits = 0L
+   private var misses = 0L
+   private var evictions = 0L
+
+   /** Maximal total weight of the values. Lowering it evicts entries immediately. */
+   @Volatile var maxWeight = maxWeight
+      set(value) {
+         failIf(value<0) { "Max weight must not be negative" }
+         synchronized(this) {
+            field = value
+            evict()
+         }
+      }
+
+   /** Total weight of the values */
+   var weight = 0L
+      @Synchronized get
+      private set
+
+   init {
+      failIf(maxWeight<0) { "Max weight must not be negative" }
+   }
+
+   /** @return value for the specified key or null if not cached */
+   @Synchronized
+   operator fun get(key: K): V? {
+      val v = map[key]
+      if (v==null) misses++ else hits++
+      return v
+   }
+
+   /** Caches the specified value, replacing any previous value for the specified key */
+   @Synchronized
+   fun put(key: K, value: V) {
+      val w = weigher(value)
+      map.remove(key)?.let { weight -= weigher(it) }
+      if (w>maxWeight) return
+      map[key] = value
+      weight += w
+      evict()
+   }
+
+   /** @return value for the specified key, computing and caching it if not cached (computation is not synchronized) */
+   fun getOrPut(key: K, compute: () -> V?): V? =
+      get(key) ?: compute()?.also { put(key, it) }
+
+   /** Removes the value for the specified key */
+   @Synchronized
+   fun remove(key: K) {
+      map.remove(key)?.let { weight -= weigher(it) }
+   }
+
+   /** Removes all values */
+   @Synchronized
+   fun clear() {
+      map.clear()
+      weight = 0L
+   }
+
+   /** @return snapshot of the statistics of this cache */
+   @Synchronized
+   fun stats() = CacheStats(hits, misses, evictions, map.size.toLong(), weight)
+
+   private fun evict() {
+      val i = map.values.iterator()
+      while (weight>maxWeight && i.hasNext()) {
+         weight -= weigher(i.next())
+         i.remove()
+         evictions++
+      }
+   }
+}
+
+/** Snapshot of cache statistics */
+data class CacheStats(
+   /** Number of lookups that found the value */
+   val hits: Long,
+   /** Number of lookups that did not find the value */
+   val misses: Long,
+   /** Number of values removed to satisfy the size limit */
+   val evictions: Long,
+   /** Number of cached values */
+   val count: Long,
+   /** Total size of cached values, in units of the cache, e.g. bytes */
+   val size: Long
+) {
+   /** Ratio of [hits] to all lookups or 0 if none */
+   val hitRatio: Double
+      get() = if (hits + misses==0L) 0.0 else hits.toDouble()/(hits + misses)
+}
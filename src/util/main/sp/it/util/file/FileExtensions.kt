@@ -26,7 +26,19 @@ fun File.traverseParents(): Sequence<File> = traverse { it.parentFile }
  * @param maxDepth the maximum number of levels of directories to visit. A value of 0 means that only the starting file
  * is visited. Integer.MAX_VALUE may be used to indicate that all levels should be visited.
  */
-fun File.getFilesR(maxDepth: Int = Int.MAX_VALUE, fileType: FileType?, vararg options: FileVisitOption, predicate: (Path, BasicFileAttributes) -> Boolean): List<File> {
+fun File.getFilesR(maxDepth: Int = Int.MAX_VALUE, fileType: FileType?, vararg options: FileVisitOption, predicate: (Path, BasicFileAttributes) -> Boolean): List<File> =
+   runTry { useFilesR(maxDepth, fileType, *options, predicate = predicate) { it.toList() } }.orNull().orEmpty()
+
+/**
+ * Lazily visits files like [getFilesR], so the files can be consumed as they are found, e.g., to display the first
+ * results of a large directory walk early, or the walk can be stopped early.
+ * The sequence is valid only within the [block] and can be iterated only once. The underlying resources are closed
+ * when the block returns.
+ *
+ * @throws java.io.IOException or [java.io.UncheckedIOException] if the walk fails
+ */
+@Blocking
+fun <R> File.useFilesR(maxDepth: Int = Int.MAX_VALUE, fileType: FileType?, vararg options: FileVisitOption, predicate: (Path, BasicFileAttributes) -> Boolean, block: (Sequence<File>) -> R): R {
    val p:  (Path, BasicFileAttributes) -> Boolean = when (fileType) {
       null -> predicate
       DIRECTORY -> { p, a -> a.isDirectory && predicate(p, a) }
@@ -37,7 +49,7 @@ fun File.getFilesR(maxDepth: Int = Int.MAX_VALUE, fileType: FileType?, vararg op
       DIRECTORY -> { it -> FastFile(it.pathString, true, false) }
       FILE -> { it -> FastFile(it.pathString, false, true) }
    }
-   return runTry { Files.find(toPath(), maxDepth, p, *options).use { it.map(m).toList() } }.orNull().orEmpty()
+   return Files.find(toPath(), maxDepth, p, *options).use { block(it.map(m).iterator().asSequence()) }
 }
 
 /** If [File.exists] calls [File.deleteOrThrow] or does nothing */
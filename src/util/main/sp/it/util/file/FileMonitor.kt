@@ -53,6 +53,7 @@ import sp.it.util.units.millis
  * be thrown for any direct child.
  *
  * Furthermore, recursive monitoring is only supported on Windows, this is a platform limitation.
+ * For monitoring large directory trees on other platforms, see [FileTreeMonitor].
  */
 class FileMonitor {
    private lateinit var monitoredFileDir: File
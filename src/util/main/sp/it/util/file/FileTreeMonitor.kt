@@ -0,0 +1,289 @@
+package sp.it.util.file
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.io.IOException
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.FileVisitResult
+import java.nio.file.FileVisitResult.CONTINUE
+import java.nio.file.FileVisitResult.SKIP_SUBTREE
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.StandardWatchEventKinds.ENTRY_CREATE
+import java.nio.file.StandardWatchEventKinds.ENTRY_DELETE
+import java.nio.file.StandardWatchEventKinds.OVERFLOW
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import sp.it.util.async.VT
+import sp.it.util.async.runFX
+import sp.it.util.async.runOn
+
+/**
+ * Recursive directory monitor for systems without native recursive [WatchService] support (e.g. inotify on Linux),
+ * where every directory in the tree requires its own watch.
+ *
+ * Unlike [FileMonitor], this monitor is designed for large trees (e.g. song library):
+ * - directories are registered lazily, in breadth-first order, on the monitoring thread, so the monitor is responsive
+ *   immediately and large trees do not delay startup
+ * - newly created directories are registered immediately and their content is reported as added, which covers the
+ *   window between directory creation and its registration
+ * - number of watches is limited by [WatchBudget], directories over budget are not monitored
+ * - `OVERFLOW` (lost events) is reported as a request to rescan the affected subtree, see [Changes.rescanned], only
+ *   its directories that are not monitored yet are registered
+ * - events are coalesced until there is a quiet period (or maximal delay elapses) and reported in a single batch,
+ *   so event storms (e.g. copying thousands of files) result in a handful of [Changes]
+ *
+ * Only creation and deletion is monitored. As the type of deleted file can not be determined, a deleted monitored
+ * directory is reported as removed file and consumer should treat it as removal of the whole subtree.
+ */
+class FileTreeMonitor private constructor(
+   val root: File,
+   private val budget: WatchBudget,
+   private val filter: (File) -> Boolean,
+   private val action: (Changes) -> Unit
+) {
+   private val watchService: WatchService = FileSystems.getDefault().newWatchService()
+   private val keys = HashMap<Path, WatchKey>()
+   private val dirs = HashSet<Path>()
+   private val registrationQueue = ArrayDeque<Path>()
+   private val pendingAdded = LinkedHashSet<File>()
+   private val pendingRemoved = LinkedHashSet<File>()
+   private val pendingRescanned = LinkedHashSet<File>()
+   private var pendingFirstAtMs = 0L
+   private var pendingLastAtMs = 0L
+   private var unwatchedCount = 0
+
+   /** Stops monitoring and releases all watches. Idempotent. */
+   fun stop() {
+      try {
+         watchService.close()
+      } catch (e: IOException) {
+         logger.error(e) { "Error when closing file tree monitoring $root" }
+      }
+   }
+
+   private fun start() {
+      runOn(VT("FileTreeMonitor-${root.path}")) {
+         try {
+            registrationQueue += root.toPath()
+            loop()
+         } catch (e: ClosedWatchServiceException) {
+            // monitor stopped
+         } catch (e: InterruptedException) {
+            logger.error(e) { "Interrupted monitoring of directory tree $root" }
+         } finally {
+            budget.release(keys.size)
+            keys.clear()
+         }
+      }
+   }
+
+   private fun loop() {
+      while (true) {
+         val timeoutMs = when {
+            registrationQueue.isNotEmpty() -> 0L
+            pendingFirstAtMs!=0L -> FLUSH_CHECK_MS
+            else -> IDLE_MS
+         }
+         val key = if (timeoutMs==0L) watchService.poll() else watchService.poll(timeoutMs, MILLISECONDS)
+         if (key!=null) handle(key)
+         repeat(REGISTRATION_STEP) { registrationQueue.removeFirstOrNull()?.let { registerLazily(it) } }
+         flushIfDue()
+      }
+   }
+
+   private fun handle(key: WatchKey) {
+      val dir = key.watchable() as Path
+      for (event in key.pollEvents()) {
+         when (event.kind()) {
+            OVERFLOW -> {
+               pendingRescanned += dir.toFile()
+               registerNewDirs(dir)
+            }
+            ENTRY_CREATE -> {
+               val path = dir.resolve(event.context() as Path)
+               if (Files.isDirectory(path)) {
+                  registerTree(path, true)
+               } else {
+                  val file = path.toFile()
+                  if (filter(file)) {
+                     pendingRemoved -= file
+                     pendingAdded += file
+                  }
+               }
+            }
+            ENTRY_DELETE -> {
+               val path = dir.resolve(event.context() as Path)
+               val file = path.toFile()
+               if (dirs.remove(path) || filter(file)) {
+                  pendingAdded -= file
+                  pendingRemoved += file
+               }
+            }
+         }
+         pendingChanged()
+      }
+      if (!key.reset()) {
+         if (keys.remove(dir)!=null) budget.release(1)
+         // the directory is no longer monitored, e.g. it was deleted, which may be reported before its parent reports it
+         if (dirs.remove(dir) && !Files.exists(dir)) {
+            val file = dir.toFile()
+            pendingAdded -= file
+            pendingRemoved += file
+            pendingChanged()
+         }
+      }
+   }
+
+   private fun pendingChanged() {
+      pendingLastAtMs = System.currentTimeMillis()
+      if (pendingFirstAtMs==0L) pendingFirstAtMs = pendingLastAtMs
+   }
+
+   /** Registers the directory and enqueues its child directories for registration. */
+   private fun registerLazily(dir: Path) {
+      if (!register(dir)) return
+      try {
+         Files.newDirectoryStream(dir) { Files.isDirectory(it) }.use { it.forEach(registrationQueue::addLast) }
+      } catch (e: IOException) {
+         logger.warn(e) { "Failed to list directory=$dir" }
+      }
+   }
+
+   /** Registers the child directory trees of the directory, that are not registered yet, e.g. after events were lost. */
+   private fun registerNewDirs(dir: Path) {
+      try {
+         Files.newDirectoryStream(dir) { it !in keys && Files.isDirectory(it) }.use { it.forEach { d -> registerTree(d, false) } }
+      } catch (e: IOException) {
+         logger.warn(e) { "Failed to list directory=$dir" }
+      }
+   }
+
+   /** Registers the directory tree immediately and optionally reports all its files as added. */
+   private fun registerTree(dir: Path, reportFiles: Boolean) {
+      try {
+         Files.walkFileTree(dir, object: SimpleFileVisitor<Path>() {
+            override fun preVisitDirectory(d: Path, attrs: BasicFileAttributes): FileVisitResult =
+               if (register(d) || reportFiles) CONTINUE else SKIP_SUBTREE
+
+            override fun visitFile(f: Path, attrs: BasicFileAttributes): FileVisitResult {
+               if (reportFiles && attrs.isRegularFile) {
+                  val file = f.toFile()
+                  if (filter(file)) {
+                     pendingRemoved -= file
+                     pendingAdded += file
+                  }
+               }
+               return CONTINUE
+            }
+
+            override fun visitFileFailed(f: Path, e: IOException) = CONTINUE
+         })
+      } catch (e: IOException) {
+         logger.warn(e) { "Failed to register directory tree=$dir" }
+      }
+   }
+
+   /** @return true if the directory is monitored (possibly already) or false if it could not be registered */
+   private fun register(dir: Path): Boolean {
+      if (dir in keys) return true
+      if (!budget.acquire()) {
+         if (unwatchedCount++==0) logger.warn { "File monitoring watch limit=${budget.max} reached, some directories in $root will not be monitored" }
+         return false
+      }
+      return try {
+         keys[dir] = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE)
+         dirs += dir
+         true
+      } catch (e: IOException) {
+         budget.release(1)
+         // system limit (e.g. fs.inotify.max_user_watches) reached, no point in trying to register more
+         if (e.message?.contains("limit", true)==true) budget.exhaust()
+         logger.warn(e) { "Failed to register file watch for $dir" }
+         false
+      }
+   }
+
+   private fun flushIfDue() {
+      if (pendingFirstAtMs==0L) return
+      val now = System.currentTimeMillis()
+      if (now - pendingLastAtMs<QUIET_PERIOD_MS && now - pendingFirstAtMs<MAX_DELAY_MS) return
+
+      val rescanned = pendingRescanned.filterTo(LinkedHashSet()) { d -> pendingRescanned.none { d!=it && d isAnyChildOf it } }
+      val changes = Changes(
+         pendingAdded.filterTo(LinkedHashSet()) { f -> rescanned.none { f isAnyChildOf it } },
+         pendingRemoved.filterTo(LinkedHashSet()) { f -> rescanned.none { f isAnyChildOf it } },
+         rescanned
+      )
+      pendingAdded.clear()
+      pendingRemoved.clear()
+      pendingRescanned.clear()
+      pendingFirstAtMs = 0L
+      pendingLastAtMs = 0L
+      if (!changes.isEmpty()) runFX { action(changes) }
+   }
+
+   /** Batch of changes within the monitored directory tree */
+   class Changes(
+      /** Created files */
+      val added: Set<File>,
+      /** Deleted files or directories */
+      val removed: Set<File>,
+      /** Directories whose events were lost and whose content needs to be fully reconciled */
+      val rescanned: Set<File>
+   ) {
+      fun isEmpty() = added.isEmpty() && removed.isEmpty() && rescanned.isEmpty()
+   }
+
+   /**
+    * Maximal number of directory watches, shareable by multiple monitors.
+    * Should be lower than the system limit (e.g. `fs.inotify.max_user_watches` on Linux), which is shared by all
+    * applications of the user.
+    */
+   class WatchBudget(@Volatile var max: Int) {
+      private val used = AtomicInteger(0)
+
+      /** Number of watches in use */
+      val count: Int
+         get() = used.get()
+
+      /** @return true if a watch was acquired or false if the budget is exhausted */
+      fun acquire(): Boolean = used.getAndUpdate { if (it<max) it + 1 else it }<max
+
+      /** Returns the specified number of watches to the budget */
+      fun release(count: Int) {
+         used.addAndGet(-count)
+      }
+
+      /** Lowers [max] to the number of watches in use, so no more watches can be acquired */
+      fun exhaust() {
+         max = used.get()
+      }
+   }
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val REGISTRATION_STEP = 64
+      private const val FLUSH_CHECK_MS = 100L
+      private const val IDLE_MS = 5000L
+      private const val QUIET_PERIOD_MS = 500L
+      private const val MAX_DELAY_MS = 5000L
+
+      /**
+       * Creates and starts monitoring of the specified directory tree.
+       *
+       * @param root directory to be monitored recursively
+       * @param budget watch limit, possibly shared with other monitors
+       * @param filter filter narrowing down file events, it is not applied to directories
+       * @param action handles batched changes on fx application thread
+       * @return directory tree monitor
+       */
+      fun monitorFileTree(root: File, budget: WatchBudget, filter: (File) -> Boolean = { true }, action: (Changes) -> Unit): FileTreeMonitor =
+         FileTreeMonitor(root, budget, filter, action).apply { start() }
+   }
+}
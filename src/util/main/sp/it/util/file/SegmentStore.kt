@@ -0,0 +1,274 @@
+package sp.it.util.file
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_ONLY
+import java.nio.channels.FileChannel.MapMode.READ_WRITE
+import java.nio.channels.FileLock
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+import org.jetbrains.annotations.Blocking
+import sp.it.util.collections.map.CacheStats
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.dev.failIf
+import sp.it.util.functional.asIf
+
+/**
+ * Persistent key-value cache of byte arrays, packed into a fixed ring of memory-mapped segment files.
+ *
+ * Values are appended into the active segment. When it is full, the oldest segment is reused as the next active
+ * segment, evicting all of its values at once. This bounds the disk usage to [segmentCount] * [segmentSize] bytes and
+ * avoids one file per value, which is slow on most file systems for large number of small values (e.g. thumbnails).
+ * Values read from the segment that is to be reused next are moved to the active segment, so frequently used values
+ * survive eviction.
+ *
+ * The index (key to value location) is in memory and is rebuilt from the record headers when the store is opened, so
+ * there is no index file to be kept in sync. Every record is checksummed and corrupted records are treated as missing.
+ *
+ * Segment layout: `magic: Int`, `generation: Int`, records.
+ * Record layout: `magic: Int`, `generation: Int`, `keyLength: Int`, `valueLength: Int`, `crc32: Int`, `key`, `value`.
+ * Records whose generation does not match that of the segment are stale records of the previous use of the segment.
+ * Removal is persisted as a record with `valueLength` -1 and no value, which hides older records of the key.
+ *
+ * Segment files grow as values are appended, up to [segmentSize], so the disk usage follows the stored values.
+ * Segment files beyond [segmentCount], left by a store with more segments, are deleted when the store is opened.
+ *
+ * Only one store (in any process, e.g. multiple application instances) can write into the directory, guarded by a lock
+ * file. If the lock is held by another store, this store is [isReadOnly].
+ *
+ * @param dir directory of the segment files, created if it does not exist
+ * @param segmentCount number of segment files, at least 2
+ * @param segmentSize size of a segment file in bytes, which is also the maximal size of a value
+ */
+@ThreadSafe
+class SegmentStore(val dir: File, val segmentCount: Int, val segmentSize: Int) {
+   private val segments = ArrayList<Segment>()
+   private val index = HashMap<String, Location>()
+   private var active = 0
+   private var hits = 0L
+   private var misses = 0L
+   private var evictions = 0L
+   private var isClosed = false
+   private var lock: FileLock? = null
+
+   /** Whether the directory is used by another store, in which case values are only read and writing has no effect */
+   var isReadOnly = false
+      private set
+
+   init {
+      failIf(segmentCount<2) { "Segment count must be at least 2" }
+      failIf(segmentSize<=SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) { "Segment size too small" }
+   }
+
+   /** Opens (creating if necessary) the segment files and rebuilds the index from their content. Call once, before any other method. */
+   @Blocking
+   @Synchronized
+   fun open() {
+      dir.mkdirs()
+      lock = lock()
+      isReadOnly = lock==null
+      for (i in 0 until segmentCount) {
+         val file = dir/"segment-$i.dat"
+         val buffer = when {
+            !isReadOnly -> map(file, file.length().coerceAtMost(segmentSize.toLong()).toInt())
+            file.exists() -> FileChannel.open(file.toPath(), READ).use { it.map(READ_ONLY, 0, it.size().coerceAtMost(segmentSize.toLong())) }
+            else -> EMPTY_BUFFER
+         }
+         val isValid = buffer.capacity()>=SEGMENT_HEADER_SIZE && buffer.getInt(0)==SEGMENT_MAGIC
+         segments += Segment(i, file, buffer, if (isValid) buffer.getInt(4) else 0, SEGMENT_HEADER_SIZE)
+      }
+      if (!isReadOnly)
+         generateSequence(segmentCount) { it + 1 }.map { dir/"segment-$it.dat" }.takeWhile { it.exists() }.forEach { it.delete() }
+      segments.sortedBy { it.generation }.forEach { s ->
+         s.position = scan(s)
+      }
+      active = segments.maxBy { it.generation }.let { if (it.generation==0 && !isReadOnly) reuse(segments.first()).id else it.id }
+      logger.info { "Opened ${if (isReadOnly) "read-only " else ""}segment store $dir with ${index.size} values" }
+   }
+
+   /** Flushes the segments to the storage device. The store must not be used afterwards. */
+   @Blocking
+   @Synchronized
+   fun close() {
+      if (isClosed) return
+      isClosed = true
+      if (!isReadOnly) segments.forEach { it.buffer.asIf<MappedByteBuffer>()?.force() }
+      segments.clear()
+      index.clear()
+      lock?.let {
+         it.channel().close()
+         lockedDirs -= dir.absolutePath
+      }
+      lock = null
+   }
+
+   /** @return value for the specified key or null if none */
+   @Synchronized
+   operator fun get(key: String): ByteArray? {
+      val l = index[key]
+      if (l==null || isClosed) {
+         misses++
+         return null
+      }
+      val s = segments[l.segment]
+      val value = ByteArray(l.valueLength).also { s.buffer.get(l.valueOffset, it) }
+      val keyBytes = key.toByteArray(Charsets.UTF_8)
+      if (s.buffer.getInt(l.recordOffset + 16)!=crc(keyBytes, value)) {
+         logger.warn { "Corrupted value for key=$key in segment store $dir" }
+         index -= key
+         misses++
+         return null
+      }
+      hits++
+      if (!isReadOnly && l.segment==nextToReuse()) append(key, keyBytes, value)
+      return value
+   }
+
+   /** Stores the specified value, replacing any previous value. Values larger than segment are ignored. */
+   @Synchronized
+   fun put(key: String, value: ByteArray) {
+      if (isClosed || isReadOnly) return
+      append(key, key.toByteArray(Charsets.UTF_8), value)
+   }
+
+   /** Removes the value for the specified key, if any. The space is reclaimed when the segment is reused. */
+   @Synchronized
+   fun remove(key: String) {
+      if (isClosed || isReadOnly || index.remove(key)==null) return
+      append(key, key.toByteArray(Charsets.UTF_8), null)
+   }
+
+   /** Removes all values */
+   @Synchronized
+   fun clear() {
+      if (isClosed || isReadOnly) return
+      index.clear()
+      segments.forEach { if (it.buffer.capacity()>=SEGMENT_HEADER_SIZE) it.buffer.putInt(0, 0) }
+      segments.forEach { it.generation = 0 }
+      active = reuse(segments.first()).id
+   }
+
+   /** @return snapshot of the statistics of this store, size is in bytes */
+   @Synchronized
+   fun stats() = CacheStats(hits, misses, evictions, index.size.toLong(), index.values.sumOf { it.recordLength.toLong() })
+
+   /** Appends the value or removal record if the value is null */
+   private fun append(key: String, keyBytes: ByteArray, value: ByteArray?) {
+      val recordLength = RECORD_HEADER_SIZE + keyBytes.size + (value?.size ?: 0)
+      if (SEGMENT_HEADER_SIZE + recordLength>segmentSize) return
+
+      var s = segments[active]
+      if (s.position + recordLength>segmentSize) {
+         s = reuse(segments[nextToReuse()])
+         active = s.id
+      }
+      ensureCapacity(s, s.position + recordLength + 4)
+      val o = s.position
+      s.buffer.putInt(o, RECORD_MAGIC)
+      s.buffer.putInt(o + 4, s.generation)
+      s.buffer.putInt(o + 8, keyBytes.size)
+      s.buffer.putInt(o + 12, value?.size ?: REMOVED)
+      s.buffer.putInt(o + 16, crc(keyBytes, value ?: EMPTY))
+      s.buffer.put(o + RECORD_HEADER_SIZE, keyBytes)
+      if (value!=null) s.buffer.put(o + RECORD_HEADER_SIZE + keyBytes.size, value)
+      s.position += recordLength
+      // terminate the records, so stale records of the previous generation are not scanned
+      if (s.position + 4<=s.buffer.capacity()) s.buffer.putInt(s.position, 0)
+      if (value!=null) index[key] = Location(s.id, o, recordLength, o + RECORD_HEADER_SIZE + keyBytes.size, value.size)
+   }
+
+   /** Evicts all values of the specified segment and makes it empty with the newest generation. */
+   private fun reuse(s: Segment): Segment {
+      val count = index.size
+      index.values.removeIf { it.segment==s.id }
+      evictions += count - index.size
+      ensureCapacity(s, SEGMENT_HEADER_SIZE + 4)
+      s.generation = (segments.maxOf { it.generation }) + 1
+      s.buffer.putInt(0, SEGMENT_MAGIC)
+      s.buffer.putInt(4, s.generation)
+      s.buffer.putInt(SEGMENT_HEADER_SIZE, 0)
+      s.position = SEGMENT_HEADER_SIZE
+      return s
+   }
+
+   /** Grows the segment file so it has at least the specified size (at most [segmentSize]), growing at least twice its size. */
+   private fun ensureCapacity(s: Segment, size: Int) {
+      val capacity = s.buffer.capacity()
+      if (size<=capacity) return
+      s.buffer.asIf<MappedByteBuffer>()?.force()
+      s.buffer = map(s.file, maxOf(size, capacity*2, SEGMENT_GROWTH_MIN).coerceAtMost(segmentSize))
+   }
+
+   /** @return the specified file mapped for writing with the specified size, the file is created or grown as necessary */
+   private fun map(file: File, size: Int): MappedByteBuffer =
+      FileChannel.open(file.toPath(), CREATE, READ, WRITE).use { it.map(READ_WRITE, 0, size.toLong()) }
+
+   /** @return exclusive lock of the directory or null if it is held by another store */
+   private fun lock(): FileLock? {
+      // closing a channel may release all locks of the process on the file, so stores of this process must not try
+      if (!lockedDirs.add(dir.absolutePath)) return null
+      val channel = FileChannel.open((dir/"lock").toPath(), CREATE, WRITE)
+      val lock = try {
+         channel.tryLock()
+      } catch (e: OverlappingFileLockException) {
+         null
+      }
+      if (lock==null) {
+         channel.close()
+         lockedDirs -= dir.absolutePath
+      }
+      return lock
+   }
+
+   /** @return id of the segment with the oldest generation, other than the active one */
+   private fun nextToReuse(): Int = segments.filter { it.id!=active }.minBy { it.generation }.id
+
+   /** Adds valid records of the segment to the index. Newer records override older ones. @return end of the records */
+   private fun scan(s: Segment): Int {
+      if (s.generation==0) return SEGMENT_HEADER_SIZE
+      var o = SEGMENT_HEADER_SIZE
+      val size = s.buffer.capacity()
+      while (o + RECORD_HEADER_SIZE<=size) {
+         if (s.buffer.getInt(o)!=RECORD_MAGIC || s.buffer.getInt(o + 4)!=s.generation) break
+         val keyLength = s.buffer.getInt(o + 8)
+         val valueLength = s.buffer.getInt(o + 12)
+         val isRemoved = valueLength==REMOVED
+         val valueLengthStored = if (isRemoved) 0 else valueLength
+         if (keyLength<0 || valueLengthStored<0 || o.toLong() + RECORD_HEADER_SIZE + keyLength + valueLengthStored>size) break
+         val recordLength = RECORD_HEADER_SIZE + keyLength + valueLengthStored
+         val keyBytes = ByteArray(keyLength).also { s.buffer.get(o + RECORD_HEADER_SIZE, it) }
+         val key = keyBytes.toString(Charsets.UTF_8)
+         if (!isRemoved) index[key] = Location(s.id, o, recordLength, o + RECORD_HEADER_SIZE + keyLength, valueLength)
+         else if (s.buffer.getInt(o + 16)==crc(keyBytes, EMPTY)) index -= key
+         o += recordLength
+      }
+      return o
+   }
+
+   private fun crc(key: ByteArray, value: ByteArray) = CRC32().apply { update(key); update(value) }.value.toInt()
+
+   private class Segment(val id: Int, val file: File, var buffer: ByteBuffer, var generation: Int, var position: Int)
+
+   private class Location(val segment: Int, val recordOffset: Int, val recordLength: Int, val valueOffset: Int, val valueLength: Int)
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+      private const val SEGMENT_MAGIC = 0x53504753
+      private const val RECORD_MAGIC = 0x53505243
+      private const val SEGMENT_HEADER_SIZE = 8
+      private const val RECORD_HEADER_SIZE = 20
+      private const val REMOVED = -1
+      private const val SEGMENT_GROWTH_MIN = 64*1024
+      private val EMPTY_BUFFER = ByteBuffer.allocate(0)
+      /** Directories locked by stores of this process */
+      private val lockedDirs = ConcurrentHashMap.newKeySet<String>()
+      private val EMPTY = ByteArray(0)
+   }
+}
@@ -0,0 +1,69 @@
+package sp.it.util.file.json
+
+import java.io.Writer
+import sp.it.util.text.escapeJson
+
+/**
+ * Streaming writer of compact json, i.e., writes json directly to the [Writer], without building [JsValue] tree.
+ * Separators are inserted automatically, the structure is not validated. Not thread-safe.
+ */
+class JsWriter(private val w: Writer) {
+   private var isAfterValue = false
+
+   fun beginObject() = open('{')
+
+   fun endObject() = close('}')
+
+   fun beginArray() = open('[')
+
+   fun endArray() = close(']')
+
+   /** Writes name of the object member, must be followed by its value */
+   fun name(name: String) = apply {
+      separate()
+      string(name)
+      w.write(':'.code)
+      isAfterValue = false
+   }
+
+   fun value(value: String?) = write { if (value==null) w.write("null") else string(value) }
+
+   /** Writes the number, non-finite numbers (which json does not support) are written as null */
+   fun value(value: Number?) = write {
+      w.write(if (value==null || (value is Double && !value.isFinite()) || (value is Float && !value.isFinite())) "null" else value.toString())
+   }
+
+   fun value(value: Boolean?) = write { w.write(value?.toString() ?: "null") }
+
+   fun value(value: JsValue) = write { w.write(value.toCompactS()) }
+
+   fun flush() = w.flush()
+
+   private fun open(c: Char) = apply {
+      separate()
+      w.write(c.code)
+      isAfterValue = false
+   }
+
+   private fun close(c: Char) = apply {
+      w.write(c.code)
+      isAfterValue = true
+   }
+
+   private inline fun write(block: () -> Unit) = apply {
+      separate()
+      block()
+      isAfterValue = true
+   }
+
+   private fun separate() {
+      if (isAfterValue) w.write(','.code)
+   }
+
+   private fun string(value: String) {
+      w.write('"'.code)
+      w.write(value.escapeJson())
+      w.write('"'.code)
+   }
+
+}
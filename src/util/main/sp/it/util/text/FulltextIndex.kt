@@ -0,0 +1,242 @@
+package sp.it.util.text
+
+import java.text.Normalizer
+import java.util.Locale
+import java.util.TreeMap
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import sp.it.util.dev.ThreadSafe
+import sp.it.util.text.FulltextIndex.Match.CONTAINS
+
+/**
+ * In-memory inverted fulltext index of documents identified by key [K], each consisting of weighted texts (e.g. fields
+ * of an object).
+ *
+ * Texts are split into tokens (maximal runs of letters and digits), case folded and stripped of diacritics, see
+ * [tokenize]. Query terms are matched against the token dictionary, so the cost of a query depends on the number of
+ * distinct tokens and matching documents, not the number of documents:
+ * - exact and prefix matches are looked up in the sorted dictionary
+ * - infix matches (term contained within token) are looked up through trigram index of the dictionary
+ *
+ * Documents can be added and removed incrementally. Thread-safe, queries run concurrently and are only blocked by
+ * updates for the time the update is applied (tokenization happens outside the lock).
+ *
+ * @param K type of the document key
+ */
+@ThreadSafe
+class FulltextIndex<K: Any> {
+   private val lock = ReentrantReadWriteLock()
+   private var docIdNext = 0
+   private val docIds = HashMap<K, Int>()
+   private val docs = HashMap<Int, Doc<K>>()
+   private val postings = TreeMap<String, Postings>()
+   private val trigrams = HashMap<String, HashSet<String>>()
+
+   /** Number of indexed documents */
+   val size: Int
+      get() = lock.read { docIds.size }
+
+   /** Adds the specified document or replaces the document with the same key */
+   fun put(key: K, texts: List<WeightedText>) = putAll(mapOf(key to texts))
+
+   /** Adds the specified documents, replacing the documents with the same key */
+   fun putAll(documents: Map<K, List<WeightedText>>) {
+      if (documents.isEmpty()) return
+      val tokenized = documents.mapValues { (_, texts) -> tokenizeWeighted(texts) }
+      lock.write {
+         tokenized.forEach { (key, tokens) ->
+            removeDoc(key)
+            val id = docIdNext++
+            docIds[key] = id
+            docs[id] = Doc(key, tokens)
+            tokens.forEach { (token, weight) -> postingsOfOrNew(token).add(id, weight) }
+         }
+      }
+   }
+
+   /** Removes the document with the specified key, if any */
+   fun remove(key: K) = removeAll(listOf(key))
+
+   /** Removes the documents with the specified keys, if any */
+   fun removeAll(keys: Collection<K>) {
+      if (keys.isEmpty()) return
+      lock.write {
+         keys.forEach(::removeDoc)
+      }
+   }
+
+   /** Removes all documents */
+   fun clear() {
+      lock.write {
+         docIds.clear()
+         docs.clear()
+         postings.clear()
+         trigrams.clear()
+      }
+   }
+
+   /**
+    * Finds documents matching all terms of the specified query, ordered by descending score.
+    *
+    * Score of a document is the sum of the scores of the terms. Score of a term is the highest weight of the text it
+    * matched in, multiplied by [SCORE_EXACT], [SCORE_PREFIX] or [SCORE_INFIX] depending on how it matched the token.
+    * Documents with equal score are ordered by time of indexing.
+    *
+    * @param query text split into terms using [tokenize], blank query matches nothing
+    * @param match how terms match the tokens
+    * @param limit maximal number of returned hits
+    * @return matching documents, best match first
+    */
+   fun search(query: String, match: Match = CONTAINS, limit: Int = Int.MAX_VALUE): List<Hit<K>> {
+      val terms = tokenize(query).distinct().toList()
+      if (terms.isEmpty() || limit<=0) return listOf()
+
+      return lock.read {
+         val scoresByTerm = terms.map { termScores(it, match) }.sortedBy { it.size }
+         val scores = scoresByTerm.first()
+         scoresByTerm.asSequence().drop(1).forEach { s ->
+            scores.entries.retainAll { e -> s[e.key]?.let { e.setValue(e.value + it) }!=null }
+         }
+         scores.entries.asSequence()
+            .sortedWith(compareByDescending<Map.Entry<Int, Float>> { it.value }.thenBy { it.key })
+            .take(limit)
+            .map { Hit(docs[it.key]!!.key, it.value) }
+            .toList()
+      }
+   }
+
+   /** @return keys of documents matching all terms of the specified query, in no particular order, see [search] */
+   fun searchKeys(query: String, match: Match = CONTAINS): Set<K> {
+      val terms = tokenize(query).distinct().toList()
+      if (terms.isEmpty()) return setOf()
+
+      return lock.read {
+         val idsByTerm = terms.map { termScores(it, match).keys }.sortedBy { it.size }
+         idsByTerm.first().asSequence().filter { id -> idsByTerm.all { id in it } }.mapTo(HashSet()) { docs[it]!!.key }
+      }
+   }
+
+   /** @return best score of every document containing token matching the term */
+   private fun termScores(term: String, match: Match): HashMap<Int, Float> {
+      val scores = HashMap<Int, Float>()
+      fun collect(p: Postings, factor: Float) {
+         for (i in 0 until p.size) {
+            val score = p.weights[i]*factor
+            scores.merge(p.docs[i], score) { a, b -> if (a>=b) a else b }
+         }
+      }
+
+      postings[term]?.let { collect(it, SCORE_EXACT) }
+      postings.subMap(term, false, term + Char.MAX_VALUE, false).values.forEach { collect(it, SCORE_PREFIX) }
+      if (match==CONTAINS)
+         tokensContaining(term).forEach { token -> if (!token.startsWith(term)) collect(postings[token]!!, SCORE_INFIX) }
+      return scores
+   }
+
+   /** @return tokens containing the specified term */
+   private fun tokensContaining(term: String): Sequence<String> {
+      if (term.length<TRIGRAM) return postings.keys.asSequence().filter { term in it }
+
+      val candidates = term.trigrams().map { trigrams[it] ?: return sequenceOf() }.sortedBy { it.size }
+      return candidates.first().asSequence().filter { t -> candidates.all { t in it } && term in t }
+   }
+
+   private fun postingsOfOrNew(token: String): Postings =
+      postings.getOrPut(token) {
+         token.trigrams().forEach { trigrams.getOrPut(it, ::HashSet) += token }
+         Postings()
+      }
+
+   private fun removeDoc(key: K) {
+      val id = docIds.remove(key) ?: return
+      val doc = docs.remove(id)!!
+      doc.tokens.keys.forEach { token ->
+         val p = postings[token]!!
+         p.remove(id)
+         if (p.size==0) {
+            postings -= token
+            token.trigrams().forEach { t -> trigrams[t]?.let { it -= token; if (it.isEmpty()) trigrams -= t } }
+         }
+      }
+   }
+
+   /** How query terms match the tokens */
+   enum class Match {
+      /** Term is token or prefix of a token */
+      PREFIX,
+      /** Term is contained within a token, like [String.contains] */
+      CONTAINS
+   }
+
+   /** Text of a document with the specified weight, which determines the score of the matches within the text */
+   data class WeightedText(val text: String, val weight: Float)
+
+   /** Document matching the query with the specified score */
+   data class Hit<K>(val key: K, val score: Float)
+
+   private class Doc<K>(val key: K, val tokens: Map<String, Float>)
+
+   /** Documents containing a token with the weight of the token, sorted by document id (ids are assigned monotonically) */
+   private class Postings {
+      var docs = IntArray(4)
+      var weights = FloatArray(4)
+      var size = 0
+
+      fun add(doc: Int, weight: Float) {
+         if (size==docs.size) {
+            docs = docs.copyOf(size*2)
+            weights = weights.copyOf(size*2)
+         }
+         docs[size] = doc
+         weights[size] = weight
+         size++
+      }
+
+      fun remove(doc: Int) {
+         val i = docs.binarySearch(doc, 0, size)
+         if (i<0) return
+         System.arraycopy(docs, i + 1, docs, i, size - i - 1)
+         System.arraycopy(weights, i + 1, weights, i, size - i - 1)
+         size--
+      }
+   }
+
+   companion object {
+      /** Score multiplier of a term equal to a token */
+      const val SCORE_EXACT = 1.0f
+      /** Score multiplier of a term that is a prefix of a token */
+      const val SCORE_PREFIX = 0.75f
+      /** Score multiplier of a term contained within a token, but not its prefix */
+      const val SCORE_INFIX = 0.5f
+      private const val TRIGRAM = 3
+      private val diacritics = "\\p{InCombiningDiacriticalMarks}+".toRegex()
+
+      /** @return tokens of the specified text, i.e., maximal runs of letters and digits, case folded and without diacritics */
+      fun tokenize(text: String): Sequence<String> =
+         Normalizer.normalize(text, Normalizer.Form.NFD).replace(diacritics, "").lowercase(Locale.ROOT)
+            .splitTokens { !it.isLetterOrDigit() }
+
+      private fun String.splitTokens(isSeparator: (Char) -> Boolean): Sequence<String> = sequence {
+         var start = -1
+         for (i in indices) {
+            if (isSeparator(this@splitTokens[i])) {
+               if (start>=0) yield(substring(start, i))
+               start = -1
+            } else if (start<0) {
+               start = i
+            }
+         }
+         if (start>=0) yield(substring(start))
+      }
+
+      private fun tokenizeWeighted(texts: List<WeightedText>): Map<String, Float> {
+         val tokens = HashMap<String, Float>()
+         texts.forEach { (text, weight) -> tokenize(text).forEach { tokens.merge(it, weight) { a, b -> if (a>=b) a else b } } }
+         return tokens
+      }
+
+      private fun String.trigrams(): List<String> = if (length<TRIGRAM) listOf() else (0..length - TRIGRAM).map { substring(it, it + TRIGRAM) }
+   }
+
+}
@@ -0,0 +1,98 @@
+package sp.it.util.text
+
+import java.util.BitSet
+
+/**
+ * Text prepared for repeated relevance scoring against search phrases.
+ *
+ * The case folded text and the positions of word starts are computed once, so scoring does not allocate. Use for
+ * search sources that are searched repeatedly (e.g. while user types).
+ */
+class SearchableText(val text: String) {
+   /** Case folded [text], folded per character, so its indexes match [wordStarts] ([String.lowercase] may change length) */
+   private val textLower = String(CharArray(text.length) { text[it].lowercaseChar() })
+   private val wordStarts = BitSet(text.length).apply {
+      for (i in text.indices) {
+         val c = text[i]
+         val cPrev = if (i==0) ' ' else text[i - 1]
+         if (c.isLetterOrDigit() && (!cPrev.isLetterOrDigit() || (cPrev.isLowerCase() && c.isUpperCase()))) set(i)
+      }
+   }
+
+   /**
+    * Relevance of the specified phrase within this text, in descending order:
+    * - [SCORE_EXACT] if this text is the phrase
+    * - [SCORE_PREFIX] if this text starts with the phrase
+    * - [SCORE_WORD] if a word (including camel case word) of this text starts with the phrase
+    * - [SCORE_CONTAINS] if this text contains the phrase
+    * - at most [SCORE_FUZZY] if this text contains all characters of the phrase in order, the closer together, the higher
+    * - 0 if the phrase does not match
+    *
+    * Non-zero score is slightly lowered the longer this text is in relation to the phrase, so shorter matches rank first.
+    *
+    * @param phrase lowercase search phrase
+    * @return score in range 0..1
+    */
+   fun score(phrase: String): Double {
+      if (phrase.isEmpty()) return 0.0
+
+      val score = when {
+         textLower==phrase -> SCORE_EXACT
+         textLower.startsWith(phrase) -> SCORE_PREFIX
+         else -> {
+            var i = textLower.indexOf(phrase)
+            var isWord = false
+            while (i>=0 && !isWord) {
+               isWord = wordStarts[i]
+               i = textLower.indexOf(phrase, i + 1)
+            }
+            when {
+               isWord -> SCORE_WORD
+               textLower.contains(phrase) -> SCORE_CONTAINS
+               else -> scoreFuzzy(phrase)
+            }
+         }
+      }
+      return if (score==0.0) 0.0 else score - SCORE_LENGTH_PENALTY*(1.0 - phrase.length.toDouble()/textLower.length.coerceAtLeast(phrase.length))
+   }
+
+   /** @return average [score] of the phrases if all match or 0 */
+   fun scoreAll(phrases: List<String>): Double {
+      if (phrases.isEmpty()) return 0.0
+      var sum = 0.0
+      for (phrase in phrases) {
+         val s = score(phrase)
+         if (s==0.0) return 0.0
+         sum += s
+      }
+      return sum/phrases.size
+   }
+
+   /** @return highest [score] of the phrases */
+   fun scoreAny(phrases: List<String>): Double = phrases.maxOfOrNull { score(it) } ?: 0.0
+
+   private fun scoreFuzzy(phrase: String): Double {
+      if (phrase.length<FUZZY_LENGTH_MIN) return 0.0
+
+      val start = textLower.indexOf(phrase[0])
+      if (start<0) return 0.0
+      var end = start
+      for (j in 1 until phrase.length) {
+         end = textLower.indexOf(phrase[j], end + 1)
+         if (end<0) return 0.0
+      }
+      return SCORE_FUZZY*phrase.length/(end - start + 1)
+   }
+
+   override fun toString() = text
+
+   companion object {
+      const val SCORE_EXACT = 1.0
+      const val SCORE_PREFIX = 0.9
+      const val SCORE_WORD = 0.8
+      const val SCORE_CONTAINS = 0.6
+      const val SCORE_FUZZY = 0.4
+      private const val SCORE_LENGTH_PENALTY = 0.05
+      private const val FUZZY_LENGTH_MIN = 3
+   }
+}
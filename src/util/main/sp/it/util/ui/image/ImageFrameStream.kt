@@ -0,0 +1,328 @@
+package sp.it.util.ui.image
+
+import java.awt.image.BufferedImage as ImageBf
+import javafx.scene.image.WritableImage as ImageWr
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.awt.AlphaComposite
+import java.awt.RenderingHints.KEY_INTERPOLATION
+import java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR
+import java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE
+import java.awt.image.DataBufferInt
+import java.io.FileInputStream
+import java.nio.IntBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.locks.ReentrantLock
+import javafx.scene.image.PixelBuffer
+import javafx.scene.image.PixelFormat
+import javax.imageio.ImageIO
+import javax.imageio.ImageReader
+import javax.imageio.metadata.IIOMetadataNode
+import javax.imageio.stream.ImageInputStream
+import kotlin.concurrent.withLock
+import kotlin.math.ceil
+import org.jetbrains.annotations.Blocking
+import sp.it.util.dev.failIfNotFxThread
+import sp.it.util.file.type.MimeType.Companion.`image∕gif`
+import sp.it.util.file.type.MimeType.Companion.`image∕webp`
+import sp.it.util.functional.orNull
+import sp.it.util.functional.runTry
+import sp.it.util.math.max
+import sp.it.util.ui.image.FitFrom.INSIDE
+import sp.it.util.ui.image.FitFrom.OUTSIDE
+
+/**
+ * Frames of an animated gif or webp image, decoded ahead on a background thread into a ring buffer of few reusable
+ * [ImageWr]s backed by [PixelBuffer]s, so the memory does not depend on number of frames and the first frame is
+ * available as soon as it is decoded, see [open].
+ *
+ * Frames are decoded subsampled and scaled to [width] x [height]. Gif frames are composed according to their disposal
+ * methods. Frames repeat in a loop. If all frames of the animation fit within the cache size, they are decoded once
+ * and kept, otherwise they are decoded again for each loop.
+ *
+ * The frames are consumed on FX thread by [poll]. Must be [close]d.
+ */
+class ImageFrameStream private constructor(
+   private val stream: ImageInputStream,
+   private val reader: ImageReader,
+   private val p: Params,
+   private val bufferSize: Int,
+   private val cacheMaxBytes: Long
+): AutoCloseable {
+   private val lock = ReentrantLock()
+   private val changed = lock.newCondition()
+   private val ready = ArrayDeque<Frame>()
+   private val free = ArrayDeque<Slot>()
+   private var slotCount = 0
+   private var shown: Slot? = null
+   private var cache: MutableList<Frame>? = ArrayList()
+   private var isCached = false
+   @Volatile private var isClosed = false
+
+   private val isGif = p.mime==`image∕gif`
+   private val canvasW: Int
+   private val canvasH: Int
+   private val subsampling: Int
+   /** Width of the frames */
+   val width: Int
+   /** Height of the frames */
+   val height: Int
+
+   init {
+      val (cW, cH) = if (isGif) reader.gifScreenSize() ?: (reader.getWidth(0) to reader.getHeight(0)) else reader.getWidth(0) to reader.getHeight(0)
+      val (w, h) = p.size.width.toInt().coerceAtLeast(0) to p.size.height.toInt().coerceAtLeast(0)
+      val scale = when {
+         w==0 && h==0 -> 1.0
+         p.fit==INSIDE -> minOf(w.toDouble()/cW, h.toDouble()/cH)
+         p.fit==OUTSIDE -> maxOf(w.toDouble()/cW, h.toDouble()/cH)
+         else -> 1.0
+      }.coerceIn(0.0, 1.0)
+      subsampling = if (scale<=0.0) 1 else maxOf(1, (1.0/scale).toInt())
+      canvasW = ceil(cW.toDouble()/subsampling).toInt().coerceAtLeast(1)
+      canvasH = ceil(cH.toDouble()/subsampling).toInt().coerceAtLeast(1)
+      width = ceil(cW*scale).toInt().coerceAtLeast(1)
+      height = ceil(cH*scale).toInt().coerceAtLeast(1)
+      Thread.ofVirtual().name("ImageFrameStream").start(::decodeLoop)
+   }
+
+   /** @return next frame without returning it, see [poll], or null if it is not yet decoded or this is closed */
+   fun peek(): Frame? {
+      failIfNotFxThread()
+      return lock.withLock { if (isClosed) null else ready.peekFirst() }
+   }
+
+   /**
+    * Releases the previously returned frame and returns the next frame, if it is decoded already.
+    * The returned frame is valid until the next call.
+    *
+    * @return next frame or null if it is not yet decoded or this is closed
+    */
+   fun poll(): Frame? {
+      failIfNotFxThread()
+      return lock.withLock {
+         if (isClosed) return null
+         val f = ready.pollFirst() ?: return null
+         shown?.takeIf { it!==f.slot }?.let(::release)
+         shown = f.slot
+         changed.signalAll()
+         f
+      }?.also {
+         if (!it.slot.isUploaded) {
+            it.slot.isUploaded = true
+            it.slot.pixels.updateBuffer { null }
+         }
+      }
+   }
+
+   /** Stops decoding and disposes resources. The frames must no longer be displayed. */
+   override fun close() {
+      lock.withLock {
+         if (isClosed) return
+         isClosed = true
+         changed.signalAll()
+      }
+      reader.abort()
+   }
+
+   private fun release(slot: Slot) {
+      if (cache!=null || isCached) return
+      if (free.size<bufferSize) free += slot
+      else slotCount--
+   }
+
+   private fun decodeLoop() {
+      runTry {
+         var loop = 0
+         while (!isClosed) {
+            val count = if (isCached) enqueueCached() else decodeFrames(loop)
+            if (count==0) break
+            loop++
+         }
+      }.ifError {
+         if (!isClosed) logger.warn(it) { "Failed to decode image=${p.file}" }
+      }
+      lock.withLock {
+         ready.clear()
+         free.clear()
+         cache = null
+      }
+      runTry { reader.dispose() }
+      runTry { stream.close() }
+   }
+
+   /** @return number of frames enqueued */
+   private fun enqueueCached(): Int {
+      val frames = lock.withLock { cache!!.toList() }
+      frames.forEach { f ->
+         lock.withLock {
+            while (!isClosed && ready.size>=bufferSize) changed.await()
+            if (isClosed) return 0
+            ready += f
+         }
+      }
+      return frames.size
+   }
+
+   /** @return number of frames decoded in this loop */
+   private fun decodeFrames(loop: Int): Int {
+      val composer = if (isGif) GifComposer() else null
+      val frameBytes = width.toLong()*height*4
+      var i = reader.minIndex
+      while (!isClosed) {
+         val slot = lock.withLock {
+            val cacheable = cache?.let { loop==0 && (it.size + 1)*frameBytes<=cacheMaxBytes } ?: false
+            // animation is too large to cache, slots of cached frames will be reused once shown
+            if (!cacheable && cache!=null) {
+               cache = null
+               // slots of cached frames shown already were dropped without being released, count only those in use
+               slotCount = ready.mapTo(HashSet()) { it.slot }.apply { shown?.let(::add) }.size
+            }
+            if (cacheable) {
+               Slot()
+            } else {
+               while (!isClosed && free.isEmpty() && slotCount>bufferSize) changed.await()
+               if (isClosed) return i
+               free.pollFirst() ?: Slot()
+            }
+         }
+
+         val durationMs = runTry {
+            if (composer==null) {
+               val img = reader.read(i, reader.defaultReadParam.apply { setSourceSubsampling(subsampling, subsampling, 0, 0) })
+               slot.draw(img)
+               img.flush()
+               reader.getDuration(i, p.mime)
+            } else {
+               composer.compose(i).also { slot.draw(composer.canvas) }
+            }
+         }.orNull {
+            if (it !is IndexOutOfBoundsException && !isClosed) logger.warn(it) { "Failed to decode frame=$i of image=${p.file}" }
+         }
+
+         lock.withLock {
+            if (durationMs==null) {
+               free += slot
+               if (cache!=null) isCached = true
+               return i
+            }
+            slot.isUploaded = false
+            val f = Frame(i, durationMs.coerceFrameDuration(), slot)
+            cache?.add(f)
+            while (!isClosed && ready.size>=bufferSize) changed.await()
+            ready += f
+         }
+         i++
+      }
+      return i
+   }
+
+   /** Composes gif frames, which may cover only part of the screen and may dispose of their area after shown */
+   private inner class GifComposer {
+      val canvas = ImageBf(canvasW, canvasH, TYPE_INT_ARGB_PRE)
+      private var disposal: (() -> Unit)? = null
+
+      /** @return duration of the composed frame */
+      fun compose(i: Int): Int {
+         val info = reader.gifFrameInfo(i)
+         val frame = reader.read(i, reader.defaultReadParam.apply { setSourceSubsampling(subsampling, subsampling, 0, 0) })
+         val x = info.x/subsampling
+         val y = info.y/subsampling
+         disposal?.invoke()
+         disposal = when (info.disposal) {
+            "restoreToBackgroundColor" -> {
+               { canvas.createGraphics().apply { composite = AlphaComposite.Clear; fillRect(x, y, frame.width, frame.height); dispose() } }
+            }
+            "restoreToPrevious" -> {
+               val w = minOf(frame.width, canvasW - x)
+               val h = minOf(frame.height, canvasH - y)
+               if (w<=0 || h<=0) null
+               else {
+                  val previous = canvas.getRGB(x, y, w, h, null, 0, w)
+                  ({ canvas.setRGB(x, y, w, h, previous, 0, w) })
+               }
+            }
+            else -> null
+         }
+         canvas.createGraphics().apply { drawImage(frame, x, y, null); dispose() }
+         frame.flush()
+         return info.delayMs
+      }
+   }
+
+   /** Reusable frame image, whose pixels are written directly by the decoder */
+   internal inner class Slot {
+      val buffer = ImageBf(width, height, TYPE_INT_ARGB_PRE)
+      val pixels = PixelBuffer(width, height, IntBuffer.wrap((buffer.raster.dataBuffer as DataBufferInt).data), PixelFormat.getIntArgbPreInstance())
+      val image = ImageWr(pixels)
+      var isUploaded = false
+
+      init {
+         slotCount++
+      }
+
+      fun draw(img: ImageBf) {
+         buffer.createGraphics().apply {
+            composite = AlphaComposite.Src
+            setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR)
+            drawImage(img, 0, 0, width, height, null)
+            dispose()
+         }
+      }
+   }
+
+   /**
+    * Animation frame.
+    *
+    * @property index index of the frame within the animation, 0 starts a new loop
+    * @property durationMs duration for which the frame is displayed
+    */
+   class Frame internal constructor(val index: Int, val durationMs: Int, internal val slot: ImageFrameStream.Slot) {
+      /** Image of the frame */
+      val image: ImageWr get() = slot.image
+   }
+
+   private class GifFrameInfo(val x: Int, val y: Int, val delayMs: Int, val disposal: String)
+
+   companion object {
+      private val logger = KotlinLogging.logger { }
+
+      /**
+       * Opens the animated image and starts decoding its frames.
+       *
+       * @param p image to load, mime must be gif or webp
+       * @param bufferSize number of frames decoded ahead
+       * @param cacheMaxBytes maximal size of all frames of the animation for them to be decoded only once
+       * @return frames or null if the image is not gif or webp or can not be read
+       */
+      @Blocking
+      fun open(p: Params, bufferSize: Int = 3, cacheMaxBytes: Long = 32L*1024*1024): ImageFrameStream? {
+         if (p.mime!=`image∕gif` && p.mime!=`image∕webp`) return null
+         val stream = runTry { ImageIO.createImageInputStream(FileInputStream(p.file).buffered()) }.orNull() ?: return null
+         val reader = stream.reader() ?: return null.also { stream.close() }
+         return runTry { ImageFrameStream(stream, reader, p, bufferSize max 2, cacheMaxBytes) }.orNull {
+            logger.warn(it) { "Failed to load image=${p.file}" }
+            reader.dispose()
+            stream.close()
+         }
+      }
+
+      private fun Int.coerceFrameDuration() = if (this<20) 100 else this
+
+      private fun ImageReader.gifScreenSize(): Pair<Int, Int>? = runTry {
+         val root = streamMetadata.getAsTree("javax_imageio_gif_stream_1.0") as IIOMetadataNode
+         val d = root.getElementsByTagName("LogicalScreenDescriptor").item(0) as IIOMetadataNode
+         (d.getAttribute("logicalScreenWidth").toInt() to d.getAttribute("logicalScreenHeight").toInt()).takeIf { it.first>0 && it.second>0 }
+      }.orNull()
+
+      private fun ImageReader.gifFrameInfo(i: Int): GifFrameInfo {
+         val root = getImageMetadata(i).getAsTree("javax_imageio_gif_image_1.0") as IIOMetadataNode
+         val d = root.getElementsByTagName("ImageDescriptor").item(0) as IIOMetadataNode?
+         val g = root.getElementsByTagName("GraphicControlExtension").item(0) as IIOMetadataNode?
+         return GifFrameInfo(
+            d?.getAttribute("imageLeftPosition")?.toIntOrNull() ?: 0,
+            d?.getAttribute("imageTopPosition")?.toIntOrNull() ?: 0,
+            10*(g?.getAttribute("delayTime")?.toIntOrNull() ?: 0),
+            g?.getAttribute("disposalMethod") ?: "none"
+         )
+      }
+   }
+}
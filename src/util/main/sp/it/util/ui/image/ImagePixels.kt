@@ -0,0 +1,268 @@
+package sp.it.util.ui.image
+
+import java.awt.image.BufferedImage as ImageBf
+import javafx.scene.image.Image as ImageFx
+import javafx.scene.image.WritableImage as ImageWr
+import java.awt.Rectangle
+import java.awt.color.ColorSpace
+import java.awt.image.BufferedImage.TYPE_INT_ARGB
+import java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE
+import java.awt.image.BufferedImage.TYPE_INT_RGB
+import java.awt.image.DataBuffer
+import java.awt.image.DataBufferInt
+import java.awt.image.DirectColorModel
+import java.awt.image.Raster
+import java.io.File
+import java.nio.IntBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import javafx.scene.image.PixelBuffer
+import javafx.scene.image.PixelFormat
+import javax.imageio.ImageReader
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.roundToInt
+import org.jetbrains.annotations.Blocking
+import sp.it.util.math.max
+import sp.it.util.ui.image.FitFrom.INSIDE
+import sp.it.util.ui.image.FitFrom.OUTSIDE
+
+/*
+ * Pixel pipeline working with premultiplied ARGB pixels in int arrays, see PixelFormat.getIntArgbPreInstance().
+ * Avoids intermediate BufferedImages and their conversion to javafx images.
+ */
+
+/**
+ * Reads the image with the specified index, cropped and scaled down to the requested size as [fit] requires.
+ *
+ * The image is decoded with subsampling directly into pooled pixel buffer, scaled by area averaging (see
+ * [resampleArea]) and wrapped in [PixelBuffer] backed image. Allocates only the pixels of the resulting image.
+ *
+ * @param size requested size, 0 for image width or height, 0x0 for full size
+ * @param exact whether the image is scaled to exactly the requested size, regardless of aspect ratio, scaling up if
+ * necessary, like [ImageLoadParam.scaleExact]
+ * @return image of at most the requested size (or exactly the requested size if [exact]), never larger than the image
+ */
+@Blocking
+fun ImageReader.readImageScaled(ii: Int, size: ImageSize, fit: FitFrom, exact: Boolean): ImageWr {
+   val iW = getWidth(ii)
+   val iH = getHeight(ii)
+   val iRatio = iW.toDouble()/iH
+   var w = 0 max size.width.toInt()
+   var h = 0 max size.height.toInt()
+   if (w==0 && h==0) { w = iW; h = iH }
+   if (w==0) w = (h*iRatio).roundToInt() max 1
+   if (h==0) h = (w/iRatio).roundToInt() max 1
+   if (w>iW || h>iH) { w = iW; h = iH }
+
+   val rRatio = w.toDouble()/h
+   val (sW, sH) = when {
+      fit==OUTSIDE && iRatio<rRatio -> iW to (iW/rRatio).toInt().coerceIn(1, iH)
+      fit==OUTSIDE && iRatio>rRatio -> (iH*rRatio).toInt().coerceIn(1, iW) to iH
+      else -> iW to iH
+   }
+   val scale = when (fit) {
+      OUTSIDE -> maxOf(w.toDouble()/sW, h.toDouble()/sH)
+      INSIDE -> minOf(w.toDouble()/sW, h.toDouble()/sH)
+   }.coerceAtMost(1.0)
+   val dW = if (exact) w else (sW*scale).roundToInt() max 1
+   val dH = if (exact) h else (sH*scale).roundToInt() max 1
+   // decode at least twice the resulting size, so subsampling does not lose detail area averaging would keep
+   val ss = maxOf(1, floor(minOf(sW.toDouble()/dW, sH.toDouble()/dH)/2.0).toInt())
+   val pW = (sW + ss - 1)/ss
+   val pH = (sH + ss - 1)/ss
+
+   return PixelScratch.use(pW*pH) { pixels ->
+      readPixels(ii, Rectangle((iW - sW)/2, (iH - sH)/2, sW, sH), ss, pixels, pW, pH)
+      val out = IntArray(dW*dH)
+      resampleArea(pixels, pW, pH, out, dW, dH)
+      out.toImageFx(dW, dH)
+   }
+}
+
+/**
+ * Writes pixels of this image, scaled to the specified area, to the specified pixels.
+ *
+ * @param dst premultiplied ARGB pixels
+ * @param dstW width of the [dst] image
+ */
+fun ImageFx.drawTo(dst: IntArray, dstW: Int, x: Int, y: Int, w: Int, h: Int) {
+   val iW = width.toInt()
+   val iH = height.toInt()
+   val reader = pixelReader
+   if (iW<=0 || iH<=0 || w<=0 || h<=0 || reader==null) return
+   PixelScratch.use(iW*iH + w*h) { pixels ->
+      reader.getPixels(0, 0, iW, iH, PixelFormat.getIntArgbPreInstance(), pixels, 0, iW)
+      val scaled = if (iW==w && iH==h) 0 else iW*iH
+      if (scaled!=0) resampleArea(pixels, iW, iH, pixels, w, h, scaled)
+      for (row in 0 until h) System.arraycopy(pixels, scaled + row*w, dst, (y + row)*dstW + x, w)
+   }
+}
+
+/** @return image backed by this array of premultiplied ARGB pixels, without copying them */
+fun IntArray.toImageFx(width: Int, height: Int, file: File? = null): ImageWr =
+   ImageWr(PixelBuffer(width, height, IntBuffer.wrap(this), PixelFormat.getIntArgbPreInstance())).withUrl(file)
+
+/**
+ * Resamples premultiplied ARGB pixels by area averaging, i.e., each resulting pixel is average of the source area it
+ * covers, weighted by the coverage of the partially covered pixels. Produces smooth results when scaling down and
+ * bilinear-like results when scaling up.
+ *
+ * The [dst] may be the same array as [src], as long as the image is not enlarged in any dimension and [dstOffset]
+ * is 0 or the areas do not overlap, because each source row is fully read before the result is written over it.
+ */
+fun resampleArea(src: IntArray, sW: Int, sH: Int, dst: IntArray, dW: Int, dH: Int, dstOffset: Int = 0) {
+   val xs = AreaWeights(sW, dW)
+   val ys = AreaWeights(sH, dH)
+   val row = FloatArray(dW*4)
+   val acc = FloatArray(dW*4)
+   var rowY = -1
+   for (dy in 0 until dH) {
+      acc.fill(0f)
+      for (k in ys.offset[dy] until ys.offset[dy + 1]) {
+         val sy = ys.index[k]
+         val wy = ys.weight[k]
+         if (sy!=rowY) {
+            resampleRow(src, sy*sW, xs, row)
+            rowY = sy
+         }
+         for (i in acc.indices) acc[i] += wy*row[i]
+      }
+      val o = dstOffset + dy*dW
+      for (dx in 0 until dW) {
+         val a = acc[dx*4].toChannel()
+         val r = acc[dx*4 + 1].toChannel()
+         val g = acc[dx*4 + 2].toChannel()
+         val b = acc[dx*4 + 3].toChannel()
+         dst[o + dx] = (a shl 24) or (r shl 16) or (g shl 8) or b
+      }
+   }
+}
+
+private fun resampleRow(src: IntArray, offset: Int, xs: AreaWeights, into: FloatArray) {
+   for (dx in 0 until xs.offset.size - 1) {
+      var a = 0f
+      var r = 0f
+      var g = 0f
+      var b = 0f
+      for (k in xs.offset[dx] until xs.offset[dx + 1]) {
+         val p = src[offset + xs.index[k]]
+         val w = xs.weight[k]
+         a += w*(p ushr 24)
+         r += w*((p shr 16) and 0xFF)
+         g += w*((p shr 8) and 0xFF)
+         b += w*(p and 0xFF)
+      }
+      into[dx*4] = a
+      into[dx*4 + 1] = r
+      into[dx*4 + 2] = g
+      into[dx*4 + 3] = b
+   }
+}
+
+private fun Float.toChannel(): Int = (this + 0.5f).toInt().coerceIn(0, 255)
+
+/** Source pixels contributing to each resulting pixel (from [offset] to next offset) and their normalized weights */
+private class AreaWeights(srcSize: Int, dstSize: Int) {
+   val offset = IntArray(dstSize + 1)
+   val index: IntArray
+   val weight: FloatArray
+
+   init {
+      val s = srcSize.toDouble()/dstSize
+      val max = dstSize*(ceil(s).toInt() + 1)
+      index = IntArray(max)
+      weight = FloatArray(max)
+      var n = 0
+      for (d in 0 until dstSize) {
+         offset[d] = n
+         val from = d*s
+         val to = minOf(srcSize.toDouble(), (d + 1)*s)
+         var i = floor(from).toInt()
+         while (i<to) {
+            val w = (minOf(i + 1.0, to) - maxOf(i.toDouble(), from))/(to - from)
+            if (w>0.0) {
+               index[n] = i
+               weight[n] = w.toFloat()
+               n++
+            }
+            i++
+         }
+      }
+      offset[dstSize] = n
+   }
+}
+
+/**
+ * Decodes the region of the image with the specified subsampling into the pixels as premultiplied ARGB.
+ * Decodes directly into the pixels if the reader supports int pixel destination, otherwise converts the decoded image.
+ */
+private fun ImageReader.readPixels(ii: Int, region: Rectangle, ss: Int, pixels: IntArray, w: Int, h: Int) {
+   val param = defaultReadParam.apply {
+      setSourceSubsampling(ss, ss, 0, 0)
+      sourceRegion = region
+   }
+   val type = getImageTypes(ii).asSequence().map { it.bufferedImageType }.firstOrNull { it==TYPE_INT_ARGB_PRE || it==TYPE_INT_ARGB || it==TYPE_INT_RGB }
+   if (type!=null) {
+      param.destination = pixels.toImageBf(w, h, type)
+      read(ii, param)
+      when (type) {
+         TYPE_INT_RGB -> for (i in 0 until w*h) pixels[i] = pixels[i] or OPAQUE
+         TYPE_INT_ARGB -> premultiply(pixels, w*h)
+      }
+   } else {
+      val img = read(ii, param)
+      val rW = minOf(w, img.width)
+      for (y in 0 until minOf(h, img.height)) img.getRGB(0, y, rW, 1, pixels, y*w, w)
+      img.flush()
+      premultiply(pixels, w*h)
+   }
+}
+
+private fun premultiply(pixels: IntArray, size: Int) {
+   for (i in 0 until size) {
+      val p = pixels[i]
+      val a = p ushr 24
+      if (a!=255) {
+         val r = ((p shr 16) and 0xFF)*a/255
+         val g = ((p shr 8) and 0xFF)*a/255
+         val b = (p and 0xFF)*a/255
+         pixels[i] = (a shl 24) or (r shl 16) or (g shl 8) or b
+      }
+   }
+}
+
+/** @return image of the specified type, which writes directly to this array */
+private fun IntArray.toImageBf(w: Int, h: Int, type: Int): ImageBf {
+   val hasAlpha = type!=TYPE_INT_RGB
+   val masks = if (hasAlpha) intArrayOf(0xFF0000, 0xFF00, 0xFF, OPAQUE) else intArrayOf(0xFF0000, 0xFF00, 0xFF)
+   val raster = Raster.createPackedRaster(DataBufferInt(this, w*h), w, h, w, masks, null)
+   val cm =
+      if (hasAlpha) DirectColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, masks[0], masks[1], masks[2], masks[3], type==TYPE_INT_ARGB_PRE, DataBuffer.TYPE_INT)
+      else DirectColorModel(24, masks[0], masks[1], masks[2])
+   return ImageBf(cm, raster, cm.isAlphaPremultiplied, null)
+}
+
+private const val OPAQUE = 0xFF shl 24
+
+/**
+ * Pool of pixel arrays reused between decodes, so decoding a thumbnail does not allocate the full decoded image.
+ * Loading runs on virtual threads, so the arrays are pooled instead of being thread-local. Only few arrays of limited
+ * size are retained.
+ */
+private object PixelScratch {
+   private const val SIZE_MAX = 4096*1024
+   private const val COUNT_MAX = 4
+   private val pool = ConcurrentLinkedQueue<IntArray>()
+   private val count = AtomicInteger(0)
+
+   fun <R> use(size: Int, block: (IntArray) -> R): R {
+      val pixels = pool.poll()?.also { count.decrementAndGet() }?.takeIf { it.size>=size } ?: IntArray(size)
+      try {
+         return block(pixels)
+      } finally {
+         if (pixels.size<=SIZE_MAX && count.incrementAndGet()<=COUNT_MAX) pool.offer(pixels)
+         else count.decrementAndGet()
+      }
+   }
+}
@@ -8,7 +8,6 @@ import com.drew.metadata.gif.GifControlDirectory
 import com.twelvemonkeys.image.ResampleOp
 import io.github.oshai.kotlinlogging.KotlinLogging
 import java.awt.Dimension
-import java.awt.Rectangle
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
@@ -39,13 +38,11 @@ import sp.it.util.file.type.mimeType
 import sp.it.util.functional.Try
 import sp.it.util.functional.getOr
 import sp.it.util.functional.ifNull
-import sp.it.util.functional.net
 import sp.it.util.functional.orNull
 import sp.it.util.functional.runTry
 import sp.it.util.math.max
 import sp.it.util.type.Util.getFieldValue
 import sp.it.util.type.Util.setField
-import sp.it.util.ui.image.FitFrom.INSIDE
 import sp.it.util.ui.image.FitFrom.OUTSIDE
 import sp.it.util.ui.x
 import sp.it.util.ui.x2
@@ -136,10 +133,11 @@ object Interrupts {
    /** Whether current thread is interrupted */
    val isInterrupted: Boolean get() = Thread.currentThread() in interrupts
 
+   /** Clears interruption of the specified thread, by default current. */
    fun dispose(t: Thread? = Thread.currentThread()) {
       if (t==null) return
       lock.withLock {
-         if (t in interrupts) interrupts = interrupts.filter { it!==it }.toTypedArray()
+         if (t in interrupts) interrupts = interrupts.filter { it!==t }.toTypedArray()
       }
    }
 
@@ -147,7 +145,7 @@ object Interrupts {
    fun interrupt(t: Thread? = Thread.currentThread()) {
       if (t==null) return
       lock.withLock {
-         if (t !in interrupts) interrupts += Thread.currentThread()
+         if (t !in interrupts) interrupts += t
       }
    }
 }
@@ -157,7 +155,7 @@ sealed interface ImageLoadParam { val file: File?; val size: ImageSize; val fit:
 data class ImageLoadParamOfData(override val size: ImageSize, override val fit: FitFrom, override val scaleExact: Boolean = false): ImageLoadParam { override val file: Nothing? = null }
 data class Params(override val file: File, override val size: ImageSize, override val fit: FitFrom, val mime: MimeType, override val scaleExact: Boolean = false): ImageLoadParam
 
-private fun ImageInputStream.reader(): ImageReader? = ImageIO.getImageReaders(this).asSequence().firstOrNull()?.apply { input = this@reader; abortOnInterrupt() }
+internal fun ImageInputStream.reader(): ImageReader? = ImageIO.getImageReaders(this).asSequence().firstOrNull()?.apply { input = this@reader; abortOnInterrupt() }
 
 private fun <R> ImageReader.use(block: (ImageReader) -> R): R = AutoCloseable { dispose() }.use { block(this) }
 
@@ -185,127 +183,51 @@ fun loadImagePsd(p: Params, highQuality: Boolean) = loadImagePsd(runTry { ImageI
 private fun loadImagePsd(imgStream: ImageInputStream?, p: ImageLoadParam, highQuality: Boolean): ImageFx? =
    imgStream?.use { stream ->
       stream.reader()?.use { reader ->
-         var w = 0 max p.size.width.toInt()
-         var h = 0 max p.size.height.toInt()
+         val w = 0 max p.size.width.toInt()
+         val h = 0 max p.size.height.toInt()
          val loadFullSize = w==0 && h==0
          val ii = reader.minIndex
-         var i: ImageBf? = null
-            ?: run {
-               if (Interrupts.isInterrupted) null
-               else if (!loadFullSize) {
-                  runTry {
-                     val tExists = imgImplHasThumbnail(reader, ii, p.file)
-                     val tW = if (!tExists) 1 else reader.getThumbnailWidth(ii, 0)
-                     val tH = if (!tExists) 1 else reader.getThumbnailHeight(ii, 0)
-                     val tUse = tExists && w<=tW && h<=tH
-                     val tRatio = tW.toDouble()/tH.toDouble()
-                     val rRatio = w.toDouble()/h.toDouble()
-                     val (sW, sH) = when {
-                        p.fit==OUTSIDE && tRatio<rRatio -> tW to (tW/rRatio).toInt()
-                        p.fit==OUTSIDE && tRatio>rRatio -> (tH*rRatio).toInt() to tH
-                        else -> tW to tH
-                     }
-                     if (tUse) reader.readThumbnail(ii, 0).getSubimage((tW - sW)/2, (tH - sH)/2, sW, sH)
-                     else null
-                  } orNull {
-                     logger.warn(it) { "Failed to read thumbnail for image=${p.file}" }
-                  }
-               } else
-                  null
-            }
-            ?: runTry {
-               val (iW, iH) = reader.getWidth(ii) to reader.getHeight(ii)
-               if (w>iW || h>iH) { w = iW; h = iH }
-               val iRatio = iW.toDouble()/iH.toDouble()
-               val rRatio = w.toDouble()/h.toDouble()
-               val rW = if (iRatio<rRatio) w else (h*iRatio).toInt()
-               val rH = if (iRatio<rRatio) (w/iRatio).toInt() else h
-               val irp = reader.defaultReadParam.apply {
+         val t: ImageBf? = run {
+            if (Interrupts.isInterrupted) null
+            else if (!loadFullSize) {
+               runTry {
+                  val tExists = imgImplHasThumbnail(reader, ii, p.file)
+                  val tW = if (!tExists) 1 else reader.getThumbnailWidth(ii, 0)
+                  val tH = if (!tExists) 1 else reader.getThumbnailHeight(ii, 0)
+                  val tUse = tExists && w<=tW && h<=tH
+                  val tRatio = tW.toDouble()/tH.toDouble()
+                  val rRatio = w.toDouble()/h.toDouble()
                   val (sW, sH) = when {
-                     p.fit==OUTSIDE && iRatio<rRatio -> iW to (iW/rRatio).toInt()
-                     p.fit==OUTSIDE && iRatio>rRatio -> (iH*rRatio).toInt() to iH
-                     else -> iW to iH
+                     p.fit==OUTSIDE && tRatio<rRatio -> tW to (tW/rRatio).toInt()
+                     p.fit==OUTSIDE && tRatio>rRatio -> (tH*rRatio).toInt() to tH
+                     else -> tW to tH
                   }
-                  val ss = if (rW==0 || rH==0) 1 else when (p.fit) {
-                     OUTSIDE -> maxOf(1, minOf(iW/rW, iH/rH)/2)
-                     INSIDE -> maxOf(1, maxOf(iW/w, iH/h)/2)
-                  }
-                  setSourceSubsampling(ss, ss, 0, 0)
-                  sourceRegion = Rectangle((iW - sW)/2, (iH - sH)/2, sW, sH)
+                  if (tUse) reader.readThumbnail(ii, 0).getSubimage((tW - sW)/2, (tH - sH)/2, sW, sH)
+                  else null
+               } orNull {
+                  logger.warn(it) { "Failed to read thumbnail for image=${p.file}" }
                }
+            } else
+               null
+         }
 
-               if (Interrupts.isInterrupted) null
-               else reader.read(ii, irp)
-            } orNull {
-               logger.warn(it) { "Failed to load image=${p.file}" }
-            }
-
-         if (!loadFullSize && p.scaleExact)
-            i = i?.toScaledDown(w, h, down = p.scaleExact, up = p.scaleExact)
-
-         i?.toFxAndFlush(p.file)
-      }
-   }
-
-data class ImageFrame(val delayMs: Int, val durationMs: Int, val img: ImageFx)
-
-fun loadImageFrames(inS: InputStream, p: Params): List<ImageFrame>? = loadImageFrames(runTry { ImageIO.createImageInputStream(inS.buffered()) }.orNull(), p)
-
-fun loadImageFrames(p: Params): List<ImageFrame>? = loadImageFrames(runTry { ImageIO.createImageInputStream(FileInputStream(p.file).buffered()) }.orNull(), p)
-
-fun loadImageFrames(imgStream: ImageInputStream?, p: Params): List<ImageFrame>? = when (p.mime) {
-   `image∕gif`, `image∕webp` ->
-      imgStream?.use { stream ->
-         stream.reader()?.use { reader ->
+         if (t!=null) {
+            if (!loadFullSize && p.scaleExact) t.toScaledDown(w, h, down = true, up = true).toFxAndFlush(p.file)
+            else t.toFxAndFlush(p.file)
+         } else {
             runTry {
-               var w = 0 max p.size.width.toInt()
-               var h = 0 max p.size.height.toInt()
-               var delay = 0
-               (reader.minIndex..Int.MAX_VALUE).asSequence()
-                  .map {
-                     runTry {
-                        val (iW, iH) = reader.getWidth(it) to reader.getHeight(it)
-                        val duration = reader.getDuration(it, p.mime)
-                        delay += duration
-                        if (w>iW || h>iH) { w = iW; h = iH }
-                        val iRatio = iW.toDouble()/iH.toDouble()
-                        val rRatio = w.toDouble()/h.toDouble()
-                        val rW = if (iRatio<rRatio) w else (h*iRatio).toInt()
-                        val rH = if (iRatio<rRatio) (w/iRatio).toInt() else h
-                        val irp = reader.defaultReadParam.apply {
-                           val (sW, sH) = when {
-                              p.fit==OUTSIDE && iRatio<rRatio -> iW to (iW/rRatio).toInt()
-                              p.fit==OUTSIDE && iRatio>rRatio -> (iH*rRatio).toInt() to iH
-                              else -> iW to iH
-                           }
-                           val ss = if (rW==0 || rH==0) 1 else when (p.fit) {
-                              OUTSIDE -> maxOf(1, minOf(iW/rW, iH/rH)/2)
-                              INSIDE -> maxOf(1, maxOf(iW/w, iH/h)/2)
-                           }
-                           setSourceSubsampling(ss, ss, 0, 0)
-                           sourceRegion = Rectangle((iW - sW)/2, (iH - sH)/2, sW, sH)
-                        }
-
-                        if (Interrupts.isInterrupted) null
-                        else reader.read(it, irp)?.toFxAndFlush(p.file)?.net { ImageFrame(delay, duration, it) }
-                     }
-                  }
-                  .takeWhile { !Interrupts.isInterrupted }
-                  .takeWhile { it is Try.Ok && it.value!=null }
-                  .takeWhile { !(it is Try.Error<*> && it.value is IndexOutOfBoundsException) }
-                  .map { it.orThrow!! }
-                  .toList()
+               if (Interrupts.isInterrupted) null
+               else reader.readImageScaled(ii, p.size, p.fit, !loadFullSize && p.scaleExact).withUrl(p.file)
             } orNull {
                logger.warn(it) { "Failed to load image=${p.file}" }
             }
          }
       }
-   else -> null
-}
+   }
 
-/** @return true iff the image file is animated */
+/** @return duration of the frame with the specified index, in 1/100 s for gif and in ms for webp */
 @Throws
-private fun ImageReader.getDuration(ii: Int, fMime: MimeType): Int = when (fMime) {
+internal fun ImageReader.getDuration(ii: Int, fMime: MimeType): Int = when (fMime) {
    `image∕gif` -> getFieldValue(getFieldValue(this, "imageMetadata"), "delayTime")
    `image∕webp` -> getFieldValue(getFieldValue<List<Any>>(this, "frames")[ii], "duration")
    else -> 0
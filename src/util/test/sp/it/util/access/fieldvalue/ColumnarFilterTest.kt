@@ -0,0 +1,54 @@
+package sp.it.util.access.fieldvalue
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.util.function.Predicate
+
+internal data class TestItem(val name: String?, val value: Int)
+
+class ColumnarFilterTest: FreeSpec({
+
+   val fieldName = ObjectFieldOfDataClass(TestItem::name) { it.orEmpty() }
+   val fieldValue = ObjectFieldOfDataClass(TestItem::value) { it.toString() }
+   val items = (0 until 10000).map { TestItem(if (it%3==0) null else "item$it", it) }
+
+   fun ColumnarFilter<TestItem>.filterNow(p: Predicate<TestItem>, columns: FieldColumns<TestItem> = FieldColumns(items)) = filterNow(columns, p) { false }!!.stream().toArray().toList()
+   fun filterExpected(p: Predicate<TestItem>) = items.indices.filter { p.test(items[it]) }
+
+   ColumnarFilter::class.simpleName!! - {
+      "field predicate" {
+         val p = FieldPredicate(fieldValue, { it%7==0 }, false, false)
+         ColumnarFilter<TestItem>().filterNow(p) shouldBe filterExpected(p)
+      }
+      "field predicate negated" {
+         val p = FieldPredicate(fieldName, { it!!.endsWith("1") }, false, true)
+         ColumnarFilter<TestItem>().filterNow(p) shouldBe filterExpected(p)
+         ColumnarFilter<TestItem>().filterNow(p).size shouldBe items.count { it.name==null || !it.name.endsWith("1") }
+      }
+      "field predicates" {
+         val p = FieldPredicates(listOf(FieldPredicate(fieldValue, { it>5000 }, false, false), FieldPredicate(fieldName, { it==null }, true, false)))
+         ColumnarFilter<TestItem>().filterNow(p) shouldBe filterExpected(p)
+      }
+      "other predicate" {
+         val p = Predicate<TestItem> { it.value in 100..200 }
+         ColumnarFilter<TestItem>().filterNow(p) shouldBe (100..200).toList()
+      }
+      "columns are reused" {
+         var extracted = 0
+         val field = ObjectFieldOfDataClass(TestItem::value) { it.toString() }.let { f ->
+            object: ObjectField<TestItem, Int> by f {
+               override fun getOf(value: TestItem): Int = f.getOf(value).also { synchronized(this) { extracted++ } }
+            }
+         }
+         val filter = ColumnarFilter<TestItem>()
+         val columns = FieldColumns(items)
+         filter.filterNow(FieldPredicate(field, { it>10 }, false, false), columns)
+         filter.filterNow(FieldPredicate(field, { it>20 }, false, false), columns)
+         extracted shouldBe items.size
+      }
+      "cancelled" {
+         ColumnarFilter<TestItem>().filterNow(FieldColumns(items), Predicate { true }) { true } shouldBe null
+      }
+   }
+
+})
@@ -0,0 +1,44 @@
+package sp.it.util.access.fieldvalue
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import sp.it.util.Sort.ASCENDING
+import sp.it.util.Sort.DESCENDING
+import sp.it.util.Sort.NONE
+import sp.it.util.access.fieldvalue.ColumnarSort.SortKey
+
+class ColumnarSortTest: FreeSpec({
+
+   val fieldName = ObjectFieldOfDataClass(TestItem::name) { it.orEmpty() }
+   val fieldValue = ObjectFieldOfDataClass(TestItem::value) { it.toString() }
+   val items = (0 until 10000).map { TestItem(if (it%3==0) null else "item${it%10}", (it*7919)%10000) }
+   val columns = FieldColumns(items)
+   val indexes = items.indices.toList().toIntArray()
+
+   fun ColumnarSort<TestItem>.sortNow(vararg keys: SortKey<TestItem>) = sortNow(columns, indexes, keys.toList()) { false }!!.map(items::get)
+
+   ColumnarSort::class.simpleName!! - {
+      "numeric" {
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldValue, ASCENDING)) shouldBe items.sortedBy { it.value }
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldValue, DESCENDING)) shouldBe items.sortedByDescending { it.value }
+      }
+      "nulls last and stable" {
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldName, ASCENDING)) shouldBe items.sortedWith(compareBy(nullsLast()) { it.name })
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldName, DESCENDING)) shouldBe items.sortedWith(compareBy(nullsLast(reverseOrder())) { it.name })
+      }
+      "multiple keys" {
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldName, DESCENDING), SortKey(fieldValue, ASCENDING)) shouldBe
+            items.sortedWith(compareBy<TestItem, String?>(nullsLast(reverseOrder())) { it.name }.thenBy { it.value })
+      }
+      "none" {
+         ColumnarSort<TestItem>().sortNow(SortKey(fieldName, NONE)) shouldBe items
+      }
+      "comparator" {
+         ColumnarSort<TestItem>().sortNow(columns, indexes, compareBy { it.value }) { false }!!.map(items::get) shouldBe items.sortedBy { it.value }
+      }
+      "cancelled" {
+         ColumnarSort<TestItem>().sortNow(columns, indexes, listOf(SortKey(fieldValue, ASCENDING))) { true } shouldBe null
+      }
+   }
+
+})
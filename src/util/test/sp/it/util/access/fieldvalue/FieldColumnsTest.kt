@@ -0,0 +1,42 @@
+package sp.it.util.access.fieldvalue
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import javafx.collections.FXCollections.observableArrayList
+import javafx.collections.ListChangeListener
+import javafx.collections.ObservableList
+
+class FieldColumnsTest: FreeSpec({
+
+   val fieldValue = ObjectFieldOfDataClass(TestItem::value) { it.toString() }
+
+   /** @return columns of the list after the specified change, changed from the columns of the list before the change */
+   fun ObservableList<TestItem>.columnsAfter(change: ObservableList<TestItem>.() -> Unit): FieldColumns<TestItem> {
+      var columns = FieldColumns(toList()).apply { column(fieldValue) { false } }
+      addListener(ListChangeListener { columns = columns.changed(toList(), it) })
+      change()
+      return columns
+   }
+
+   FieldColumns::class.simpleName!! - {
+      "changed" - {
+         "add" {
+            val items = observableArrayList((0 until 100).map { TestItem(null, it) })
+            items.columnsAfter { addAll(50, listOf(TestItem(null, -1), TestItem(null, -2))) }.column(fieldValue) { false }!!.toList() shouldBe items.map { it.value }
+         }
+         "remove" {
+            val items = observableArrayList((0 until 100).map { TestItem(null, it) })
+            items.columnsAfter { removeAll { it.value%3==0 } }.column(fieldValue) { false }!!.toList() shouldBe items.map { it.value }
+         }
+         "replace" {
+            val items = observableArrayList((0 until 100).map { TestItem(null, it) })
+            items.columnsAfter { set(10, TestItem(null, -1)) }.column(fieldValue) { false }!!.toList() shouldBe items.map { it.value }
+         }
+         "permutation" {
+            val items = observableArrayList((0 until 100).map { TestItem(null, it) })
+            items.columnsAfter { sortByDescending { it.value } }.column(fieldValue) { false }!!.toList() shouldBe items.map { it.value }
+         }
+      }
+   }
+
+})
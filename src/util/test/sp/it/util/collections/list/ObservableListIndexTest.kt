@@ -0,0 +1,63 @@
+package sp.it.util.collections.list
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import javafx.collections.FXCollections.observableArrayList
+
+class ObservableListIndexTest: FreeSpec({
+
+   ObservableListIndex::class.simpleName!! - {
+      "indexes by identity and key" {
+         val a1 = Item("a")
+         val a2 = Item("a")
+         val b = Item("b")
+         val list = observableArrayList(a1, b, a2)
+         val index = ObservableListIndex(list) { it.key }
+
+         index.indexOf(a2) shouldBe 2
+         index.indexOf(Item("a")) shouldBe -1
+         index.indexOfKey("a") shouldBe 0
+         index.indicesOfKey("a") shouldBe listOf(0, 2)
+         index.containsKey("c") shouldBe false
+      }
+      "follows appending and removing at end" {
+         val a = Item("a")
+         val b = Item("b")
+         val list = observableArrayList(a)
+         val index = ObservableListIndex(list) { it.key }
+         index.indexOf(a) shouldBe 0
+
+         list += b
+         index.indexOf(b) shouldBe 1
+         list.addAll(a, b)
+         index.indicesOfKey("b") shouldBe listOf(1, 3)
+         index.indexOf(a) shouldBe 0
+         list.removeAt(3)
+         index.indicesOfKey("b") shouldBe listOf(1)
+         index.indicesOfKey("a") shouldBe listOf(0, 2)
+      }
+      "follows other changes" {
+         val a = Item("a")
+         val b = Item("b")
+         val c = Item("c")
+         val list = observableArrayList(a, b)
+         val index = ObservableListIndex(list) { it.key }
+         index.indexOf(b) shouldBe 1
+
+         list.add(0, c)
+         index.indexOf(b) shouldBe 2
+         list.reverse()
+         index.indexOf(c) shouldBe 2
+         list.sortBy { it.key }
+         index.indexOf(c) shouldBe 2
+         list.remove(a)
+         index.indexOf(b) shouldBe 0
+         list.setAll(c)
+         index.indexOf(b) shouldBe -1
+         index.indexOf(c) shouldBe 0
+      }
+   }
+
+})
+
+private class Item(val key: String)
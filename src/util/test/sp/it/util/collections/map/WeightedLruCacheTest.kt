@@ -0,0 +1,44 @@
+package sp.it.util.collections.map
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+
+class WeightedLruCacheTest: FreeSpec({
+
+   WeightedLruCache::class.simpleName!! - {
+      "evicts least recently used" {
+         val cache = WeightedLruCache<String, String>(10) { it.length.toLong() }
+         cache.put("a", "aaaa")
+         cache.put("b", "bbbb")
+         cache["a"] shouldBe "aaaa"
+         cache.put("c", "cccc")
+         cache["b"] shouldBe null
+         cache["a"] shouldBe "aaaa"
+         cache["c"] shouldBe "cccc"
+         cache.weight shouldBe 8
+         cache.stats() shouldBe CacheStats(3, 1, 1, 2, 8)
+      }
+      "does not cache value heavier than max weight" {
+         val cache = WeightedLruCache<String, String>(3) { it.length.toLong() }
+         cache.put("a", "aaaa")
+         cache["a"] shouldBe null
+         cache.weight shouldBe 0
+      }
+      "replaces value" {
+         val cache = WeightedLruCache<String, String>(10) { it.length.toLong() }
+         cache.put("a", "aaaa")
+         cache.put("a", "aa")
+         cache["a"] shouldBe "aa"
+         cache.weight shouldBe 2
+      }
+      "lowering max weight evicts" {
+         val cache = WeightedLruCache<String, String>(10) { it.length.toLong() }
+         cache.put("a", "aaaa")
+         cache.put("b", "bbbb")
+         cache.maxWeight = 5
+         cache["a"] shouldBe null
+         cache["b"] shouldBe "bbbb"
+      }
+   }
+
+})
@@ -0,0 +1,147 @@
+package sp.it.util.file
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.nio.file.Files
+
+class SegmentStoreTest: FreeSpec({
+
+   fun dir() = Files.createTempDirectory("segment-store").toFile().apply { deleteOnExit() }
+   fun bytes(size: Int, value: Int) = ByteArray(size) { value.toByte() }
+
+   SegmentStore::class.simpleName!! - {
+      "put and get" {
+         val store = SegmentStore(dir(), 2, 1024).apply { open() }
+         store["a"] shouldBe null
+         store.put("a", bytes(10, 1))
+         store["a"]!!.toList() shouldBe bytes(10, 1).toList()
+         store.put("a", bytes(5, 2))
+         store["a"]!!.toList() shouldBe bytes(5, 2).toList()
+         store.remove("a")
+         store["a"] shouldBe null
+         store.stats().hits shouldBe 2
+         store.stats().misses shouldBe 2
+         store.close()
+      }
+      "value larger than segment is ignored" {
+         val store = SegmentStore(dir(), 2, 1024).apply { open() }
+         store.put("a", bytes(2000, 1))
+         store["a"] shouldBe null
+         store.close()
+      }
+      "eviction" {
+         val store = SegmentStore(dir(), 3, 1024).apply { open() }
+         (0 until 30).forEach { store.put("$it", bytes(200, it)) }
+         store["0"] shouldBe null
+         store["29"]!!.toList() shouldBe bytes(200, 29).toList()
+         (store.stats().count<=3*4) shouldBe true
+         store.stats().evictions shouldBe 30 - store.stats().count
+         store.close()
+      }
+      "read values survive eviction" {
+         val store = SegmentStore(dir(), 2, 1024).apply { open() }
+         store.put("kept", bytes(200, 7))
+         (0 until 20).forEach {
+            store["kept"]
+            store.put("$it", bytes(200, it))
+         }
+         store["kept"]!!.toList() shouldBe bytes(200, 7).toList()
+         store.close()
+      }
+      "persistence" {
+         val d = dir()
+         SegmentStore(d, 3, 1024).apply {
+            open()
+            (0 until 14).forEach { put("$it", bytes(200, it)) }
+            close()
+         }
+         SegmentStore(d, 3, 1024).apply {
+            open()
+            this["13"]!!.toList() shouldBe bytes(200, 13).toList()
+            this["0"] shouldBe null
+            put("10", bytes(200, 10))
+            this["10"]!!.toList() shouldBe bytes(200, 10).toList()
+            close()
+         }
+      }
+      "removal persists" {
+         val d = dir()
+         SegmentStore(d, 3, 1024).apply {
+            open()
+            put("a", bytes(10, 1))
+            put("b", bytes(10, 2))
+            remove("a")
+            remove("c")
+            close()
+         }
+         SegmentStore(d, 3, 1024).apply {
+            open()
+            this["a"] shouldBe null
+            this["b"]!!.toList() shouldBe bytes(10, 2).toList()
+            put("a", bytes(10, 3))
+            close()
+         }
+         SegmentStore(d, 3, 1024).apply {
+            open()
+            this["a"]!!.toList() shouldBe bytes(10, 3).toList()
+            close()
+         }
+      }
+      "fewer segments delete extra segment files" {
+         val d = dir()
+         SegmentStore(d, 4, 1024).apply {
+            open()
+            (0 until 14).forEach { put("$it", bytes(200, it)) }
+            close()
+         }
+         SegmentStore(d, 2, 1024).apply {
+            open()
+            (d/"segment-1.dat").exists() shouldBe true
+            (d/"segment-2.dat").exists() shouldBe false
+            (d/"segment-3.dat").exists() shouldBe false
+            close()
+         }
+      }
+      "segments grow as filled" {
+         val d = dir()
+         SegmentStore(d, 2, 256*1024).apply {
+            open()
+            (d/"segment-0.dat").length() shouldBe 64L*1024
+            (0 until 100).forEach { put("$it", bytes(1024, it)) }
+            (d/"segment-0.dat").length() shouldBe 128L*1024
+            close()
+         }
+      }
+      "second store is read-only" {
+         val d = dir()
+         val store = SegmentStore(d, 2, 1024).apply { open() }
+         store.put("a", bytes(10, 1))
+         SegmentStore(d, 2, 1024).apply {
+            open()
+            isReadOnly shouldBe true
+            this["a"]!!.toList() shouldBe bytes(10, 1).toList()
+            put("b", bytes(10, 2))
+            this["b"] shouldBe null
+            close()
+         }
+         store.isReadOnly shouldBe false
+         store.close()
+      }
+      "clear" {
+         val d = dir()
+         SegmentStore(d, 2, 1024).apply {
+            open()
+            put("a", bytes(10, 1))
+            clear()
+            this["a"] shouldBe null
+            close()
+         }
+         SegmentStore(d, 2, 1024).apply {
+            open()
+            this["a"] shouldBe null
+            close()
+         }
+      }
+   }
+
+})
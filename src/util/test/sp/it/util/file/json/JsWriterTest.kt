@@ -0,0 +1,27 @@
+package sp.it.util.file.json
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import java.io.StringWriter
+
+class JsWriterTest: FreeSpec({
+
+   JsWriter::class.simpleName!! - {
+      "writes compact json" {
+         val s = StringWriter()
+         JsWriter(s)
+            .beginObject()
+            .name("a").value("x\"y")
+            .name("b").beginArray().value(1).value(2.5).value(Double.NaN).value(null as String?).endArray()
+            .name("c").beginObject().endObject()
+            .name("d").value(true)
+            .name("e").value(JsArray(listOf(JsNumber(1), JsString("z"))))
+            .endObject()
+            .flush()
+
+         s.toString() shouldBe """{"a":"x\"y","b":[1,2.5,null,null],"c":{},"d":true,"e":[1,"z"]}"""
+         Json().ast(s.toString()).isOk shouldBe true
+      }
+   }
+
+})
@@ -0,0 +1,60 @@
+package sp.it.util.text
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+import sp.it.util.text.FulltextIndex.Match.PREFIX
+import sp.it.util.text.FulltextIndex.WeightedText
+
+class FulltextIndexTest: FreeSpec({
+
+   fun index() = FulltextIndex<Int>().apply {
+      put(1, listOf(WeightedText("Paranoid", 3f), WeightedText("Black Sabbath", 2f)))
+      put(2, listOf(WeightedText("Black Dog", 3f), WeightedText("Led Zeppelin", 2f)))
+      put(3, listOf(WeightedText("Beyoncé", 2f), WeightedText("comment black", 1f)))
+   }
+
+   FulltextIndex::class.simpleName!! - {
+      "tokenize" {
+         FulltextIndex.tokenize("  Hello, World!-Beyoncé 42 ").toList() shouldBe listOf("hello", "world", "beyonce", "42")
+         FulltextIndex.tokenize("").toList() shouldBe listOf()
+      }
+      "search exact, ranked by weight" {
+         index().search("black").map { it.key } shouldBe listOf(2, 1, 3)
+      }
+      "search prefix" {
+         index().search("para", PREFIX).map { it.key } shouldBe listOf(1)
+         index().search("anoid", PREFIX).map { it.key } shouldBe listOf()
+      }
+      "search infix" {
+         index().search("anoid").map { it.key } shouldBe listOf(1)
+         index().search("ep").map { it.key } shouldBe listOf(2)
+         index().search("eppel").map { it.key } shouldBe listOf(2)
+      }
+      "search all terms" {
+         index().search("black sab").map { it.key } shouldBe listOf(1)
+         index().search("black xyz").map { it.key } shouldBe listOf()
+         index().search("BEYONCE").map { it.key } shouldBe listOf(3)
+         index().searchKeys("black dog") shouldBe setOf(2)
+      }
+      "search blank" {
+         index().search(" ,. ") shouldBe listOf()
+      }
+      "search limit" {
+         index().search("black", limit = 1).map { it.key } shouldBe listOf(2)
+      }
+      "update" {
+         val i = index()
+         i.put(2, listOf(WeightedText("White Dog", 3f)))
+         i.search("black").map { it.key } shouldBe listOf(1, 3)
+         i.search("white").map { it.key } shouldBe listOf(2)
+         i.search("zeppelin").map { it.key } shouldBe listOf()
+         i.remove(1)
+         i.search("sabbath").map { it.key } shouldBe listOf()
+         i.search("abba").map { it.key } shouldBe listOf()
+         i.size shouldBe 2
+         i.clear()
+         i.size shouldBe 0
+      }
+   }
+
+})
@@ -0,0 +1,38 @@
+package sp.it.util.text
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.doubles.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+
+class SearchableTextTest: FreeSpec({
+
+   SearchableText::class.simpleName!! - {
+      "score" {
+         SearchableText("Play").score("play") shouldBe SearchableText.SCORE_EXACT
+         SearchableText("Play").score("pl") shouldBeGreaterThan SearchableText("Open playlist").score("pl")
+         SearchableText("Open playlist").score("pl") shouldBeGreaterThan SearchableText("Complete").score("pl")
+         SearchableText("openPlaylist").score("play") shouldBeGreaterThan SearchableText("display").score("play")
+         SearchableText("display").score("play") shouldBeGreaterThan SearchableText("Pause last track").score("plt")
+         SearchableText("Pause last track").score("plt") shouldBeGreaterThan 0.0
+         SearchableText("Pause").score("xyz") shouldBe 0.0
+         SearchableText("Pause").score("") shouldBe 0.0
+      }
+      "score text with characters changing length when lowercased" {
+         SearchableText("İstanbul city").score("city") shouldBe SearchableText("Istanbul city").score("city")
+         SearchableText("İstanbulCity").score("city") shouldBe SearchableText("IstanbulCity").score("city")
+      }
+      "score shorter first" {
+         SearchableText("Settings").score("set") shouldBeGreaterThan SearchableText("Settings of application").score("set")
+      }
+      "scoreAll" {
+         SearchableText("Open settings").scoreAll(listOf("open", "set")) shouldBeGreaterThan 0.0
+         SearchableText("Open settings").scoreAll(listOf("open", "xyz")) shouldBe 0.0
+         SearchableText("Open settings").scoreAll(listOf()) shouldBe 0.0
+      }
+      "scoreAny" {
+         SearchableText("Open settings").scoreAny(listOf("open", "xyz")) shouldBe SearchableText("Open settings").score("open")
+         SearchableText("Open settings").scoreAny(listOf()) shouldBe 0.0
+      }
+   }
+
+})
@@ -0,0 +1,70 @@
+package sp.it.util.ui.image
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.ints.shouldBeGreaterThanOrEqual
+import java.awt.Color
+import java.awt.image.BufferedImage
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import javafx.application.Platform
+import javafx.embed.swing.JFXPanel
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import kotlinx.coroutines.invoke
+import sp.it.util.async.coroutine.FX
+import sp.it.util.async.coroutine.delay
+import sp.it.util.file.type.MimeType.Companion.`image∕gif`
+import sp.it.util.units.millis
+
+class ImageFrameStreamTest: FreeSpec({
+
+   fun setupJavaFXThread() {
+      val latch = CountDownLatch(1)
+      JFXPanel() // Initializes the JavaFX environment.
+      Platform.runLater { latch.countDown() }
+      latch.await()
+   }
+
+   fun gif(frames: Int, size: Int): File {
+      val f = File.createTempFile("image-frame-stream-test", ".gif").apply { deleteOnExit() }
+      val writer = ImageIO.getImageWritersByFormatName("gif").next()
+      ImageIO.createImageOutputStream(f).use { o ->
+         writer.output = o
+         writer.prepareWriteSequence(null)
+         repeat(frames) { i ->
+            val img = BufferedImage(size, size, BufferedImage.TYPE_INT_RGB)
+            img.createGraphics().apply { color = Color(i*255/frames, 0, 0); fillRect(0, 0, size, size); dispose() }
+            writer.writeToSequence(IIOImage(img, null, null), null)
+         }
+         writer.endWriteSequence()
+      }
+      writer.dispose()
+      return f
+   }
+
+   setupJavaFXThread()
+
+   ImageFrameStream::class.simpleName!! - {
+      listOf("fast" to 1, "slow" to 30).forEach { (name, consumeEveryMs) ->
+         "plays animation larger than cache with $name consumer" {
+            val frames = 6
+            val size = 32
+            val p = Params(gif(frames, size), ImageSize(0, 0), FitFrom.OUTSIDE, `image∕gif`)
+            val s = ImageFrameStream.open(p, bufferSize = 2, cacheMaxBytes = 3L*size*size*4)!!
+            var consumed = 0
+            FX {
+               var waitedMs = 0
+               while (consumed<3*frames && waitedMs<10000) {
+                  // like the player, polls only once next frame is decoded
+                  if (s.peek()!=null && s.poll()!=null) consumed++
+                  delay(consumeEveryMs.millis)
+                  waitedMs += consumeEveryMs
+               }
+               s.close()
+            }
+            consumed shouldBeGreaterThanOrEqual 3*frames
+         }
+      }
+   }
+
+})
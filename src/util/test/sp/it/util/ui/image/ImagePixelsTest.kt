@@ -0,0 +1,27 @@
+package sp.it.util.ui.image
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.shouldBe
+
+class ImagePixelsTest: FreeSpec({
+   "Method" - {
+
+      ::resampleArea.name {
+         val black = 0xFF000000.toInt()
+         val white = 0xFFFFFFFF.toInt()
+         val gray = 0xFF808080.toInt()
+
+         // uniform image stays uniform
+         IntArray(4).also { resampleArea(IntArray(16) { white }, 4, 4, it, 2, 2) }.toList() shouldBe List(4) { white }
+         // area is averaged
+         IntArray(1).also { resampleArea(intArrayOf(black, white), 2, 1, it, 1, 1) }.toList() shouldBe listOf(gray)
+         // partially covered pixels are weighted by coverage
+         IntArray(2).also { resampleArea(intArrayOf(black, black, white), 3, 1, it, 2, 1) }.toList() shouldBe listOf(black, 0xFFAAAAAA.toInt())
+         // premultiplied transparency is preserved
+         IntArray(1).also { resampleArea(intArrayOf(0, white), 2, 1, it, 1, 1) }.toList() shouldBe listOf(0x80808080.toInt())
+         // in place
+         intArrayOf(black, white, white, white).also { resampleArea(it, 2, 2, it, 1, 1) }[0] shouldBe 0xFFBFBFBF.toInt()
+      }
+
+   }
+})